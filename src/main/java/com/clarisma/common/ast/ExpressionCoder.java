@@ -31,6 +31,10 @@ public class ExpressionCoder extends Coder implements AstVisitor<Void>
 	 * of their Pattern class. (This Map is instantiated lazily)
 	 */
 	private Map<String,String> regexPatterns;
+	private Map<String,String> byteRegexes;
+
+	protected static final String BYTE_REGEX_CLASS = "com/clarisma/common/text/ByteRegex";
+	private static final String BYTE_REGEX_DESCRIPTOR = "L" + BYTE_REGEX_CLASS + ";";
 
 	public void setTypeChecker(TypeChecker typeChecker)
 	{
@@ -137,6 +141,35 @@ public class ExpressionCoder extends Coder implements AstVisitor<Void>
 			"Ljava/util/regex/Pattern;");
 	}
 
+	/**
+	 * Emits code to load the {@link com.clarisma.common.text.ByteRegex} object for the given
+	 * regex onto the stack. This method also generates the static
+	 * initialization code to compile it. The caller must ensure that
+	 * the regex is supported by `ByteRegex`.
+	 *
+	 * @param regex
+	 */
+	protected void loadByteRegex(String regex)
+	{
+		if(byteRegexes == null) byteRegexes = new HashMap<>();
+		String field = byteRegexes.get(regex);
+		if(field == null)
+		{
+			field = "BYTE_REGEX" + byteRegexes.size();
+			byteRegexes.put(regex, field);
+			FieldVisitor fv = cw.visitField(
+				ACC_PRIVATE | ACC_FINAL | ACC_STATIC, field,
+				BYTE_REGEX_DESCRIPTOR, null, null);
+			fv.visitEnd();
+			MethodVisitor staticMv = staticInitializer();
+			staticMv.visitLdcInsn(regex);
+			staticMv.visitMethodInsn(INVOKESTATIC, BYTE_REGEX_CLASS,
+				"compile", "(Ljava/lang/String;)" + BYTE_REGEX_DESCRIPTOR, false);
+			staticMv.visitFieldInsn(PUTSTATIC, className, field, BYTE_REGEX_DESCRIPTOR);
+		}
+		mv.visitFieldInsn(GETSTATIC, className, field, BYTE_REGEX_DESCRIPTOR);
+	}
+
 	/**
 	 * Emits code to test a string value against a regex pattern.
 	 * The Pattern object and the candidate string must have been placed
@@ -24,6 +24,14 @@ public class FreeStore
     private final Object mappingsLock = new Object();
     private FileLock fileLock;
     private int pageSizeShift = 12; // 4KB default page
+    @SuppressWarnings("unused")
+    private volatile int prefetchSink;  // keeps prefetch reads from being optimized away
+    /**
+     * Set once the store begins to close; prefetches that start
+     * afterwards return without touching the (soon to be unmapped)
+     * segments.
+     */
+    protected volatile boolean closing;
 
 
     protected static final int SEGMENT_SIZE = 1 << 30;
@@ -78,6 +86,7 @@ public class FreeStore
     public void close()
     {
         if(channel == null) return; // TODO: throw instead?
+        closing = true;
         unmapSegments();
         try
         {
@@ -248,11 +257,45 @@ public class FreeStore
         return getMapping(page >> (30 - pageSizeShift));
     }
 
+    /**
+     * Reads the blob that starts at the given page into memory (unless
+     * it is resident already). This blocks until the data has been
+     * read, so it should be called on a separate thread, ahead of the
+     * actual access. Does nothing if the store is closing.
+     *
+     * The caller must ensure that the store isn't unmapped while
+     * the blob is being read.
+     *
+     * @param page  the first page of the blob
+     */
+    public void prefetchBlob(int page)
+    {
+        if(closing) return;
+        ByteBuffer buf = bufferOfPage(page);
+        int p = offsetOfPage(page);
+        // The lower 30 bits of the blob header hold the payload size
+        int len = (int)Math.min(4L + (buf.getInt(p) & 0x3fff_ffff), buf.capacity() - p);
+        if(buf instanceof MappedByteBuffer mapped)
+        {
+            mapped.slice(p, len).load();
+            return;
+        }
+        int sum = 0;
+        int pageSize = 1 << pageSizeShift;
+        for(int i=pageSize; i<len; i+=pageSize) sum += buf.get(p + i);
+        prefetchSink = sum;
+    }
+
     public int offsetOfPage(int page)
     {
         return (page << pageSizeShift) & 0x3fff_ffff;
     }
 
+    public Path path()
+    {
+        return path;
+    }
+
     public int activeSnapshot()
     {
         return baseMapping.get(ACTIVE_SNAPSHOT_OFS);
@@ -0,0 +1,921 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.text;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A regular expression compiled into a deterministic automaton that
+ * operates on UTF-8 encoded bytes. This allows strings stored in a
+ * ByteBuffer to be matched in place, without decoding them into
+ * String objects.
+ *
+ * Only a subset of the `java.util.regex` syntax is supported:
+ * literals, `.`, character classes (including ranges, negation and
+ * the `\d`, `\w` and `\s` shorthands), groups, alternation and the
+ * quantifiers `*`, `+`, `?` and `{n,m}`; `^` and `$` are accepted at
+ * the start and end of the expression. For these, {@link #matches}
+ * yields the same result as `Pattern.matches()`. For any other
+ * expression (or one whose automaton would be too large),
+ * {@link #compile(String)} returns `null`, and callers should use
+ * a `Pattern` instead.
+ */
+public class ByteRegex
+{
+    private final String regex;
+    /**
+     * Maps each byte value to its equivalence class.
+     */
+    private final byte[] classes;
+    private final int classCount;
+    /**
+     * The next state for each combination of state and byte class,
+     * or -1 if the match fails.
+     */
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private static final int MAX_STATES = 1024;
+    private static final int MAX_REPEAT = 64;
+    private static final int MAX_CODE_POINT = 0x10FFFF;
+
+    private ByteRegex(String regex, byte[] classes, int classCount,
+        int[] transitions, boolean[] accepting)
+    {
+        this.regex = regex;
+        this.classes = classes;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.accepting = accepting;
+    }
+
+    /**
+     * Compiles a regular expression.
+     *
+     * @param regex the regular expression
+     * @return the compiled expression, or `null` if it uses syntax that
+     *  is not supported (or is invalid)
+     */
+    public static ByteRegex compile(String regex)
+    {
+        try
+        {
+            Node node = new Parser(regex).parse();
+            if(node == null) return null;
+            Nfa nfa = new Nfa();
+            Fragment f = nfa.build(node);
+            f.end.accept = true;
+            return nfa.toDfa(regex, f.start);
+        }
+        catch(UnsupportedSyntaxException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Signals that an expression cannot be compiled into a DFA (because
+     * it uses unsupported syntax, or it would require too many states).
+     * Never escapes {@link #compile(String)}.
+     */
+    private static class UnsupportedSyntaxException extends Exception
+    {
+        UnsupportedSyntaxException()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Checks whether a string stored in a buffer matches this expression
+     * in its entirety. The string must be in the format read by
+     * {@link com.clarisma.common.util.Bytes#readString(ByteBuffer, int)}.
+     *
+     * @param buf   the buffer
+     * @param p     the position of the string
+     * @return true if the string matches
+     */
+    public boolean matches(ByteBuffer buf, int p)
+    {
+        int len = buf.get(p);
+        if((len & 0x80) != 0)
+        {
+            len = (len & 0x7f) | ((buf.get(p+1) & 0xff) << 7);
+            p += 2;
+        }
+        else
+        {
+            p++;
+        }
+        int end = p + len;
+        int state = 0;
+        for(; p < end; p++)
+        {
+            state = transitions[state * classCount + (classes[buf.get(p) & 0xff] & 0xff)];
+            if(state < 0) return false;
+        }
+        return accepting[state];
+    }
+
+    /**
+     * Checks whether a string matches this expression in its entirety.
+     * The characters are encoded as UTF-8 as they are consumed.
+     *
+     * @param s the string
+     * @return true if the string matches
+     */
+    public boolean matches(CharSequence s)
+    {
+        int state = 0;
+        int len = s.length();
+        for(int i=0; i<len; )
+        {
+            int cp = Character.codePointAt(s, i);
+            i += Character.charCount(cp);
+            if(cp < 0x80)
+            {
+                state = step(state, cp);
+            }
+            else if(cp < 0x800)
+            {
+                state = step(state, 0xC0 | (cp >> 6));
+                if(state >= 0) state = step(state, 0x80 | (cp & 0x3f));
+            }
+            else if(cp < 0x10000)
+            {
+                state = step(state, 0xE0 | (cp >> 12));
+                if(state >= 0) state = step(state, 0x80 | ((cp >> 6) & 0x3f));
+                if(state >= 0) state = step(state, 0x80 | (cp & 0x3f));
+            }
+            else
+            {
+                state = step(state, 0xF0 | (cp >> 18));
+                if(state >= 0) state = step(state, 0x80 | ((cp >> 12) & 0x3f));
+                if(state >= 0) state = step(state, 0x80 | ((cp >> 6) & 0x3f));
+                if(state >= 0) state = step(state, 0x80 | (cp & 0x3f));
+            }
+            if(state < 0) return false;
+        }
+        return accepting[state];
+    }
+
+    private int step(int state, int b)
+    {
+        return transitions[state * classCount + (classes[b] & 0xff)];
+    }
+
+    @Override public String toString()
+    {
+        return regex;
+    }
+
+    // ==================== Syntax tree ====================
+
+    private static abstract class Node
+    {
+    }
+
+    /**
+     * A set of code points, as sorted, non-overlapping ranges.
+     */
+    private static class CharSet extends Node
+    {
+        final int[] ranges;
+
+        CharSet(int[] ranges)
+        {
+            this.ranges = ranges;
+        }
+    }
+
+    private static class Concat extends Node
+    {
+        final List<Node> items;
+
+        Concat(List<Node> items)
+        {
+            this.items = items;
+        }
+    }
+
+    private static class Alternation extends Node
+    {
+        final List<Node> items;
+
+        Alternation(List<Node> items)
+        {
+            this.items = items;
+        }
+    }
+
+    private static class Repeat extends Node
+    {
+        final Node node;
+        final int min;
+        final int max;      // -1 = unbounded
+
+        Repeat(Node node, int min, int max)
+        {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    // ==================== Parser ====================
+
+    private static class Parser
+    {
+        private final String s;
+        private int pos;
+
+        Parser(String s)
+        {
+            this.s = s;
+        }
+
+        private static UnsupportedSyntaxException unsupported()
+        {
+            return new UnsupportedSyntaxException();
+        }
+
+        Node parse() throws UnsupportedSyntaxException
+        {
+            if(s.startsWith("^")) pos++;
+            Node node = alternation();
+            if(pos < s.length())
+            {
+                // Only an unescaped trailing $ may remain
+                if(pos != s.length() - 1 || s.charAt(pos) != '$') throw unsupported();
+            }
+            return node;
+        }
+
+        private boolean atEnd()
+        {
+            return pos >= s.length() || (pos == s.length() - 1 && s.charAt(pos) == '$');
+        }
+
+        private Node alternation() throws UnsupportedSyntaxException
+        {
+            List<Node> items = new ArrayList<>();
+            items.add(concat());
+            while(pos < s.length() && s.charAt(pos) == '|')
+            {
+                pos++;
+                items.add(concat());
+            }
+            return items.size() == 1 ? items.get(0) : new Alternation(items);
+        }
+
+        private Node concat() throws UnsupportedSyntaxException
+        {
+            List<Node> items = new ArrayList<>();
+            while(!atEnd())
+            {
+                char ch = s.charAt(pos);
+                if(ch == '|' || ch == ')') break;
+                items.add(quantified(atom()));
+            }
+            return new Concat(items);
+        }
+
+        private Node quantified(Node node) throws UnsupportedSyntaxException
+        {
+            if(atEnd()) return node;
+            char ch = s.charAt(pos);
+            int min, max;
+            if(ch == '*')
+            {
+                min = 0;
+                max = -1;
+                pos++;
+            }
+            else if(ch == '+')
+            {
+                min = 1;
+                max = -1;
+                pos++;
+            }
+            else if(ch == '?')
+            {
+                min = 0;
+                max = 1;
+                pos++;
+            }
+            else if(ch == '{')
+            {
+                pos++;
+                min = number();
+                max = min;
+                if(pos < s.length() && s.charAt(pos) == ',')
+                {
+                    pos++;
+                    max = (pos < s.length() && s.charAt(pos) == '}') ? -1 : number();
+                }
+                if(pos >= s.length() || s.charAt(pos) != '}') throw unsupported();
+                pos++;
+                if(min > MAX_REPEAT || max > MAX_REPEAT || (max >= 0 && max < min))
+                {
+                    throw unsupported();
+                }
+            }
+            else
+            {
+                return node;
+            }
+            if(pos < s.length())
+            {
+                ch = s.charAt(pos);
+                // Reluctant quantifiers yield the same result for
+                // a full match; possessive ones may not
+                if(ch == '?')
+                {
+                    pos++;
+                }
+                else if(ch == '+')
+                {
+                    throw unsupported();
+                }
+            }
+            if(!atEnd() && "*+?{".indexOf(s.charAt(pos)) >= 0) throw unsupported();
+            return new Repeat(node, min, max);
+        }
+
+        private int number() throws UnsupportedSyntaxException
+        {
+            int start = pos;
+            while(pos < s.length() && Character.isDigit(s.charAt(pos)) && pos - start < 4) pos++;
+            if(pos == start) throw unsupported();
+            return Integer.parseInt(s, start, pos, 10);
+        }
+
+        private Node atom() throws UnsupportedSyntaxException
+        {
+            int cp = s.codePointAt(pos);
+            pos += Character.charCount(cp);
+            switch(cp)
+            {
+            case '(':
+                if(s.startsWith("?:", pos))
+                {
+                    pos += 2;
+                }
+                else if(pos < s.length() && s.charAt(pos) == '?')
+                {
+                    // flags, lookaround, named groups
+                    throw unsupported();
+                }
+                Node node = alternation();
+                if(pos >= s.length() || s.charAt(pos) != ')') throw unsupported();
+                pos++;
+                return node;
+            case '[':
+                return new CharSet(charClass());
+            case '.':
+                return new CharSet(complement(sorted(new int[]
+                    { '\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029 })));
+            case '\\':
+                return new CharSet(escape(false));
+            case '^':
+            case '$':
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+            case ')':
+                throw unsupported();
+            default:
+                return new CharSet(new int[] { cp, cp });
+            }
+        }
+
+        /**
+         * Parses an escape sequence (the backslash has been consumed).
+         */
+        private int[] escape(boolean inClass) throws UnsupportedSyntaxException
+        {
+            if(pos >= s.length()) throw unsupported();
+            char ch = s.charAt(pos++);
+            switch(ch)
+            {
+            case 'd': return new int[] { '0', '9' };
+            case 'D': return complement(new int[] { '0', '9' });
+            case 'w': return sorted(new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' });
+            case 'W': return complement(sorted(new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' }));
+            case 's': return sorted(new int[] { '\t', '\r', ' ', ' ' });
+            case 'S': return complement(sorted(new int[] { '\t', '\r', ' ', ' ' }));
+            case 't': return new int[] { '\t', '\t' };
+            case 'n': return new int[] { '\n', '\n' };
+            case 'r': return new int[] { '\r', '\r' };
+            case 'f': return new int[] { '\f', '\f' };
+            case 'a': return new int[] { 7, 7 };
+            case 'e': return new int[] { 27, 27 };
+            case 'x':
+                if(pos + 2 > s.length()) throw unsupported();
+                return single(hex(pos, pos += 2));
+            case 'u':
+                if(pos + 4 > s.length()) throw unsupported();
+                int cp = hex(pos, pos += 4);
+                if(Character.isSurrogate((char)cp)) throw unsupported();
+                return single(cp);
+            }
+            // Any other letter or digit has a special meaning
+            // (or is invalid); other characters are literals
+            if((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') ||
+                (ch >= '0' && ch <= '9') || ch >= 0x80)
+            {
+                throw unsupported();
+            }
+            return single(ch);
+        }
+
+        private int hex(int start, int end) throws UnsupportedSyntaxException
+        {
+            try
+            {
+                return Integer.parseInt(s, start, end, 16);
+            }
+            catch(NumberFormatException ex)
+            {
+                throw unsupported();
+            }
+        }
+
+        private int[] charClass() throws UnsupportedSyntaxException
+        {
+            boolean negated = false;
+            if(pos < s.length() && s.charAt(pos) == '^')
+            {
+                negated = true;
+                pos++;
+            }
+            List<int[]> sets = new ArrayList<>();
+            boolean first = true;
+            for(;;)
+            {
+                if(pos >= s.length()) throw unsupported();
+                int cp = s.codePointAt(pos);
+                if(cp == ']' && !first) break;
+                // Nested classes, intersections and a leading ']'
+                // have special meaning in Java
+                if(cp == '[' || cp == ']' || s.startsWith("&&", pos)) throw unsupported();
+                first = false;
+                pos += Character.charCount(cp);
+                if(cp == '\\')
+                {
+                    int[] set = escape(true);
+                    if(set.length == 2 && set[0] == set[1] && isRangeDash())
+                    {
+                        sets.add(range(set[0]));
+                    }
+                    else
+                    {
+                        sets.add(set);
+                    }
+                    continue;
+                }
+                if(isRangeDash())
+                {
+                    sets.add(range(cp));
+                    continue;
+                }
+                sets.add(single(cp));
+            }
+            pos++;  // skip ']'
+            int[] set = union(sets);
+            return negated ? complement(set) : set;
+        }
+
+        private boolean isRangeDash()
+        {
+            return pos + 1 < s.length() && s.charAt(pos) == '-' && s.charAt(pos+1) != ']';
+        }
+
+        private int[] range(int lo) throws UnsupportedSyntaxException
+        {
+            pos++;  // skip '-'
+            int hi = s.codePointAt(pos);
+            pos += Character.charCount(hi);
+            if(hi == '\\')
+            {
+                int[] set = escape(true);
+                if(set.length != 2 || set[0] != set[1]) throw unsupported();
+                hi = set[0];
+            }
+            else if(hi == '[')
+            {
+                throw unsupported();
+            }
+            if(hi < lo) throw unsupported();
+            return new int[] { lo, hi };
+        }
+    }
+
+    // ==================== Code-point sets ====================
+
+    private static int[] single(int cp)
+    {
+        return new int[] { cp, cp };
+    }
+
+    private static int[] sorted(int[] ranges)
+    {
+        return union(List.of(ranges));
+    }
+
+    private static int[] union(List<int[]> sets)
+    {
+        List<int[]> ranges = new ArrayList<>();
+        for(int[] set: sets)
+        {
+            for(int i=0; i<set.length; i+=2) ranges.add(new int[] { set[i], set[i+1] });
+        }
+        ranges.sort((a,b) -> Integer.compare(a[0], b[0]));
+        int[] result = new int[ranges.size() * 2];
+        int n = 0;
+        for(int[] r: ranges)
+        {
+            if(n > 0 && r[0] <= result[n-1] + 1)
+            {
+                result[n-1] = Math.max(result[n-1], r[1]);
+            }
+            else
+            {
+                result[n++] = r[0];
+                result[n++] = r[1];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] complement(int[] set)
+    {
+        int[] result = new int[set.length + 2];
+        int n = 0;
+        int next = 0;
+        for(int i=0; i<set.length; i+=2)
+        {
+            if(set[i] > next)
+            {
+                result[n++] = next;
+                result[n++] = set[i] - 1;
+            }
+            next = set[i+1] + 1;
+        }
+        if(next <= MAX_CODE_POINT)
+        {
+            result[n++] = next;
+            result[n++] = MAX_CODE_POINT;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // ==================== Automata ====================
+
+    private static class NfaState
+    {
+        int id;
+        int lo = -1;
+        int hi = -1;
+        NfaState next;      // target of the byte-range transition
+        NfaState eps1;
+        NfaState eps2;
+        boolean accept;
+    }
+
+    private static class Fragment
+    {
+        final NfaState start;
+        final NfaState end;
+
+        Fragment(NfaState start, NfaState end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Nfa
+    {
+        private final List<NfaState> states = new ArrayList<>();
+
+        private NfaState state() throws UnsupportedSyntaxException
+        {
+            NfaState s = new NfaState();
+            s.id = states.size();
+            states.add(s);
+            if(states.size() > MAX_STATES * 8) throw new UnsupportedSyntaxException();
+            return s;
+        }
+
+        private Fragment bytes(int lo, int hi) throws UnsupportedSyntaxException
+        {
+            NfaState s = state();
+            NfaState e = state();
+            s.lo = lo;
+            s.hi = hi;
+            s.next = e;
+            return new Fragment(s, e);
+        }
+
+        private Fragment empty() throws UnsupportedSyntaxException
+        {
+            NfaState s = state();
+            return new Fragment(s, s);
+        }
+
+        private Fragment concat(Fragment a, Fragment b)
+        {
+            a.end.eps1 = b.start;
+            return new Fragment(a.start, b.end);
+        }
+
+        private Fragment alternate(Fragment a, Fragment b) throws UnsupportedSyntaxException
+        {
+            NfaState s = state();
+            NfaState e = state();
+            s.eps1 = a.start;
+            s.eps2 = b.start;
+            a.end.eps1 = e;
+            b.end.eps1 = e;
+            return new Fragment(s, e);
+        }
+
+        Fragment build(Node node) throws UnsupportedSyntaxException
+        {
+            if(node instanceof CharSet cs) return charSet(cs.ranges);
+            if(node instanceof Concat c)
+            {
+                Fragment f = empty();
+                for(Node item: c.items) f = concat(f, build(item));
+                return f;
+            }
+            if(node instanceof Alternation a)
+            {
+                Fragment f = build(a.items.get(0));
+                for(int i=1; i<a.items.size(); i++) f = alternate(f, build(a.items.get(i)));
+                return f;
+            }
+            Repeat r = (Repeat)node;
+            Fragment f = empty();
+            for(int i=0; i<r.min; i++) f = concat(f, build(r.node));
+            if(r.max < 0)
+            {
+                // Kleene star
+                Fragment body = build(r.node);
+                NfaState s = state();
+                NfaState e = state();
+                s.eps1 = body.start;
+                s.eps2 = e;
+                body.end.eps1 = s;
+                f = concat(f, new Fragment(s, e));
+            }
+            else
+            {
+                for(int i=r.min; i<r.max; i++)
+                {
+                    Fragment body = build(r.node);
+                    NfaState s = state();
+                    NfaState e = state();
+                    s.eps1 = body.start;
+                    s.eps2 = e;
+                    body.end.eps1 = e;
+                    f = concat(f, new Fragment(s, e));
+                }
+            }
+            return f;
+        }
+
+        /**
+         * Builds a fragment that accepts the UTF-8 encoding of any code
+         * point in the given set (surrogates are never matched).
+         */
+        private Fragment charSet(int[] ranges) throws UnsupportedSyntaxException
+        {
+            List<int[]> sequences = new ArrayList<>();
+            for(int i=0; i<ranges.length; i+=2)
+            {
+                int lo = ranges[i];
+                int hi = ranges[i+1];
+                if(lo <= 0xDFFF && hi >= 0xD800)
+                {
+                    if(lo < 0xD800) utf8Ranges(lo, 0xD7FF, sequences);
+                    if(hi > 0xDFFF) utf8Ranges(0xE000, hi, sequences);
+                }
+                else
+                {
+                    utf8Ranges(lo, hi, sequences);
+                }
+            }
+            if(sequences.isEmpty())
+            {
+                // Matches nothing: a transition on a byte that never
+                // occurs in UTF-8
+                return bytes(0xFF, 0xFF);
+            }
+            NfaState s = state();
+            NfaState e = state();
+            NfaState branch = s;
+            for(int i=0; i<sequences.size(); i++)
+            {
+                int[] seq = sequences.get(i);
+                Fragment f = bytes(seq[0], seq[1]);
+                for(int i2=2; i2<seq.length; i2+=2) f = concat(f, bytes(seq[i2], seq[i2+1]));
+                f.end.eps1 = e;
+                if(i == sequences.size() - 1)
+                {
+                    branch.eps1 = f.start;
+                }
+                else
+                {
+                    NfaState nextBranch = state();
+                    branch.eps1 = f.start;
+                    branch.eps2 = nextBranch;
+                    branch = nextBranch;
+                }
+            }
+            return new Fragment(s, e);
+        }
+
+        /**
+         * Splits a range of code points into sequences of byte ranges
+         * that match their UTF-8 encodings.
+         */
+        private static void utf8Ranges(int lo, int hi, List<int[]> sequences)
+        {
+            int[] limits = { 0x7F, 0x7FF, 0xFFFF, MAX_CODE_POINT };
+            for(int limit: limits)
+            {
+                if(lo <= limit && hi > limit)
+                {
+                    utf8Ranges(lo, limit, sequences);
+                    utf8Ranges(limit + 1, hi, sequences);
+                    return;
+                }
+            }
+            int len = encodedLength(lo);
+            for(int i=1; i<len; i++)
+            {
+                int m = (1 << (6 * i)) - 1;
+                if((lo & ~m) != (hi & ~m))
+                {
+                    if((lo & m) != 0)
+                    {
+                        utf8Ranges(lo, lo | m, sequences);
+                        utf8Ranges((lo | m) + 1, hi, sequences);
+                        return;
+                    }
+                    if((hi & m) != m)
+                    {
+                        utf8Ranges(lo, (hi & ~m) - 1, sequences);
+                        utf8Ranges(hi & ~m, hi, sequences);
+                        return;
+                    }
+                }
+            }
+            int[] a = encode(lo);
+            int[] b = encode(hi);
+            int[] seq = new int[len * 2];
+            for(int i=0; i<len; i++)
+            {
+                seq[i*2] = a[i];
+                seq[i*2+1] = b[i];
+            }
+            sequences.add(seq);
+        }
+
+        private static int encodedLength(int cp)
+        {
+            if(cp < 0x80) return 1;
+            if(cp < 0x800) return 2;
+            if(cp < 0x10000) return 3;
+            return 4;
+        }
+
+        private static int[] encode(int cp)
+        {
+            switch(encodedLength(cp))
+            {
+            case 1:
+                return new int[] { cp };
+            case 2:
+                return new int[] { 0xC0 | (cp >> 6), 0x80 | (cp & 0x3f) };
+            case 3:
+                return new int[] { 0xE0 | (cp >> 12), 0x80 | ((cp >> 6) & 0x3f),
+                    0x80 | (cp & 0x3f) };
+            default:
+                return new int[] { 0xF0 | (cp >> 18), 0x80 | ((cp >> 12) & 0x3f),
+                    0x80 | ((cp >> 6) & 0x3f), 0x80 | (cp & 0x3f) };
+            }
+        }
+
+        private void closure(NfaState s, BitSet set)
+        {
+            if(s == null || set.get(s.id)) return;
+            set.set(s.id);
+            closure(s.eps1, set);
+            closure(s.eps2, set);
+        }
+
+        /**
+         * Converts the NFA into a DFA, using subset construction.
+         */
+        ByteRegex toDfa(String regex, NfaState start) throws UnsupportedSyntaxException
+        {
+            // Partition the byte values into classes that are
+            // indistinguishable by all transitions
+            BitSet boundaries = new BitSet(257);
+            for(NfaState s: states)
+            {
+                if(s.lo < 0) continue;
+                boundaries.set(s.lo);
+                boundaries.set(s.hi + 1);
+            }
+            byte[] classes = new byte[256];
+            int classCount = 0;
+            int[] representatives = new int[256];
+            for(int b=0; b<256; b++)
+            {
+                if(b > 0 && boundaries.get(b)) classCount++;
+                classes[b] = (byte)classCount;
+                representatives[classCount] = b;
+            }
+            classCount++;
+
+            Map<BitSet,Integer> dfaStates = new HashMap<>();
+            List<BitSet> pending = new ArrayList<>();
+            BitSet initial = new BitSet();
+            closure(start, initial);
+            dfaStates.put(initial, 0);
+            pending.add(initial);
+            int[] transitions = new int[classCount * 16];
+            for(int n=0; n<pending.size(); n++)
+            {
+                BitSet current = pending.get(n);
+                for(int c=0; c<classCount; c++)
+                {
+                    int b = representatives[c];
+                    BitSet target = new BitSet();
+                    for(int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i+1))
+                    {
+                        NfaState s = states.get(i);
+                        if(s.lo <= b && b <= s.hi) closure(s.next, target);
+                    }
+                    int next;
+                    if(target.isEmpty())
+                    {
+                        next = -1;
+                    }
+                    else
+                    {
+                        Integer existing = dfaStates.get(target);
+                        if(existing == null)
+                        {
+                            next = pending.size();
+                            if(next >= MAX_STATES) throw new UnsupportedSyntaxException();
+                            dfaStates.put(target, next);
+                            pending.add(target);
+                        }
+                        else
+                        {
+                            next = existing;
+                        }
+                    }
+                    int slot = n * classCount + c;
+                    if(slot >= transitions.length)
+                    {
+                        transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                    }
+                    transitions[slot] = next;
+                }
+            }
+            boolean[] accepting = new boolean[pending.size()];
+            for(int n=0; n<pending.size(); n++)
+            {
+                BitSet set = pending.get(n);
+                for(int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i+1))
+                {
+                    if(states.get(i).accept)
+                    {
+                        accepting[n] = true;
+                        break;
+                    }
+                }
+            }
+            return new ByteRegex(regex, classes, classCount,
+                Arrays.copyOf(transitions, pending.size() * classCount), accepting);
+        }
+    }
+}
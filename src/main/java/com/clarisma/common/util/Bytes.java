@@ -110,4 +110,33 @@ public class Bytes
     {
         return readString(buf,p).equals(s);
     }
+
+    /**
+     * Compares a string stored in a buffer to a UTF-8 encoded match
+     * string, without decoding the stored string.
+     *
+     * @param buf   the buffer
+     * @param p     the position of the stored string
+     * @param utf8  the match string, encoded as UTF-8
+     * @return true if the strings are equal
+     */
+    public static boolean stringEquals(ByteBuffer buf, int p, byte[] utf8)
+    {
+        int len = buf.get(p);
+        if((len & 0x80) != 0)
+        {
+            len = (len & 0x7f) | ((buf.get(p+1) & 0xff) << 7);
+            p+=2;
+        }
+        else
+        {
+            p++;
+        }
+        if(len != utf8.length) return false;
+        for(int i=0; i<len; i++)
+        {
+            if(utf8[i] != buf.get(p+i)) return false;
+        }
+        return true;
+    }
 }
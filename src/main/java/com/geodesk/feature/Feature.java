@@ -181,6 +181,61 @@ public interface Feature extends Iterable<Feature>
 	// TODO: call this isTagged(key) instead?
 	boolean booleanValue(String key);
 
+	/// Returns the value of a tag as a `String`.
+	///
+	/// @param key	the key of the tag
+	/// @return		the tag's value, or an empty `String` if the tag
+	/// 			does not exist
+	///
+	default String stringValue(Key key) { return stringValue(key.toString()); }
+
+	/// Returns the value of a tag as an `int`.
+	///
+	/// @param key	the key of the tag
+	/// @return		the tag's value, or `0` if the tag does not exist
+	/// 			or has a value that cannot be converted to an integer
+	///
+	default int intValue(Key key) { return intValue(key.toString()); }
+
+	/// Returns the value of a tag as a `long`.
+	///
+	/// @param key	the key of the tag
+	/// @return		the tag's value, or `0` if the tag does not exist
+	/// 			or has a value that cannot be converted to an integer
+	///
+	default long longValue(Key key) { return longValue(key.toString()); }
+
+	/// Returns the value of a tag as a `double`.
+	///
+	/// @param key	the key of the tag
+	/// @return		the tag's value, or `0` if the tag does not exist
+	/// 			or its value is not a valid number
+	///
+	default double doubleValue(Key key) { return doubleValue(key.toString()); }
+
+	/// Returns the value of a tag as a `boolean`.
+	///
+	/// @param key	the key of the tag
+	/// @return		`false` if the tag does not exist or its value is
+	/// 			`no`, otherwise `true`
+	///
+	default boolean booleanValue(Key key) { return booleanValue(key.toString()); }
+
+	/// Checks whether this feature has a tag with the given key.
+	///
+	/// @param key the key
+	/// @return true if feature is tagged with this key, otherwise false
+	///
+	default boolean hasTag(Key key) { return hasTag(key.toString()); }
+
+	/// Checks whether this feature has a tag with the given key and value.
+	///
+	/// @param key the key
+	/// @param value the value (e.g. <code>residential</code>)
+	/// @return true if the feature is tagged with this key/value, otherwise false
+	///
+	default boolean hasTag(Key key, String value) { return hasTag(key.toString(), value); }
+
 	// TODO
 	// boolean hasKey(String k);
 	// boolean isTagged(String k);
@@ -232,7 +287,12 @@ public interface Feature extends Iterable<Feature>
 	/// - For a `Relation` that is an area: [org.locationtech.jts.geom.Polygon]
 	/// - For a non-area `Relation`: [org.locationtech.jts.geom.GeometryCollection]
 	///
-	/// @return a newly created Geometry
+	/// If a query has already built the geometry in order to apply a
+	/// spatial filter, that geometry is returned instead of a new one.
+	/// Geometries may therefore be shared and must not be modified;
+	/// use [Geometry#copy()] to obtain one that can be changed.
+	///
+	/// @return the Geometry (which must not be modified)
     ///
 	Geometry toGeometry();
 	// String toGeoJson();
@@ -8,7 +8,10 @@
 package com.geodesk.feature;
 
 import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.QueryExecutor;
+import com.geodesk.feature.store.TagProjection;
 import com.geodesk.feature.query.WorldView;
+import com.geodesk.geom.Bounds;
 import org.locationtech.jts.geom.GeometryFactory;
 
 import java.nio.file.Path;
@@ -47,6 +50,176 @@ public class FeatureLibrary extends WorldView implements AutoCloseable
         return store.geometryFactory();
     }
 
+    /// Runs the queries of this library on the given executor, which
+    /// may be shared with other libraries. The library does not shut
+    /// down a shared executor when it is closed. This method must be
+    /// called before any queries are run.
+    ///
+    /// @param executor the executor
+    ///
+    public void setExecutor(QueryExecutor executor)
+    {
+        store.setExecutor(executor);
+    }
+
+    /// Limits the number of cores used by the queries of this library.
+    /// This method must be called before any queries are run.
+    ///
+    /// @param parallelism the maximum number of cores
+    ///
+    public void setParallelism(int parallelism)
+    {
+        store.setParallelism(parallelism);
+    }
+
+    /// Lets queries read the next few tiles they are going to search
+    /// into memory ahead of time, using a pool of I/O threads. This
+    /// helps if the GOL resides on storage with high latency (such as
+    /// a network drive); for a GOL on a local disk (or one whose tiles
+    /// are already cached in memory), leave it disabled (the default).
+    ///
+    /// @param prefetching `true` to enable prefetching
+    ///
+    public void setPrefetching(boolean prefetching)
+    {
+        store.setPrefetching(prefetching);
+    }
+
+    /// Stores the compiled form of queries in the given directory, so
+    /// that they can be reused by future processes (as long as they
+    /// use a GOL with the same string table and index schema). Queries
+    /// that have already been cached are loaded immediately.
+    ///
+    /// Since cached queries are loaded as executable code, the directory
+    /// must be owned by the current user and must not be accessible to
+    /// other users (the directory is created with these permissions if it
+    /// does not exist). Otherwise, a warning is logged and the cache is
+    /// not used. Cache entries are signed with a key stored in the
+    /// directory; entries with an invalid signature are ignored.
+    ///
+    /// @param dir the directory where compiled queries are cached
+    ///
+    public void setQueryCache(Path dir)
+    {
+        store.setMatcherCacheDirectory(dir);
+    }
+
+    /// Resolves a tag key for use with the features of this library.
+    /// Methods such as [Feature#stringValue(Key)] retrieve tags faster
+    /// than their `String`-based counterparts, since the key doesn't have
+    /// to be looked up again for each feature.
+    ///
+    /// @param name the key (e.g. `highway`)
+    /// @return the resolved [Key]
+    ///
+    public Key key(String name)
+    {
+        return new Key(store, name);
+    }
+
+    /// Creates a [TagProjection] that retrieves the values of the given
+    /// keys from a feature in a single pass over its tags. This is much
+    /// faster than calling [Feature#stringValue(String)] for each key
+    /// if you need to extract many tag values from many features.
+    ///
+    /// @param keys the keys whose values should be retrieved
+    /// @return the projection (which can be used by multiple threads)
+    ///
+    public TagProjection projection(String... keys)
+    {
+        return new TagProjection(store, keys);
+    }
+
+    /// Builds an index of feature IDs and stores it alongside the GOL
+    /// (as a file with extension `.idx`). Once the index exists,
+    /// [#node(long)], [#way(long)] and [#relation(long)] look up features
+    /// directly instead of scanning all tiles. The index is ignored if
+    /// the GOL is modified afterwards (e.g. when tiles are added); in that
+    /// case, call this method again to rebuild it.
+    ///
+    public void buildIdIndex()
+    {
+        store.buildIdIndex();
+    }
+
+    /// Builds an index that summarizes the tags of the features in
+    /// each tile, and stores it alongside the GOL (as a file with
+    /// extension `.tsi`). Once the index exists, queries for specific
+    /// tags (e.g. `n[name="Foo Bar"]`) skip the tiles that don't contain
+    /// any features with these tags, which makes queries for rare keys
+    /// or values much faster. As with [#buildIdIndex()], the index is
+    /// ignored if the GOL is modified afterwards.
+    ///
+    public void buildTagIndex()
+    {
+        store.buildTagIndex();
+    }
+
+    /// Builds an index of the words that occur in the names, refs and
+    /// addresses of features (the values of `name`, `name:*`, `ref` and
+    /// `addr:*`), and stores it alongside the GOL (as a file with
+    /// extension `.txi`). Once the index exists, [Features#searchText(String)]
+    /// looks up matching features directly instead of scanning all tiles.
+    /// As with [#buildIdIndex()], the index is ignored if the GOL is
+    /// modified afterwards.
+    ///
+    public void buildTextIndex()
+    {
+        store.buildTextIndex();
+    }
+
+    /// Reads the tile index into memory and decodes the string table,
+    /// then loads the tiles that were recorded in the library's access
+    /// profile (see [#saveAccessProfile()]). Call this after opening the
+    /// library (and before serving queries), so the first queries don't
+    /// have to wait for their tiles to be read from disk. Blocks until
+    /// all tiles have been loaded.
+    ///
+    /// @return the number of tiles that have been loaded
+    ///
+    public int warmUp()
+    {
+        return store.warmUp();
+    }
+
+    /// Reads the tile index into memory and decodes the string table,
+    /// then loads all tiles that intersect the given bounding box.
+    /// Blocks until all tiles have been loaded.
+    ///
+    /// @param bbox the bounding box
+    /// @return the number of tiles that have been loaded
+    ///
+    public int warmUp(Bounds bbox)
+    {
+        return store.warmUp(bbox);
+    }
+
+    /// Starts recording the tiles that are searched by queries,
+    /// so they can be saved as an access profile.
+    ///
+    public void startAccessProfile()
+    {
+        store.startAccessProfile();
+    }
+
+    /// Saves the tiles that have been recorded since
+    /// [#startAccessProfile()] was called, most frequently searched
+    /// tiles first (as a file with extension `.hot` alongside the GOL).
+    /// The next time the library is opened, [#warmUp()] reads these tiles
+    /// into memory. As with [#buildIdIndex()], the profile is ignored if
+    /// the GOL is modified afterwards.
+    ///
+    public void saveAccessProfile()
+    {
+        store.saveAccessProfile();
+    }
+
+    /// Stops recording the tiles that are searched by queries.
+    ///
+    public void stopAccessProfile()
+    {
+        store.stopAccessProfile();
+    }
 
     /// Closes the library and releases its resources.
     ///
@@ -11,6 +11,7 @@ import com.geodesk.feature.filter.*;
 import com.geodesk.feature.match.QueryException;
 import com.geodesk.feature.match.TypeBits;
 import com.geodesk.feature.query.EmptyView;
+import com.geodesk.feature.query.LimitedView;
 import com.geodesk.geom.Bounds;
 import com.geodesk.geom.Mercator;
 import org.locationtech.jts.geom.Geometry;
@@ -18,10 +19,18 @@ import org.locationtech.jts.geom.prep.PreparedGeometry;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // TODO: make a hierarchy of queries:
 //  FeatureLibrary
@@ -142,6 +151,84 @@ public interface Features extends Iterable<Feature>
         return(iter.hasNext() ? iter.next() : null);
     }
 
+    /// Returns a view of this collection that contains at most the
+    /// given number of features. Once the limit has been reached,
+    /// any search work that is still outstanding is cancelled.
+    ///
+    /// @param n the maximum number of features
+    /// @return a feature collection
+    ///
+    default Features limit(long n)
+    {
+        return new LimitedView(this, n);
+    }
+
+    /// Returns a view of this collection whose queries are aborted
+    /// if they take longer than the given time. Once the timeout
+    /// has elapsed, any outstanding search work is cancelled, and
+    /// iteration (or any other operation that runs the query)
+    /// throws a [QueryTimeoutException]. Collections that are not
+    /// backed by a query ignore the timeout.
+    ///
+    /// @param timeout the maximum duration of each query
+    /// @return a feature collection
+    ///
+    default Features withTimeout(Duration timeout)
+    {
+        return this;
+    }
+
+    /// Returns a view of this collection whose queries run with the given
+    /// priority. Collections that are not backed by a query ignore the
+    /// priority.
+    ///
+    /// @param priority the priority class of the queries
+    /// @return a feature collection
+    ///
+    default Features withPriority(QueryPriority priority)
+    {
+        return this;
+    }
+
+    /// Returns a view of this collection whose queries read tiles in the
+    /// order in which they are stored, rather than in spatial order.
+    /// The tiles that a query needs are determined up front, and then
+    /// searched by ascending position in the GOL, which turns the scan into
+    /// mostly sequential I/O. This is much faster for large-area queries
+    /// (such as country- or planet-wide exports) on hard disks and
+    /// throttled cloud storage, but delays the first results. Collections
+    /// that are not backed by a query ignore this setting.
+    ///
+    /// @return a feature collection
+    ///
+    default Features withDiskOrder()
+    {
+        return this;
+    }
+
+    /// Returns a sequential [Stream] of the features in this collection.
+    ///
+    /// @return a stream of features
+    ///
+    default Stream<Feature> stream()
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /// Returns a parallel [Stream] of the features in this collection.
+    /// For collections that are backed by a query, the work is split
+    /// along tile boundaries, and each tile is searched on the worker
+    /// thread that consumes its features. The terminal operation runs in
+    /// the thread pool of the FeatureStore (rather than in the common
+    /// pool), so it honors the store's parallelism limit.
+    ///
+    /// @return a possibly parallel stream of features
+    ///
+    default Stream<Feature> parallelStream()
+    {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /// Returns the number of features in this collection.
     ///
     /// @return the number of features
@@ -158,6 +245,68 @@ public interface Features extends Iterable<Feature>
         return count;
     }
 
+    /// Calculates the total length of the features in this collection.
+    ///
+    /// @return the total length (in meters)
+    ///
+    default double sumLength()
+    {
+        double total = 0;
+        for(Feature f: this) total += f.length();
+        return total;
+    }
+
+    /// Calculates the total area of the features in this collection.
+    ///
+    /// @return the total area (in square meters)
+    ///
+    default double sumArea()
+    {
+        double total = 0;
+        for(Feature f: this) total += f.area();
+        return total;
+    }
+
+    /// Groups the features in this collection by the value of the given key.
+    ///
+    /// @param key the key whose values determine the groups
+    /// @return a [Grouping] of the features
+    ///
+    default Grouping groupBy(String key)
+    {
+        return () ->
+        {
+            Map<String,Long> counts = new HashMap<>();
+            for(Feature f: this) counts.merge(f.stringValue(key), 1L, Long::sum);
+            return counts;
+        };
+    }
+
+    /// Checks each feature in this collection against several queries
+    /// and passes each feature that matches at least one of them to
+    /// `action`, along with the set of queries it matches (where bit *n*
+    /// represents `queries[n]`). For example, a map renderer can use this
+    /// to assign the features of a tile to its layers in a single pass,
+    /// instead of running a separate query for each layer.
+    ///
+    /// @param action  the action to perform for each matching feature
+    /// @param queries one or more GOQL queries
+    ///
+    /// @throws QueryException if one of the queries is invalid
+    ///
+    default void classify(BiConsumer<Feature,BitSet> action, String... queries)
+    {
+        Map<Feature,BitSet> matches = new LinkedHashMap<>();
+        for(int i=0; i<queries.length; i++)
+        {
+            for(Feature f: select(queries[i]))
+            {
+                matches.computeIfAbsent(f, k -> new BitSet()).set(i);
+            }
+        }
+        matches.forEach(action);
+    }
+
     /// Returns `true` if this collection contains no features.
     ///
     /// @return `true` if this collection contains no features
@@ -266,6 +415,51 @@ public interface Features extends Iterable<Feature>
         return select(new ContainsPointFilter(x, y));
     }
 
+    /// Returns the features that are closest to the given Mercator-projected
+    /// coordinate, in order of increasing distance. Features whose geometry
+    /// contains the coordinate have a distance of zero.
+    ///
+    /// @param x    the X coordinate of the point
+    /// @param y    the Y coordinate of the point
+    /// @param k    the maximum number of features to return
+    /// @return a list of up to `k` features, closest first
+    ///
+    /// @throws IllegalArgumentException if `k` is negative
+    ///
+    default List<Feature> nearestTo(int x, int y, int k)
+    {
+        throw new QueryException("Not implemented for this query.");
+    }
+
+    /// Returns the features that are closest to the given coordinate
+    /// (expressed as longitude and latitude), in order of increasing
+    /// distance.
+    ///
+    /// @param lon  the longitude of the point
+    /// @param lat  the latitude of the point
+    /// @param k    the maximum number of features to return
+    /// @return a list of up to `k` features, closest first
+    ///
+    default List<Feature> nearestToLonLat(double lon, double lat, int k)
+    {
+        return nearestTo(Mercator.xFromLon(lon), Mercator.yFromLat(lat), k);
+    }
+
+    /// Returns the features that are closest to the given feature, in order
+    /// of increasing distance (measured between the closest points of their
+    /// geometries). The feature itself is not included in the results.
+    ///
+    /// @param feature  the feature from which to measure
+    /// @param k        the maximum number of features to return
+    /// @return a list of up to `k` features, closest first
+    ///
+    /// @throws IllegalArgumentException if `k` is negative
+    ///
+    default List<Feature> nearestTo(Feature feature, int k)
+    {
+        throw new QueryException("Not implemented for this query.");
+    }
+
     /// Returns all features that contain the given feature.
     ///
     /// @param feature
@@ -476,6 +670,25 @@ public interface Features extends Iterable<Feature>
         for(Feature f: this) collection.add(f);
     }
 
+    /// Returns the features whose names, refs or addresses (the values of
+    /// `name`, `name:*`, `ref` and `addr:*`) contain a word that starts
+    /// with each of the words in `text`. Words are compared ignoring
+    /// case and diacritics, so `"sao pa"` matches "São Paulo".
+    ///
+    /// The result can be combined with other criteria, e.g.
+    /// `features.in(bbox).searchText("main st").select("w[highway]")`.
+    /// If the library has a text index (see [FeatureLibrary#buildTextIndex()]),
+    /// matching features are looked up via the index; otherwise, all
+    /// features (within the given bounds) are scanned.
+    ///
+    /// @param text     the text to search for
+    /// @return the matching features
+    ///
+    default Features searchText(String text)
+    {
+        return select(new TextFilter(text));
+    }
+
     /// Returns the node with the given ID (or `null`).
     ///
     /// @since 1.1
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature;
+
+import java.util.Map;
+
+/// The features of a collection, grouped by the value of a key
+/// (see [Features#groupBy(String)]).
+///
+public interface Grouping
+{
+    /// Counts the features in each group.
+    ///
+    /// @return a map of tag values to the number of features that
+    ///         have this value (features that don't have the key are
+    ///         counted under the empty string)
+    ///
+    Map<String,Long> count();
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature;
+
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.StoredFeature;
+
+import java.nio.charset.StandardCharsets;
+
+/// A tag key that has been resolved for a specific [FeatureLibrary]
+/// (see [FeatureLibrary#key(String)]). Looking up a tag via a `Key`
+/// instead of a `String` avoids resolving the key for every call,
+/// which matters if you retrieve the same tags from many features.
+///
+/// A `Key` can be used with features from any library, but is
+/// only faster for features of the library that created it.
+///
+public final class Key
+{
+    private final FeatureStore store;
+    private final String name;
+    private final int code;
+    private final byte[][] bytes;
+
+    /// @hidden
+    public Key(FeatureStore store, String name)
+    {
+        this.store = store;
+        this.name = name;
+        code = StoredFeature.commonKeyCode(store, name);
+        bytes = new byte[][] { name.getBytes(StandardCharsets.UTF_8) };
+    }
+
+    /// @hidden
+    public FeatureStore store()
+    {
+        return store;
+    }
+
+    /// The code of this key, if it is a common key; otherwise -1.
+    ///
+    /// @hidden
+    ///
+    public int code()
+    {
+        return code;
+    }
+
+    /// The UTF-8 encoding of this key, as the only element of an array
+    /// (the form in which uncommon keys are looked up).
+    ///
+    /// @hidden
+    ///
+    public byte[][] bytes()
+    {
+        return bytes;
+    }
+
+    /// Returns the key as a `String`.
+    ///
+    @Override public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature;
+
+/// The priority class of a query (see [Features#withPriority(QueryPriority)]).
+///
+public enum QueryPriority
+{
+    /// The default priority. Interactive queries use as many worker
+    /// threads as they can.
+    ///
+    INTERACTIVE,
+
+    /// A low priority for long-running work such as exports. Batch queries
+    /// yield to interactive queries that share the same executor, by
+    /// keeping only a single tile in flight while any interactive
+    /// query is being processed.
+    ///
+    BATCH
+}
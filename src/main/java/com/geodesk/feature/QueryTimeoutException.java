@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature;
+
+import java.time.Duration;
+
+/// Thrown if a query takes longer than the timeout specified via
+/// [Features#withTimeout(Duration)].
+///
+public class QueryTimeoutException extends RuntimeException
+{
+    private final Duration timeout;
+
+    public QueryTimeoutException(Duration timeout)
+    {
+        super(String.format("Query timed out after %d ms", timeout.toMillis()));
+        this.timeout = timeout;
+    }
+
+    public Duration timeout()
+    {
+        return timeout;
+    }
+}
@@ -10,12 +10,15 @@ package com.geodesk.feature.filter;
 import com.geodesk.geom.Box;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Filter;
+import com.geodesk.feature.match.AdaptiveOrder;
 import com.geodesk.geom.Bounds;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Polygon;
 
 /**
- * A Filter that combined two Filters.
+ * A Filter that combined two Filters. The Filters are evaluated in the
+ * order that is cheapest according to their sampled pass rates and
+ * evaluation times (see {@link AdaptiveOrder}).
  */
 public class AndFilter implements Filter
 {
@@ -24,9 +27,17 @@ public class AndFilter implements Filter
     private final int strategy;
     private final int acceptedTypes;
     private final Bounds bounds;
+    private final AdaptiveOrder order;
 
     public AndFilter(Filter left, Filter right, int strategy, Bounds bounds, int acceptedTypes)
     {
+        this(left, right, strategy, bounds, acceptedTypes, new AdaptiveOrder());
+    }
+
+    private AndFilter(Filter left, Filter right, int strategy, Bounds bounds,
+        int acceptedTypes, AdaptiveOrder order)
+    {
+        this.order = order;
         this.left = left;
         this.right = right;
         this.strategy = strategy;
@@ -34,6 +45,16 @@ public class AndFilter implements Filter
         this.bounds = bounds;
     }
 
+    public Filter left()
+    {
+        return left;
+    }
+
+    public Filter right()
+    {
+        return right;
+    }
+
     @Override public boolean accept(Feature feature)
     {
         if((strategy & FilterStrategy.NEEDS_GEOMETRY) != 0)
@@ -45,6 +66,19 @@ public class AndFilter implements Filter
 
     @Override public boolean accept(Feature feature, Geometry geom)
     {
+        if(order.sample())
+        {
+            long start = System.nanoTime();
+            boolean leftResult = left.accept(feature, geom);
+            long mid = System.nanoTime();
+            boolean rightResult = right.accept(feature, geom);
+            order.record(leftResult, mid - start, rightResult, System.nanoTime() - mid);
+            return leftResult && rightResult;
+        }
+        if(order.swapped())
+        {
+            return right.accept(feature, geom) && left.accept(feature, geom);
+        }
         return left.accept(feature, geom) && right.accept(feature, geom);
     }
 
@@ -69,13 +103,20 @@ public class AndFilter implements Filter
         if (newLeft == null) return newRight;
         if (newRight == null) return newLeft;
         if (newLeft == left && newRight == right) return this;
-        return create(newLeft, newRight);
+        // The tile-specific filters take the place of the originals,
+        // so they share the statistics that determine their order
+        return create(newLeft, newRight, order);
             // TODO: don't need to AND types and bbox, since these are only
             //  used at beginning of filtering (not applied on a per-tile basis)
     }
 
 
     public static Filter create(Filter left, Filter right)
+    {
+        return create(left, right, new AdaptiveOrder());
+    }
+
+    private static Filter create(Filter left, Filter right, AdaptiveOrder order)
     {
         int leftStrategy = left.strategy();
         int rightStrategy = right.strategy();
@@ -116,6 +157,6 @@ public class AndFilter implements Filter
             bounds = Box.ofWorld();
         }
         // Log.debug("Combining %s and %s", left, right);
-        return new AndFilter(left, right, combinedStrategy, bounds, acceptedTypes);
+        return new AndFilter(left, right, combinedStrategy, bounds, acceptedTypes, order);
     }
 }
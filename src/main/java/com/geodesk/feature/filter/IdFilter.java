@@ -29,6 +29,11 @@ public class IdFilter implements Filter
         this.id = id;
     }
 
+    public long id()
+    {
+        return id;
+    }
+
     @Override public int strategy()
     {
         return FilterStrategy.RESTRICTS_TYPES;
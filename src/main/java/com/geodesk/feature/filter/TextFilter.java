@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.filter;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.Tags;
+import com.geodesk.feature.store.TextIndex;
+import com.geodesk.geom.Bounds;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Filter that accepts features whose names, refs or addresses contain
+ * words that start with each of the words of a search text (e.g. "main st"
+ * matches "Main Street"). Words are normalized in the same way as the
+ * tokens of a {@link TextIndex}; if the FeatureStore has a text index,
+ * the query uses it to find candidate features.
+ */
+public class TextFilter implements Filter
+{
+    private final String[] tokens;
+
+    public TextFilter(String text)
+    {
+        List<String> list = new ArrayList<>();
+        TextIndex.tokenize(text, list::add);
+        tokens = list.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the normalized words of the search text.
+     */
+    public String[] tokens()
+    {
+        return tokens;
+    }
+
+    /**
+     * Returns `null`, since this filter does not restrict the bounds
+     * of a query (a view keeps its own bounding box).
+     */
+    @Override public Bounds bounds()
+    {
+        return null;
+    }
+
+    @Override public boolean accept(Feature feature)
+    {
+        if(tokens.length == 0) return false;
+        Set<String> featureTokens = new HashSet<>();
+        Tags tags = feature.tags();
+        while(tags.next())
+        {
+            if(TextIndex.isIndexedKey(tags.key()))
+            {
+                TextIndex.tokenize(tags.stringValue(), featureTokens::add);
+            }
+        }
+    outer:
+        for(String token: tokens)
+        {
+            if(featureTokens.contains(token)) continue;
+            for(String ft: featureTokens)
+            {
+                if(ft.startsWith(token)) continue outer;
+            }
+            return false;
+        }
+        return true;
+    }
+}
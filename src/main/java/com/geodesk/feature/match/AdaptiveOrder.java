@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+/**
+ * Chooses the order in which the two operands of a logical AND are
+ * evaluated, based on their observed pass rates and costs. Evaluating
+ * the operand that is cheaper and more likely to fail first lets us
+ * skip the other one for more candidates.
+ *
+ * One in {@link #SAMPLE_INTERVAL} evaluations is a sample, for which the
+ * caller evaluates both operands (regardless of the outcome of the first)
+ * and reports the results via {@link #record}. Once enough samples have
+ * been collected, the order is re-evaluated, and the statistics are
+ * halved, so that recent samples carry more weight.
+ *
+ * This applies to AND-combined Filters, and to the AndMatcher that
+ * combines queries which can't be fused into a single generated Matcher.
+ * The clauses of a generated Matcher are not reordered: they are tested
+ * in a single scan of the tag table, whose order is given by the keys.
+ *
+ * An instance is typically shared by the threads of a query. The counter
+ * that selects the samples is deliberately not synchronized: a lost
+ * update merely shifts the next sample, which is cheaper than an atomic
+ * increment (or a random draw) for every candidate.
+ */
+public class AdaptiveOrder
+{
+    /**
+     * One in this many evaluations is sampled (must be a power of 2).
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+    /**
+     * The number of samples after which the order is re-evaluated.
+     */
+    private static final int DECISION_SAMPLES = 32;
+
+    private int calls;
+    private int samples;
+    private int passedFirst;
+    private int passedSecond;
+    private long costFirst;
+    private long costSecond;
+    private volatile boolean swapped;
+
+    /**
+     * Checks whether the current evaluation should be sampled.
+     */
+    public boolean sample()
+    {
+        return (++calls & (SAMPLE_INTERVAL - 1)) == 0;
+    }
+
+    /**
+     * Returns `true` if the second operand (in construction order)
+     * should be evaluated first.
+     */
+    public boolean swapped()
+    {
+        return swapped;
+    }
+
+    /**
+     * Records the outcome of a sample. Operands are referred to in
+     * construction order, regardless of the current order.
+     *
+     * @param first         the result of the first operand
+     * @param firstCost     the cost of the first operand (e.g. in ns)
+     * @param second        the result of the second operand
+     * @param secondCost    the cost of the second operand
+     */
+    public synchronized void record(boolean first, long firstCost, boolean second, long secondCost)
+    {
+        if(first) passedFirst++;
+        if(second) passedSecond++;
+        costFirst += firstCost;
+        costSecond += secondCost;
+        if(++samples < DECISION_SAMPLES) return;
+
+        // Expected total cost per candidate for either order:
+        //   cost(a) + passRate(a) * cost(b)
+        // (scaled by the number of samples)
+        double firstFirst = costFirst + (double)passedFirst / samples * costSecond;
+        double secondFirst = costSecond + (double)passedSecond / samples * costFirst;
+        // Require a 10% improvement to avoid flip-flopping
+        if(swapped)
+        {
+            if(firstFirst < secondFirst * 0.9) swapped = false;
+        }
+        else
+        {
+            if(secondFirst < firstFirst * 0.9) swapped = true;
+        }
+        samples /= 2;
+        passedFirst /= 2;
+        passedSecond /= 2;
+        costFirst /= 2;
+        costSecond /= 2;
+    }
+}
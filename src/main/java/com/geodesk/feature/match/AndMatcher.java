@@ -13,6 +13,7 @@ public class AndMatcher extends Matcher
 {
     private final Matcher a;
     private final Matcher b;
+    private final AdaptiveOrder order = new AdaptiveOrder();
 
     public AndMatcher(Matcher a, Matcher b)
     {
@@ -21,13 +22,32 @@ public class AndMatcher extends Matcher
         this.b = b;
     }
 
+    // Matchers are cheap and cost about the same, so we only take
+    // their pass rates into account when choosing the order
+
     @Override public boolean accept(ByteBuffer buf, int pos)
     {
+        if(order.sample())
+        {
+            boolean resultA = a.accept(buf, pos);
+            boolean resultB = b.accept(buf, pos);
+            order.record(resultA, 1, resultB, 1);
+            return resultA && resultB;
+        }
+        if(order.swapped()) return b.accept(buf, pos) && a.accept(buf, pos);
         return a.accept(buf, pos) && b.accept(buf, pos);
     }
 
     @Override public boolean acceptTyped(int types, ByteBuffer buf, int pos)
     {
+        if(order.sample())
+        {
+            boolean resultA = a.acceptTyped(types, buf, pos);
+            boolean resultB = b.acceptTyped(types, buf, pos);
+            order.record(resultA, 1, resultB, 1);
+            return resultA && resultB;
+        }
+        if(order.swapped()) return b.acceptTyped(types, buf, pos) && a.acceptTyped(types, buf, pos);
         return a.acceptTyped(types, buf, pos) && b.acceptTyped(types, buf, pos);
     }
 
@@ -36,6 +56,11 @@ public class AndMatcher extends Matcher
         return a.acceptIndex(keys) && b.acceptIndex(keys);
     }
 
+    @Override public long[][][] tagTerms()
+    {
+        return TagTerms.and(a.tagTerms(), b.tagTerms());
+    }
+
     @Override public Matcher acceptRole(int roleCode, String roleString)
     {
         Matcher ma = a.acceptRole(roleCode, roleString);
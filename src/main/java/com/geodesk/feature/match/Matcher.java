@@ -73,6 +73,19 @@ public abstract class Matcher
         return this;
     }
 
+    /**
+     * Returns the hashes of the keys and tags that features must have
+     * in order to match (see {@link TagTerms}), which allows a query to
+     * skip tiles that cannot contain any matching features.
+     *
+     * @return  the required terms, or `null` if this Matcher does
+     *          not require any specific tags
+     */
+    public long[][][] tagTerms()
+    {
+        return null;
+    }
+
     public int acceptedTypes()
     {
         return acceptedTypes;
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+import com.clarisma.common.util.Log;
+import org.eclipse.collections.api.map.primitive.IntIntMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A persistent cache of the bytecode of compiled Matchers. Each Matcher
+ * is stored in its own file, named after the fingerprint of the
+ * compilation environment (the GOL's string table and index schema, as
+ * well as the version of the code generator) and a hash of the query.
+ * Files whose fingerprint doesn't match are ignored, so the same directory
+ * can be used for multiple GOLs.
+ *
+ * File layout:
+ *
+ * <pre>
+ *   int     magic
+ *   UTF     query
+ *   int     length of class bytes
+ *   byte[]  class bytes
+ *   byte[]  HMAC-SHA256 of the query and class bytes
+ * </pre>
+ *
+ * Since the class bytes are defined as Matchers with full privileges,
+ * a cache entry must not be accepted unless this process (or another
+ * process of the same user) wrote it. Each entry is therefore signed with
+ * a secret key, which is created on first use and stored in the cache
+ * directory. The cache is only used if the directory and the key file
+ * are owned by the current user, and (on file systems that support
+ * POSIX permissions) cannot be read or written by anyone else;
+ * otherwise, a warning is logged and queries are simply compiled.
+ *
+ * I/O errors, entries with an invalid signature and corrupt entries
+ * are treated as cache misses (the Matcher is simply compiled instead).
+ */
+class MatcherCache
+{
+    private final Path dir;
+    private final String prefix;
+    private final SecretKeySpec key;
+
+    private static final int MAGIC = 0x6D617464;    // "matd"
+    private static final String KEY_FILE = "matcher.key";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_SIZE = 32;
+    private static final int MAC_SIZE = 32;
+
+    /**
+     * The maximum length of the class bytes of a Matcher; a larger value
+     * indicates a corrupt entry.
+     */
+    private static final int MAX_CODE_SIZE = 1 << 24;
+
+    /**
+     * The maximum length of the UTF-8 encoded query of a Matcher; a
+     * larger value indicates a corrupt entry.
+     */
+    private static final int MAX_QUERY_SIZE = 1 << 24;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+        PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_READ_WRITE =
+        PosixFilePermissions.fromString("rw-------");
+
+    /**
+     * Must be incremented whenever {@link MatcherCoder} changes the code
+     * it generates, to invalidate existing cache entries.
+     */
+    private static final int CODER_VERSION = 4;
+
+    private static final String EXTENSION = ".matcher";
+
+    private MatcherCache(Path dir, String prefix, SecretKeySpec key)
+    {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.key = key;
+    }
+
+    /**
+     * Opens a cache for Matchers compiled against a specific string
+     * table and index schema.
+     *
+     * @param dir                   the cache directory (created if it
+     *                              does not exist)
+     * @param stringsFingerprint    a hash of the raw bytes of the string table
+     * @param keysToCategories      the indexed keys and their categories
+     * @param valueNo               the string code of "no"
+     * @return the cache, or `null` if the directory cannot be used
+     *         safely (or is inaccessible)
+     */
+    static MatcherCache open(Path dir, long stringsFingerprint,
+        IntIntMap keysToCategories, int valueNo)
+    {
+        SecretKeySpec key;
+        try
+        {
+            key = openKey(dir);
+        }
+        catch (IOException ex)
+        {
+            Log.warn("Failed to open matcher cache %s: %s", dir, ex.getMessage());
+            return null;
+        }
+        if(key == null) return null;
+        return new MatcherCache(dir, String.format("%016x-",
+            fingerprint(stringsFingerprint, keysToCategories, valueNo)), key);
+    }
+
+    private static boolean isPosix(Path path)
+    {
+        return Files.getFileAttributeView(path, PosixFileAttributeView.class) != null;
+    }
+
+    /**
+     * Checks that the given file or directory is owned by the current
+     * user, and is not accessible to anyone else.
+     */
+    private static boolean isPrivate(Path path, UserPrincipal user) throws IOException
+    {
+        if(!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user))
+        {
+            Log.warn("Matcher cache not used: %s is not owned by %s", path, user.getName());
+            return false;
+        }
+        if(isPosix(path))
+        {
+            Set<PosixFilePermission> perms = Files.getPosixFilePermissions(
+                path, LinkOption.NOFOLLOW_LINKS);
+            for(PosixFilePermission perm: perms)
+            {
+                if(!OWNER_ONLY.contains(perm))
+                {
+                    Log.warn("Matcher cache not used: %s is accessible to " +
+                        "other users (permissions must be %s)", path,
+                        Files.isDirectory(path) ? "rwx------" : "rw-------");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ensures that the cache directory is private to the current user,
+     * and reads the key used to sign the cache entries (or creates it).
+     *
+     * @return the key, or `null` if the directory is not private
+     */
+    private static SecretKeySpec openKey(Path dir) throws IOException
+    {
+        if(!Files.exists(dir))
+        {
+            if(isPosix(dir))
+            {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            }
+            else
+            {
+                Files.createDirectories(dir);
+            }
+        }
+        UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+        if(!isPrivate(dir, user)) return null;
+
+        Path keyPath = dir.resolve(KEY_FILE);
+        if(!Files.exists(keyPath, LinkOption.NOFOLLOW_LINKS))
+        {
+            byte[] bytes = new byte[KEY_SIZE];
+            new SecureRandom().nextBytes(bytes);
+            try
+            {
+                if(isPosix(keyPath))
+                {
+                    Files.createFile(keyPath, PosixFilePermissions.asFileAttribute(OWNER_READ_WRITE));
+                }
+                else
+                {
+                    Files.createFile(keyPath);
+                }
+                Files.write(keyPath, bytes);
+            }
+            catch (FileAlreadyExistsException ex)
+            {
+                // Another process has created the key in the meantime;
+                // use that one instead
+            }
+        }
+        if(!isPrivate(keyPath, user)) return null;
+        byte[] bytes = Files.readAllBytes(keyPath);
+        if(bytes.length != KEY_SIZE)
+        {
+            Log.warn("Matcher cache not used: %s is corrupt", keyPath);
+            return null;
+        }
+        return new SecretKeySpec(bytes, MAC_ALGORITHM);
+    }
+
+    /**
+     * Computes the signature of a cache entry.
+     */
+    private byte[] sign(String query, byte[] code)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+            mac.update(intBytes(queryBytes.length));
+            mac.update(queryBytes);
+            mac.update(intBytes(code.length));
+            mac.update(code);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new RuntimeException(ex);     // every JVM must support HmacSHA256
+        }
+    }
+
+    private static byte[] intBytes(int v)
+    {
+        return new byte[] { (byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8), (byte)v };
+    }
+
+    /**
+     * Reads the class bytes of an entry (positioned after the query),
+     * and verifies their signature.
+     *
+     * @return the class bytes, or `null` if the entry is corrupt or
+     *         its signature is invalid
+     */
+    /**
+     * Reads the query of an entry. Queries are written as a length-prefixed
+     * UTF-8 byte array (rather than via `writeUTF()`, which is limited to
+     * 64 KB, a size that queries with long lists of values can exceed).
+     *
+     * @return the query, or `null` if the entry is corrupt
+     */
+    private static String readQuery(DataInputStream in, Path path) throws IOException
+    {
+        int len = in.readInt();
+        if(len < 0 || len > MAX_QUERY_SIZE)
+        {
+            Log.warn("Cached matcher %s is corrupt", path);
+            return null;
+        }
+        byte[] bytes = in.readNBytes(len);
+        if(bytes.length != len)
+        {
+            Log.warn("Cached matcher %s is corrupt", path);
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readCode(DataInputStream in, String query, Path path) throws IOException
+    {
+        int len = in.readInt();
+        if(len <= 0 || len > MAX_CODE_SIZE)
+        {
+            Log.warn("Cached matcher %s is corrupt", path);
+            return null;
+        }
+        byte[] code = in.readNBytes(len);
+        byte[] signature = in.readNBytes(MAC_SIZE);
+        if(code.length != len || signature.length != MAC_SIZE)
+        {
+            Log.warn("Cached matcher %s is corrupt", path);
+            return null;
+        }
+        if(!MessageDigest.isEqual(signature, sign(query, code)))
+        {
+            Log.warn("Cached matcher %s has an invalid signature", path);
+            return null;
+        }
+        return code;
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException(ex);     // every JVM must support SHA-256
+        }
+    }
+
+    private static long toLong(byte[] digest)
+    {
+        long v = 0;
+        for(int i=0; i<8; i++) v = (v << 8) | (digest[i] & 0xff);
+        return v;
+    }
+
+    private static long fingerprint(long stringsFingerprint,
+        IntIntMap keysToCategories, int valueNo)
+    {
+        MessageDigest digest = sha256();
+        DataOutputStream out = new DataOutputStream(new OutputStream()
+        {
+            @Override public void write(int b)
+            {
+                digest.update((byte)b);
+            }
+
+            @Override public void write(byte[] b, int off, int len)
+            {
+                digest.update(b, off, len);
+            }
+        });
+        try
+        {
+            out.writeInt(CODER_VERSION);
+            out.writeInt(valueNo);
+            out.writeLong(stringsFingerprint);
+            if(keysToCategories != null)
+            {
+                int[] keys = keysToCategories.keySet().toSortedArray();
+                out.writeInt(keys.length);
+                for(int key: keys)
+                {
+                    out.writeInt(key);
+                    out.writeInt(keysToCategories.get(key));
+                }
+            }
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);     // can't happen
+        }
+        return toLong(digest.digest());
+    }
+
+    private Path pathOf(String query)
+    {
+        long hash = toLong(sha256().digest(query.getBytes(StandardCharsets.UTF_8)));
+        return dir.resolve(String.format("%s%016x%s", prefix, hash, EXTENSION));
+    }
+
+    /**
+     * Loads the class bytes of the Matcher for the given query.
+     *
+     * @param query     the query
+     * @return the class bytes, or `null` if the query has not been cached
+     */
+    byte[] load(String query)
+    {
+        Path path = pathOf(query);
+        if(!Files.exists(path)) return null;
+        try(DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(path))))
+        {
+            if(in.readInt() != MAGIC) return null;
+            // Guard against hash collisions
+            if(!query.equals(readQuery(in, path))) return null;
+            return readCode(in, query, path);
+        }
+        catch (IOException ex)
+        {
+            Log.warn("Failed to read cached matcher %s: %s", path, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the class bytes of the Matcher for the given query.
+     *
+     * @param query     the query
+     * @param code      the class bytes
+     */
+    void store(String query, byte[] code)
+    {
+        Path path = pathOf(query);
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        byte[] queryBytes = query.getBytes(StandardCharsets.UTF_8);
+        if(queryBytes.length > MAX_QUERY_SIZE) return;
+        try
+        {
+            Files.createDirectories(dir);
+            try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPath))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(queryBytes.length);
+                out.write(queryBytes);
+                out.writeInt(code.length);
+                out.write(code);
+                out.write(sign(query, code));
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            Log.warn("Failed to cache matcher %s: %s", path, ex.getMessage());
+            try
+            {
+                Files.deleteIfExists(tempPath);
+            }
+            catch (IOException ex2)
+            {
+                // ignore; a stale temporary file is harmless
+            }
+        }
+    }
+
+    /**
+     * Calls the given consumer with the query and class bytes of every
+     * cached Matcher that belongs to this cache's fingerprint.
+     *
+     * @param consumer  the consumer
+     * @param max       the maximum number of Matchers to retrieve
+     */
+    void forEach(BiConsumer<String,byte[]> consumer, int max)
+    {
+        if(!Files.isDirectory(dir)) return;
+        int count = 0;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + EXTENSION))
+        {
+            for(Path path: files)
+            {
+                if(count >= max) break;
+                try(DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(path))))
+                {
+                    if(in.readInt() != MAGIC) continue;
+                    String query = readQuery(in, path);
+                    if(query == null) continue;
+                    byte[] code = readCode(in, query, path);
+                    if(code == null) continue;
+                    consumer.accept(query, code);
+                    count++;
+                }
+                catch (IOException ex)
+                {
+                    Log.warn("Failed to read cached matcher %s: %s", path, ex.getMessage());
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            Log.warn("Failed to read matcher cache %s: %s", dir, ex.getMessage());
+        }
+    }
+}
@@ -8,6 +8,7 @@
 package com.geodesk.feature.match;
 
 import com.clarisma.common.ast.*;
+import com.clarisma.common.text.ByteRegex;
 import com.geodesk.feature.store.TagValues;
 import org.objectweb.asm.Label;
 
@@ -38,9 +39,6 @@ import static org.objectweb.asm.Opcodes.*;
  *
  */
 
-// TODO: Define matchers as hidden classes? (requires Java 15+)
-//  Makes class unloading easier (no ClassLoader required)
-
 /*
 	IMPLEMENTATION NOTES
    	════════════════════
@@ -146,6 +144,7 @@ public class MatcherCoder extends ExpressionCoder
 {
 	private static final String
 		MATCHER_BASE_CLASS = "com/geodesk/feature/match/TagMatcher",
+		MATCHER_SET_BASE_CLASS = "com/geodesk/feature/match/MatcherSet",
 		BYTES_CLASS = "com/clarisma/common/util/Bytes",
 		TAG_VALUES_CLASS = "com/geodesk/feature/store/TagValues";
 
@@ -218,6 +217,15 @@ public class MatcherCoder extends ExpressionCoder
      * this is a single bit that corresponds to {@link TypeBits}.
 	 */
 	private static final int $type = 15;
+	/**
+	 * The bit set of candidate (and then matched) queries (used only for MatcherSets;
+	 * copied from the third argument, whose slot is reused by $tag).
+	 */
+	private static final int $bits = 16;
+	/**
+	 * The number of matched queries (used only for MatcherSets).
+	 */
+	private static final int $match_count = 17;
 
 	private static final int NONE = 0;
 	private static final int REQUIRED = 1;
@@ -242,6 +250,11 @@ public class MatcherCoder extends ExpressionCoder
 	 * Where to jump if the current Selector is NOT matched.
 	 */
 	private Label selector_failed;
+	/**
+	 * Where to jump if any Selector of the current query is matched
+	 * (only used for MatcherSets; if null, the method returns true).
+	 */
+	private Label query_success;
 	/**
 	 * What kinds of clauses follow the current one: NONE, REQUIRED,
 	 * or ONLY_OPTIONAL.
@@ -1716,8 +1729,15 @@ public class MatcherCoder extends ExpressionCoder
 
 		// matched all clauses, return true
 		mv.visitLabel(selector_success);
-		mv.visitInsn(ICONST_1);
-		mv.visitInsn(IRETURN);
+		if(query_success != null)
+		{
+			mv.visitJumpInsn(GOTO, query_success);
+		}
+		else
+		{
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(IRETURN);
+		}
 
 		// common exit point when we've failed to match a clause
 		mv.visitLabel(selector_failed);
@@ -1725,13 +1745,13 @@ public class MatcherCoder extends ExpressionCoder
 
 	private void createConstructor(int acceptedTypes, int keyMask, int keyMin)
 	{
-		beginConstructor("([Ljava/lang/String;)V");
+		beginConstructor("(Ljava/util/function/IntFunction;)V");
         mv.visitVarInsn(ALOAD, $this);
 		loadIntConstant(acceptedTypes);
-		mv.visitVarInsn(ALOAD, 1); // first argument: String[]
+		mv.visitVarInsn(ALOAD, 1); // first argument: IntFunction<String>
 		loadIntConstant(keyMask);
 		loadIntConstant(keyMin);
-		callBaseClassConstructor("(I[Ljava/lang/String;II)V");
+		callBaseClassConstructor("(ILjava/util/function/IntFunction;II)V");
 		mv.visitInsn(RETURN);
 		// force auto-calculation of maxStack and maxLocals
 		mv.visitMaxs(0, 0);
@@ -1962,6 +1982,151 @@ public class MatcherCoder extends ExpressionCoder
 		return cw.toByteArray();
 	}
 
+	/**
+	 * Emits the `matchCandidates()` method of a MatcherSet, which evaluates
+	 * the candidate queries (whose bits are set) in turn and clears the bit
+	 * of each query whose Selectors aren't matched. The feature type, the
+	 * tag-table pointer and the local-keys flag are decoded only once for
+	 * all queries.
+	 *
+	 * @param queries	the first Selector of each query
+	 */
+	private void createMatchMethod(Selector[] queries)
+	{
+		mv = cw.visitMethod(ACC_PROTECTED, "matchCandidates", "(Ljava/nio/ByteBuffer;I[J)I", null, null);
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitVarInsn(ASTORE, $bits);
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, $match_count);
+		saveFeatureType();
+
+		// Advance the feature pointer to the tagtable pointer
+		mv.visitIincInsn($pos, 8);
+		// Load the relative tag-table pointer
+		getInt();
+		// Isolate the local-keys flag from the tagged pointer
+		mv.visitInsn(DUP);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IAND);
+		mv.visitVarInsn(ISTORE, $local_key_flag);
+		// Mask off the uncommon-keys flag and get the absolute pointer
+		loadIntConstant(0xffff_fffe);
+		mv.visitInsn(IAND);
+		mv.visitVarInsn(ILOAD, $pos);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, $tagtable_ptr);
+
+		for(int i=0; i<queries.length; i++)
+		{
+			Label next_query = new Label();
+			Label query_failed = new Label();
+			query_success = new Label();
+
+			// if((bits[i >> 6] & (1L << (i & 63))) == 0) skip the query
+			mv.visitVarInsn(ALOAD, $bits);
+			loadIntConstant(i >> 6);
+			mv.visitInsn(LALOAD);
+			mv.visitLdcInsn(1L << (i & 63));
+			mv.visitInsn(LAND);
+			mv.visitInsn(LCONST_0);
+			mv.visitInsn(LCMP);
+			mv.visitJumpInsn(IFEQ, next_query);
+
+			int queryTypes = 0;
+			for(Selector sel = queries[i]; sel != null; sel = sel.next())
+			{
+				queryTypes |= sel.matchTypes();
+			}
+			if(queryTypes != TypeBits.ALL)
+			{
+				mv.visitVarInsn(ILOAD, $type);
+				loadIntConstant(queryTypes);
+				mv.visitInsn(IAND);
+				mv.visitJumpInsn(IFEQ, query_failed);
+			}
+			for(Selector sel = queries[i]; sel != null; sel = sel.next())
+			{
+				Label next_selector = new Label();
+				if(sel.matchTypes() != queryTypes)
+				{
+					mv.visitVarInsn(ILOAD, $type);
+					loadIntConstant(sel.matchTypes());
+					mv.visitInsn(IAND);
+					mv.visitJumpInsn(IFEQ, next_selector);
+				}
+				mv.visitVarInsn(ILOAD, $tagtable_ptr);
+				mv.visitVarInsn(ISTORE, $pos);
+				selector(sel, true);
+				mv.visitLabel(next_selector);
+			}
+
+			// bits[i >> 6] &= ~(1L << (i & 63))
+			mv.visitLabel(query_failed);
+			mv.visitVarInsn(ALOAD, $bits);
+			loadIntConstant(i >> 6);
+			mv.visitInsn(DUP2);
+			mv.visitInsn(LALOAD);
+			mv.visitLdcInsn(~(1L << (i & 63)));
+			mv.visitInsn(LAND);
+			mv.visitInsn(LASTORE);
+			mv.visitJumpInsn(GOTO, next_query);
+
+			mv.visitLabel(query_success);
+			mv.visitIincInsn($match_count, 1);
+			mv.visitLabel(next_query);
+		}
+		query_success = null;
+
+		mv.visitVarInsn(ILOAD, $match_count);
+		mv.visitInsn(IRETURN);
+		// force auto-calculation of maxStack and maxLocals
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Generates a MatcherSet class for the given queries. Each query
+	 * must be supplied twice (as separately parsed Selectors), since
+	 * code generation may reorder a query's Selectors: `queries` is
+	 * used for the `match()` method, `union` (the Selectors of all
+	 * queries, chained together) for the `accept()` method.
+	 *
+	 * @param className	the name of the class
+	 * @param queries	the first Selector of each query
+	 * @param union		the Selectors of all queries, as a single chain
+	 * @return the bytecode of the class
+	 */
+	public byte[] createMatcherSetClass(String className, Selector[] queries, Selector union)
+	{
+		int acceptedTypes = 0;
+		int keyMask = 0;
+		int keyMin = Integer.MAX_VALUE;
+		for(Selector s = union; s != null; s = s.next())
+		{
+			acceptedTypes |= s.matchTypes();
+			int indexBits = s.indexBits();
+			keyMask |= indexBits;
+			if(indexBits < keyMin) keyMin = indexBits;
+		}
+
+		beginClass(className, MATCHER_SET_BASE_CLASS, null);
+		beginConstructor("(Ljava/util/function/IntFunction;)V");
+		mv.visitVarInsn(ALOAD, $this);
+		loadIntConstant(acceptedTypes);
+		mv.visitVarInsn(ALOAD, 1); // first argument: IntFunction<String>
+		loadIntConstant(keyMask);
+		loadIntConstant(keyMin);
+		loadIntConstant(queries.length);
+		callBaseClassConstructor("(ILjava/util/function/IntFunction;III)V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		createAcceptMethod("accept", union);
+		createMatchMethod(queries);
+		endClass();
+		return cw.toByteArray();
+	}
+
 	@Override public Void visitLiteral(Literal exp)
 	{
 		Object v = exp.value();
@@ -2005,9 +2170,6 @@ public class MatcherCoder extends ExpressionCoder
 	 */
 	private boolean matchStringValue(BinaryExpression exp, Label t, Label f)
 	{
-		// TODO: regex pattern matching
-		// TODO: contained string matching
-
 		Expression right = exp.right();
 		if (!(right instanceof Literal)) return false;
 		Literal literal = (Literal) right;
@@ -2052,6 +2214,32 @@ public class MatcherCoder extends ExpressionCoder
 
 		if(op == Operator.MATCH)
 		{
+			if(ByteRegex.compile(matchString) != null)
+			{
+				// Match local strings directly in the buffer, and other
+				// values (global strings or numbers) via their String
+				// representation, which is already available
+				Label use_string = new Label();
+				Label done = new Label();
+				mv.visitVarInsn(ILOAD, $val_string_ptr);
+				mv.visitJumpInsn(IFEQ, use_string);
+				loadByteRegex(matchString);
+				mv.visitVarInsn(ALOAD, $buf);
+				mv.visitVarInsn(ILOAD, $val_string_ptr);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_REGEX_CLASS,
+					"matches", "(Ljava/nio/ByteBuffer;I)Z", false);
+				mv.visitJumpInsn(t != null ? IFNE : IFEQ, t != null ? t : f);
+				mv.visitJumpInsn(GOTO, done);
+				mv.visitLabel(use_string);
+				loadByteRegex(matchString);
+				mv.visitVarInsn(ALOAD, $val_string);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_REGEX_CLASS,
+					"matches", "(Ljava/lang/CharSequence;)Z", false);
+				mv.visitJumpInsn(t != null ? IFNE : IFEQ, t != null ? t : f);
+				mv.visitLabel(done);
+				return true;
+			}
+			// Fall back to java.util.regex for unsupported syntax
 			Label perform_match = new Label();
 			mv.visitVarInsn(ALOAD, $val_string);
 			mv.visitJumpInsn(IFNONNULL, perform_match);
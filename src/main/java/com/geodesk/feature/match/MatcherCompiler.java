@@ -7,58 +7,311 @@
 
 package com.geodesk.feature.match;
 
-import com.clarisma.common.util.Log;
+import com.geodesk.feature.store.StringTable;
 import org.eclipse.collections.api.map.primitive.IntIntMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
 
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
 
-public class MatcherCompiler extends ClassLoader
+/**
+ * Compiles GOQL queries into Matchers and caches them.
+ *
+ * Matchers are defined as hidden classes, which are not tied to a
+ * ClassLoader; once a Matcher has been evicted from the cache and is
+ * no longer used by any query, its class can be unloaded.
+ *
+ * Lookups in the cache are lock-free. Only compilation (which relies on
+ * the non-thread-safe MatcherParser) is serialized. The cache holds a
+ * bounded number of Matchers; once it is full, the least-recently
+ * used ones are evicted.
+ */
+public class MatcherCompiler
 {
     private final MatcherParser parser;
-    private final String[] codesToStrings;
+    private final IntFunction<String> codesToStrings;
+    private final LongSupplier stringsFingerprint;
+    private final IntIntMap keysToCategories;
     private final int valueNo;
-    private final Map<String, Matcher> matchers = new HashMap<>();
+    private volatile MatcherCache diskCache;
+    private final Map<String, Entry> matchers = new ConcurrentHashMap<>();
+    private final int maxCacheSize;
+    private final Object compileLock = new Object();
     private int classCount;
 
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /**
+     * The maximum number of Selectors in a fused Matcher. Fusing two
+     * queries creates the cross product of their Selectors, so we don't
+     * fuse queries with many alternatives.
+     */
+    public static final int MAX_FUSED_SELECTORS = 16;
+
+    /**
+     * Separates the strings of fused queries in the cache key.
+     */
+    private static final char QUERY_SEPARATOR = '\0';
+
+    /**
+     * Precedes each query of a MatcherSet in the cache key.
+     */
+    private static final char SET_SEPARATOR = '\u0001';
+
+    /**
+     * Don't update an entry's timestamp more often than this (in ns),
+     * to avoid contended writes to the entries of popular queries.
+     */
+    private static final long TIMESTAMP_GRANULARITY = 1_000_000;
+
+    private static class Entry
+    {
+        final Matcher matcher;
+        volatile long lastUsed;
+
+        Entry(Matcher matcher)
+        {
+            this.matcher = matcher;
+            lastUsed = System.nanoTime();
+        }
+    }
+
     // TODO: take FeatureStore as argument
     public MatcherCompiler(ObjectIntMap<String> stringsToCodes, String[] codesToStrings,
         IntIntMap keysToCategories)
+    {
+        this(stringsToCodes, codesToStrings, keysToCategories, DEFAULT_CACHE_SIZE);
+    }
+
+    public MatcherCompiler(ObjectIntMap<String> stringsToCodes, String[] codesToStrings,
+        IntIntMap keysToCategories, int maxCacheSize)
+    {
+        this(stringsToCodes::get, code -> codesToStrings[code],
+            () -> StringTable.fingerprint(codesToStrings), keysToCategories, maxCacheSize);
+    }
+
+    /**
+     * Creates a MatcherCompiler for a string table that is accessed via
+     * lookup functions (which allows the table to be decoded lazily).
+     *
+     * @param stringsToCodes    returns the code of a string, or 0 if the
+     *                          string is not in the table
+     * @param codesToStrings    returns the string with the given code
+     * @param stringsFingerprint    computes a hash of the string table
+     *                          (see {@link StringTable#fingerprint()}); only
+     *                          needed if a cache directory is set
+     * @param keysToCategories  the indexed keys and their categories
+     * @param maxCacheSize      the maximum number of cached Matchers
+     */
+    public MatcherCompiler(ToIntFunction<String> stringsToCodes,
+        IntFunction<String> codesToStrings, LongSupplier stringsFingerprint,
+        IntIntMap keysToCategories, int maxCacheSize)
     {
         this.codesToStrings = codesToStrings;
-        valueNo = stringsToCodes.get("no");
+        this.stringsFingerprint = stringsFingerprint;
+        this.keysToCategories = keysToCategories;
+        this.maxCacheSize = maxCacheSize;
+        valueNo = stringsToCodes.applyAsInt("no");
         if(valueNo == 0) throw new QueryException("String table must include \"no\"");
         parser = new MatcherParser(stringsToCodes, keysToCategories);
     }
 
     public Matcher getMatcher(String query)
     {
-        Matcher matcher = matchers.get(query);
-        if(matcher == null)
+        Entry entry = matchers.get(query);
+        if(entry != null)
+        {
+            long now = System.nanoTime();
+            if(now - entry.lastUsed > TIMESTAMP_GRANULARITY) entry.lastUsed = now;
+            return entry.matcher;
+        }
+        synchronized (compileLock)
+        {
+            // Another thread may have compiled the query in the meantime
+            entry = matchers.get(query);
+            if(entry == null)
+            {
+                entry = new Entry(createMatcher(query));
+                matchers.put(query, entry);
+                if(matchers.size() > maxCacheSize) evict();
+            }
+        }
+        return entry.matcher;
+    }
+
+    /**
+     * Creates a Matcher that accepts features only if both of the given
+     * Matchers accept them. If both were compiled from GOQL queries, the
+     * result is a single generated Matcher that evaluates both queries
+     * in one scan of the tag table (the fused Matcher is cached like
+     * any other); otherwise, the result is an AndMatcher.
+     *
+     * @param a     the first Matcher
+     * @param b     the second Matcher
+     * @return a Matcher that represents the logical AND of `a` and `b`
+     */
+    public Matcher and(Matcher a, Matcher b)
+    {
+        if(a instanceof TagMatcher ta && ta.query != null && !(a instanceof MatcherSet) &&
+            b instanceof TagMatcher tb && tb.query != null && !(b instanceof MatcherSet))
+        {
+            return getMatcher(ta.query + QUERY_SEPARATOR + tb.query);
+        }
+        return new AndMatcher(a, b);
+    }
+
+    /**
+     * Returns a MatcherSet for the given queries. MatcherSets are cached
+     * the same way as regular Matchers.
+     *
+     * @param queries   one or more GOQL queries
+     * @return the MatcherSet
+     */
+    public MatcherSet getMatcherSet(String... queries)
+    {
+        if(queries.length == 0) throw new IllegalArgumentException("Must specify at least one query");
+        StringBuilder buf = new StringBuilder();
+        for(String q: queries) buf.append(SET_SEPARATOR).append(q);
+        return (MatcherSet)getMatcher(buf.toString());
+    }
+
+    /**
+     * Splits the cache key of a MatcherSet into its queries.
+     */
+    static String[] setQueries(String key)
+    {
+        return key.substring(1).split(String.valueOf(SET_SEPARATOR), -1);
+    }
+
+    /**
+     * Enables the persistent cache of compiled Matchers. The bytecode of
+     * newly compiled Matchers is written to the given directory, and
+     * Matchers that have been compiled previously (by any process that
+     * uses a GOL with the same string table and index schema) are
+     * loaded instead of being compiled again.
+     *
+     * The directory must be private to the current user; if it is
+     * accessible to others, the persistent cache is not used (see
+     * {@link MatcherCache}).
+     *
+     * @param dir   the cache directory (created if it does not exist)
+     */
+    public void setCacheDirectory(Path dir)
+    {
+        diskCache = MatcherCache.open(dir, stringsFingerprint.getAsLong(),
+            keysToCategories, valueNo);
+    }
+
+    /**
+     * Loads all Matchers from the persistent cache (up to the capacity
+     * of the in-memory cache), so the first use of these queries
+     * doesn't incur any compilation cost.
+     *
+     * @return the number of Matchers loaded
+     */
+    public int preload()
+    {
+        MatcherCache cache = diskCache;
+        if(cache == null) return 0;
+        int[] count = new int[1];
+        synchronized (compileLock)
+        {
+            cache.forEach((query, code) ->
+            {
+                if(matchers.containsKey(query)) return;
+                matchers.put(query, new Entry(defineMatcher(query, code)));
+                count[0]++;
+            }, maxCacheSize - matchers.size());
+        }
+        return count[0];
+    }
+
+    /**
+     * Returns the number of Matchers currently held in the in-memory cache.
+     */
+    public int cacheSize()
+    {
+        return matchers.size();
+    }
+
+    /**
+     * Removes the least-recently used Matchers from the cache, shrinking
+     * it to 3/4 of its maximum size (so we don't need to evict on every
+     * subsequent miss).
+     */
+    private void evict()
+    {
+        List<Map.Entry<String,Entry>> entries = new ArrayList<>(matchers.entrySet());
+        entries.sort((a,b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+        int excess = entries.size() - maxCacheSize * 3 / 4;
+        for(int i=0; i<excess; i++)
+        {
+            matchers.remove(entries.get(i).getKey());
+        }
+    }
+
+    private byte[] compile(Selector selectors)
+    {
+        MatcherCoder coder = new MatcherCoder(valueNo);
+        classCount++;
+        // Hidden classes must reside in the package of the Lookup
+        // that defines them
+        String className = "com/geodesk/feature/match/Matcher_" + classCount;
+        return coder.createMatcherClass(className, selectors);
+    }
+
+    /**
+     * Parses each of the given queries.
+     *
+     * @return the first Selector of each query
+     */
+    private Selector[] parseEach(String[] queries)
+    {
+        Selector[] selectors = new Selector[queries.length];
+        for(int i=0; i<queries.length; i++)
         {
-            matcher = createMatcher(query);
-            matchers.put(query, matcher);
+            parser.parse(queries[i]);
+            selectors[i] = parser.query();
         }
-        return matcher;
+        return selectors;
     }
 
-    private Matcher createMatcher(Selector selectors)
+    private byte[] compileSet(String[] queries)
     {
+        Selector[] selectors = parseEach(queries);
+        Selector union = union(queries);
         MatcherCoder coder = new MatcherCoder(valueNo);
         classCount++;
-        String className = "Matcher_" + classCount;
-        byte[] code = coder.createMatcherClass(className, selectors);
-        Class<?> matcherClass = defineClass(className, code, 0, code.length);
+        String className = "com/geodesk/feature/match/MatcherSet_" + classCount;
+        return coder.createMatcherSetClass(className, selectors, union);
+    }
+
+    private Matcher defineMatcher(String query, byte[] code)
+    {
         try
         {
+            Class<?> matcherClass = MethodHandles.lookup()
+                .defineHiddenClass(code, true).lookupClass();
             Constructor<?> constructor = matcherClass.getDeclaredConstructor(
-                String.class.arrayType());
-            // Can't pass globalStrings directly, since it is an array
+                IntFunction.class);
             // TODO: pass FeatureStore, int types, resources
-            return (Matcher)constructor.newInstance(new Object[]{ codesToStrings });
+            TagMatcher matcher = (TagMatcher)constructor.newInstance(codesToStrings);
+            matcher.query = query;
+            matcher.compiler = this;
+            if(matcher instanceof MatcherSet set)
+            {
+                set.requireKeys(parseEach(setQueries(query)));
+            }
+            return matcher;
         }
         catch (NoSuchMethodException | SecurityException | InstantiationException |
                IllegalAccessException | IllegalArgumentException | InvocationTargetException ex)
@@ -69,8 +322,130 @@ public class MatcherCompiler extends ClassLoader
 
     private Matcher createMatcher(String query)
     {
-        parser.parse(query);
-        Selector selectors = parser.query();
-        return createMatcher(selectors);
+        MatcherCache cache = diskCache;
+        byte[] code = cache == null ? null : cache.load(query);
+        if(code == null)
+        {
+            Selector selectors;
+            int n = query.indexOf(QUERY_SEPARATOR);
+            if(!query.isEmpty() && query.charAt(0) == SET_SEPARATOR)
+            {
+                code = compileSet(setQueries(query));
+                if(cache != null) cache.store(query, code);
+                return defineMatcher(query, code);
+            }
+            if(n < 0)
+            {
+                parser.parse(query);
+                selectors = parser.query();
+            }
+            else
+            {
+                selectors = fuse(query.substring(0, n), query.substring(n + 1));
+                if(selectors == null)
+                {
+                    return new AndMatcher(getMatcher(query.substring(0, n)),
+                        getMatcher(query.substring(n + 1)));
+                }
+            }
+            code = compile(selectors);
+            if(cache != null) cache.store(query, code);
+        }
+        return defineMatcher(query, code);
+    }
+
+    /**
+     * Creates the Selectors for the logical AND of two queries (each of
+     * which may itself be a fused query), by combining each Selector of
+     * the first query with each Selector of the second.
+     *
+     * @return the chain of combined Selectors, or `null` if the queries
+     *   should not (or cannot) be fused
+     */
+    private Selector fuse(String queryA, String queryB)
+    {
+        Selector a = parseFused(queryA);
+        if(a == null) return null;
+        Selector b = parseFused(queryB);
+        if(b == null) return null;
+        if(a.count() * b.count() > MAX_FUSED_SELECTORS) return null;
+        Selector first = null;
+        Selector prev = null;
+        for(Selector sa = a; sa != null; sa = sa.next())
+        {
+            for(Selector sb = b; sb != null; sb = sb.next())
+            {
+                Selector sel = Selector.and(sa, sb);
+                if(sel == null) continue;
+                if(prev == null)
+                {
+                    first = sel;
+                }
+                else
+                {
+                    prev.setNext(sel);
+                }
+                prev = sel;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Derives the terms required by a query (see {@link TagTerms}).
+     * Matchers call this the first time their terms are needed, rather
+     * than at definition time, because parsing the query again is
+     * wasted effort for Matchers loaded from the disk cache (or
+     * preloaded) if the FeatureStore has no tag index.
+     *
+     * @param query the query (which may be fused, or the key of a MatcherSet)
+     * @return the required terms, or `null` if none
+     */
+    long[][][] tagTerms(String query)
+    {
+        synchronized (compileLock)
+        {
+            return TagTerms.of(parseAny(query));
+        }
+    }
+
+    /**
+     * Parses a query that may be a fused query or the key of a
+     * MatcherSet (in which case the result is the union of the
+     * Selectors of its queries).
+     */
+    private Selector parseAny(String query)
+    {
+        if(query.isEmpty() || query.charAt(0) != SET_SEPARATOR) return parseFused(query);
+        return union(setQueries(query));
+    }
+
+    /**
+     * Parses the given queries and chains all of their Selectors.
+     */
+    private Selector union(String[] queries)
+    {
+        Selector union = null;
+        for(int i=queries.length-1; i>=0; i--)
+        {
+            parser.parse(queries[i]);
+            Selector first = parser.query();
+            Selector last = first;
+            while(last.next() != null) last = last.next();
+            last.setNext(union);
+            union = first;
+        }
+        return union;
+    }
+
+    private Selector parseFused(String query)
+    {
+        int n = query.indexOf(QUERY_SEPARATOR);
+        if(n < 0)
+        {
+            parser.parse(query);
+            return parser.query();
+        }
+        return fuse(query.substring(0, n), query.substring(n + 1));
     }
 }
@@ -14,8 +14,8 @@ import com.clarisma.common.parser.Parser;
 import org.eclipse.collections.api.map.primitive.IntIntMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
-import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
 
+import java.util.function.ToIntFunction;
 import java.util.regex.Pattern;
 
 // TODO: Parser is not threadsafe! (ok, used only in synchronized way)
@@ -61,12 +61,24 @@ public class MatcherParser extends Parser
 	private static final int OP_EQUAL = 16;
 	private static final int OP_EXACT = 32;
 
-	private final ObjectIntMap<String> stringsToCodes;
+	private final ToIntFunction<String> stringsToCodes;
 	private final IntIntMap keysToCategories;
 
 	public MatcherParser(ObjectIntMap<String> stringsToCodes, IntIntMap keysToCategories)
 	{
-		if (stringsToCodes == null) stringsToCodes = new ObjectIntHashMap<>();
+		this(stringsToCodes == null ? s -> 0 : stringsToCodes::get, keysToCategories);
+	}
+
+	/**
+	 * Creates a parser that looks up the codes of global strings
+	 * via the given function.
+	 *
+	 * @param stringsToCodes	returns the code of a string, or 0 if the
+	 *                          string is not in the global string table
+	 * @param keysToCategories	the indexed keys and their categories
+	 */
+	public MatcherParser(ToIntFunction<String> stringsToCodes, IntIntMap keysToCategories)
+	{
 		this.stringsToCodes = stringsToCodes;
 		if (keysToCategories == null) keysToCategories = new IntIntHashMap();
 		this.keysToCategories = keysToCategories;
@@ -122,13 +134,13 @@ public class MatcherParser extends Parser
 
 	private int keyCode(String key)
 	{
-		int keyCode = stringsToCodes.get(key);
+		int keyCode = stringsToCodes.applyAsInt(key);
 		return keyCode <= TagValues.MAX_COMMON_KEY ? keyCode : 0;
 	}
 
 	private int stringCode(String key)
 	{
-		return stringsToCodes.get(key);
+		return stringsToCodes.applyAsInt(key);
 	}
 
 	/*
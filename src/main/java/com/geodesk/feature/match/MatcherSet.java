@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * A Matcher that evaluates multiple queries at once. Used as a regular
+ * Matcher, it accepts any feature that matches at least one of its
+ * queries (which lets a single Query retrieve the candidates for all of
+ * them); {@link #match(ByteBuffer, int, long[])} then determines which
+ * queries a given feature matches.
+ *
+ * Matching takes two steps: First, a single scan of the feature's
+ * global-key tags (which are sorted by key) determines which of the
+ * keys required by the queries are present, which rules out every
+ * query that requires a key the feature lacks. Then, the generated
+ * code evaluates the Selectors of the remaining candidates. Typically,
+ * a feature only has the keys of a few of the queries (e.g. a building
+ * won't be considered by queries for roads or waterways), so most
+ * queries are rejected without touching the tag table again.
+ *
+ * Subclasses are generated by the MatcherCoder.
+ */
+public abstract class MatcherSet extends TagMatcher
+{
+    private final int size;
+    /**
+     * For each global key code up to the highest key that is required by
+     * any query, the position of the key's bit in the mask of present
+     * keys plus one, or 0 if the key is not required (or if more than 64
+     * keys are required, and this is not one of the first 64).
+     */
+    private int[] keyBits = new int[0];
+    /**
+     * For each Selector, the mask of keys it requires. The masks of the
+     * Selectors of query `n` start at `selectorStart[n]`.
+     */
+    private long[] selectorKeys;
+    private int[] selectorStart;
+
+    protected MatcherSet(int types, IntFunction<String> globalStrings, int keyMask, int keyMin, int size)
+    {
+        super(types, globalStrings, keyMask, keyMin);
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of queries in this set.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the query with the given index.
+     */
+    public String query(int n)
+    {
+        return MatcherCompiler.setQueries(query)[n];
+    }
+
+    /**
+     * Records the global keys required by each Selector of each query,
+     * which are used to rule out queries before their Selectors are
+     * evaluated. Called by the MatcherCompiler once the set has been
+     * created (since the bytecode itself may come from the disk cache).
+     *
+     * @param queries   the first Selector of each query
+     */
+    void requireKeys(Selector[] queries)
+    {
+        int maxKey = 0;
+        int selectorCount = 0;
+        for(Selector first: queries)
+        {
+            for(Selector sel = first; sel != null; sel = sel.next())
+            {
+                selectorCount++;
+                for(TagClause c = sel.firstClause(); c != null; c = c.next())
+                {
+                    if(c.isKeyRequired() && c.isGlobalKey()) maxKey = Math.max(maxKey, c.keyCode());
+                }
+            }
+        }
+        int[] bits = new int[maxKey + 1];
+        long[] masks = new long[selectorCount];
+        int[] start = new int[queries.length + 1];
+        int bitCount = 0;
+        int n = 0;
+        for(int i=0; i<queries.length; i++)
+        {
+            start[i] = n;
+            for(Selector sel = queries[i]; sel != null; sel = sel.next())
+            {
+                long mask = 0;
+                for(TagClause c = sel.firstClause(); c != null; c = c.next())
+                {
+                    if(!c.isKeyRequired() || c.isLocalKey()) continue;
+                    int key = c.keyCode();
+                    if(bits[key] == 0)
+                    {
+                        if(bitCount == 64) continue;
+                        bits[key] = ++bitCount;
+                    }
+                    mask |= 1L << (bits[key] - 1);
+                }
+                masks[n++] = mask;
+            }
+        }
+        start[queries.length] = n;
+        selectorKeys = masks;
+        selectorStart = start;
+        keyBits = bits;
+    }
+
+    /**
+     * Returns the mask of the required keys that are present in the
+     * tag table of a feature.
+     */
+    private long presentKeys(ByteBuffer buf, int pos)
+    {
+        int maxKey = keyBits.length - 1;
+        if(maxKey <= 0) return 0;
+        int ppTags = pos + 8;
+        int p = ppTags + (buf.getInt(ppTags) & 0xffff_fffe);
+        long present = 0;
+        for(;;)
+        {
+            // Global keys are sorted by code; the empty-table marker
+            // has code 0 and the last-key flag set
+            int tag = buf.getInt(p);
+            int code = (tag >> 2) & 0x1fff;
+            if(code > maxKey) break;
+            int bit = keyBits[code];
+            if(bit != 0) present |= 1L << (bit - 1);
+            if((tag & 0x8000) != 0) break;
+            p += 4 + (tag & 2);
+        }
+        return present;
+    }
+
+    /**
+     * Checks which queries of this set are matched by a feature. For each
+     * matching query `n`, sets bit `n & 63` of `bits[n >> 6]`; the bits
+     * of all other queries are cleared. Unlike `accept()`, this method
+     * checks the feature's type against the types accepted by each query.
+     *
+     * @param buf   the Buffer of the feature
+     * @param pos   the anchor position of the feature in the Buffer
+     * @param bits  an array of at least `(size() + 63) / 64` elements
+     * @return the number of queries matched by the feature
+     */
+    public final int match(ByteBuffer buf, int pos, long[] bits)
+    {
+        Arrays.fill(bits, 0, (size + 63) >> 6, 0);
+        long missing = ~presentKeys(buf, pos);
+        for(int i=0; i<size; i++)
+        {
+            for(int n=selectorStart[i]; n<selectorStart[i+1]; n++)
+            {
+                if((selectorKeys[n] & missing) == 0)
+                {
+                    bits[i >> 6] |= 1L << i;
+                    break;
+                }
+            }
+        }
+        return matchCandidates(buf, pos, bits);
+    }
+
+    /**
+     * Evaluates the Selectors of the candidate queries (whose bits are
+     * set), and clears the bit of each candidate that the feature
+     * doesn't match.
+     *
+     * @param buf   the Buffer of the feature
+     * @param pos   the anchor position of the feature in the Buffer
+     * @param bits  the candidates, which receive the matching queries
+     * @return the number of queries matched by the feature
+     */
+    protected abstract int matchCandidates(ByteBuffer buf, int pos, long[] bits);
+}
@@ -159,6 +159,42 @@ public class Selector extends Expression
 		return other;
 	}
 	
+	/**
+	 * Creates a Selector that matches only if both of the given Selectors
+	 * match (the Selectors themselves are not modified).
+	 *
+	 * @return the combined Selector, or `null` if no feature
+	 *   could possibly match both Selectors
+	 */
+	public static Selector and(Selector a, Selector b)
+	{
+		int types = a.matchTypes & b.matchTypes;
+		if(types == 0) return null;
+		Selector sel = new Selector(types);
+		try
+		{
+			for(TagClause c = a.firstClause; c != null; c = c.next) sel.add(c.copy());
+			for(TagClause c = b.firstClause; c != null; c = c.next) sel.add(c.copy());
+		}
+		catch(QueryException ex)
+		{
+			// Clauses are contradictory (e.g. [!k] and [k])
+			return null;
+		}
+		return sel;
+	}
+
+	/**
+	 * Returns the number of Selectors in the chain that starts
+	 * with this Selector.
+	 */
+	public int count()
+	{
+		int count = 0;
+		for(Selector s = this; s != null; s = s.next) count++;
+		return count;
+	}
+
 	@Override public <R> R accept(AstVisitor<R> visitor)
 	{
 		visitor.visitExpression(this);
@@ -46,6 +46,15 @@ public class TagClause extends Variable implements Comparable<TagClause>
 	}
 
 	public int flags() { return flags; }
+
+	/**
+	 * Creates an unlinked copy of this clause (which can be added to
+	 * another Selector without affecting this one).
+	 */
+	public TagClause copy()
+	{
+		return new TagClause(flags, name(), key, category, exp);
+	}
 	
 	public TagClause next()
 	{
@@ -10,15 +10,35 @@ package com.geodesk.feature.match;
 import com.clarisma.common.math.MathUtils;
 
 import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
 
 public abstract class TagMatcher extends Matcher
 {
-    protected final String[] globalStrings;
+    protected final IntFunction<String> globalStrings;
     protected final int keyMask;
     protected final int keyMin;
+    /**
+     * The query from which this matcher was compiled (assigned by the
+     * MatcherCompiler; `null` if the matcher was created by other means).
+     * For a matcher that fuses multiple queries, their strings are
+     * separated by NUL.
+     */
+    String query;
+    /**
+     * The compiler that created this matcher, which derives the
+     * {@link #tagTerms} from the query on first use (`null` if the
+     * matcher was created by other means).
+     */
+    MatcherCompiler compiler;
+    /**
+     * The terms required by the query (see {@link TagTerms}); computed
+     * lazily, since they are only needed if the store has a tag index.
+     */
+    private volatile long[][][] tagTerms;
+    private volatile boolean tagTermsComputed;
 
     // TODO: take FeatureStore, resources
-    protected TagMatcher(int types, String[] globalStrings, int keyMask, int keyMin)
+    protected TagMatcher(int types, IntFunction<String> globalStrings, int keyMask, int keyMin)
     {
         super(types);
         this.globalStrings = globalStrings;
@@ -38,6 +58,15 @@ public abstract class TagMatcher extends Matcher
         return (keys & keyMask) >= keyMin;
     }
 
+    @Override public long[][][] tagTerms()
+    {
+        if(tagTermsComputed || compiler == null) return tagTerms;
+        // Benign race: another thread may compute the same terms
+        tagTerms = compiler.tagTerms(query);
+        tagTermsComputed = true;
+        return tagTerms;
+    }
+
     protected static String doubleToString(double d)
     {
         if(d == (long)d) return Long.toString((long)d);
@@ -63,9 +92,9 @@ public abstract class TagMatcher extends Matcher
     {
         try
         {
-            return globalStrings[code];
+            return globalStrings.apply(code);
         }
-        catch(ArrayIndexOutOfBoundsException ex)
+        catch(IndexOutOfBoundsException ex)
         {
             // TODO: this is a sign of an invalid FeatureStore
             throw new QueryException(String.format(
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+import com.clarisma.common.ast.BinaryExpression;
+import com.clarisma.common.ast.Expression;
+import com.clarisma.common.ast.Literal;
+import com.clarisma.common.ast.Operator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashes of keys and key/value pairs ("terms"), which are used to rule
+ * out tiles that cannot contain any features that match a query (see
+ * {@link com.geodesk.feature.store.TagIndex}).
+ *
+ * The terms required by a query are represented as a `long[][][]`:
+ * For each Selector, for each of its clauses that require a key, the
+ * hashes of the terms of which a feature must have at least one. A tile
+ * may contain matching features if, for any Selector, each of the
+ * clauses is satisfied by at least one term.
+ */
+public class TagTerms
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long hash(long h, String s)
+    {
+        for(int i=0; i<s.length(); i++)
+        {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Scrambles the bits of a hash (the finalizer of MurmurHash3),
+     * so that both halves can be used for double hashing.
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the term that represents the presence of a key.
+     */
+    public static long keyTerm(String key)
+    {
+        return mix(hash(FNV_OFFSET, key));
+    }
+
+    /**
+     * Returns the term that represents a tag (a key with a specific
+     * value, which is compared as a string).
+     */
+    public static long tagTerm(String key, String value)
+    {
+        long h = hash(FNV_OFFSET, key);
+        h = (h ^ '=') * FNV_PRIME;
+        return mix(hash(h, value));
+    }
+
+    /**
+     * Determines the terms required by a chain of Selectors.
+     *
+     * @return the terms, or `null` if any of the Selectors can match
+     *   features regardless of their tags
+     */
+    static long[][][] of(Selector selectors)
+    {
+        List<long[][]> result = new ArrayList<>();
+        for(Selector sel = selectors; sel != null; sel = sel.next())
+        {
+            List<long[]> clauses = new ArrayList<>();
+            for(TagClause clause = sel.firstClause(); clause != null; clause = clause.next())
+            {
+                if(!clause.isKeyRequired()) continue;
+                String key = clause.name();
+                List<String> values = null;
+                if((clause.flags() & (TagClause.VALUE_DOUBLE | TagClause.VALUE_ANY_STRING)) == 0)
+                {
+                    // Only exact string comparisons; numbers and string
+                    // patterns are represented by their key alone
+                    values = values(clause.expression());
+                }
+                if(values == null)
+                {
+                    clauses.add(new long[] { keyTerm(key) });
+                }
+                else
+                {
+                    long[] terms = new long[values.size()];
+                    for(int i=0; i<terms.length; i++) terms[i] = tagTerm(key, values.get(i));
+                    clauses.add(terms);
+                }
+            }
+            if(clauses.isEmpty()) return null;
+            result.add(clauses.toArray(new long[0][]));
+        }
+        return result.isEmpty() ? null : result.toArray(new long[0][][]);
+    }
+
+    /**
+     * Returns the values of which a tag must have at least one in order
+     * to satisfy the given expression, or `null` if the expression
+     * does not narrow down the values.
+     */
+    private static List<String> values(Expression exp)
+    {
+        if(!(exp instanceof BinaryExpression binary)) return null;
+        Operator op = binary.operator();
+        if(op == Operator.EQ)
+        {
+            if(!(binary.right() instanceof Literal literal)) return null;
+            Object val = literal.value();
+            String s;
+            if(val instanceof GlobalString gs)
+            {
+                s = gs.stringValue();
+            }
+            else if(val instanceof String str)
+            {
+                s = str;
+            }
+            else
+            {
+                return null;
+            }
+            List<String> list = new ArrayList<>();
+            list.add(s);
+            return list;
+        }
+        if(op == Operator.OR)
+        {
+            List<String> left = values(binary.left());
+            if(left == null) return null;
+            List<String> right = values(binary.right());
+            if(right == null) return null;
+            left.addAll(right);
+            return left;
+        }
+        if(op == Operator.AND)
+        {
+            // Either side narrows down the values
+            List<String> left = values(binary.left());
+            return left != null ? left : values(binary.right());
+        }
+        return null;
+    }
+
+    /**
+     * Combines the terms of two queries that must both be matched.
+     *
+     * @return the combined terms, or `null` if neither query
+     *   requires any terms
+     */
+    static long[][][] and(long[][][] a, long[][][] b)
+    {
+        if(a == null) return b;
+        if(b == null) return a;
+        if(a.length * b.length > MatcherCompiler.MAX_FUSED_SELECTORS)
+        {
+            return a.length <= b.length ? a : b;
+        }
+        long[][][] result = new long[a.length * b.length][][];
+        int n = 0;
+        for(long[][] sa: a)
+        {
+            for(long[][] sb: b)
+            {
+                long[][] clauses = new long[sa.length + sb.length][];
+                System.arraycopy(sa, 0, clauses, 0, sa.length);
+                System.arraycopy(sb, 0, clauses, sa.length, sb.length);
+                result[n++] = clauses;
+            }
+        }
+        return result;
+    }
+}
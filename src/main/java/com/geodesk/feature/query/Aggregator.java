@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.StoredFeature;
+import com.geodesk.feature.store.StoredRelation;
+import com.geodesk.feature.store.StoredWay;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes an aggregate value over the results of a query. Aggregation
+ * runs in the worker threads that search the tiles: each tile produces
+ * a partial result based on the raw feature pointers in its
+ * QueryResults, and the partial results are then combined by the thread
+ * that issued the query. This way, no Feature objects need to be created
+ * (except where an aggregate can only be computed from a feature's
+ * geometry, such as the area of a relation).
+ *
+ * @param <A> the type of the (mutable) partial result
+ */
+abstract class Aggregator<A>
+{
+    /**
+     * Creates an empty partial result.
+     */
+    abstract A newPartial();
+
+    /**
+     * Adds a feature to a partial result.
+     *
+     * @param partial   the partial result
+     * @param store     the FeatureStore
+     * @param buf       the buffer of the feature
+     * @param pFeature  the pointer to the feature, with its type
+     *                  in the lower 2 bits (as in QueryResults)
+     */
+    abstract void add(A partial, FeatureStore store, ByteBuffer buf, int pFeature);
+
+    /**
+     * Merges partial result `b` into partial result `a`.
+     *
+     * @return the merged result (`a`)
+     */
+    abstract A combine(A a, A b);
+
+    /**
+     * Adds all features in a chain of QueryResults to a partial result.
+     */
+    void addAll(A partial, FeatureStore store, QueryResults res)
+    {
+        while(res != null)
+        {
+            for(int i=0; i<res.size; i++)
+            {
+                add(partial, store, res.buf, res.pointers[i]);
+            }
+            res = res.next;
+        }
+    }
+
+    /**
+     * Adds a single feature (as opposed to a raw pointer) to a partial result.
+     */
+    void add(A partial, StoredFeature feature)
+    {
+        ByteBuffer buf = feature.buffer();
+        int ptr = feature.pointer();
+        add(partial, feature.store(), buf, ptr | StoredFeature.typeCode(buf, ptr));
+    }
+
+    static final Aggregator<long[]> COUNT = new Aggregator<>()
+    {
+        @Override long[] newPartial()
+        {
+            return new long[1];
+        }
+
+        @Override void add(long[] partial, FeatureStore store, ByteBuffer buf, int pFeature)
+        {
+            partial[0]++;
+        }
+
+        @Override void addAll(long[] partial, FeatureStore store, QueryResults res)
+        {
+            while(res != null)
+            {
+                partial[0] += res.size;
+                res = res.next;
+            }
+        }
+
+        @Override long[] combine(long[] a, long[] b)
+        {
+            a[0] += b[0];
+            return a;
+        }
+    };
+
+    private static abstract class Sum extends Aggregator<double[]>
+    {
+        @Override double[] newPartial()
+        {
+            return new double[1];
+        }
+
+        @Override double[] combine(double[] a, double[] b)
+        {
+            a[0] += b[0];
+            return a;
+        }
+    }
+
+    static final Aggregator<double[]> LENGTH = new Sum()
+    {
+        @Override void add(double[] partial, FeatureStore store, ByteBuffer buf, int pFeature)
+        {
+            // Only ways have a length
+            if((pFeature & 3) != 1) return;
+            partial[0] += StoredWay.length(buf, pFeature ^ 1);
+        }
+    };
+
+    static final Aggregator<double[]> AREA = new Sum()
+    {
+        @Override void add(double[] partial, FeatureStore store, ByteBuffer buf, int pFeature)
+        {
+            int type = pFeature & 3;
+            if(type == 1)
+            {
+                partial[0] += StoredWay.area(buf, pFeature ^ 1);
+            }
+            else if(type == 2)
+            {
+                // The area of a relation can only be measured based on
+                // its assembled geometry
+                partial[0] += new StoredRelation(store, buf, pFeature ^ 2).area();
+            }
+        }
+    };
+
+    /**
+     * Creates an Aggregator that counts features by the value of the
+     * given key. Features that don't have the key are counted under
+     * the empty string.
+     *
+     * @param key   the key
+     * @return an Aggregator whose result is a map of tag values
+     *   to feature counts
+     */
+    static Aggregator<Map<String,Long>> groupCount(String key)
+    {
+        return new Aggregator<>()
+        {
+            @Override Map<String,Long> newPartial()
+            {
+                return new HashMap<>();
+            }
+
+            @Override void add(Map<String,Long> partial, FeatureStore store,
+                ByteBuffer buf, int pFeature)
+            {
+                long value = StoredFeature.getKeyValue(store, buf, pFeature & ~3, key);
+                partial.merge(StoredFeature.valueAsString(store, buf, value), 1L, Long::sum);
+            }
+
+            @Override Map<String,Long> combine(Map<String,Long> a, Map<String,Long> b)
+            {
+                if(a.size() < b.size())
+                {
+                    Map<String,Long> temp = a;
+                    a = b;
+                    b = temp;
+                }
+                for(Map.Entry<String,Long> e: b.entrySet())
+                {
+                    a.merge(e.getKey(), e.getValue(), Long::sum);
+                }
+                return a;
+            }
+        };
+    }
+}
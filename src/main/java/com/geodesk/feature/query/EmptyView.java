@@ -39,6 +39,11 @@ public class EmptyView extends View
         return true;
     }
 
+    @Override public Features limit(long n)
+    {
+        return this;
+    }
+
     @Override public long count()
     {
         return 0;
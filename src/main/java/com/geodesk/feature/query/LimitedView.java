@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.*;
+import com.geodesk.geom.Bounds;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/// @hidden
+/// A view that returns at most a given number of features of another
+/// collection. Once the limit has been reached, the underlying query
+/// is closed, which cancels the search of any tiles that are still
+/// pending.
+///
+/// Filtering methods are applied to the underlying collection, and
+/// the limit is then applied to the result.
+///
+public class LimitedView implements Features
+{
+    private final Features base;
+    private final long limit;
+
+    public LimitedView(Features base, long limit)
+    {
+        if(limit < 0) throw new IllegalArgumentException("Limit must not be negative");
+        this.base = base;
+        this.limit = limit;
+    }
+
+    private Features limited(Features features)
+    {
+        if(features == EmptyView.ANY) return features;
+        return new LimitedView(features, limit);
+    }
+
+    @Override public Features select(String query)
+    {
+        return limited(base.select(query));
+    }
+
+    @Override public Features nodes()
+    {
+        return limited(base.nodes());
+    }
+
+    @Override public Features nodes(String query)
+    {
+        return limited(base.nodes(query));
+    }
+
+    @Override public Features ways()
+    {
+        return limited(base.ways());
+    }
+
+    @Override public Features ways(String query)
+    {
+        return limited(base.ways(query));
+    }
+
+    @Override public Features relations()
+    {
+        return limited(base.relations());
+    }
+
+    @Override public Features relations(String query)
+    {
+        return limited(base.relations(query));
+    }
+
+    @Override public Features in(Bounds bbox)
+    {
+        return limited(base.in(bbox));
+    }
+
+    @Override public Features select(Filter filter)
+    {
+        return limited(base.select(filter));
+    }
+
+    @Override public Features select(Features other)
+    {
+        return limited(base.select(other));
+    }
+
+    @Override public Features withTimeout(Duration timeout)
+    {
+        return limited(base.withTimeout(timeout));
+    }
+
+    @Override public Features withPriority(QueryPriority priority)
+    {
+        return limited(base.withPriority(priority));
+    }
+
+    @Override public Features withDiskOrder()
+    {
+        return limited(base.withDiskOrder());
+    }
+
+    @Override public List<Feature> nearestTo(int x, int y, int k)
+    {
+        NearestQuery.checkCount(k);
+        return base.nearestTo(x, y, (int)Math.min(k, limit));
+    }
+
+    @Override public List<Feature> nearestTo(Feature feature, int k)
+    {
+        NearestQuery.checkCount(k);
+        return base.nearestTo(feature, (int)Math.min(k, limit));
+    }
+
+    @Override public Features limit(long n)
+    {
+        return n < limit ? new LimitedView(base, n) : this;
+    }
+
+    @Override public Feature first()
+    {
+        return limit == 0 ? null : base.first();
+    }
+
+    @Override public boolean isEmpty()
+    {
+        return limit == 0 || base.isEmpty();
+    }
+
+    @Override public Iterator<Feature> iterator()
+    {
+        // Don't start a query that we would close right away
+        if(limit == 0) return Collections.emptyIterator();
+        return new Iter(base.iterator(), limit);
+    }
+
+    private static class Iter implements Iterator<Feature>
+    {
+        private final Iterator<Feature> iter;
+        private long remaining;
+
+        Iter(Iterator<Feature> iter, long remaining)
+        {
+            this.iter = iter;
+            this.remaining = remaining;
+            if(remaining == 0) close();
+        }
+
+        private void close()
+        {
+            if(iter instanceof AutoCloseable closeable)
+            {
+                try
+                {
+                    closeable.close();
+                }
+                catch(Exception ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+
+        @Override public boolean hasNext()
+        {
+            return remaining > 0 && iter.hasNext();
+        }
+
+        @Override public Feature next()
+        {
+            if(remaining <= 0) throw new NoSuchElementException();
+            if(--remaining == 0)
+            {
+                if(iter instanceof Query query)
+                {
+                    // Don't wait for the results of any further tiles
+                    if(!query.hasNext()) throw new NoSuchElementException();
+                    return query.nextAndClose();
+                }
+                Feature f = iter.next();
+                close();
+                return f;
+            }
+            return iter.next();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.*;
+import com.geodesk.feature.match.Matcher;
+import com.geodesk.feature.store.*;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.PointInPolygon;
+import com.geodesk.geom.Tile;
+import com.geodesk.geom.XY;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+
+import java.awt.geom.Line2D;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.geodesk.feature.match.TypeBits.*;
+
+/**
+ * A best-first k-nearest-neighbour search. The search maintains a single
+ * priority queue of tiles, R-tree branches, candidate features and
+ * measured features, ordered by the lower bound of their distance from
+ * the target. Since a measured feature is only taken from the queue once
+ * all remaining entries are farther away, features are returned in order
+ * of increasing distance, and the search stops as soon as `k` features
+ * have been found. Distances are measured in Mercator units.
+ *
+ * The search runs on the calling thread. It honors the timeout of its
+ * view (checked whenever a tile or leaf is searched); a search with
+ * batch priority pauses before each tile while interactive queries
+ * are in progress.
+ *
+ * Unlike a regular Query, the search visits all copies of features that
+ * span multiple tiles (since the copy in the tile that is closest to
+ * the target must be considered first); duplicates are discarded
+ * based on their type and ID.
+ */
+public class NearestQuery
+{
+    private final FeatureStore store;
+    private final int types;
+    private final Matcher matcher;
+    private final Filter filter;
+    private final Target target;
+    private final int minX;
+    private final int minY;
+    private final int maxX;
+    private final int maxY;
+    private final long timeout;     // in nanoseconds, 0 = no timeout
+    private final long deadline;    // based on System.nanoTime()
+    private final boolean batch;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final MutableLongSet seen = new LongHashSet();
+
+    private static final int TILE = 0;
+    private static final int TRUNK = 1;
+    private static final int LEAF = 2;
+    private static final int CANDIDATE = 3;
+    private static final int RESULT = 4;
+
+    /**
+     * How long a batch search pauses while interactive queries are
+     * in progress, before checking again.
+     */
+    private static final long BATCH_PAUSE_NANOS = 100_000;
+
+    private static class Entry implements Comparable<Entry>
+    {
+        final double distance;
+        final int kind;
+        final ByteBuffer buf;
+        final int p;
+        final boolean nodes;
+        final Feature feature;
+
+        Entry(double distance, int kind, ByteBuffer buf, int p, boolean nodes, Feature feature)
+        {
+            this.distance = distance;
+            this.kind = kind;
+            this.buf = buf;
+            this.p = p;
+            this.nodes = nodes;
+            this.feature = feature;
+        }
+
+        @Override public int compareTo(Entry other)
+        {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    /**
+     * The object from which distances are measured.
+     */
+    private interface Target
+    {
+        /**
+         * Returns the squared distance between the target and a bounding box
+         * (a lower bound for the distance of anything within the box).
+         */
+        double boxDistanceSquared(int minX, int minY, int maxX, int maxY);
+
+        /**
+         * Returns the squared distance between the target and a feature.
+         */
+        double featureDistanceSquared(Feature feature);
+
+        /**
+         * Checks whether the given feature is the target itself
+         * (which should not be returned as its own neighbour).
+         */
+        default boolean isSelf(Feature feature) { return false; }
+    }
+
+    private static double squared(double dx, double dy)
+    {
+        return dx * dx + dy * dy;
+    }
+
+    private static class PointTarget implements Target
+    {
+        private final int x;
+        private final int y;
+
+        PointTarget(int x, int y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override public double boxDistanceSquared(int minX, int minY, int maxX, int maxY)
+        {
+            double dx = Math.max(Math.max((double)minX - x, (double)x - maxX), 0);
+            double dy = Math.max(Math.max((double)minY - y, (double)y - maxY), 0);
+            return squared(dx, dy);
+        }
+
+        private double segmentDistanceSquared(StoredWay way, int areaFlag)
+        {
+            StoredWay.XYIterator iter = way.iterXY(areaFlag);
+            long xy = iter.nextXY();
+            double x1 = XY.x(xy);
+            double y1 = XY.y(xy);
+            double min = squared(x1 - x, y1 - y);
+            while (iter.hasNext())
+            {
+                xy = iter.nextXY();
+                double x2 = XY.x(xy);
+                double y2 = XY.y(xy);
+                min = Math.min(min, Line2D.ptSegDistSq(x1, y1, x2, y2, x, y));
+                x1 = x2;
+                y1 = y2;
+            }
+            return min;
+        }
+
+        @Override public double featureDistanceSquared(Feature feature)
+        {
+            if(feature instanceof Node)
+            {
+                return squared((double)feature.x() - x, (double)feature.y() - y);
+            }
+            if(feature instanceof StoredWay way)
+            {
+                if (way.isArea())
+                {
+                    // The distance of a point that lies within a polygon is zero
+                    if(PointInPolygon.testFast(way.iterXY(FeatureFlags.AREA_FLAG), x, y) != 0)
+                    {
+                        return 0;
+                    }
+                    return segmentDistanceSquared(way, FeatureFlags.AREA_FLAG);
+                }
+                return segmentDistanceSquared(way, 0);
+            }
+            Geometry geom = feature.toGeometry();
+            double d = geom.distance(geom.getFactory().createPoint(
+                new Coordinate(x, y)));
+            return d * d;
+        }
+    }
+
+    private static class FeatureTarget implements Target
+    {
+        private final Feature self;
+        private final Geometry geom;
+        private final Bounds bounds;
+
+        FeatureTarget(Feature self)
+        {
+            this.self = self;
+            geom = self.toGeometry();
+            bounds = self.bounds();
+        }
+
+        @Override public double boxDistanceSquared(int minX, int minY, int maxX, int maxY)
+        {
+            double dx = Math.max(Math.max((double)minX - bounds.maxX(),
+                (double)bounds.minX() - maxX), 0);
+            double dy = Math.max(Math.max((double)minY - bounds.maxY(),
+                (double)bounds.minY() - maxY), 0);
+            return squared(dx, dy);
+        }
+
+        @Override public double featureDistanceSquared(Feature feature)
+        {
+            double d = geom.distance(feature.toGeometry());
+            return d * d;
+        }
+
+        @Override public boolean isSelf(Feature feature)
+        {
+            return feature.equals(self);
+        }
+    }
+
+    private NearestQuery(WorldView view, Target target)
+    {
+        store = view.store;
+        types = view.types;
+        matcher = view.matcher;
+        filter = view.filter;
+        this.target = target;
+        timeout = view.timeout;
+        deadline = System.nanoTime() + timeout;
+        batch = view.priority == QueryPriority.BATCH;
+        Bounds bounds = view.bounds;
+        minX = bounds.minX();
+        minY = bounds.minY();
+        maxX = bounds.maxX();
+        maxY = bounds.maxY();
+        addTiles(bounds);
+    }
+
+    public NearestQuery(WorldView view, int x, int y)
+    {
+        this(view, new PointTarget(x, y));
+    }
+
+    public NearestQuery(WorldView view, Feature feature)
+    {
+        this(view, new FeatureTarget(feature));
+    }
+
+    /**
+     * Checks that the number of features requested from a
+     * nearest-neighbour search is valid.
+     *
+     * @param k     the maximum number of features to return
+     * @throws IllegalArgumentException if `k` is negative
+     */
+    static void checkCount(long k)
+    {
+        if(k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+    }
+
+    /**
+     * Sorts the features of an arbitrary collection by their distance
+     * from a point (or another feature), and returns the first `k`.
+     * This is the brute-force fallback for collections that are not
+     * backed by the spatial index.
+     */
+    static List<Feature> nearest(Iterable<Feature> features, int x, int y, int k)
+    {
+        return nearest(features, new PointTarget(x, y), k);
+    }
+
+    static List<Feature> nearest(Iterable<Feature> features, Feature feature, int k)
+    {
+        return nearest(features, new FeatureTarget(feature), k);
+    }
+
+    private static List<Feature> nearest(Iterable<Feature> features, Target target, int k)
+    {
+        checkCount(k);
+        PriorityQueue<Entry> queue = new PriorityQueue<>();
+        for(Feature f: features)
+        {
+            if(target.isSelf(f)) continue;
+            queue.add(new Entry(target.featureDistanceSquared(f),
+                RESULT, null, 0, false, f));
+        }
+        List<Feature> results = new ArrayList<>(Math.min(k, queue.size()));
+        while(results.size() < k && !queue.isEmpty()) results.add(queue.poll().feature);
+        return results;
+    }
+
+    private void addTiles(Bounds bounds)
+    {
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(bounds);
+        do
+        {
+            int entry = store.tileIndexEntry(walker.tip());
+            if(FeatureStore.isTileLoadedAndcurrent(entry))
+            {
+                int tile = walker.tile();
+                queue.add(new Entry(target.boxDistanceSquared(
+                    Tile.leftX(tile), Tile.bottomY(tile), Tile.rightX(tile), Tile.topY(tile)),
+                    TILE, null, FeatureStore.pageFromEntry(entry), false, null));
+            }
+            else
+            {
+                walker.skipChildren();
+            }
+        }
+        while(walker.next());
+    }
+
+    /**
+     * Returns the features that are closest to the target, in order of
+     * increasing distance.
+     *
+     * @param k     the maximum number of features to return
+     * @return a list of up to `k` features
+     * @throws IllegalArgumentException if `k` is negative
+     * @throws QueryTimeoutException if the search exceeds the timeout
+     *   of its view
+     */
+    public List<Feature> find(int k)
+    {
+        checkCount(k);
+        List<Feature> results = new ArrayList<>(Math.min(k, 1024));
+        while(results.size() < k)
+        {
+            Entry e = queue.poll();
+            if(e == null) break;
+            switch(e.kind)
+            {
+            case TILE:
+                yieldToInteractive();
+                checkDeadline();
+                searchTile(e.p);
+                break;
+            case TRUNK:
+                searchTrunk(e.buf, e.p, e.nodes);
+                break;
+            case LEAF:
+                checkDeadline();
+                if(e.nodes)
+                {
+                    searchNodeLeaf(e.buf, e.p);
+                }
+                else
+                {
+                    searchLeaf(e.buf, e.p);
+                }
+                break;
+            case CANDIDATE:
+                if(filter == null || filter.accept(e.feature))
+                {
+                    queue.add(new Entry(target.featureDistanceSquared(e.feature),
+                        RESULT, null, 0, false, e.feature));
+                }
+                break;
+            default:
+                results.add(e.feature);
+                break;
+            }
+        }
+        return results;
+    }
+
+    private void checkDeadline()
+    {
+        if(timeout != 0 && System.nanoTime() - deadline >= 0)
+        {
+            throw new QueryTimeoutException(Duration.ofNanos(timeout));
+        }
+    }
+
+    /**
+     * If this is a batch search, waits until no interactive queries
+     * are in progress.
+     */
+    private void yieldToInteractive()
+    {
+        if(!batch) return;
+        QueryExecutor executor = store.executor();
+        while(executor.isInteractiveBusy())
+        {
+            checkDeadline();
+            LockSupport.parkNanos(BATCH_PAUSE_NANOS);
+        }
+    }
+
+    private void searchTile(int tilePage)
+    {
+        ByteBuffer buf = store.bufferOfPage(tilePage);
+        int pTile = store.offsetOfPage(tilePage);
+        if ((types & NODES) != 0) searchIndex(buf, pTile + 8, true);
+        if ((types & NONAREA_WAYS) != 0) searchIndex(buf, pTile + 12, false);
+        if ((types & AREAS) != 0) searchIndex(buf, pTile + 16, false);
+        if ((types & NONAREA_RELATIONS) != 0) searchIndex(buf, pTile + 20, false);
+    }
+
+    private void searchIndex(ByteBuffer buf, int ppTree, boolean nodes)
+    {
+        int p = buf.getInt(ppTree);
+        if(p == 0) return;
+        p = ppTree + p;
+        for(;;)
+        {
+            int ptr = buf.getInt(p);
+            int last = ptr & 1;
+            if(matcher.acceptIndex(buf.getInt(p+4)))
+            {
+                searchTrunk(buf, p + (ptr & 0xffff_fffc), nodes);
+            }
+            if(last != 0) break;
+            p += 8;
+        }
+    }
+
+    private void searchTrunk(ByteBuffer buf, int p, boolean nodes)
+    {
+        for (; ; )
+        {
+            int ptr = buf.getInt(p);
+            int last = ptr & 1;
+            double distance = target.boxDistanceSquared(
+                buf.getInt(p + 4), buf.getInt(p + 8),
+                buf.getInt(p + 12), buf.getInt(p + 16));
+            if ((ptr & 2) != 0)
+            {
+                queue.add(new Entry(distance, LEAF, buf, p + (ptr ^ 2 ^ last), nodes, null));
+            }
+            else
+            {
+                queue.add(new Entry(distance, TRUNK, buf, p + (ptr ^ last), nodes, null));
+            }
+            if (last != 0) break;
+            p += 20;
+        }
+    }
+
+    private boolean isNew(ByteBuffer buf, int pFeature)
+    {
+        return seen.add((StoredFeature.id(buf, pFeature) << 2) |
+            StoredFeature.typeCode(buf, pFeature));
+    }
+
+    private void searchLeaf(ByteBuffer buf, int p)
+    {
+        for(;;)
+        {
+            int flags = buf.getInt(p + 16);
+            int pFeature = p + 16;
+            if(!(buf.getInt(p) > maxX || buf.getInt(p + 4) > maxY ||
+                buf.getInt(p + 8) < minX || buf.getInt(p + 12) < minY) &&
+                ((1 << (flags >> 1)) & types) != 0 && matcher.accept(buf, pFeature) &&
+                isNew(buf, pFeature))
+            {
+                Feature feature = store.getFeature(buf, pFeature);
+                if(!target.isSelf(feature))
+                {
+                    queue.add(new Entry(target.boxDistanceSquared(
+                        buf.getInt(p), buf.getInt(p + 4),
+                        buf.getInt(p + 8), buf.getInt(p + 12)),
+                        CANDIDATE, null, 0, false, feature));
+                }
+            }
+            if((flags & 1) != 0) break;
+            p += 32;
+        }
+    }
+
+    private void searchNodeLeaf(ByteBuffer buf, int p)
+    {
+        for(;;)
+        {
+            int flags = buf.getInt(p + 8);
+            int pFeature = p + 8;
+            int x = buf.getInt(p);
+            int y = buf.getInt(p + 4);
+            if(!(x > maxX || y > maxY || x < minX || y < minY) &&
+                ((1 << (flags >> 1)) & types) != 0 && matcher.accept(buf, pFeature))
+            {
+                StoredNode node = new StoredNode(store, buf, pFeature);
+                if(!target.isSelf(node))
+                {
+                    // For nodes, the distance of the bounding box is the
+                    // actual distance, unless the target is a feature
+                    // with a complex shape
+                    queue.add(new Entry(target.boxDistanceSquared(x, y, x, y),
+                        CANDIDATE, null, 0, false, node));
+                }
+            }
+            if((flags & 1) != 0) break;
+            p += 20 + (flags & 4);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.FeatureStore;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A Stream whose terminal operations (if the pipeline is parallel) run
+ * in the ForkJoinPool of the FeatureStore's executor, rather than in the
+ * common pool. (A parallel stream forks its tasks into the pool of the
+ * thread that invokes the terminal operation.) This way, parallel
+ * streams honor the store's parallelism limit and don't compete with
+ * unrelated work in the common pool. While the operation runs, it counts
+ * as an active task of the store, so the store isn't closed while the
+ * stream accesses it.
+ *
+ * Intermediate operations return a PooledStream as well. Sequential
+ * pipelines run on the calling thread, as usual. Operations that turn
+ * the stream into a primitive stream (such as `mapToInt()`) return an
+ * ordinary stream, whose terminal operation runs in the caller's pool.
+ *
+ * Lambdas that run queries of their own are safe: a Query that has to
+ * wait for its tiles while running in a pool worker lets the pool
+ * activate a spare thread (see {@link com.geodesk.feature.store.QueryExecutor#take}).
+ */
+class PooledStream<T> implements Stream<T>
+{
+    private final Stream<T> stream;
+    private final ForkJoinPool pool;
+    private final Runnable taskStarted;
+    private final Runnable taskCompleted;
+
+    /**
+     * Creates a stream whose terminal operations run in the given pool.
+     *
+     * @param stream        the stream
+     * @param pool          the pool in which terminal operations should run
+     * @param taskStarted   called before a terminal operation is submitted
+     * @param taskCompleted called once a terminal operation has completed
+     */
+    PooledStream(Stream<T> stream, ForkJoinPool pool,
+        Runnable taskStarted, Runnable taskCompleted)
+    {
+        this.stream = stream;
+        this.pool = pool;
+        this.taskStarted = taskStarted;
+        this.taskCompleted = taskCompleted;
+    }
+
+    /**
+     * Wraps a stream of the features of a FeatureStore.
+     *
+     * @param store     the FeatureStore whose features the stream retrieves
+     * @param stream    the stream
+     * @return the wrapped stream
+     */
+    static <T> Stream<T> wrap(FeatureStore store, Stream<T> stream)
+    {
+        return new PooledStream<>(stream, store.executor().pool(),
+            store::taskStarted, store::taskCompleted);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> Stream<R> wrap(Stream<R> s)
+    {
+        if(s == stream) return (Stream<R>)this;
+        return new PooledStream<>(s, pool, taskStarted, taskCompleted);
+    }
+
+    private <R> R terminal(Supplier<R> op)
+    {
+        if(!stream.isParallel() || ForkJoinTask.getPool() == pool) return op.get();
+        taskStarted.run();
+        try
+        {
+            // Unlike ForkJoinTask.join(), this never runs the task on
+            // the calling thread (which would fork into the common pool)
+            return CompletableFuture.supplyAsync(op, pool).join();
+        }
+        catch(CompletionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException rex) throw rex;
+            if(cause instanceof Error err) throw err;
+            throw ex;
+        }
+        finally
+        {
+            taskCompleted.run();
+        }
+    }
+
+    private void terminal(Runnable op)
+    {
+        terminal(() ->
+        {
+            op.run();
+            return null;
+        });
+    }
+
+    // === Intermediate operations ===
+
+    @Override public Stream<T> filter(Predicate<? super T> predicate)
+    {
+        return wrap(stream.filter(predicate));
+    }
+
+    @Override public <R> Stream<R> map(Function<? super T, ? extends R> mapper)
+    {
+        return wrap(stream.map(mapper));
+    }
+
+    @Override public <R> Stream<R> flatMap(Function<? super T, ? extends Stream<? extends R>> mapper)
+    {
+        return wrap(stream.flatMap(mapper));
+    }
+
+    @Override public <R> Stream<R> mapMulti(BiConsumer<? super T, ? super Consumer<R>> mapper)
+    {
+        return wrap(stream.mapMulti(mapper));
+    }
+
+    @Override public Stream<T> distinct()
+    {
+        return wrap(stream.distinct());
+    }
+
+    @Override public Stream<T> sorted()
+    {
+        return wrap(stream.sorted());
+    }
+
+    @Override public Stream<T> sorted(Comparator<? super T> comparator)
+    {
+        return wrap(stream.sorted(comparator));
+    }
+
+    @Override public Stream<T> peek(Consumer<? super T> action)
+    {
+        return wrap(stream.peek(action));
+    }
+
+    @Override public Stream<T> limit(long maxSize)
+    {
+        return wrap(stream.limit(maxSize));
+    }
+
+    @Override public Stream<T> skip(long n)
+    {
+        return wrap(stream.skip(n));
+    }
+
+    @Override public Stream<T> takeWhile(Predicate<? super T> predicate)
+    {
+        return wrap(stream.takeWhile(predicate));
+    }
+
+    @Override public Stream<T> dropWhile(Predicate<? super T> predicate)
+    {
+        return wrap(stream.dropWhile(predicate));
+    }
+
+    @Override public Stream<T> sequential()
+    {
+        return wrap(stream.sequential());
+    }
+
+    @Override public Stream<T> parallel()
+    {
+        return wrap(stream.parallel());
+    }
+
+    @Override public Stream<T> unordered()
+    {
+        return wrap(stream.unordered());
+    }
+
+    @Override public Stream<T> onClose(Runnable closeHandler)
+    {
+        return wrap(stream.onClose(closeHandler));
+    }
+
+    @Override public IntStream mapToInt(ToIntFunction<? super T> mapper)
+    {
+        return stream.mapToInt(mapper);
+    }
+
+    @Override public LongStream mapToLong(ToLongFunction<? super T> mapper)
+    {
+        return stream.mapToLong(mapper);
+    }
+
+    @Override public DoubleStream mapToDouble(ToDoubleFunction<? super T> mapper)
+    {
+        return stream.mapToDouble(mapper);
+    }
+
+    @Override public IntStream flatMapToInt(Function<? super T, ? extends IntStream> mapper)
+    {
+        return stream.flatMapToInt(mapper);
+    }
+
+    @Override public LongStream flatMapToLong(Function<? super T, ? extends LongStream> mapper)
+    {
+        return stream.flatMapToLong(mapper);
+    }
+
+    @Override public DoubleStream flatMapToDouble(Function<? super T, ? extends DoubleStream> mapper)
+    {
+        return stream.flatMapToDouble(mapper);
+    }
+
+    // === Terminal operations ===
+
+    @Override public void forEach(Consumer<? super T> action)
+    {
+        terminal(() -> stream.forEach(action));
+    }
+
+    @Override public void forEachOrdered(Consumer<? super T> action)
+    {
+        terminal(() -> stream.forEachOrdered(action));
+    }
+
+    @Override public Object[] toArray()
+    {
+        return terminal(() -> stream.toArray());
+    }
+
+    @Override public <A> A[] toArray(IntFunction<A[]> generator)
+    {
+        return terminal(() -> stream.toArray(generator));
+    }
+
+    @Override public T reduce(T identity, BinaryOperator<T> accumulator)
+    {
+        return terminal(() -> stream.reduce(identity, accumulator));
+    }
+
+    @Override public Optional<T> reduce(BinaryOperator<T> accumulator)
+    {
+        return terminal(() -> stream.reduce(accumulator));
+    }
+
+    @Override public <U> U reduce(U identity, BiFunction<U, ? super T, U> accumulator,
+        BinaryOperator<U> combiner)
+    {
+        return terminal(() -> stream.reduce(identity, accumulator, combiner));
+    }
+
+    @Override public <R> R collect(Supplier<R> supplier, BiConsumer<R, ? super T> accumulator,
+        BiConsumer<R, R> combiner)
+    {
+        return terminal(() -> stream.collect(supplier, accumulator, combiner));
+    }
+
+    @Override public <R, A> R collect(Collector<? super T, A, R> collector)
+    {
+        return terminal(() -> stream.collect(collector));
+    }
+
+    @Override public List<T> toList()
+    {
+        return terminal(() -> stream.toList());
+    }
+
+    @Override public Optional<T> min(Comparator<? super T> comparator)
+    {
+        return terminal(() -> stream.min(comparator));
+    }
+
+    @Override public Optional<T> max(Comparator<? super T> comparator)
+    {
+        return terminal(() -> stream.max(comparator));
+    }
+
+    @Override public long count()
+    {
+        return terminal(() -> stream.count());
+    }
+
+    @Override public boolean anyMatch(Predicate<? super T> predicate)
+    {
+        return terminal(() -> stream.anyMatch(predicate));
+    }
+
+    @Override public boolean allMatch(Predicate<? super T> predicate)
+    {
+        return terminal(() -> stream.allMatch(predicate));
+    }
+
+    @Override public boolean noneMatch(Predicate<? super T> predicate)
+    {
+        return terminal(() -> stream.noneMatch(predicate));
+    }
+
+    @Override public Optional<T> findFirst()
+    {
+        return terminal(() -> stream.findFirst());
+    }
+
+    @Override public Optional<T> findAny()
+    {
+        return terminal(() -> stream.findAny());
+    }
+
+    // === Operations that don't process the elements ===
+
+    @Override public Iterator<T> iterator()
+    {
+        return stream.iterator();
+    }
+
+    @Override public Spliterator<T> spliterator()
+    {
+        return stream.spliterator();
+    }
+
+    @Override public boolean isParallel()
+    {
+        return stream.isParallel();
+    }
+
+    @Override public void close()
+    {
+        stream.close();
+    }
+}
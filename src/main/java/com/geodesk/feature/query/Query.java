@@ -10,22 +10,27 @@ package com.geodesk.feature.query;
 import com.clarisma.common.util.Log;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Filter;
+import com.geodesk.feature.QueryPriority;
+import com.geodesk.feature.QueryTimeoutException;
 import com.geodesk.feature.match.Matcher;
+import com.geodesk.feature.match.MatcherSet;
 import com.geodesk.feature.store.*;
 import com.geodesk.geom.Bounds;
 import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.Iterator;
-import java.util.concurrent.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 // TODO: Idea: Could use AtomicReference for head and use updateAndGet()
 //  No, because does not block
 
 // TODO: Rename to "Cursor"?
 
-public class Query implements Iterator<Feature>, Bounds
+public class Query implements Iterator<Feature>, Bounds, AutoCloseable
 {
     private final FeatureStore store;
     private int minX;
@@ -34,7 +39,10 @@ public class Query implements Iterator<Feature>, Bounds
     private final int maxY;
     private final int types;
     private final Matcher matcher;
-    private ExecutorService executor;
+    private final MatcherSet classifier;    // null unless the query classifies features
+    private final Matcher prefilter;        // only used if classifier is set
+    private QueryExecutor executor;
+    private final boolean interactive;
     // private TileQueryTask head;     // access must be synchronized
         // TODO: maybe put last, so we reduce false sharing (may be in
         //  different cache line from values that are frequently read
@@ -44,8 +52,27 @@ public class Query implements Iterator<Feature>, Bounds
     private Feature nextFeature;
     private int pendingTiles;
     private boolean allTilesRequested;
+    private boolean walkerDone;     // true once the tileWalker has visited all tiles
+    TileList lookAhead = new TileList();
+    int lookAheadPos;               // next tile in lookAhead to be submitted
+    private int prefetchPos;        // next tile in lookAhead to be prefetched
+    private final boolean diskOrder;
+    private final boolean prefetching;
     private BlockingQueue<TileQueryTask> queue;
+    private final TileWindow window;
     private volatile RuntimeException error;
+    private volatile boolean cancelled;
+    private final long timeout;     // in nanoseconds, 0 = no timeout
+    private final long deadline;    // based on System.nanoTime()
+    private Aggregator<Object> aggregator;
+    private final TagIndex tagIndex;    // null if the matcher requires no tags
+    private final long[][][] tagTerms;
+
+    /**
+     * The number of tiles (beyond those already submitted) that the query
+     * reads into memory ahead of searching them.
+     */
+    private static final int PREFETCH_TILES = 8;
 
     // TODO: We're only tracking the last exception that was thrown, which
     //  is non-deterministic. Do we need something more sophisticated?
@@ -53,19 +80,66 @@ public class Query implements Iterator<Feature>, Bounds
     //  What would the API user do differently based on this information?
 
     public Query(WorldView view)
+    {
+        this(view, true);
+    }
+
+    /**
+     * Creates a Query for the given view.
+     *
+     * @param view      the view
+     * @param start     `true` to start the query (submit its initial tiles);
+     *                  `false` to only use it as the context of tile tasks
+     *                  that are run by other means (such as a
+     *                  {@link TileSpliterator})
+     */
+    Query(WorldView view, boolean start)
+    {
+        this(view, start, null, null);
+    }
+
+    /**
+     * Creates and starts a Query that classifies the features of a view:
+     * Instead of accepting features via its Matcher, the query evaluates
+     * the MatcherSet for each candidate and only returns the features that
+     * match at least one of its queries. The queries that a feature
+     * matches can be retrieved via {@link #nextMatches(long[])}.
+     *
+     * @param view          the view, whose matcher must be (or include)
+     *                      `classifier`; only used to select tiles
+     * @param classifier    the MatcherSet
+     * @param prefilter     the Matcher that features must be accepted by
+     *                      in addition to `classifier`
+     */
+    Query(WorldView view, MatcherSet classifier, Matcher prefilter)
+    {
+        this(view, true, classifier, prefilter);
+    }
+
+    private Query(WorldView view, boolean start, MatcherSet classifier, Matcher prefilter)
     {
         this.store = view.store;
-        this.executor = store.executor();
+        this.interactive = view.priority != QueryPriority.BATCH;
         this.types = view.types;
         this.matcher = view.matcher;
+        this.classifier = classifier;
+        this.prefilter = prefilter;
+        this.timeout = view.timeout;
+        this.diskOrder = view.diskOrder;
+        this.prefetching = store.isPrefetching();
+        this.deadline = System.nanoTime() + timeout;
         Bounds bbox = view.bounds;
         minX = bbox.minX();
         minY = bbox.minY();
         maxX = bbox.maxX();
         maxY = bbox.maxY();
-        queue = new LinkedBlockingQueue<>();
+        window = new TileWindow(store.maxPendingTiles());
         tileWalker = new TileIndexWalker(store);
-        start(view.filter);
+        // Only derive the terms if there is an index to check them against
+        TagIndex index = store.tagIndex();
+        tagTerms = index == null ? null : matcher.tagTerms();
+        tagIndex = tagTerms == null ? null : index;
+        if(start) start(view.filter);
     }
 
     public FeatureStore store()
@@ -83,6 +157,16 @@ public class Query implements Iterator<Feature>, Bounds
         return matcher;
     }
 
+    MatcherSet classifier()
+    {
+        return classifier;
+    }
+
+    Matcher prefilter()
+    {
+        return prefilter;
+    }
+
     @Override public int minX()
     {
         return minX;
@@ -103,6 +187,17 @@ public class Query implements Iterator<Feature>, Bounds
         return maxY;
     }
 
+    /**
+     * Checks whether the tile with the given TIP may contain features
+     * that match this query, based on the tag index (if present).
+     * Tiles that are rejected are skipped, but their child tiles
+     * are still visited.
+     */
+    boolean acceptsTile(int tip)
+    {
+        return tagIndex == null || tagIndex.mayContain(tip, tagTerms);
+    }
+
     void put(TileQueryTask task)
     {
         // TODO
@@ -128,17 +223,101 @@ public class Query implements Iterator<Feature>, Bounds
             // TODO: proper type for query-related exceptions
     }
 
+    Aggregator<Object> aggregator()
+    {
+        return aggregator;
+    }
+
+    boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Cancels this query. Tiles that have not been requested yet won't be
+     * searched, and tile tasks that are already pending stop searching
+     * (their results are discarded). After a query has been closed,
+     * `hasNext()` returns `false`.
+     */
+    @Override public void close()
+    {
+        cancelled = true;
+        allTilesRequested = true;
+        pendingTiles = 0;
+        currentResults = QueryResults.EMPTY;
+        currentPos = 0;
+        nextFeature = null;
+    }
+
+    /**
+     * Checks whether the query has exceeded its timeout. If so, the query
+     * is cancelled, and a QueryTimeoutException will be thrown to the
+     * consumer of its results.
+     *
+     * @return `true` if the deadline has passed
+     */
+    boolean isPastDeadline()
+    {
+        if(timeout == 0) return false;
+        if(System.nanoTime() - deadline < 0) return false;
+        if(!cancelled)
+        {
+            cancelled = true;
+            error = new QueryTimeoutException(Duration.ofNanos(timeout));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next feature and closes the query, without waiting
+     * for the results of any further tiles.
+     */
+    Feature nextAndClose()
+    {
+        Feature f = nextFeature;
+        close();
+        return f;
+    }
+
+    RuntimeException error()
+    {
+        return error;
+    }
+
+    /**
+     * Retrieves the next completed tile task, blocking if necessary,
+     * and adapts the window of pending tiles (see {@link TileWindow}).
+     */
     TileQueryTask take()
     {
-        try
+        TileQueryTask task = queue.poll();
+        if(task == null)
+        {
+            window.consumerWaited();
+            try
+            {
+                task = QueryExecutor.take(queue);
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        else if(!queue.isEmpty())
         {
-            return queue.take();
+            window.tilesPiledUp();
         }
-        catch (InterruptedException e)
+
+        int resultCount = 0;
+        QueryResults res = task.getRawResult();
+        while(res != null)
         {
-            e.printStackTrace();
-            return null;
+            resultCount += res.size;
+            res = res.next;
         }
+        window.tileCompleted(resultCount);
+        return task;
     }
 
     public void start(Filter filter)
@@ -147,45 +326,210 @@ public class Query implements Iterator<Feature>, Bounds
         currentResults = QueryResults.EMPTY;
         currentPos = -1;
 
-        // Submit initial tasks
-        int maxPendingTiles = store.maxPendingTiles();
-        while(pendingTiles < maxPendingTiles)
+        // Look at the first few tiles: if the query doesn't touch any
+        // others, we search them on the calling thread, which avoids
+        // the overhead of handing off work to the executor (this is
+        // typical for point queries and small bounding boxes)
+
+        int inlineLimit = window.inlineLimit();
+        TileList tiles = new TileList();
+        boolean moreTiles;
+        do
+        {
+            int entry = store.tileIndexEntry(tileWalker.tip());
+            if((entry & 2) != 0)
+            {
+                if(acceptsTile(tileWalker.tip()))
+                {
+                    tiles.add(tileWalker.tip(), entry >>> 2,
+                        tileWalker.northwestFlags(), tileWalker.filter());
+                }
+            }
+            else
+            {
+                tileWalker.skipChildren();
+            }
+            moreTiles = tileWalker.next();
+        }
+        while(moreTiles && tiles.size <= inlineLimit);
+
+        if(!moreTiles && tiles.size <= inlineLimit)
         {
-            requestTile();
-            if(!tileWalker.next())
+            allTilesRequested = true;
+            QueryResults res = QueryResults.EMPTY;
+            for(int i=0; i<tiles.size; i++)
+            {
+                res = QueryResults.merge(res, new TileQueryTask(this, tiles.pages[i],
+                    tiles.northwestFlags[i], tiles.filters[i]).searchInline());
+            }
+            currentResults = res;
+            fetchNext();
+            return;
+        }
+
+        // Submit initial tasks (the tiles we've already looked at,
+        // plus more tiles until the window is filled)
+        startAsync();
+        lookAhead = tiles;
+        walkerDone = !moreTiles;
+        requestTiles();
+        fetchNext();
+    }
+
+    private void startAsync()
+    {
+        executor = store.executor();
+        // A task is only submitted while the number of pending tiles is
+        // below the window, so the queue can never hold more than
+        // maxWindow completed tasks; workers never block on put()
+        queue = new ArrayBlockingQueue<>(window.max());
+    }
+
+    /**
+     * Runs the query (which must not have been started) and computes
+     * an aggregate value over its results. Each tile is reduced to a
+     * partial result in the worker thread that searches it; the partial
+     * results are combined in the calling thread.
+     *
+     * @param filter        the filter of the query (may be `null`)
+     * @param aggregator    the Aggregator
+     * @return the aggregate value
+     */
+    @SuppressWarnings("unchecked")
+    <A> A aggregate(Filter filter, Aggregator<A> aggregator)
+    {
+        this.aggregator = (Aggregator<Object>)aggregator;
+        A result = aggregator.newPartial();
+        tileWalker.start(this, filter);
+        startAsync();
+        for(;;)
+        {
+            requestTiles();
+            if(pendingTiles == 0) break;
+            TileQueryTask task = take();
+            pendingTiles -= task.tilesProcessed();
+            if(isPastDeadline()) allTilesRequested = true;
+            A partial = (A)task.partial();
+            if(partial != null) result = aggregator.combine(result, partial);
+        }
+        if(error != null) throw error;
+        return result;
+    }
+
+    /**
+     * Called by a TileQueryTask submitted by this query once it has
+     * delivered its results.
+     */
+    void taskCompleted()
+    {
+        store.tileLimiter().taskCompleted();
+        if(interactive) executor.interactiveTileCompleted();
+        store.taskCompleted();
+    }
+
+    /**
+     * Called by a TileQueryTask submitted by this query if the executor
+     * refused to run it.
+     */
+    void taskRejected()
+    {
+        if(interactive) executor.interactiveTileCompleted();
+        store.taskCompleted();
+    }
+
+    /**
+     * Submits tiles until the window of pending tiles is full, or all
+     * tiles have been requested. Tiles are taken from the look-ahead
+     * list, which is then topped up again.
+     */
+    private void requestTiles()
+    {
+        while(!allTilesRequested && pendingTiles < window.limit(interactive, executor))
+        {
+            fillLookAhead();
+            if(lookAheadPos == lookAhead.size)
             {
-                // We've traversed all tiles
                 allTilesRequested = true;
                 break;
             }
+            int n = lookAheadPos++;
+            submitTile(lookAhead.pages[n], lookAhead.northwestFlags[n], lookAhead.filters[n]);
         }
-        fetchNext();
+        if(!allTilesRequested) fillLookAhead();
     }
 
-    private void requestTile()
+    /**
+     * Walks the tile index ahead of the tiles that have been submitted,
+     * so that up to PREFETCH_TILES tiles are waiting in the look-ahead
+     * list. If the store has prefetching enabled, each of these tiles is
+     * prefetched on one of the executor's I/O threads; by the time its
+     * task runs, its data has (ideally) been read into memory, so the
+     * worker doesn't stall on page faults.
+     *
+     * If the query runs in disk order, we walk the entire tile index
+     * at once, and then sort the tiles by page. Since the list is then
+     * never refilled, we don't compact it as tiles are consumed (which
+     * would copy the remaining tiles over and over); we merely advance
+     * lookAheadPos.
+     */
+    private void fillLookAhead()
     {
-        ForkJoinPool pool = (ForkJoinPool)executor; // TODO!
-        /*
-        Log.debug("Requesting tile %s (%s)",
-            Tile.toString(tileWalker.tile()),
-            Tip.toString(tileWalker.tip()));
-         */
-        int entry = store.tileIndexEntry(tileWalker.tip());
-        if((entry & 2) != 0)
+        if(lookAheadPos == lookAhead.size)
         {
-            // System.out.format("Requesting tile %06X at page %d\n",
-            //    tileWalker.tip(), entry >>> 2);
-            pool.submit(new TileQueryTask(this, entry >>> 2,
-                tileWalker.northwestFlags(), tileWalker.filter()));
-            pendingTiles++;
-            // if(pendingTiles > 10) log.debug("Requesting tile, {} pending", pendingTiles);
+            lookAhead.size = 0;
+            lookAheadPos = 0;
+            prefetchPos = 0;
         }
-        else
+        else if(!diskOrder && lookAheadPos >= PREFETCH_TILES * 4)
         {
-            tileWalker.skipChildren();
+            lookAhead.removeFirst(lookAheadPos);
+            prefetchPos -= lookAheadPos;
+            lookAheadPos = 0;
+        }
+        if(!walkerDone)
+        {
+            int start = lookAhead.size;
+            while(!walkerDone && (diskOrder || lookAhead.size - lookAheadPos < PREFETCH_TILES))
+            {
+                int tip = tileWalker.tip();
+                int entry = store.tileIndexEntry(tip);
+                if((entry & 2) != 0)
+                {
+                    if(acceptsTile(tip))
+                    {
+                        lookAhead.add(tip, entry >>> 2,
+                            tileWalker.northwestFlags(), tileWalker.filter());
+                    }
+                }
+                else
+                {
+                    tileWalker.skipChildren();
+                }
+                walkerDone = !tileWalker.next();
+            }
+            if(diskOrder) lookAhead.sortByPage(Math.min(start, lookAheadPos));
+        }
+        if(!prefetching) return;
+        int prefetchEnd = Math.min(lookAhead.size, lookAheadPos + PREFETCH_TILES);
+        while(prefetchPos < prefetchEnd)
+        {
+            int page = lookAhead.pages[prefetchPos++];
+            store.prefetchTile(page);
         }
     }
 
+    private void submitTile(int tilePage, int northwestFlags, Filter filter)
+    {
+        store.taskStarted();
+        if(interactive) executor.interactiveTileStarted();
+        TileQueryTask task = new TileQueryTask(this, tilePage, northwestFlags, filter);
+        pendingTiles++;
+        // If the pool has been shut down, the task is queued as failed
+        // (which rolls back the counters), and the error is reported
+        // once the consumer gets to it
+        store.tileLimiter().execute(task, task::rejected);
+    }
+
     private void fetchNext()
     {
         currentPos++;
@@ -219,18 +563,13 @@ public class Query implements Iterator<Feature>, Bounds
 
                     TileQueryTask task = take();
                     pendingTiles -= task.tilesProcessed();
-                    while(!allTilesRequested)
+                    if(isPastDeadline())
                     {
-                        requestTile();
-                        if(tileWalker.next())
-                        {
-                            if(pendingTiles == store.maxPendingTiles()) break;
-                        }
-                        else
-                        {
-                            allTilesRequested = true;
-                        }
+                        // hasNext() will throw the QueryTimeoutException
+                        close();
+                        return;
                     }
+                    requestTiles();
 
                     currentResults = task.getRawResult();
                     continue;    // go back to loop since batch could be empty
@@ -239,26 +578,54 @@ public class Query implements Iterator<Feature>, Bounds
                 continue;   // go back to loop since batch could be empty
             }
 
-            ByteBuffer buf = currentResults.buf;
-            int pFeature = currentResults.pointers[currentPos];
-            int type = pFeature & 3;
-            pFeature ^= type;
-            if(type == 1)
-            {
-                nextFeature = new StoredWay(store, buf, pFeature);
-                return;
-            }
-            if(type == 0)
-            {
-                nextFeature = new StoredNode(store, buf, pFeature);
-                return;
-            }
-            assert(type == 2);
-            nextFeature = new StoredRelation(store, buf, pFeature);
+            nextFeature = feature(store, currentResults, currentPos);
             return;
         }
     }
 
+    /**
+     * Returns the Feature at the given position of a QueryResults bucket,
+     * either the one that was materialized during the search (if any),
+     * or a newly created one.
+     */
+    static Feature feature(FeatureStore store, QueryResults res, int pos)
+    {
+        if(res.features != null)
+        {
+            Feature f = res.features[pos];
+            if(f != null) return f;
+        }
+        return feature(store, res.buf, res.pointers[pos]);
+    }
+
+    /**
+     * Creates a Feature from a pointer stored in a QueryResults bucket
+     * (the lower 2 bits of the pointer indicate the type).
+     */
+    static Feature feature(FeatureStore store, ByteBuffer buf, int pFeature)
+    {
+        int type = pFeature & 3;
+        pFeature ^= type;
+        if(type == 1) return new StoredWay(store, buf, pFeature);
+        if(type == 0) return new StoredNode(store, buf, pFeature);
+        assert(type == 2);
+        return new StoredRelation(store, buf, pFeature);
+    }
+
+    /**
+     * For a Query that classifies features, retrieves the queries that are
+     * matched by the feature which the next call to `next()` will return.
+     * Must only be called if `hasNext()` is `true`.
+     *
+     * @param bits  an array of `(classifier.size() + 63) / 64` elements,
+     *              which will receive the bits of the matched queries
+     */
+    void nextMatches(long[] bits)
+    {
+        System.arraycopy(currentResults.matches, currentPos * bits.length,
+            bits, 0, bits.length);
+    }
+
     @Override public boolean hasNext()
     {
         // This is very hot code subject to inlining
@@ -7,6 +7,8 @@
 
 package com.geodesk.feature.query;
 
+import com.geodesk.feature.Feature;
+
 import java.nio.ByteBuffer;
 
 // TODO: See if we increase performance by scaling up bucket size; e.g.
@@ -21,6 +23,18 @@ public class QueryResults
 {
 	final ByteBuffer buf;
 	int[] pointers;
+	/**
+	 * The features that were materialized while the query was executed
+	 * (in order to apply a Filter), parallel to `pointers`; `null` if
+	 * no features have been materialized for this bucket.
+	 */
+	Feature[] features;
+	/**
+	 * For a Query that classifies features, the queries of its MatcherSet
+	 * that each feature matches (a fixed number of words per feature,
+	 * parallel to `pointers`); otherwise `null`.
+	 */
+	long[] matches;
 	int size;
 	QueryResults next;
 	private QueryResults last;	// only valid for first QueryResults in a chain
@@ -40,10 +54,13 @@ public class QueryResults
 		this(buf, DEFAULT_BUCKET_SIZE);
 	}
 	
-	private QueryResults(ByteBuffer buf, int[] pointers, int size)
+	private QueryResults(ByteBuffer buf, int[] pointers, Feature[] features,
+		long[] matches, int size)
 	{
 		this.buf = buf;
 		this.pointers = pointers;
+		this.features = features;
+		this.matches = matches;
 		this.size = size;
 	}
 	
@@ -51,13 +68,53 @@ public class QueryResults
 	{
 		if(size == pointers.length)
 		{
-			last = last.next = new QueryResults(buf, pointers, size);
+			last = last.next = new QueryResults(buf, pointers, features, matches, size);
 			pointers = new int[pointers.length];
+			features = null;
+			matches = null;
 			size = 0;
 		}
 		pointers[size++] = ptr;
 	}
 
+	/**
+	 * Adds a pointer, along with the Feature that has already been
+	 * materialized for it (so the consumer of the results doesn't
+	 * need to create it again).
+	 */
+	public void add(int ptr, Feature feature)
+	{
+		add(ptr);
+		if(features == null) features = new Feature[pointers.length];
+		features[size-1] = feature;
+	}
+
+	/**
+	 * Adds a pointer, along with the queries that the feature matches.
+	 */
+	public void add(int ptr, long[] featureMatches)
+	{
+		add(ptr);
+		setMatches(featureMatches);
+	}
+
+	/**
+	 * Adds a pointer, along with its materialized Feature and the queries
+	 * that the feature matches.
+	 */
+	public void add(int ptr, Feature feature, long[] featureMatches)
+	{
+		add(ptr, feature);
+		setMatches(featureMatches);
+	}
+
+	private void setMatches(long[] featureMatches)
+	{
+		int words = featureMatches.length;
+		if(matches == null) matches = new long[pointers.length * words];
+		System.arraycopy(featureMatches, 0, matches, (size-1) * words, words);
+	}
+
 	public static QueryResults merge(QueryResults a, QueryResults b)
 	{
 		if(a.size==0) return b;
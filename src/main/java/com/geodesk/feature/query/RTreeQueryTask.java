@@ -11,6 +11,7 @@ import com.clarisma.common.util.Log;
 import com.geodesk.feature.FeatureType;
 import com.geodesk.feature.Filter;
 import com.geodesk.feature.match.Matcher;
+import com.geodesk.feature.match.MatcherSet;
 import com.geodesk.feature.store.FeatureFlags;
 import com.geodesk.feature.store.StoredFeature;
 import com.geodesk.feature.store.StoredNode;
@@ -27,6 +28,20 @@ public class RTreeQueryTask extends QueryTask
     protected final Matcher matcher;
     protected final Filter filter;
     protected final RTreeQueryTask next;
+    protected final MatcherSet classifier;
+    protected final long[] matches;
+    /**
+     * The number of filtered candidates left until the query's deadline
+     * is checked again.
+     */
+    private int deadlineCountdown = DEADLINE_CHECK_INTERVAL;
+
+    /**
+     * How many candidates are passed to the filter between checks of the
+     * deadline (reading the clock for every candidate costs more than
+     * evaluating a typical filter).
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
 
     public RTreeQueryTask(TileQueryTask parent, int ppTree, Matcher matcher, RTreeQueryTask next)
     {
@@ -37,6 +52,8 @@ public class RTreeQueryTask extends QueryTask
         this.matcher = matcher;
         this.filter = parent.filter;
         this.next = next;
+        classifier = query.classifier();
+        matches = classifier == null ? null : new long[(classifier.size() + 63) >> 6];
     }
 
     @Override protected boolean exec()
@@ -63,6 +80,7 @@ public class RTreeQueryTask extends QueryTask
         int maxY = query.maxY();
         for (; ; )
         {
+            if (query.isCancelled()) return;
             int ptr = buf.getInt(p);
             int last = ptr & 1;
 
@@ -89,6 +107,44 @@ public class RTreeQueryTask extends QueryTask
         }
     }
 
+    /**
+     * Checks whether the query has been cancelled, or (for every
+     * {@link #DEADLINE_CHECK_INTERVAL}-th call) whether it has exceeded
+     * its timeout. Used before applying the filter to a candidate.
+     *
+     * @return `true` if the remaining candidates should be skipped
+     */
+    protected boolean isPastDeadline()
+    {
+        if(query.isCancelled()) return true;
+        if(--deadlineCountdown > 0) return false;
+        deadlineCountdown = DEADLINE_CHECK_INTERVAL;
+        return query.isPastDeadline();
+    }
+
+    /**
+     * Evaluates the classifier of the query for a candidate feature and
+     * adds the feature (along with the queries it matches) to the results
+     * if it matches at least one query and is accepted by the filter.
+     *
+     * @param pFeature  the pointer to the feature
+     * @param pTyped    the pointer, with the type in the lower 2 bits
+     */
+    protected void classify(int pFeature, int pTyped)
+    {
+        if(!query.prefilter().accept(buf, pFeature)) return;
+        if(classifier.match(buf, pFeature, matches) == 0) return;
+        if (filter == null)
+        {
+            results.add(pTyped, matches);
+        }
+        else if (!isPastDeadline())
+        {
+            StoredFeature feature = query.store().getFeature(buf, pFeature);
+            if (feature.acceptedBy(filter)) results.add(pTyped, feature, matches);
+        }
+    }
+
     protected void searchLeaf(int p)
     {
         // log.debug("Searching leaf SIB at {}", String.format("%08X", p));
@@ -97,6 +153,7 @@ public class RTreeQueryTask extends QueryTask
         int maxX = query.maxX();
         int maxY = query.maxY();
         int acceptedTypes = query.types();
+        if(query.isPastDeadline()) return;
 
         for(;;)
         {
@@ -117,14 +174,27 @@ public class RTreeQueryTask extends QueryTask
                     if(((1 << (flags >> 1)) & acceptedTypes) != 0)
                     {
                         int pFeature = p + 16;
-                        if (matcher.accept(buf, pFeature))
+                        if (classifier != null)
                         {
-                            // TODO: We should return results as Features rather than pointers,
-                            //  since we are creating a Feature anyway in order to apply a filter
-                            if (filter == null || filter.accept(query.store().getFeature(buf, pFeature)))
+                            classify(pFeature, pFeature | ((flags >>> 3) & 3));
+                        }
+                        else if (matcher.accept(buf, pFeature))
+                        {
+                            if (filter == null)
                             {
                                 results.add(pFeature | ((flags >>> 3) & 3));
                             }
+                            else if (!isPastDeadline())
+                            {
+                                // We need to create the Feature in order to apply
+                                // the filter; hand it (and its geometry, if the
+                                // filter built it) through to the consumer
+                                StoredFeature feature = query.store().getFeature(buf, pFeature);
+                                if (feature.acceptedBy(filter))
+                                {
+                                    results.add(pFeature | ((flags >>> 3) & 3), feature);
+                                }
+                            }
                         }
                     }
                 }
@@ -147,27 +217,34 @@ public class RTreeQueryTask extends QueryTask
             int minY = query.minY();
             int maxX = query.maxX();
             int maxY = query.maxY();
+            int acceptedTypes = query.types();
+            if(query.isPastDeadline()) return;
             for(;;)
             {
                 int flags = buf.getInt(p + 8);
-
-                // TODO: Should do type check for nodes as well to
-                //  e.g. to recognize WAYNODE_FLAG
-
                 int x = buf.getInt(p);
                 int y = buf.getInt(p+4);
-                if(!(x > maxX || y > maxY || x < minX || y < minY))
+                // Check for acceptable type (member, way-node), as for
+                // other features
+                if(!(x > maxX || y > maxY || x < minX || y < minY) &&
+                    ((1 << (flags >> 1)) & acceptedTypes) != 0)
                 {
                     int pFeature = p+8;
-                    if(matcher.accept(buf, pFeature))
+                    if(classifier != null)
+                    {
+                        classify(pFeature, pFeature);
+                    }
+                    else if(matcher.accept(buf, pFeature))
                     {
-                        // TODO: We should return results as Features rather than pointers,
-                        //  since we are creating a Feature anyway in order to apply a filter
-                        if(filter == null || filter.accept(
-                            new StoredNode(query.store(), buf, pFeature)))
+                        if(filter == null)
                         {
                             results.add(pFeature);
                         }
+                        else if(!isPastDeadline())
+                        {
+                            StoredNode node = new StoredNode(query.store(), buf, pFeature);
+                            if(filter.accept(node)) results.add(pFeature, node);
+                        }
                     }
                 }
                 if((flags & 1) != 0) break;
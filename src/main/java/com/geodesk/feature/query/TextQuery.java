@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.store.StoredFeature;
+import com.geodesk.feature.store.TextIndex;
+import com.geodesk.geom.Bounds;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An Iterator that retrieves the features of a view that has a
+ * {@link com.geodesk.feature.filter.TextFilter}, using a text index.
+ * The candidates are the features referenced by the tokens that start
+ * with the most selective word of the search text (the one with the
+ * fewest refs); each candidate must then pass all other criteria of
+ * the view (including the TextFilter itself).
+ *
+ * Since each ref requires a random lookup, the index only pays off if
+ * the range of refs is small, or if a large portion of its features lie
+ * within the view. For a small bounding box and a common prefix, most
+ * refs would be discarded; in this case, {@link #create} returns `null`
+ * and the view is searched by a regular Query instead.
+ */
+class TextQuery implements Iterator<Feature>
+{
+    private final WorldView view;
+    private final TextIndex index;
+    private long pos;
+    private long end;
+    private final MutableLongSet seen = new LongHashSet();
+    private Feature next;
+
+    /**
+     * Ranges of up to this many refs are always retrieved via the index.
+     */
+    static final long MAX_UNCONDITIONAL_REFS = 4096;
+
+    /**
+     * Larger ranges are only retrieved via the index if the view covers
+     * at least this fraction of the world.
+     */
+    static final double MIN_AREA_FRACTION = 1.0 / 64;
+
+    private static final double WORLD_AREA = Math.pow(2, 64);
+
+    private TextQuery(WorldView view, TextIndex index, long[] range)
+    {
+        this.view = view;
+        this.index = index;
+        if(range != null)
+        {
+            pos = range[0];
+            end = range[0] + range[1];
+        }
+        fetchNext();
+    }
+
+    /**
+     * Creates a TextQuery for the given view, unless a tile scan is
+     * expected to be cheaper.
+     *
+     * @param view      the view
+     * @param index     the text index
+     * @param tokens    the normalized words of the search text
+     * @return the TextQuery, or `null` if the view should be searched
+     *   by a regular Query
+     */
+    static TextQuery create(WorldView view, TextIndex index, String[] tokens)
+    {
+        long[] best = null;
+        for(String token: tokens)
+        {
+            long[] range = index.findPrefix(token);
+            if(best == null || range[1] < best[1]) best = range;
+        }
+        if(best != null && !usesIndex(best[1], view.bounds)) return null;
+        return new TextQuery(view, index, best);
+    }
+
+    /**
+     * Decides whether a range of refs should be retrieved via the index,
+     * based on its size and the size of the view's bounding box (the refs
+     * are assumed to be spread evenly over the world).
+     */
+    static boolean usesIndex(long refCount, Bounds bounds)
+    {
+        if(refCount <= MAX_UNCONDITIONAL_REFS) return true;
+        double area = ((double)bounds.maxX() - bounds.minX() + 1) *
+            ((double)bounds.maxY() - bounds.minY() + 1);
+        return area / WORLD_AREA >= MIN_AREA_FRACTION;
+    }
+
+    private void fetchNext()
+    {
+        while(pos < end)
+        {
+            long ref = index.ref(pos++);
+            // If more than one token matches the prefix, a feature
+            // may be referenced more than once
+            if(!seen.add(ref)) continue;
+            StoredFeature feature = view.store.getFeatureInTile(
+                (int)(ref >>> 32), (int)ref);
+            if(feature != null && view.contains(feature))
+            {
+                next = feature;
+                return;
+            }
+        }
+        next = null;
+    }
+
+    @Override public boolean hasNext()
+    {
+        return next != null;
+    }
+
+    @Override public Feature next()
+    {
+        if(next == null) throw new NoSuchElementException();
+        Feature f = next;
+        fetchNext();
+        return f;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.TileIndexWalker;
+
+import java.util.Arrays;
+
+/**
+ * A list of the tiles that a query needs to search, collected up front
+ * by walking the tile index. For each tile, we record its TIP, its page,
+ * the northwest flags used to suppress duplicate results of multi-tile
+ * features, and the tile-specific filter (if any).
+ */
+class TileList
+{
+    int[] tips;
+    int[] pages;
+    int[] northwestFlags;
+    Filter[] filters;
+    int size;
+
+    TileList()
+    {
+        tips = new int[16];
+        pages = new int[16];
+        northwestFlags = new int[16];
+        filters = new Filter[16];
+    }
+
+    void add(int tip, int page, int flags, Filter filter)
+    {
+        if(size == pages.length)
+        {
+            int newCapacity = size * 2;
+            tips = Arrays.copyOf(tips, newCapacity);
+            pages = Arrays.copyOf(pages, newCapacity);
+            northwestFlags = Arrays.copyOf(northwestFlags, newCapacity);
+            filters = Arrays.copyOf(filters, newCapacity);
+        }
+        tips[size] = tip;
+        pages[size] = page;
+        northwestFlags[size] = flags;
+        filters[size] = filter;
+        size++;
+    }
+
+    /**
+     * Removes the first `n` tiles from this list.
+     */
+    void removeFirst(int n)
+    {
+        int remaining = size - n;
+        System.arraycopy(tips, n, tips, 0, remaining);
+        System.arraycopy(pages, n, pages, 0, remaining);
+        System.arraycopy(northwestFlags, n, northwestFlags, 0, remaining);
+        System.arraycopy(filters, n, filters, 0, remaining);
+        Arrays.fill(filters, remaining, size, null);
+        size = remaining;
+    }
+
+    /**
+     * Sorts the tiles starting at the given position by ascending page,
+     * so they are read in the order in which they are stored.
+     *
+     * @param start     the position of the first tile to sort
+     */
+    void sortByPage(int start)
+    {
+        int count = size - start;
+        long[] keys = new long[count];
+        for(int i=0; i<count; i++)
+        {
+            keys[i] = ((long)pages[start + i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] oldTips = Arrays.copyOfRange(tips, start, size);
+        int[] oldFlags = Arrays.copyOfRange(northwestFlags, start, size);
+        Filter[] oldFilters = Arrays.copyOfRange(filters, start, size);
+        for(int i=0; i<count; i++)
+        {
+            int n = (int)keys[i];
+            tips[start + i] = oldTips[n];
+            pages[start + i] = (int)(keys[i] >>> 32);
+            northwestFlags[start + i] = oldFlags[n];
+            filters[start + i] = oldFilters[n];
+        }
+    }
+
+    /**
+     * Collects the tiles that intersect the bounds of the given query and
+     * are accepted by the given filter. Tiles that are not loaded are
+     * skipped (along with their children), as are tiles that the query
+     * can rule out based on the tag index.
+     *
+     * @param query     the query
+     * @param filter    the filter of the query (may be `null`)
+     * @return a list of tiles
+     */
+    static TileList collect(Query query, Filter filter)
+    {
+        FeatureStore store = query.store();
+        TileList list = new TileList();
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(query, filter);
+        do
+        {
+            int entry = store.tileIndexEntry(walker.tip());
+            if((entry & 2) != 0)
+            {
+                if(!query.acceptsTile(walker.tip())) continue;
+                list.add(walker.tip(), entry >>> 2, walker.northwestFlags(), walker.filter());
+            }
+            else
+            {
+                walker.skipChildren();
+            }
+        }
+        while(walker.next());
+        return list;
+    }
+}
@@ -13,6 +13,7 @@ import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.geom.Tile;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.geodesk.feature.match.TypeBits.*;
 
@@ -24,6 +25,7 @@ public class TileQueryTask extends QueryTask
     private int tilesProcessed;
     protected ByteBuffer buf;
     protected Filter filter;
+    private Object partial;
 
     public TileQueryTask(Query query, int tilePage, int northwestFlags, Filter filter)
     {
@@ -34,7 +36,8 @@ public class TileQueryTask extends QueryTask
         // Log.debug("Tile %s with filter %s", Tile.toString(tile), filter);
     }
 
-    private RTreeQueryTask searchRTree(int ppTree, Matcher matcher, RTreeQueryTask task)
+    private RTreeQueryTask searchRTree(int ppTree, Matcher matcher, RTreeQueryTask task,
+        boolean fork)
     {
         int p = buf.getInt(ppTree);
         if(p == 0) return task;
@@ -46,7 +49,7 @@ public class TileQueryTask extends QueryTask
             if(matcher.acceptIndex(keyBits))
             {
                 task = new RTreeQueryTask(this, p, matcher, task);
-                task.fork();
+                start(task, fork);
             }
             if(last != 0) break;
             p += 8;
@@ -54,7 +57,8 @@ public class TileQueryTask extends QueryTask
         return task;
     }
 
-    private RTreeQueryTask searchNodeRTree(int ppTree, Matcher matcher, RTreeQueryTask task)
+    private RTreeQueryTask searchNodeRTree(int ppTree, Matcher matcher, RTreeQueryTask task,
+        boolean fork)
     {
         int p = buf.getInt(ppTree);
         if(p == 0) return task;
@@ -66,7 +70,7 @@ public class TileQueryTask extends QueryTask
             if(matcher.acceptIndex(keyBits))
             {
                 task = new RTreeQueryTask.Nodes(this, p, matcher, task);
-                task.fork();
+                start(task, fork);
             }
             if(last != 0) break;
             p += 8;
@@ -74,53 +78,109 @@ public class TileQueryTask extends QueryTask
         return task;
     }
 
-    @Override protected boolean exec()
+    private static void start(RTreeQueryTask task, boolean fork)
     {
-        // System.out.format("Searching tile at page %d\n", tilePage);
+        if(fork)
+        {
+            task.fork();
+        }
+        else
+        {
+            task.invoke();
+        }
+    }
 
-        try
+    /**
+     * Searches the R-trees of the tile.
+     *
+     * @param fork  `true` if the R-trees should be searched in parallel
+     *              (as ForkJoin subtasks), or `false` to search them
+     *              on the current thread
+     * @return the results of the search
+     */
+    QueryResults search(boolean fork)
+    {
+        FeatureStore store = query.store();
+        store.recordTileAccess(tilePage);
+        buf = store.bufferOfPage(tilePage);
+        int pTile = store.offsetOfPage(tilePage);
+
+        /*
+        // TODO: could calculate these without branching:
+        //  north - maxY, shift sign bit to flag
+        int north = Tile.topY(tile);
+        int west = Tile.leftX(tile);
+        bboxFlags = ((query.maxY() > north) ? FeatureFlags.MULTITILE_NORTH : 0) |
+            ((query.minX() < west) ? FeatureFlags.MULTITILE_WEST : 0);
+         */
+
+        Matcher matcher = query.matcher();
+        RTreeQueryTask task = null;
+
+        int types = query.types();
+        if ((types & NODES) != 0)
+        {
+            task = searchNodeRTree(pTile + 8, matcher, task, fork);
+        }
+        if ((types & NONAREA_WAYS) != 0)
+        {
+            task = searchRTree(pTile + 12, matcher, task, fork);
+        }
+        if ((types & AREAS) != 0)
         {
-            FeatureStore store = query.store();
-            buf = store.bufferOfPage(tilePage);
-            int pTile = store.offsetOfPage(tilePage);
+            task = searchRTree(pTile + 16, matcher, task, fork);
+        }
+        if ((types & NONAREA_RELATIONS) != 0)
+        {
+            task = searchRTree(pTile + 20, matcher, task, fork);
+        }
 
-            /*
-            // TODO: could calculate these without branching:
-            //  north - maxY, shift sign bit to flag
-            int north = Tile.topY(tile);
-            int west = Tile.leftX(tile);
-            bboxFlags = ((query.maxY() > north) ? FeatureFlags.MULTITILE_NORTH : 0) |
-                ((query.minX() < west) ? FeatureFlags.MULTITILE_WEST : 0);
-             */
+        QueryResults res = QueryResults.EMPTY;
+        while (task != null)
+        {
+            res = QueryResults.merge(res, task.join());
+            task = task.next;
+        }
+        return res;
+    }
 
-            Matcher matcher = query.matcher();
-            RTreeQueryTask task = null;
+    /**
+     * Searches the tile on the calling thread (for queries that touch
+     * only a few tiles). As for a tile searched by the executor, an
+     * error is reported to the query, which throws it once the results
+     * of the other tiles have been consumed.
+     *
+     * @return the results of the search (empty if the search failed)
+     */
+    QueryResults searchInline()
+    {
+        try
+        {
+            return search(false);
+        }
+        catch(Throwable ex)
+        {
+            query.setError(ex);
+            return QueryResults.EMPTY;
+        }
+    }
 
-            int types = query.types();
-            if ((types & NODES) != 0)
-            {
-                task = searchNodeRTree(pTile + 8, matcher, task);
-            }
-            if ((types & NONAREA_WAYS) != 0)
-            {
-                task = searchRTree(pTile + 12, matcher, task);
-            }
-            if ((types & AREAS) != 0)
-            {
-                task = searchRTree(pTile + 16, matcher, task);
-            }
-            if ((types & NONAREA_RELATIONS) != 0)
-            {
-                task = searchRTree(pTile + 20, matcher, task);
-            }
+    @Override protected boolean exec()
+    {
+        // System.out.format("Searching tile at page %d\n", tilePage);
 
-            QueryResults res = QueryResults.EMPTY;
-            while (task != null)
+        try
+        {
+            results = query.isCancelled() ? QueryResults.EMPTY : search(true);
+            Aggregator<Object> aggregator = query.aggregator();
+            if(aggregator != null)
             {
-                res = QueryResults.merge(res, task.join());
-                task = task.next;
+                // Reduce the results of this tile to a partial aggregate;
+                // the raw results are no longer needed
+                partial = aggregator.newPartial();
+                aggregator.addAll(partial, query.store(), results);
+                results = QueryResults.EMPTY;
             }
-            results = res;
         }
         catch(Throwable ex)
         {
@@ -133,9 +193,37 @@ public class TileQueryTask extends QueryTask
         }
         tilesProcessed = 1;
         query.put(this);
+        query.taskCompleted();
         return true;
     }
 
+    /**
+     * Called instead of running the task if the executor has been shut
+     * down. Delivers the task without results, and reports the error
+     * to the query.
+     *
+     * @param ex    the exception thrown by the executor
+     */
+    void rejected(RejectedExecutionException ex)
+    {
+        query.setError(ex);
+        results = QueryResults.EMPTY;
+        tilesProcessed = 1;
+        query.put(this);
+        query.taskRejected();
+    }
+
+    /**
+     * Returns the partial aggregate of this tile, if the query
+     * performs aggregation.
+     *
+     * @return the partial result, or `null`
+     */
+    Object partial()
+    {
+        return partial;
+    }
+
     public int tilesProcessed()
     {
         return tilesProcessed;
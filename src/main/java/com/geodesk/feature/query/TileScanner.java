@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.FeatureFlags;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.geom.Box;
+
+import java.nio.ByteBuffer;
+
+import static com.geodesk.feature.match.TypeBits.*;
+
+/**
+ * A utility that visits every feature stored in a tile (or in all tiles
+ * of a FeatureStore), without applying any spatial or tag-based criteria.
+ * Unlike a Query, the scan runs on the calling thread; it is meant for
+ * tools that build auxiliary indexes.
+ *
+ * By default, features that span multiple tiles are only reported once
+ * (for the tile in which they have neither the MULTITILE_NORTH nor the
+ * MULTITILE_WEST flag set).
+ */
+public class TileScanner
+{
+    public interface TileVisitor
+    {
+        void visitTile(int tip, int tilePage);
+    }
+
+    public interface FeatureVisitor
+    {
+        /**
+         * Called for each feature in a tile.
+         *
+         * @param buf       the Buffer of the feature
+         * @param pFeature  the anchor position of the feature in the Buffer
+         */
+        void visitFeature(ByteBuffer buf, int pFeature);
+    }
+
+    /**
+     * Calls the given visitor for every tile that is present in the
+     * FeatureStore.
+     *
+     * @param store     the FeatureStore
+     * @param visitor   the visitor
+     */
+    public static void forEachTile(FeatureStore store, TileVisitor visitor)
+    {
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(Box.ofWorld());
+        do
+        {
+            int entry = store.tileIndexEntry(walker.tip());
+            if(FeatureStore.isTileLoadedAndcurrent(entry))
+            {
+                visitor.visitTile(walker.tip(), FeatureStore.pageFromEntry(entry));
+            }
+            else
+            {
+                walker.skipChildren();
+            }
+        }
+        while(walker.next());
+    }
+
+    /**
+     * Calls the given visitor for every feature of the requested types
+     * stored in the tile at the given page.
+     *
+     * @param store     the FeatureStore
+     * @param tilePage  the page of the tile
+     * @param types     the types of features to visit (see {@link com.geodesk.feature.match.TypeBits})
+     * @param visitor   the visitor
+     */
+    public static void scanTile(FeatureStore store, int tilePage, int types, FeatureVisitor visitor)
+    {
+        scanTile(store, tilePage, types, false, visitor);
+    }
+
+    /**
+     * Calls the given visitor for every feature of the requested types
+     * stored in the tile at the given page.
+     *
+     * @param store     the FeatureStore
+     * @param tilePage  the page of the tile
+     * @param types     the types of features to visit (see {@link com.geodesk.feature.match.TypeBits})
+     * @param allCopies `true` to visit features that span multiple tiles
+     *                  in every tile in which they are stored
+     * @param visitor   the visitor
+     */
+    public static void scanTile(FeatureStore store, int tilePage, int types,
+        boolean allCopies, FeatureVisitor visitor)
+    {
+        ByteBuffer buf = store.bufferOfPage(tilePage);
+        int pTile = store.offsetOfPage(tilePage);
+        int skipFlags = allCopies ? 0 : FeatureFlags.MULTITILE_FLAGS;
+        if ((types & NODES) != 0) scanIndex(buf, pTile + 8, true, skipFlags, visitor);
+        if ((types & NONAREA_WAYS) != 0) scanIndex(buf, pTile + 12, false, skipFlags, visitor);
+        if ((types & AREAS) != 0) scanIndex(buf, pTile + 16, false, skipFlags, visitor);
+        if ((types & NONAREA_RELATIONS) != 0) scanIndex(buf, pTile + 20, false, skipFlags, visitor);
+    }
+
+    private static void scanIndex(ByteBuffer buf, int ppTree, boolean nodes,
+        int skipFlags, FeatureVisitor visitor)
+    {
+        int p = buf.getInt(ppTree);
+        if(p == 0) return;
+        p = ppTree + p;
+        for(;;)
+        {
+            int ptr = buf.getInt(p);
+            int last = ptr & 1;
+            scanTrunk(buf, p + (ptr & 0xffff_fffc), nodes, skipFlags, visitor);
+            if(last != 0) break;
+            p += 8;
+        }
+    }
+
+    private static void scanTrunk(ByteBuffer buf, int p, boolean nodes,
+        int skipFlags, FeatureVisitor visitor)
+    {
+        for (; ; )
+        {
+            int ptr = buf.getInt(p);
+            int last = ptr & 1;
+            if ((ptr & 2) != 0)
+            {
+                if(nodes)
+                {
+                    scanNodeLeaf(buf, p + (ptr ^ 2 ^ last), visitor);
+                }
+                else
+                {
+                    scanLeaf(buf, p + (ptr ^ 2 ^ last), skipFlags, visitor);
+                }
+            }
+            else
+            {
+                scanTrunk(buf, p + (ptr ^ last), nodes, skipFlags, visitor);
+            }
+            if (last != 0) break;
+            p += 20;
+        }
+    }
+
+    private static void scanLeaf(ByteBuffer buf, int p, int skipFlags, FeatureVisitor visitor)
+    {
+        for(;;)
+        {
+            int flags = buf.getInt(p + 16);
+            if((flags & skipFlags) == 0)
+            {
+                visitor.visitFeature(buf, p + 16);
+            }
+            if((flags & 1) != 0) break;
+            p += 32;
+        }
+    }
+
+    private static void scanNodeLeaf(ByteBuffer buf, int p, FeatureVisitor visitor)
+    {
+        for(;;)
+        {
+            int flags = buf.getInt(p + 8);
+            visitor.visitFeature(buf, p + 8);
+            if((flags & 1) != 0) break;
+            p += 20 + (flags & 4);
+        }
+    }
+}
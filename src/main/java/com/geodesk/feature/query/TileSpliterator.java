@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator that traverses the features of a WorldView. The tiles
+ * to be searched are collected up front; splitting divides the remaining
+ * range of tiles in half, so each portion of a (parallel) stream searches
+ * whole tiles on its own thread, rather than handing off tiles to the
+ * FeatureStore's executor.
+ */
+class TileSpliterator implements Spliterator<Feature>
+{
+    private final Query query;
+    private final TileList tiles;
+    private int start;
+    private final int end;
+    private QueryResults currentResults = QueryResults.EMPTY;
+    private int currentPos;
+
+    /**
+     * Rough estimate of the number of features per tile, used to
+     * report an estimated size.
+     */
+    private static final int ESTIMATED_FEATURES_PER_TILE = 256;
+
+    TileSpliterator(WorldView view)
+    {
+        this.query = new Query(view, false);
+        this.tiles = TileList.collect(query, view.filter);
+        if(view.diskOrder) tiles.sortByPage(0);
+        this.end = tiles.size;
+    }
+
+    private TileSpliterator(TileSpliterator parent, int start, int end)
+    {
+        this.query = parent.query;
+        this.tiles = parent.tiles;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Searches the next tile (on the current thread).
+     *
+     * @return `false` if there are no more tiles
+     */
+    private boolean searchNextTile()
+    {
+        if(start >= end) return false;
+        int n = start++;
+        currentResults = new TileQueryTask(query, tiles.pages[n],
+            tiles.northwestFlags[n], tiles.filters[n]).search(false);
+        currentPos = 0;
+        RuntimeException error = query.error();
+        if(error != null) throw error;
+        return true;
+    }
+
+    @Override public boolean tryAdvance(Consumer<? super Feature> action)
+    {
+        while(currentPos >= currentResults.size)
+        {
+            if(currentResults.next != null)
+            {
+                currentResults = currentResults.next;
+                currentPos = 0;
+                continue;
+            }
+            if(!searchNextTile()) return false;
+        }
+        action.accept(Query.feature(query.store(), currentResults, currentPos++));
+        return true;
+    }
+
+    @Override public void forEachRemaining(Consumer<? super Feature> action)
+    {
+        do
+        {
+            QueryResults res = currentResults;
+            int pos = currentPos;
+            while(res != null)
+            {
+                for(; pos < res.size; pos++)
+                {
+                    action.accept(Query.feature(query.store(), res, pos));
+                }
+                res = res.next;
+                pos = 0;
+            }
+            currentResults = QueryResults.EMPTY;
+            currentPos = 0;
+        }
+        while(searchNextTile());
+    }
+
+    @Override public Spliterator<Feature> trySplit()
+    {
+        int remaining = end - start;
+        if(remaining < 2) return null;
+        int mid = start + remaining / 2;
+        TileSpliterator prefix = new TileSpliterator(this, start, mid);
+        start = mid;
+        return prefix;
+    }
+
+    @Override public long estimateSize()
+    {
+        return (long)(end - start) * ESTIMATED_FEATURES_PER_TILE + currentResults.size;
+    }
+
+    @Override public int characteristics()
+    {
+        return DISTINCT | NONNULL | IMMUTABLE;
+    }
+}
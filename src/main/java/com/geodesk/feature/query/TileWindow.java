@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.QueryExecutor;
+
+/**
+ * The number of tiles that a Query keeps in flight. The window adapts to
+ * the relative speed of the workers and the consumer of the results:
+ * If the consumer has to wait, the workers aren't keeping up and the
+ * window grows; if completed tiles are piling up, the consumer is the
+ * bottleneck and the window shrinks. In addition, the window is capped
+ * so that the pending tiles don't buffer more than roughly
+ * {@link #MAX_BUFFERED_RESULTS} features, based on the average number
+ * of results per tile.
+ *
+ * The window is never larger than its maximum, which also bounds the
+ * number of completed tiles that can be waiting for the consumer.
+ */
+class TileWindow
+{
+    private final int max;
+    private int size;
+    private double avgResultsPerTile;
+
+    /**
+     * The smallest number of tiles a query keeps in flight.
+     */
+    static final int MIN = 2;
+
+    /**
+     * Queries that touch at most this many tiles are executed
+     * synchronously on the calling thread.
+     */
+    static final int MAX_INLINE_TILES = 4;
+
+    /**
+     * The approximate number of results (across all pending tiles)
+     * we're willing to buffer before shrinking the window.
+     */
+    static final int MAX_BUFFERED_RESULTS = 1 << 16;
+
+    /**
+     * Creates a window that starts out at half its maximum size.
+     *
+     * @param maxPendingTiles   the maximum number of tiles in flight
+     *                          (at least {@link #MIN})
+     */
+    TileWindow(int maxPendingTiles)
+    {
+        max = Math.max(maxPendingTiles, MIN);
+        size = Math.max(max / 2, MIN);
+    }
+
+    /**
+     * Returns the maximum size of the window.
+     */
+    int max()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the current size of the window.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the largest number of tiles that a query may touch in order
+     * to be executed on the calling thread (always less than the maximum
+     * window, so a query that is limited to a single pending tile never
+     * runs inline).
+     */
+    int inlineLimit()
+    {
+        return Math.min(MAX_INLINE_TILES, max - 1);
+    }
+
+    /**
+     * Returns the number of tiles a query should keep in flight.
+     * Batch queries yield to interactive queries by limiting themselves
+     * to a single pending tile while interactive work is in progress.
+     *
+     * @param interactive   `true` if the query has interactive priority
+     * @param executor      the executor that runs the query's tiles
+     */
+    int limit(boolean interactive, QueryExecutor executor)
+    {
+        if(!interactive && executor.isInteractiveBusy()) return 1;
+        return size;
+    }
+
+    /**
+     * Called when the consumer had to wait for a tile.
+     */
+    void consumerWaited()
+    {
+        size = Math.min(size * 2, max);
+    }
+
+    /**
+     * Called when further completed tiles were ready when the consumer
+     * took one.
+     */
+    void tilesPiledUp()
+    {
+        size = Math.max(size - 1, MIN);
+    }
+
+    /**
+     * Called for each tile the consumer takes, with the number of
+     * results the tile produced.
+     */
+    void tileCompleted(int resultCount)
+    {
+        avgResultsPerTile = avgResultsPerTile * 0.75 + resultCount * 0.25;
+        int cap = (int)Math.min(MAX_BUFFERED_RESULTS / Math.max(avgResultsPerTile, 1), max);
+        size = Math.min(size, Math.max(cap, MIN));
+    }
+}
@@ -15,6 +15,7 @@ import com.geodesk.feature.match.*;
 import com.geodesk.feature.store.*;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /// @hidden
 public abstract class View implements Features
@@ -54,10 +55,15 @@ public abstract class View implements Features
     /// @hidden
     protected Features select(int newTypes, String query)
     {
-        Matcher newMatcher = store.getMatcher(query);
+        return select(newTypes, store.getMatcher(query));
+    }
+
+    /// @hidden
+    protected Features select(int newTypes, Matcher newMatcher)
+    {
         if (matcher != Matcher.ALL)
         {
-            newMatcher = new AndMatcher(matcher, newMatcher);
+            newMatcher = store.andMatcher(matcher, newMatcher);
         }
         newTypes &= types & newMatcher.acceptedTypes();
         if (newTypes == 0) return EmptyView.ANY;
@@ -173,6 +179,16 @@ public abstract class View implements Features
         return EmptyView.ANY;
     }
 
+    @Override public List<Feature> nearestTo(int x, int y, int k)
+    {
+        return NearestQuery.nearest(this, x, y, k);
+    }
+
+    @Override public List<Feature> nearestTo(Feature feature, int k)
+    {
+        return NearestQuery.nearest(this, feature, k);
+    }
+
     @Override public Features select(Features otherFeatures)
     {
         // TODO: This assumes both views are WorldViews (which is wrong)
@@ -190,7 +206,7 @@ public abstract class View implements Features
         {
             if(newMatcher != Matcher.ALL)
             {
-                newMatcher = new AndMatcher(matcher, newMatcher);
+                newMatcher = store.andMatcher(matcher, newMatcher);
             }
             else
             {
@@ -12,13 +12,22 @@ import com.geodesk.feature.*;
 import com.geodesk.feature.filter.AndFilter;
 import com.geodesk.feature.filter.FalseFilter;
 import com.geodesk.feature.filter.FilterStrategy;
+import com.geodesk.feature.filter.IdFilter;
+import com.geodesk.feature.filter.TextFilter;
 import com.geodesk.feature.match.Matcher;
+import com.geodesk.feature.match.MatcherSet;
 import com.geodesk.feature.match.TypeBits;
 import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.IdIndex;
 import com.geodesk.feature.store.StoredFeature;
+import com.geodesk.feature.store.TextIndex;
 import com.geodesk.geom.Bounds;
 
-import java.util.Iterator;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // TODO: do we need to create a defensive copy of the bbox?
 //  --> need to resolve mutability of Box
@@ -44,6 +53,13 @@ public class WorldView extends View
     /// @hidden
     protected final Bounds bounds;
 
+    /// @hidden
+    protected final long timeout;     // in nanoseconds, 0 = no timeout
+    /// @hidden
+    protected final QueryPriority priority;
+    /// @hidden
+    protected final boolean diskOrder;
+
     /// @hidden
     protected final static Box WORLD = Box.ofWorld();
 
@@ -51,23 +67,56 @@ public class WorldView extends View
     {
         super(store, TypeBits.ALL, Matcher.ALL, null);
         this.bounds = WORLD;
+        this.timeout = 0;
+        this.priority = QueryPriority.INTERACTIVE;
+        this.diskOrder = false;
     }
     public WorldView(FeatureStore store, int types, Bounds bounds, Matcher matcher, Filter filter)
+    {
+        this(store, types, bounds, matcher, filter, 0, QueryPriority.INTERACTIVE, false);
+    }
+
+    /// @hidden
+    protected WorldView(FeatureStore store, int types, Bounds bounds, Matcher matcher,
+        Filter filter, long timeout, QueryPriority priority, boolean diskOrder)
     {
         super(store, types, matcher, filter);
         this.bounds = bounds;
+        this.timeout = timeout;
+        this.priority = priority;
+        this.diskOrder = diskOrder;
     }
 
     /// @hidden
     @Override protected Features newWith(int types, Matcher matcher, Filter filter)
     {
-        return new WorldView(store, types, bounds, matcher, filter);
+        return new WorldView(store, types, bounds, matcher, filter, timeout, priority, diskOrder);
     }
 
     private WorldView(WorldView other, Bounds bounds)
     {
         super(other.store, other.types, other.matcher, other.filter);
         this.bounds = bounds;           // TODO: intersect bbox
+        this.timeout = other.timeout;
+        this.priority = other.priority;
+        this.diskOrder = other.diskOrder;
+    }
+
+    @Override public Features withTimeout(Duration timeout)
+    {
+        long nanos = timeout.toNanos();
+        if(nanos <= 0) throw new IllegalArgumentException("Timeout must be positive");
+        return new WorldView(store, types, bounds, matcher, filter, nanos, priority, diskOrder);
+    }
+
+    @Override public Features withPriority(QueryPriority priority)
+    {
+        return new WorldView(store, types, bounds, matcher, filter, timeout, priority, diskOrder);
+    }
+
+    @Override public Features withDiskOrder()
+    {
+        return new WorldView(store, types, bounds, matcher, filter, timeout, priority, true);
     }
 
     @Override public Features in(Bounds bbox)
@@ -121,11 +170,185 @@ public class WorldView extends View
         Bounds filterBounds = filter.bounds();
         // TODO: proper combining of bboxes
         return new WorldView(store, types, filterBounds != null ? filterBounds : bounds,
-            matcher, filter);
+            matcher, filter, timeout, priority, diskOrder);
+    }
+
+    @Override public List<Feature> nearestTo(int x, int y, int k)
+    {
+        NearestQuery.checkCount(k);
+        return new NearestQuery(this, x, y).find(k);
+    }
+
+    @Override public List<Feature> nearestTo(Feature feature, int k)
+    {
+        NearestQuery.checkCount(k);
+        return new NearestQuery(this, feature).find(k);
     }
 
     @Override public Iterator<Feature> iterator()
     {
-        return new Query(this);
+        Iterator<Feature> iter = indexedIterator();
+        return iter != null ? iter : new Query(this);
+    }
+
+    /// Returns an Iterator that retrieves the features of this view via
+    /// a sidecar index (the ID index or the text index), or `null` if the
+    /// features have to be found by a Query.
+    ///
+    private Iterator<Feature> indexedIterator()
+    {
+        if(filter instanceof IdFilter idFilter)
+        {
+            IdIndex index = store.idIndex();
+            if(index != null) return lookupById(index, idFilter.id());
+            return null;
+        }
+        TextFilter textFilter = textFilter(filter);
+        if(textFilter != null)
+        {
+            TextIndex index = store.textIndex();
+            if(index != null) return TextQuery.create(this, index, textFilter.tokens());
+        }
+        return null;
+    }
+
+    private static TextFilter textFilter(Filter filter)
+    {
+        if(filter instanceof TextFilter textFilter) return textFilter;
+        if(filter instanceof AndFilter and)
+        {
+            TextFilter textFilter = textFilter(and.left());
+            return textFilter != null ? textFilter : textFilter(and.right());
+        }
+        return null;
+    }
+
+    @Override public Feature first()
+    {
+        Iterator<Feature> iter = iterator();
+        if(!(iter instanceof Query query)) return iter.hasNext() ? iter.next() : null;
+        if(!query.hasNext()) return null;
+        // Stop searching the remaining tiles
+        return query.nextAndClose();
+    }
+
+    @Override public long count()
+    {
+        return aggregate(Aggregator.COUNT)[0];
+    }
+
+    @Override public double sumLength()
+    {
+        return aggregate(Aggregator.LENGTH)[0];
+    }
+
+    @Override public double sumArea()
+    {
+        return aggregate(Aggregator.AREA)[0];
+    }
+
+    @Override public Grouping groupBy(String key)
+    {
+        return () -> aggregate(Aggregator.groupCount(key));
+    }
+
+    @Override public void classify(BiConsumer<Feature,BitSet> action, String... queries)
+    {
+        // The MatcherSet selects the tiles that may contain features that
+        // match any of the queries; the Query then evaluates the set only
+        // once for each candidate and hands us the resulting bits
+        MatcherSet set = store.getMatcherSet(queries);
+        long[] bits = new long[(set.size() + 63) >> 6];
+        Iterator<Feature> iter = indexedIterator();
+        if(iter != null)
+        {
+            while(iter.hasNext())
+            {
+                StoredFeature f = (StoredFeature)iter.next();
+                if(set.match(f.buffer(), f.pointer(), bits) > 0)
+                {
+                    action.accept(f, BitSet.valueOf(bits));
+                }
+            }
+            return;
+        }
+        if(!(select(TypeBits.ALL, set) instanceof WorldView candidates)) return;
+        Query query = new Query(candidates, set, matcher);
+        while(query.hasNext())
+        {
+            query.nextMatches(bits);
+            action.accept(query.next(), BitSet.valueOf(bits));
+        }
+    }
+
+    private <A> A aggregate(Aggregator<A> aggregator)
+    {
+        Iterator<Feature> iter = indexedIterator();
+        if(iter != null)
+        {
+            // Index lookups return relatively few features,
+            // aggregate them directly
+            A result = aggregator.newPartial();
+            while(iter.hasNext()) aggregator.add(result, (StoredFeature)iter.next());
+            return result;
+        }
+        return new Query(this, false).aggregate(filter, aggregator);
+    }
+
+    @Override public Stream<Feature> stream()
+    {
+        return pooled(StreamSupport.stream(spliterator(), false));
+    }
+
+    @Override public Stream<Feature> parallelStream()
+    {
+        return pooled(StreamSupport.stream(spliterator(), true));
+    }
+
+    /// Ensures that the terminal operation of a parallel stream runs in
+    /// the store's executor rather than in the common pool.
+    ///
+    private Stream<Feature> pooled(Stream<Feature> stream)
+    {
+        return PooledStream.wrap(store, stream);
+    }
+
+    @Override public Spliterator<Feature> spliterator()
+    {
+        // Index lookups yield relatively few features, there is
+        // little to be gained by splitting them
+        Iterator<Feature> iter = indexedIterator();
+        if(iter != null)
+        {
+            return Spliterators.spliteratorUnknownSize(iter,
+                Spliterator.DISTINCT | Spliterator.NONNULL);
+        }
+        return new TileSpliterator(this);
+    }
+
+    /// Uses the ID index to find the feature(s) with the given ID,
+    /// instead of scanning all tiles. Returns `null` if the tile that
+    /// holds the indexed copy of a feature is missing (as in a partial
+    /// GOL), since another tile may still contain the feature.
+    ///
+    private Iterator<Feature> lookupById(IdIndex index, long id)
+    {
+        List<Feature> results = new ArrayList<>(1);
+        if(!lookupById(index, 0, TypeBits.NODES, id, results)) return null;
+        if(!lookupById(index, 1, TypeBits.WAYS, id, results)) return null;
+        if(!lookupById(index, 2, TypeBits.RELATIONS, id, results)) return null;
+        return results.iterator();
+    }
+
+    private boolean lookupById(IdIndex index, int typeCode, int typeBits, long id,
+        List<Feature> results)
+    {
+        if((types & typeBits) == 0) return true;
+        long ref = index.find(typeCode, id);
+        if(ref < 0) return true;
+        StoredFeature feature = store.getFeatureInTile((int)(ref >>> 32), (int)ref);
+        if(feature == null) return false;
+        if(contains(feature)) results.add(feature);
+        return true;
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.clarisma.common.store.StoreException;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A record of the tiles that queries have searched, which is saved
+ * alongside the GOL so that a FeatureStore that is opened later (e.g.
+ * after a restart) can read the "hot" tiles into memory before it
+ * serves queries. As with the other sidecar files, a profile is only
+ * used if its fingerprint matches the tile index of the GOL.
+ *
+ * File layout (little-endian):
+ *
+ * <pre>
+ *   0   int     magic
+ *   4   int     version
+ *   8   long    fingerprint of the GOL's tile index
+ *   16  int     number of pages
+ *   20  int[]   the pages of the tiles, most frequently searched first
+ * </pre>
+ */
+public class AccessProfile
+{
+    private final MutableIntIntMap counts = new IntIntHashMap();
+
+    public static final int MAGIC = 0x0A1C0F11;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Notes that a query has searched the tile at the given page.
+     *
+     * @param page  the page of the tile
+     */
+    public synchronized void record(int page)
+    {
+        counts.addToValue(page, 1);
+    }
+
+    /**
+     * Returns the pages of the recorded tiles, ordered by descending
+     * number of accesses.
+     */
+    public synchronized int[] pages()
+    {
+        long[] entries = new long[counts.size()];
+        int[] n = new int[1];
+        counts.forEachKeyValue((page, count) ->
+            entries[n[0]++] = ((long)-count << 32) | page);
+        Arrays.sort(entries);
+        int[] pages = new int[entries.length];
+        for(int i=0; i<entries.length; i++) pages[i] = (int)entries[i];
+        return pages;
+    }
+
+    /**
+     * Writes the recorded tiles to the given file.
+     *
+     * @param path          the path of the profile
+     * @param fingerprint   the fingerprint of the GOL's tile index
+     */
+    public void save(Path path, long fingerprint)
+    {
+        int[] pages = pages();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + pages.length * 4)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putLong(fingerprint);
+        buf.putInt(pages.length);
+        for(int page: pages) buf.putInt(page);
+        buf.flip();
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try
+        {
+            try(FileChannel out = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING))
+            {
+                while(buf.hasRemaining()) out.write(buf);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException ex)
+        {
+            throw new StoreException("Failed to write access profile", path, ex);
+        }
+    }
+
+    /**
+     * Reads the tile pages of a saved profile.
+     *
+     * @param path          the path of the profile
+     * @param fingerprint   the fingerprint of the GOL's tile index
+     * @return the pages (most frequently searched first), or `null` if
+     *         the file does not exist or belongs to a different version
+     *         of the GOL
+     */
+    public static int[] load(Path path, long fingerprint)
+    {
+        if(!Files.exists(path)) return null;
+        ByteBuffer buf;
+        try
+        {
+            buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch(IOException ex)
+        {
+            throw new StoreException("Failed to read access profile", path, ex);
+        }
+        if(buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC ||
+            buf.getInt(4) != VERSION || buf.getLong(8) != fingerprint)
+        {
+            return null;
+        }
+        int count = buf.getInt(16);
+        if(count < 0 || HEADER_SIZE + (long)count * 4 > buf.capacity()) return null;
+        int[] pages = new int[count];
+        buf.position(HEADER_SIZE).asIntBuffer().get(pages);
+        return pages;
+    }
+}
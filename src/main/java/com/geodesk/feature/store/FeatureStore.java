@@ -7,10 +7,11 @@
 
 package com.geodesk.feature.store;
 
-import com.clarisma.common.pbf.PbfDecoder;
 import com.clarisma.common.store.FreeStore;
 import com.geodesk.feature.match.Matcher;
 import com.geodesk.feature.match.MatcherCompiler;
+import com.geodesk.feature.match.MatcherSet;
+import com.geodesk.geom.Bounds;
 import org.eclipse.collections.api.map.primitive.IntIntMap;
 import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
 import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
@@ -21,11 +22,13 @@ import org.locationtech.jts.geom.GeometryFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FeatureStore extends FreeStore
 {
@@ -40,28 +43,37 @@ public class FeatureStore extends FreeStore
     }
 
     /**
-     * A mapping of strings to their string-table code.
-     * TODO: Currently, empty string is *not* in this map (since 0 means
-     *  "this key is not a global string"); should we revise this definition?
-     *
-     *  TODO: No need to index more than 8K strings; we only look up keys,
-     *   and key-codes cannot be > 8 K
-     *    No! Query Compiler needs to look up values as well
-     */
-    private ObjectIntMap<String> stringsToCodes;
-    /**
-     * The global string table. Entry 0 is always an empty string ("")
+     * The global string table, decoded on demand. Entry 0 is always an
+     * empty string ("")
      */
-    private String[] codesToStrings;
+    private StringTable strings;
     /**
      * A mapping of indexed keys (global-string code) to their index category
      * (1-based; range 1 to 30)
      */
     private IntIntMap keysToCategories;
-    private ExecutorService executor;
+    private volatile QueryExecutor executor;
+    private boolean ownsExecutor;
+    private volatile TaskLimiter tileLimiter;
+    private int parallelism;
+    private volatile boolean prefetching;
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final Object taskLock = new Object();
     private MatcherCompiler matchers;
     private GeometryFactory geometryFactory;
     private int maxPendingTiles;
+    /**
+     * The sidecar indexes are opened lazily; each is published by the
+     * volatile write of its "checked" flag, so lookups don't need to
+     * synchronize once the index has been opened.
+     */
+    private IdIndex idIndex;
+    private volatile boolean idIndexChecked;
+    private TagIndex tagIndex;
+    private volatile boolean tagIndexChecked;
+    private TextIndex textIndex;
+    private volatile boolean textIndexChecked;
+    private volatile AccessProfile accessProfile;   // null unless recording
 
     public static final int MAGIC = 0x1CE50D6E;  // "geodesic"
     public static final int VERSION = 1_000_000;
@@ -126,26 +138,7 @@ public class FeatureStore extends FreeStore
 
     private void readStringTable()
     {
-        int p = baseMapping.getInt(STRING_TABLE_PTR_OFS);
-        int count = baseMapping.getInt(p) & 0xffff;
-        PbfDecoder reader = new PbfDecoder(baseMapping, p+2);
-        codesToStrings = new String[count];
-
-        // TODO: does this make sense? Doesn't the map already have a load factor?
-        //  (But higher capacity may reduce hash collisions and make lookup more efficient)
-        MutableObjectIntMap<String> stringMap =
-            new ObjectIntHashMap<>(count + (count >> 1));
-
-        // TODO: only index first 8K strings
-        //  No! Query Compiler needs to look up values as well
-
-        for (int i = 0; i < count; i++)
-        {
-            String s = reader.readString();
-            codesToStrings[i] = s;
-            stringMap.put(s, i);
-        }
-        stringsToCodes = stringMap;
+        strings = new StringTable(baseMapping, baseMapping.getInt(STRING_TABLE_PTR_OFS));
     }
 
     private void readIndexSchema()
@@ -166,19 +159,454 @@ public class FeatureStore extends FreeStore
     {
         // TODO: guard against multiple calls?
         //  But no longer called outside this class
-        matchers = new MatcherCompiler(stringsToCodes, codesToStrings, keysToCategories);
-        executor = new ForkJoinPool();// TODO: ability to set parallelism
-        maxPendingTiles = Runtime.getRuntime().availableProcessors() * 2;
+        // The parser expects 0 for strings that aren't in the table
+        // (this is also the code of the empty string)
+        matchers = new MatcherCompiler(s -> Math.max(strings.code(s), 0),
+            strings::get, strings::fingerprint, keysToCategories,
+            MatcherCompiler.DEFAULT_CACHE_SIZE);
+        parallelism = Runtime.getRuntime().availableProcessors();
+        maxPendingTiles = parallelism * 2;
         geometryFactory = new GeometryFactory(); // TODO
     }
 
-    public ExecutorService executor()
+    /**
+     * Returns the executor that runs the tile tasks of queries. Unless
+     * a shared executor has been set via {@link #setExecutor(QueryExecutor)},
+     * the FeatureStore creates its own on first use.
+     *
+     * @return the QueryExecutor
+     */
+    public QueryExecutor executor()
+    {
+        QueryExecutor e = executor;
+        if(e != null) return e;
+        synchronized (taskLock)
+        {
+            if(executor == null)
+            {
+                QueryExecutor newExecutor = new QueryExecutor(parallelism);
+                // Publish the limiter before the executor
+                tileLimiter = new TaskLimiter(newExecutor.pool(), parallelism);
+                ownsExecutor = true;
+                executor = newExecutor;
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Sets a (possibly shared) executor that runs the tile tasks of
+     * queries. The FeatureStore will not shut down the executor when it
+     * is closed. This method must be called before the first query is
+     * executed.
+     *
+     * @param executor  the QueryExecutor
+     * @throws IllegalStateException if queries have already been executed
+     */
+    public void setExecutor(QueryExecutor executor)
+    {
+        synchronized (taskLock)
+        {
+            if(this.executor != null)
+            {
+                throw new IllegalStateException("Executor is already in use");
+            }
+            ownsExecutor = false;
+            parallelism = Math.min(parallelism, executor.parallelism());
+            maxPendingTiles = parallelism * 2;
+            tileLimiter = new TaskLimiter(executor.pool(), parallelism);
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Limits the number of cores used by the queries of this FeatureStore.
+     * If the FeatureStore creates its own executor, the executor uses the
+     * given number of worker threads. If the executor is shared, no more
+     * than `parallelism` tiles of this store's queries are searched at
+     * the same time, regardless of the number of queries (the limit can
+     * be changed while queries are running). In any case, each query
+     * keeps at most `2 * parallelism` tiles in flight.
+     *
+     * @param parallelism   the maximum number of cores (at least 1)
+     */
+    public void setParallelism(int parallelism)
+    {
+        if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        synchronized (taskLock)
+        {
+            if(executor != null && ownsExecutor)
+            {
+                throw new IllegalStateException("Executor is already in use");
+            }
+            this.parallelism = parallelism;
+            maxPendingTiles = parallelism * 2;
+            if(tileLimiter != null) tileLimiter.setLimit(parallelism);
+        }
+    }
+
+    /**
+     * Returns the TaskLimiter that enforces the parallelism of this
+     * FeatureStore; queries submit their tile tasks through it.
+     * Only valid once {@link #executor()} has been called.
+     *
+     * @return the TaskLimiter
+     */
+    public TaskLimiter tileLimiter()
+    {
+        return tileLimiter;
+    }
+
+    /**
+     * Must be called by a query before it submits a task to the executor.
+     */
+    public void taskStarted()
     {
-        return executor;
+        activeTasks.incrementAndGet();
+    }
+
+    /**
+     * Must be called once a task that was submitted to the executor
+     * no longer accesses the store.
+     */
+    public void taskCompleted()
+    {
+        if(activeTasks.decrementAndGet() == 0)
+        {
+            synchronized (taskLock)
+            {
+                taskLock.notifyAll();
+            }
+        }
     }
 
     public int maxPendingTiles() { return maxPendingTiles; }
 
+    /**
+     * Returns the number of tiles in the tile index, as recorded in
+     * the active snapshot (the highest valid TIP).
+     *
+     * @return the number of tiles
+     */
+    public int tileCount()
+    {
+        int pSnapshot = 128 + activeSnapshot() * 64;
+        return baseMapping.getInt(pSnapshot + SNAPSHOT_TILE_COUNT_OFS);
+    }
+
+    /**
+     * Returns a checksum of the tile index, which is used to determine
+     * whether a sidecar index (such as the {@link IdIndex}) is valid
+     * for the current contents of this FeatureStore.
+     *
+     * @return the fingerprint of the tile index
+     */
+    public long tileIndexFingerprint()
+    {
+        int tileCount = tileCount();
+        int len = Math.min((tileCount + 1) * 4, tileIndexBuf.capacity() - tileIndexOfs);
+        CRC32 crc = new CRC32();
+        crc.update(tileIndexBuf.duplicate().position(tileIndexOfs).limit(tileIndexOfs + len));
+        return ((long)tileCount << 32) | crc.getValue();
+    }
+
+    /**
+     * Returns the path of a file that accompanies the GOL, such as
+     * an auxiliary index. The file has the same name as the GOL, but
+     * with the given extension.
+     *
+     * @param extension     the file extension (e.g. ".idx")
+     * @return the path of the file
+     */
+    public Path sidecarPath(String extension)
+    {
+        String name = path().getFileName().toString();
+        int n = name.lastIndexOf('.');
+        if(n > 0) name = name.substring(0, n);
+        return path().resolveSibling(name + extension);
+    }
+
+    /**
+     * Returns the ID index of this FeatureStore, if one has been built
+     * for its current contents.
+     *
+     * @return the ID index, or `null`
+     */
+    public IdIndex idIndex()
+    {
+        if(idIndexChecked) return idIndex;
+        synchronized (this)
+        {
+            if(!idIndexChecked)
+            {
+                idIndex = IdIndex.open(sidecarPath(".idx"), tileIndexFingerprint());
+                idIndexChecked = true;
+            }
+            return idIndex;
+        }
+    }
+
+    /**
+     * Builds the ID index for this FeatureStore (replacing any existing
+     * index) and enables its use for lookups by ID.
+     */
+    public synchronized void buildIdIndex()
+    {
+        if(idIndex != null) idIndex.close();
+        idIndex = null;
+        IdIndex.build(this, sidecarPath(".idx"));
+        idIndexChecked = false;
+    }
+
+    /**
+     * Returns the tag index of this FeatureStore, if one has been built
+     * for its current contents.
+     *
+     * @return the tag index, or `null`
+     */
+    public TagIndex tagIndex()
+    {
+        if(tagIndexChecked) return tagIndex;
+        synchronized (this)
+        {
+            if(!tagIndexChecked)
+            {
+                tagIndex = TagIndex.open(sidecarPath(".tsi"), tileIndexFingerprint());
+                tagIndexChecked = true;
+            }
+            return tagIndex;
+        }
+    }
+
+    /**
+     * Builds the tag index for this FeatureStore (replacing any existing
+     * index) and enables its use by queries.
+     */
+    public synchronized void buildTagIndex()
+    {
+        if(tagIndex != null) tagIndex.close();
+        tagIndex = null;
+        TagIndex.build(this, sidecarPath(".tsi"));
+        tagIndexChecked = false;
+    }
+
+    /**
+     * Returns the text index of this FeatureStore, if one has been built
+     * for its current contents.
+     *
+     * @return the text index, or `null`
+     */
+    public TextIndex textIndex()
+    {
+        if(textIndexChecked) return textIndex;
+        synchronized (this)
+        {
+            if(!textIndexChecked)
+            {
+                textIndex = TextIndex.open(sidecarPath(".txi"), tileIndexFingerprint());
+                textIndexChecked = true;
+            }
+            return textIndex;
+        }
+    }
+
+    /**
+     * Builds the text index for this FeatureStore (replacing any existing
+     * index) and enables its use for text searches.
+     */
+    public synchronized void buildTextIndex()
+    {
+        if(textIndex != null) textIndex.close();
+        textIndex = null;
+        TextIndex.build(this, sidecarPath(".txi"));
+        textIndexChecked = false;
+    }
+
+    /**
+     * Starts recording the tiles searched by queries (replacing any
+     * profile that is currently being recorded).
+     */
+    public void startAccessProfile()
+    {
+        accessProfile = new AccessProfile();
+    }
+
+    /**
+     * Writes the tiles that have been recorded since
+     * {@link #startAccessProfile()} was called to a file alongside the
+     * GOL, so that {@link #warmUp()} can load them when the store is
+     * opened the next time. Recording continues afterwards.
+     */
+    public void saveAccessProfile()
+    {
+        AccessProfile profile = accessProfile;
+        if(profile == null) throw new IllegalStateException("Access profile is not being recorded");
+        profile.save(sidecarPath(".hot"), tileIndexFingerprint());
+    }
+
+    /**
+     * Stops recording the tiles searched by queries.
+     */
+    public void stopAccessProfile()
+    {
+        accessProfile = null;
+    }
+
+    /**
+     * Called by query tasks whenever they search a tile.
+     *
+     * @param page  the page of the tile
+     */
+    public void recordTileAccess(int page)
+    {
+        AccessProfile profile = accessProfile;
+        if(profile != null) profile.record(page);
+    }
+
+    /**
+     * Reads the tile index into memory and decodes the string table,
+     * then loads the tiles listed in the access profile (if one has
+     * been saved for the current contents of this FeatureStore).
+     *
+     * @return the number of tiles that have been loaded
+     */
+    public int warmUp()
+    {
+        warmUpIndexes();
+        int[] pages = AccessProfile.load(sidecarPath(".hot"), tileIndexFingerprint());
+        if(pages == null) return 0;
+        prefetchTiles(pages);
+        return pages.length;
+    }
+
+    /**
+     * Reads the tile index into memory and decodes the string table,
+     * then loads all tiles that intersect the given bounding box.
+     *
+     * @param bounds    the bounding box
+     * @return the number of tiles that have been loaded
+     */
+    public int warmUp(Bounds bounds)
+    {
+        warmUpIndexes();
+        TileIndexWalker walker = new TileIndexWalker(this);
+        walker.start(bounds);
+        int[] pages = new int[64];
+        int count = 0;
+        do
+        {
+            int entry = tileIndexEntry(walker.tip());
+            if((entry & 2) != 0)
+            {
+                if(count == pages.length) pages = Arrays.copyOf(pages, count * 2);
+                pages[count++] = entry >>> 2;
+            }
+            else
+            {
+                walker.skipChildren();
+            }
+        }
+        while(walker.next());
+        prefetchTiles(Arrays.copyOf(pages, count));
+        return count;
+    }
+
+    private void warmUpIndexes()
+    {
+        int pSnapshot = 128 + activeSnapshot() * 64;
+        prefetchBlob(baseMapping.getInt(pSnapshot + SNAPSHOT_TILE_INDEX_OFS));
+        for(int i=0; i<strings.size(); i++) strings.get(i);
+    }
+
+    /**
+     * Reads the given tiles into memory (in the order in which they are
+     * stored) using the executor's I/O threads, and waits until all
+     * of them have been loaded.
+     */
+    private void prefetchTiles(int[] pages)
+    {
+        pages = pages.clone();
+        Arrays.sort(pages);
+        CountDownLatch latch = new CountDownLatch(pages.length);
+        for(int page: pages) prefetchTile(page, latch);
+        try
+        {
+            latch.await();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks whether queries prefetch the tiles they are about to search.
+     */
+    public boolean isPrefetching()
+    {
+        return prefetching;
+    }
+
+    /**
+     * Enables or disables prefetching (disabled by default). If enabled,
+     * each query reads the next few tiles it is going to search into
+     * memory on the executor's I/O threads. This only pays off if the
+     * GOL resides on storage with high latency (such as a network drive)
+     * and its tiles are not already in the page cache; otherwise, the
+     * hand-off to the I/O threads is pure overhead. Affects only queries
+     * that are started afterwards.
+     *
+     * @param prefetching   `true` to enable prefetching
+     */
+    public void setPrefetching(boolean prefetching)
+    {
+        this.prefetching = prefetching;
+    }
+
+    /**
+     * Reads the tile at the given page into memory, on one of the
+     * executor's I/O threads. The prefetch counts as an active task,
+     * so {@link #close()} waits for it to finish before the store
+     * is unmapped.
+     *
+     * @param page  the page of the tile
+     */
+    public void prefetchTile(int page)
+    {
+        prefetchTile(page, null);
+    }
+
+    private void prefetchTile(int page, CountDownLatch latch)
+    {
+        taskStarted();
+        try
+        {
+            executor().prefetch(() ->
+            {
+                try
+                {
+                    prefetchBlob(page);
+                }
+                catch(RuntimeException ex)
+                {
+                    // The tile can't be read; the query that searches
+                    // it will report the error
+                }
+                finally
+                {
+                    taskCompleted();
+                    if(latch != null) latch.countDown();
+                }
+            });
+        }
+        catch(RejectedExecutionException ex)
+        {
+            // The I/O pool has been shut down
+            taskCompleted();
+            if(latch != null) latch.countDown();
+        }
+    }
+
     public int tileIndexEntry(int tip)
     {
         return tileIndexBuf.getInt(tileIndexOfs + tip * 4);
@@ -209,7 +637,7 @@ public class FeatureStore extends FreeStore
     {
         try
         {
-            return codesToStrings[code];
+            return strings.get(code);
         }
         catch (IndexOutOfBoundsException ex)
         {
@@ -227,7 +655,7 @@ public class FeatureStore extends FreeStore
      */
     public int codeFromString(String s)
     {
-        return stringsToCodes.getIfAbsent(s, -1);
+        return strings.code(s);
     }
 
     public GeometryFactory geometryFactory()
@@ -235,12 +663,36 @@ public class FeatureStore extends FreeStore
         return geometryFactory;
     }
 
+    /**
+     * Enables the persistent cache of compiled Matchers, and loads the
+     * Matchers that have been cached previously.
+     *
+     * @param dir   the cache directory
+     * @return the number of Matchers loaded from the cache
+     */
+    public int setMatcherCacheDirectory(Path dir)
+    {
+        matchers.setCacheDirectory(dir);
+        return matchers.preload();
+    }
+
     public Matcher getMatcher(String query)
     {
-        synchronized (matchers)
-        {
-            return matchers.getMatcher(query);
-        }
+        return matchers.getMatcher(query);
+    }
+
+    /**
+     * Returns a Matcher that accepts features only if both of the given
+     * Matchers accept them (see {@link MatcherCompiler#and(Matcher, Matcher)}).
+     */
+    public Matcher andMatcher(Matcher a, Matcher b)
+    {
+        return matchers.and(a, b);
+    }
+
+    public MatcherSet getMatcherSet(String... queries)
+    {
+        return matchers.getMatcherSet(queries);
     }
 
     /*
@@ -293,6 +745,22 @@ public class FeatureStore extends FreeStore
         return new StoredRelation(this, buf, p);
     }
 
+    /**
+     * Returns the feature stored in the given tile.
+     *
+     * @param tip       the TIP of the tile
+     * @param offset    the offset of the feature's anchor, relative
+     *                  to the start of the tile
+     * @return the feature, or `null` if the tile is not present
+     */
+    public StoredFeature getFeatureInTile(int tip, int offset)
+    {
+        int entry = tileIndexEntry(tip);
+        if(!isTileLoadedAndcurrent(entry)) return null;
+        int page = pageFromEntry(entry);
+        return getFeature(bufferOfPage(page), offsetOfPage(page) + offset);
+    }
+
     /*
     public StoredWay getWay(int tip, int ptr)
     {
@@ -304,23 +772,34 @@ public class FeatureStore extends FreeStore
     // TODO: create an awaitOperations() method
     @Override public void close()
     {
-        if(executor != null)
+        // Prefetches that haven't started yet will return immediately
+        closing = true;
+        if(executor != null && ownsExecutor) executor.shutdown();
+
+        // Wait for pending tasks (tile searches and prefetches) to complete
+        // before allowing Store.close() to unmap the buffers (otherwise
+        // risk of crash). A shared executor keeps running, so we only
+        // wait for our own tasks.
+        synchronized (taskLock)
         {
-            // Wait for pending tasks to complete before allowing
-            // Store.close() to unmap the buffers (otherwise risk of crash)
-
-            executor.shutdown();
             try
             {
-                // Log.debug("close(): Waiting for query threads to shut down...");
-                // new Exception().printStackTrace();
-                executor.awaitTermination(24, TimeUnit.HOURS);
+                while (activeTasks.get() > 0) taskLock.wait();
             }
             catch (InterruptedException e)
             {
                 // do nothing
             }
         }
+        synchronized (this)
+        {
+            if (idIndex != null) idIndex.close();
+            idIndex = null;
+            if (tagIndex != null) tagIndex.close();
+            tagIndex = null;
+            if (textIndex != null) textIndex.close();
+            textIndex = null;
+        }
         super.close();
     }
 
@@ -334,18 +813,47 @@ public class FeatureStore extends FreeStore
         Map<String,Integer> indexedKeys  =new HashMap<>(keysToCategories.size());
         keysToCategories.forEachKeyValue((k,category) ->
         {
-            indexedKeys.put(codesToStrings[k], category);
+            indexedKeys.put(strings.get(k), category);
         });
         return indexedKeys;
     }
 
+    /**
+     * Returns a map of all global strings to their codes. Since the
+     * string table is decoded lazily, this decodes every string and
+     * creates a new map on each call.
+     *
+     * @deprecated Use {@link StringTable#code(String)} of {@link #strings()}
+     *   instead, which looks up codes without decoding the table.
+     */
+    @Deprecated
     public ObjectIntMap<String> stringsToCodes()
     {
-        return stringsToCodes;
+        String[] array = strings.toArray();
+        MutableObjectIntMap<String> map = new ObjectIntHashMap<>(array.length);
+        for(int i=0; i<array.length; i++) map.put(array[i], i);
+        return map;
     }
 
+    /**
+     * Returns an array of all global strings, indexed by code. Since the
+     * string table is decoded lazily, this decodes every string and
+     * creates a new array on each call.
+     *
+     * @deprecated Use {@link StringTable#get(int)} of {@link #strings()}
+     *   instead, which only decodes the strings that are requested.
+     */
+    @Deprecated
     public String[] codesToStrings()
     {
-        return codesToStrings;
+        return strings.toArray();
+    }
+
+    /**
+     * Returns the global string table.
+     */
+    public StringTable strings()
+    {
+        return strings;
     }
 }
\ No newline at end of file
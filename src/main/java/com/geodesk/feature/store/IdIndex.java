@@ -0,0 +1,547 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.clarisma.common.store.FreeStore;
+import com.clarisma.common.store.StoreException;
+import com.geodesk.feature.match.TypeBits;
+import com.geodesk.feature.query.TileScanner;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A sidecar index that maps the IDs of features to their location
+ * (TIP and offset of the feature's anchor within its tile). The index
+ * file is built once for a GOL and memory-mapped on demand; it is only
+ * used if its fingerprint matches the tile index of the GOL.
+ *
+ * File layout (little-endian):
+ *
+ * <pre>
+ *   0   int     magic
+ *   4   int     version
+ *   8   long    fingerprint of the GOL's tile index
+ *   16  long[3] number of nodes, ways and relations
+ *   40          (reserved)
+ *   64          entries: nodes, then ways, then relations,
+ *               each sorted by ID
+ * </pre>
+ *
+ * Each entry takes up 16 bytes: the feature ID (long), the TIP (int)
+ * and the offset of the feature's anchor relative to the start of
+ * the tile (int).
+ */
+public class IdIndex
+{
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private final long[] starts = new long[3];
+    private final long[] counts = new long[3];
+
+    public static final int MAGIC = 0x1D5E1D5E;
+    public static final int VERSION = 1;
+
+    private static final int FINGERPRINT_OFS = 8;
+    private static final int COUNTS_OFS = 16;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private IdIndex(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens an existing ID index.
+     *
+     * @param path          the path of the index file
+     * @param fingerprint   the fingerprint of the GOL's tile index
+     * @return the index, or `null` if the file does not exist or
+     *         belongs to a different version of the GOL
+     */
+    public static IdIndex open(Path path, long fingerprint)
+    {
+        if(!Files.exists(path)) return null;
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(path, READ);
+            long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE) return close(channel);
+            IdIndex index = new IdIndex(channel);
+            int segmentCount = (int)((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            index.segments = new MappedByteBuffer[segmentCount];
+            for(int i=0; i<segmentCount; i++)
+            {
+                long ofs = (long)i * SEGMENT_SIZE;
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    ofs, Math.min(fileSize - ofs, SEGMENT_SIZE));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                index.segments[i] = buf;
+            }
+            ByteBuffer header = index.segments[0];
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+                header.getLong(FINGERPRINT_OFS) != fingerprint)
+            {
+                index.close();
+                return null;
+            }
+            long start = 0;
+            for(int i=0; i<3; i++)
+            {
+                index.starts[i] = start;
+                index.counts[i] = header.getLong(COUNTS_OFS + i * 8);
+                start += index.counts[i];
+            }
+            if(HEADER_SIZE + start * ENTRY_SIZE > fileSize)
+            {
+                index.close();
+                return null;
+            }
+            return index;
+        }
+        catch(IOException ex)
+        {
+            if(channel != null) close(channel);
+            throw new StoreException("Failed to open ID index", path, ex);
+        }
+    }
+
+    private static IdIndex close(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException ex)
+        {
+            // ignore
+        }
+        return null;
+    }
+
+    public void close()
+    {
+        if(segments == null) return;
+        FreeStore.unmapSegments(segments);
+        segments = null;
+        close(channel);
+    }
+
+    private long getLong(long entry, int delta)
+    {
+        long pos = HEADER_SIZE + entry * ENTRY_SIZE + delta;
+        return segments[(int)(pos >>> 30)].getLong((int)pos & (SEGMENT_SIZE-1));
+    }
+
+    /**
+     * Looks up the location of a feature.
+     *
+     * @param typeCode  0 = node, 1 = way, 2 = relation
+     * @param id        the ID of the feature
+     * @return the TIP (upper 32 bits) and tile offset (lower 32 bits)
+     *         of the feature, or -1 if the feature is not in the index
+     */
+    public long find(int typeCode, long id)
+    {
+        long lo = starts[typeCode];
+        long hi = lo + counts[typeCode] - 1;
+        while(lo <= hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            long midId = getLong(mid, 0);
+            if(midId < id)
+            {
+                lo = mid + 1;
+            }
+            else if(midId > id)
+            {
+                hi = mid - 1;
+            }
+            else
+            {
+                return getLong(mid, 8);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds an ID index for all features in a FeatureStore and writes
+     * it to the given file.
+     *
+     * @param store     the FeatureStore
+     * @param path      the path of the index file
+     */
+    public static void build(FeatureStore store, Path path)
+    {
+        Builder builder = new Builder(path, store.tileIndexFingerprint(),
+            Builder.DEFAULT_RUN_SIZE);
+        try
+        {
+            TileScanner.forEachTile(store, (tip, tilePage) ->
+            {
+                int pTile = store.offsetOfPage(tilePage);
+                long tipBits = (long)tip << 32;
+                TileScanner.scanTile(store, tilePage, TypeBits.ALL, (buf, pFeature) ->
+                {
+                    builder.add(StoredFeature.typeCode(buf, pFeature),
+                        StoredFeature.id(buf, pFeature), tipBits | (pFeature - pTile));
+                });
+            });
+            builder.finish();
+        }
+        finally
+        {
+            builder.deleteRuns();
+        }
+    }
+
+    /**
+     * Creates an ID index from entries in arbitrary order. Since a planet
+     * file has billions of features, the entries are collected in runs
+     * of limited size, which are sorted and written to temporary files;
+     * these are then merged into the index file.
+     */
+    static class Builder
+    {
+        private final Path path;
+        private final long fingerprint;
+        private final int maxRunSize;
+        private final LongArrayList[] ids = new LongArrayList[3];
+        private final LongArrayList[] refs = new LongArrayList[3];
+        private int runSize;
+        private final List<Path> runPaths = new ArrayList<>();
+
+        /**
+         * The default number of entries per run (each entry takes up
+         * 16 bytes).
+         */
+        static final int DEFAULT_RUN_SIZE = 1 << 24;
+
+        /**
+         * Creates a Builder.
+         *
+         * @param path          the path of the index file
+         * @param fingerprint   the fingerprint of the GOL's tile index
+         * @param maxRunSize    the maximum number of entries held in memory
+         */
+        Builder(Path path, long fingerprint, int maxRunSize)
+        {
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.maxRunSize = maxRunSize;
+            for(int i=0; i<3; i++)
+            {
+                ids[i] = new LongArrayList();
+                refs[i] = new LongArrayList();
+            }
+        }
+
+        /**
+         * Adds the location of a feature. If a feature is added more than
+         * once (which is the case for features that span multiple tiles),
+         * only one of its locations is kept.
+         *
+         * @param typeCode  0 = node, 1 = way, 2 = relation
+         * @param id        the ID of the feature
+         * @param ref       the TIP (upper 32 bits) and anchor offset
+         *                  (lower 32 bits) of the feature
+         */
+        void add(int typeCode, long id, long ref)
+        {
+            ids[typeCode].add(id);
+            refs[typeCode].add(ref);
+            if(++runSize >= maxRunSize) spill();
+        }
+
+        /**
+         * Writes the current run to a temporary file: for each type, the
+         * number of its entries, followed by the entries (ID and ref),
+         * sorted by ID.
+         */
+        private void spill()
+        {
+            if(runSize == 0) return;
+            Path runPath = path.resolveSibling(path.getFileName() + ".run" + runPaths.size());
+            runPaths.add(runPath);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(runPath, CREATE, WRITE, TRUNCATE_EXISTING), 1 << 16)))
+            {
+                for(int i=0; i<3; i++)
+                {
+                    long[] typeRefs = refs[i].toArray();
+                    long[] typeIds = sortUnique(ids[i].toArray(), typeRefs);
+                    out.writeInt(typeIds.length);
+                    for(int n=0; n<typeIds.length; n++)
+                    {
+                        out.writeLong(typeIds[n]);
+                        out.writeLong(typeRefs[n]);
+                    }
+                    ids[i].clear();
+                    refs[i].clear();
+                }
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write ID index", runPath, ex);
+            }
+            runSize = 0;
+        }
+
+        /**
+         * Merges all runs and writes the index file.
+         */
+        void finish()
+        {
+            spill();
+            for(int i=0; i<3; i++)
+            {
+                ids[i] = null;
+                refs[i] = null;
+            }
+            Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            List<RunReader> readers = new ArrayList<>(runPaths.size());
+            try(FileChannel out = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING))
+            {
+                for(Path runPath: runPaths) readers.add(new RunReader(runPath));
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                long[] counts = new long[3];
+                out.position(HEADER_SIZE);
+                for(int i=0; i<3; i++)
+                {
+                    PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                        Math.max(readers.size(), 1), (a, b) -> Long.compare(a.id, b.id));
+                    for(RunReader reader: readers)
+                    {
+                        reader.startType();
+                        if(reader.next()) queue.add(reader);
+                    }
+                    long count = 0;
+                    long prevId = 0;
+                    while(!queue.isEmpty())
+                    {
+                        RunReader reader = queue.poll();
+                        if(count == 0 || reader.id != prevId)
+                        {
+                            if(buf.remaining() < ENTRY_SIZE) flush(out, buf);
+                            buf.putLong(reader.id);
+                            buf.putLong(reader.ref);
+                            prevId = reader.id;
+                            count++;
+                        }
+                        if(reader.next()) queue.add(reader);
+                    }
+                    counts[i] = count;
+                }
+                flush(out, buf);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putLong(fingerprint);
+                for(int i=0; i<3; i++) header.putLong(counts[i]);
+                header.clear();
+                out.position(0);
+                while(header.hasRemaining()) out.write(header);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write ID index", path, ex);
+            }
+            finally
+            {
+                for(RunReader reader: readers) reader.close();
+            }
+            try
+            {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write ID index", path, ex);
+            }
+        }
+
+        /**
+         * Deletes the temporary files.
+         */
+        void deleteRuns()
+        {
+            for(Path runPath: runPaths)
+            {
+                try
+                {
+                    Files.deleteIfExists(runPath);
+                }
+                catch(IOException ex)
+                {
+                    // ignore
+                }
+            }
+            runPaths.clear();
+        }
+    }
+
+    /**
+     * Reads the entries of a run, one type after the other.
+     */
+    private static class RunReader
+    {
+        private final DataInputStream in;
+        private int remaining;
+        long id;
+        long ref;
+
+        RunReader(Path path) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        /**
+         * Starts reading the entries of the next type.
+         */
+        void startType() throws IOException
+        {
+            remaining = in.readInt();
+        }
+
+        /**
+         * Reads the next entry of the current type.
+         *
+         * @return `false` if there are no more entries of this type
+         */
+        boolean next() throws IOException
+        {
+            if(remaining == 0) return false;
+            remaining--;
+            id = in.readLong();
+            ref = in.readLong();
+            return true;
+        }
+
+        void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException ex)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * Sorts two parallel arrays by the values of the first, and removes
+     * duplicate keys.
+     *
+     * @return the sorted keys (trimmed, if there were duplicates);
+     *         the values are sorted in place
+     */
+    private static long[] sortUnique(long[] keys, long[] values)
+    {
+        sort(keys, values, 0, keys.length - 1);
+        if(keys.length == 0) return keys;
+        int n = 1;
+        for(int i=1; i<keys.length; i++)
+        {
+            if(keys[i] != keys[n-1])
+            {
+                keys[n] = keys[i];
+                values[n] = values[i];
+                n++;
+            }
+        }
+        if(n == keys.length) return keys;
+        long[] trimmed = new long[n];
+        System.arraycopy(keys, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static void sort(long[] keys, long[] values, int lo, int hi)
+    {
+        while(lo < hi)
+        {
+            if(hi - lo < 16)
+            {
+                for(int i=lo+1; i<=hi; i++)
+                {
+                    long k = keys[i];
+                    long v = values[i];
+                    int j = i - 1;
+                    while(j >= lo && keys[j] > k)
+                    {
+                        keys[j+1] = keys[j];
+                        values[j+1] = values[j];
+                        j--;
+                    }
+                    keys[j+1] = k;
+                    values[j+1] = v;
+                }
+                return;
+            }
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while(i <= j)
+            {
+                while(keys[i] < pivot) i++;
+                while(keys[j] > pivot) j--;
+                if(i <= j)
+                {
+                    long k = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = k;
+                    long v = values[i];
+                    values[i] = values[j];
+                    values[j] = v;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller partition, loop on the larger one
+            if(j - lo < hi - i)
+            {
+                sort(keys, values, lo, j);
+                lo = i;
+            }
+            else
+            {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pool that runs the tile tasks of queries. A QueryExecutor
+ * can be shared by any number of FeatureStores, so that multiple
+ * libraries opened in the same JVM don't oversubscribe the available
+ * cores. A FeatureStore that has been given a shared QueryExecutor
+ * never shuts it down; the owner of the executor is responsible for
+ * calling {@link #shutdown()}.
+ *
+ * A ForkJoinPool has no notion of task priority. Instead, the executor
+ * keeps track of the tiles of interactive queries that are currently
+ * being searched; while there are any, batch queries shrink their
+ * window of pending tiles to a single tile, which leaves the remaining
+ * workers to the interactive queries.
+ *
+ * In addition, the executor has a small pool of I/O threads, which read
+ * tiles into memory ahead of the tasks that search them (see
+ * {@link #prefetch(Runnable)}). This way, the workers don't stall on
+ * page faults while the data is read from disk.
+ */
+public class QueryExecutor
+{
+    private final ForkJoinPool pool;
+    private final AtomicInteger interactiveTiles = new AtomicInteger();
+    private volatile ExecutorService prefetchPool;
+
+    /**
+     * The number of threads that prefetch tiles. Storage with high latency
+     * (such as network block storage) performs best if there are multiple
+     * outstanding reads.
+     */
+    private static final int PREFETCH_THREADS = 8;
+
+    /**
+     * Creates a QueryExecutor with one worker thread per available processor.
+     */
+    public QueryExecutor()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a QueryExecutor with the given number of worker threads.
+     *
+     * @param parallelism   the number of worker threads
+     */
+    public QueryExecutor(int parallelism)
+    {
+        this(new ForkJoinPool(parallelism));
+    }
+
+    /**
+     * Creates a QueryExecutor that runs its tasks in an existing pool.
+     *
+     * @param pool  the ForkJoinPool
+     */
+    public QueryExecutor(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public ForkJoinPool pool()
+    {
+        return pool;
+    }
+
+    public int parallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Called by a query when it submits a tile task on behalf of
+     * an interactive query.
+     */
+    public void interactiveTileStarted()
+    {
+        interactiveTiles.incrementAndGet();
+    }
+
+    /**
+     * Called when the tile task of an interactive query has completed.
+     */
+    public void interactiveTileCompleted()
+    {
+        interactiveTiles.decrementAndGet();
+    }
+
+    /**
+     * Checks whether tiles of interactive queries are currently being
+     * searched (in which case batch queries should yield).
+     */
+    public boolean isInteractiveBusy()
+    {
+        return interactiveTiles.get() > 0;
+    }
+
+    /**
+     * Retrieves an element from a queue, waiting if necessary. If the
+     * calling thread is a worker of a ForkJoinPool (e.g. a query that is
+     * run by a lambda of a parallel stream), the pool is informed that
+     * the worker is blocked, so it can activate a spare thread. Otherwise,
+     * once all workers are waiting for the results of tile tasks that are
+     * queued behind them, the pool would deadlock.
+     *
+     * @param queue     the queue
+     * @return the element
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static <T> T take(BlockingQueue<T> queue) throws InterruptedException
+    {
+        Taker<T> taker = new Taker<>(queue);
+        ForkJoinPool.managedBlock(taker);
+        return taker.item;
+    }
+
+    private static class Taker<T> implements ForkJoinPool.ManagedBlocker
+    {
+        private final BlockingQueue<T> queue;
+        T item;
+
+        Taker(BlockingQueue<T> queue)
+        {
+            this.queue = queue;
+        }
+
+        @Override public boolean block() throws InterruptedException
+        {
+            if(item == null) item = queue.take();
+            return true;
+        }
+
+        @Override public boolean isReleasable()
+        {
+            return item != null || (item = queue.poll()) != null;
+        }
+    }
+
+    /**
+     * Runs the given prefetch task on one of the I/O threads.
+     *
+     * @param task  a task that reads data into memory
+     */
+    public void prefetch(Runnable task)
+    {
+        ExecutorService ioPool = prefetchPool;
+        if(ioPool == null)
+        {
+            synchronized (this)
+            {
+                ioPool = prefetchPool;
+                if(ioPool == null)
+                {
+                    ioPool = Executors.newFixedThreadPool(PREFETCH_THREADS, r ->
+                    {
+                        Thread thread = new Thread(r, "geodesk-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    prefetchPool = ioPool;
+                }
+            }
+        }
+        ioPool.execute(task);
+    }
+
+    /**
+     * Shuts down the pool and the I/O threads, waiting for all pending
+     * tasks (including prefetches) to complete.
+     */
+    public void shutdown()
+    {
+        ExecutorService ioPool = prefetchPool;
+        if(ioPool != null) ioPool.shutdown();
+        pool.shutdown();
+        try
+        {
+            pool.awaitTermination(24, TimeUnit.HOURS);
+            if(ioPool != null) ioPool.awaitTermination(24, TimeUnit.HOURS);
+        }
+        catch (InterruptedException e)
+        {
+            // do nothing
+        }
+    }
+}
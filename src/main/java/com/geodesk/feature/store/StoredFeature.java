@@ -17,8 +17,10 @@ import com.geodesk.feature.match.Matcher;
 import com.geodesk.feature.match.TypeBits;
 import com.geodesk.feature.query.EmptyView;
 import com.geodesk.feature.query.ParentRelationView;
+import org.locationtech.jts.geom.Geometry;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 
@@ -31,8 +33,15 @@ public abstract class StoredFeature implements Feature
 	protected final ByteBuffer buf;
 	protected final int ptr;
 	protected String role;
+	/**
+	 * The geometry of this feature, if it has been retained after being
+	 * built for the evaluation of a spatial filter (or `RETAIN_GEOMETRY`
+	 * if the next geometry built should be retained).
+	 */
+	private Object geometry;
 
 	private static final int TAG_POINTER_OFFSET = 8;
+	private static final Object RETAIN_GEOMETRY = new Object();
 
 	public static final String[] EMPTY_TAGS = new String[0];
 	public static final Iterable<Node> EMPTY_NODES = new ArrayList<>(0);
@@ -51,6 +60,55 @@ public abstract class StoredFeature implements Feature
 		return store;
 	}
 
+	/**
+	 * Applies a filter to this feature. If the filter builds the feature's
+	 * geometry, the geometry is retained, so that subsequent calls to
+	 * `toGeometry()` return it instead of building it again. This is used
+	 * for features that are materialized by a query in order to apply a
+	 * spatial filter, and are then returned to the caller.
+	 *
+	 * @param filter	the filter
+	 * @return `true` if the filter accepts this feature
+	 */
+	public boolean acceptedBy(Filter filter)
+	{
+		retainGeometry();
+		boolean accepted = filter.accept(this);
+		stopRetainingGeometry();
+		return accepted;
+	}
+
+	/**
+	 * Causes the geometry built by the next call to `toGeometry()` to be
+	 * retained, so subsequent calls don't need to build it again. Must be
+	 * followed by a call to {@link #stopRetainingGeometry()}, so a geometry
+	 * is only retained if it is actually built in the meantime.
+	 */
+	void retainGeometry()
+	{
+		if(geometry == null) geometry = RETAIN_GEOMETRY;
+	}
+
+	/**
+	 * Stops retaining the next geometry that is built, unless one has
+	 * already been retained.
+	 */
+	void stopRetainingGeometry()
+	{
+		if(geometry == RETAIN_GEOMETRY) geometry = null;
+	}
+
+	protected Geometry retainedGeometry()
+	{
+		return geometry instanceof Geometry g ? g : null;
+	}
+
+	protected Geometry retainGeometry(Geometry g)
+	{
+		if(geometry == RETAIN_GEOMETRY) geometry = g;
+		return g;
+	}
+
 	public ByteBuffer buffer()
 	{
 		return buf;
@@ -134,6 +192,11 @@ public abstract class StoredFeature implements Feature
 	//  we grab the key value as well
 	//  (but should document this)
 	protected long getCommonKeyValue(int pTags, int key)
+	{
+		return getCommonKeyValue(buf, pTags, key);
+	}
+
+	private static long getCommonKeyValue(ByteBuffer buf, int pTags, int key)
 	{
 		int keyBits = key << 2;
 		int p = pTags;
@@ -169,44 +232,143 @@ public abstract class StoredFeature implements Feature
 	 */
 	protected long getKeyValue(String keyString)
 	{
-		int key = store.codeFromString(keyString);
+		return getKeyValue(store, buf, ptr, keyString);
+	}
+
+	/**
+	 * Same as {@link #getKeyValue(String)}, but operates directly on
+	 * a feature's stored data, without the need to create a
+	 * StoredFeature.
+	 *
+	 * @param store		the FeatureStore
+	 * @param buf		the feature's buffer
+	 * @param ptr		the anchor of the feature
+	 * @param keyString	the key
+	 * @return the tag value (as encoded by {@link #getKeyValue(String)}),
+	 *   or 0 if the feature does not have the given key
+	 */
+	public static long getKeyValue(FeatureStore store, ByteBuffer buf, int ptr, String keyString)
+	{
+		int code = commonKeyCode(store, keyString);
+		if (code >= 0) return getKeyValue(buf, ptr, code, null);
+		return getKeyValue(buf, ptr, -1,
+			new byte[][] { keyString.getBytes(StandardCharsets.UTF_8) });
+	}
+
+	/**
+	 * Same as {@link #getKeyValue(String)}, but uses a Key whose code
+	 * has already been resolved. Uncommon keys are compared by their
+	 * UTF-8 bytes, without decoding the feature's key strings.
+	 *
+	 * @param buf		the feature's buffer
+	 * @param ptr		the anchor of the feature
+	 * @param key		the key (must belong to the feature's store)
+	 * @return the tag value (as encoded by {@link #getKeyValue(String)}),
+	 *   or 0 if the feature does not have the given key
+	 */
+	public static long getKeyValue(ByteBuffer buf, int ptr, Key key)
+	{
+		return getKeyValue(buf, ptr, key.code(), key.bytes());
+	}
+
+	static long getKeyValue(ByteBuffer buf, int ptr, int code, byte[][] uncommonKey)
+	{
 		int ppTags = ptr + 8;
 		int pTags = buf.getInt(ppTags);
 		int uncommonKeysFlag = pTags & 1;
 		pTags = ppTags + (pTags ^ uncommonKeysFlag);
-		int p = pTags;
-
-		// TODO: key could be 0 for "", use >= so we don't needlessly check
-		//  local strings
-		if (key > 0 && key <= TagValues.MAX_COMMON_KEY)
-		{
-			return getCommonKeyValue(pTags, key);
-		}
+		if (code >= 0) return getCommonKeyValue(buf, pTags, code);
 		if (uncommonKeysFlag == 0) return 0;
+		long found = findUncommonKey(buf, pTags, firstUncommonTag(pTags), uncommonKey);
+		return found < 0 ? 0 : uncommonTagValue(buf, (int)found);
+	}
+
+	/**
+	 * Returns the code of a key, if it is a common key (one that is
+	 * stored in the global-key section of tag-tables).
+	 *
+	 * @param store		the FeatureStore
+	 * @param key		the key
+	 * @return the key's code, or -1 if the key is uncommon
+	 */
+	public static int commonKeyCode(FeatureStore store, String key)
+	{
+		int code = store.codeFromString(key);
+		return (code > 0 && code <= TagValues.MAX_COMMON_KEY) ? code : -1;
+	}
+
+	/**
+	 * Returns the position of the first uncommon-key tag of a tag-table
+	 * (which must have uncommon keys). Uncommon-key tags are stored
+	 * ahead of the tag-table, in descending address order.
+	 */
+	static int firstUncommonTag(int pTags)
+	{
+		return pTags - 6;
+	}
+
+	/**
+	 * Scans the uncommon-key tags of a tag-table for any of the given keys,
+	 * starting with the tag at `p`.
+	 *
+	 * @param buf		the buffer of the feature
+	 * @param pTags		the pointer to the tag-table (without flags)
+	 * @param p			the position of the tag where the scan starts (see
+	 *                  {@link #firstUncommonTag(int)} and
+	 *                  {@link #nextUncommonTag(ByteBuffer, int)})
+	 * @param keys		the UTF-8 encoding of the keys to look for
+	 * @return the position of the first tag that has one of the keys, with
+	 *   the index of the key in the upper 32 bits; or -1 if none of the
+	 *   remaining tags has any of the keys
+	 */
+	static long findUncommonKey(ByteBuffer buf, int pTags, int p, byte[][] keys)
+	{
+		// uncommon keys are relative to the 4-byte-aligned tagtable address
 		int origin = pTags & 0xffff_fffc;
-		p -= 6;
 		for (; ; )
 		{
-			long tag = buf.getLong(p);
-			int rawPointer = (int) (tag >> 16);
+			int rawPointer = buf.getInt(p + 2);
 			int flags = rawPointer & 7;
 			int pKey = ((rawPointer ^ flags) >> 1) + origin;    // preserve sign
-			// uncommon keys are relative to the 4-byte-aligned tagtable address
-			// if (Bytes.stringEqualsAscii(buf, pKey, keyString))
-				// TODO: can't assume keys to be ASCII-only, use this slower method for now:
-			if (Bytes.stringEquals(buf, pKey, keyString))
+			for (int i = 0; i < keys.length; i++)
 			{
-				return (((long) (p - 2) << 32) | flags |
-					(((long) ((char) tag)) << 16));
-				// careful, sign extension when Or-ing long and int
-				// TODO: should this return the actual pointer instead of
-				//  pointer-to-pointer, to simplify callers?
+				if (Bytes.stringEquals(buf, pKey, keys[i])) return ((long)i << 32) | p;
 			}
-			if ((flags & 4) != 0) return 0;
+			if ((flags & 4) != 0) return -1;
 			p -= 6 + (flags & 2);
 		}
 	}
 
+	/**
+	 * Returns the position of the uncommon-key tag that follows the one
+	 * at `p`, or 0 if it is the last.
+	 */
+	static int nextUncommonTag(ByteBuffer buf, int p)
+	{
+		int flags = buf.getInt(p + 2) & 7;
+		return (flags & 4) != 0 ? 0 : p - 6 - (flags & 2);
+	}
+
+	/**
+	 * Returns the value of the uncommon-key tag at `p`, encoded as
+	 * described for {@link #getKeyValue(String)}.
+	 */
+	static long uncommonTagValue(ByteBuffer buf, int p)
+	{
+		long tag = buf.getLong(p);
+		int flags = (int)(tag >> 16) & 7;
+		return (((long) (p - 2) << 32) | flags | (((long) ((char) tag)) << 16));
+		// careful, sign extension when Or-ing long and int
+		// TODO: should this return the actual pointer instead of
+		//  pointer-to-pointer, to simplify callers?
+	}
+
+	protected long getKeyValue(Key key)
+	{
+		if (key.store() != store) return getKeyValue(key.toString());
+		return getKeyValue(buf, ptr, key);
+	}
+
 	/**
 	 * Returns the string representation of a tag value.
 	 *
@@ -222,6 +384,20 @@ public abstract class StoredFeature implements Feature
 	 * @return
 	 */
 	private String valueAsString(long value)
+	{
+		return valueAsString(store, buf, value);
+	}
+
+	/**
+	 * Returns the string representation of a tag value
+	 * (see {@link #valueAsString(long)}).
+	 *
+	 * @param store		the FeatureStore
+	 * @param buf		the buffer of the feature to which the value belongs
+	 * @param value		the encoded tag value
+	 * @return the value as a string
+	 */
+	public static String valueAsString(FeatureStore store, ByteBuffer buf, long value)
 	{
 		if (value == 0) return "";
 		int typeAndSize = (int) value & 3;
@@ -403,7 +579,11 @@ public abstract class StoredFeature implements Feature
 
 	@Override public boolean booleanValue(String key)
 	{
-		long value = getKeyValue(key);
+		return valueAsBoolean(getKeyValue(key));
+	}
+
+	private boolean valueAsBoolean(long value)
+	{
 		if(value == 0) return false;
 		int typeAndSize = (int) value & 3;
 		if (typeAndSize == 1)
@@ -416,6 +596,41 @@ public abstract class StoredFeature implements Feature
 		return true;
 	}
 
+	@Override public String stringValue(Key key)
+	{
+		return valueAsString(getKeyValue(key));
+	}
+
+	@Override public int intValue(Key key)
+	{
+		return valueAsInt(getKeyValue(key));
+	}
+
+	@Override public long longValue(Key key)
+	{
+		return valueAsLong(getKeyValue(key));
+	}
+
+	@Override public double doubleValue(Key key)
+	{
+		return valueAsDouble(getKeyValue(key));
+	}
+
+	@Override public boolean booleanValue(Key key)
+	{
+		return valueAsBoolean(getKeyValue(key));
+	}
+
+	@Override public boolean hasTag(Key key)
+	{
+		return getKeyValue(key) != 0;
+	}
+
+	@Override public boolean hasTag(Key key, String value)
+	{
+		return stringValue(key).equals(value);
+	}
+
 	@Override public String tag(String key)
 	{
 		return stringValue(key);
@@ -73,13 +73,15 @@ public class StoredRelation extends StoredFeature implements Relation
 
 	@Override public Geometry toGeometry()
 	{
+		Geometry geom = retainedGeometry();
+		if(geom != null) return geom;
 		if(isArea())
 		{
-			return PolygonBuilder.build(store.geometryFactory(), this);
+			return retainGeometry(PolygonBuilder.build(store.geometryFactory(), this));
 		}
 		else
 		{
-			return toGeometryCollection();
+			return retainGeometry(toGeometryCollection());
 		}
 	}
 
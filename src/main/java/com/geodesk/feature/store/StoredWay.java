@@ -155,10 +155,12 @@ public class StoredWay extends StoredFeature implements Way
 
 	@Override public Geometry toGeometry()
 	{
+		Geometry geom = retainedGeometry();
+		if(geom != null) return geom;
 		GeometryFactory factory = store.geometryFactory();
 		WayCoordinateSequence coords = new WayCoordinateSequence(toXY());
-		if(isArea()) return factory.createPolygon(coords);
-		return factory.createLineString(coords);
+		if(isArea()) return retainGeometry(factory.createPolygon(coords));
+		return retainGeometry(factory.createLineString(coords));
 		// TODO: LinearRing?
 	}
 
@@ -173,6 +175,21 @@ public class StoredWay extends StoredFeature implements Way
 	 * @return
 	 */
 	public XYIterator iterXY(int flags)
+	{
+		return iterXY(buf, ptr, flags);
+	}
+
+	/**
+	 * Returns an iterator to obtain the coordinates of the way stored
+	 * at the given location (see {@link #iterXY(int)}).
+	 *
+	 * @param buf		the buffer of the way
+	 * @param ptr		the anchor of the way
+	 * @param flags		the way's flags (only `AREA_FLAG` is
+	 *                  of significance)
+	 * @return
+	 */
+	public static XYIterator iterXY(ByteBuffer buf, int ptr, int flags)
 	{
 		int ppBody = ptr + 12;
 		int pBody = buf.getInt(ppBody) + ppBody;
@@ -188,8 +205,21 @@ public class StoredWay extends StoredFeature implements Way
 
 	public double length()
 	{
-		if (isArea()) return 0;
-		XYIterator iter = iterXY(0);
+		return length(buf, ptr);
+	}
+
+	/**
+	 * Measures the length of the way stored at the given location,
+	 * without the need to create a StoredWay.
+	 *
+	 * @param buf		the buffer of the way
+	 * @param ptr		the anchor of the way
+	 * @return length (in meters), or 0 if the way is an area
+	 */
+	public static double length(ByteBuffer buf, int ptr)
+	{
+		if ((buf.getInt(ptr) & FeatureFlags.AREA_FLAG) != 0) return 0;
+		XYIterator iter = iterXY(buf, ptr, 0);
 		int prevX;
 		int prevY;
 		double total = 0;
@@ -208,6 +238,41 @@ public class StoredWay extends StoredFeature implements Way
 		return total;
 	}
 
+	/**
+	 * Measures the area of the way stored at the given location,
+	 * without the need to create a StoredWay or its Geometry.
+	 *
+	 * @param buf		the buffer of the way
+	 * @param ptr		the anchor of the way
+	 * @return area (in square meters), or 0 if the way is not an area
+	 */
+	public static double area(ByteBuffer buf, int ptr)
+	{
+		int flags = buf.getInt(ptr);
+		if ((flags & FeatureFlags.AREA_FLAG) == 0) return 0;
+		XYIterator iter = iterXY(buf, ptr, flags);
+		long xy = iter.nextXY();
+		int x0 = XY.x(xy);
+		int y0 = XY.y(xy);
+		// Coordinates are taken relative to the first vertex, which
+		// avoids loss of precision for small polygons
+		double prevX = 0;
+		double prevY = 0;
+		double sum = 0;
+		while (iter.hasNext())
+		{
+			xy = iter.nextXY();
+			double x = XY.x(xy) - (double)x0;
+			double y = XY.y(xy) - (double)y0;
+			sum += prevX * y - x * prevY;
+			prevX = x;
+			prevY = y;
+		}
+		int avgY = (buf.getInt(ptr - 12) + buf.getInt(ptr - 4)) / 2;
+		double scale = Mercator.metersAtY(avgY);
+		return Math.abs(sum) / 2 * scale * scale;
+	}
+
 	/*
 	@Override public boolean hasNode(Node node)
 	{
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The global string table of a FeatureStore, decoded on demand.
+ *
+ * When the store is opened, we make a single pass over the encoded
+ * table (a count, followed by the strings, each a varint length and
+ * UTF-8 bytes) to record the location of each string, and to build
+ * a hash table over the raw bytes. Strings are only decoded once
+ * they are requested. Looking up the code of a string encodes its
+ * characters on the fly and compares them against the raw bytes, which
+ * requires neither decoding any entries nor allocating memory.
+ *
+ * This class is thread-safe: the decoded strings are cached in an
+ * array whose slots may be written by multiple threads, but since
+ * Strings are immutable, a thread will at worst decode a string
+ * that another thread has decoded as well.
+ */
+public class StringTable
+{
+    private final ByteBuffer buf;
+    /**
+     * The position of each string (pointing to its varint length).
+     */
+    private final int[] offsets;
+    /**
+     * The position just past the last string.
+     */
+    private final int end;
+    /**
+     * The strings that have been decoded so far.
+     */
+    private final String[] strings;
+    /**
+     * Open-addressing hash table: each slot holds a string code plus one,
+     * or 0 if the slot is empty.
+     */
+    private final int[] slots;
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    /**
+     * Creates a StringTable for the strings encoded in the given buffer.
+     *
+     * @param buf   the buffer
+     * @param p     the position of the table (a 2-byte count, followed
+     *              by the strings)
+     */
+    public StringTable(ByteBuffer buf, int p)
+    {
+        this.buf = buf;
+        int count = buf.getShort(p) & 0xffff;
+        offsets = new int[count];
+        strings = new String[count];
+        int tableSize = Integer.highestOneBit(Math.max(count, 1)) << 2;
+        slots = new int[tableSize];
+        int mask = tableSize - 1;
+        p += 2;
+        for(int i=0; i<count; i++)
+        {
+            offsets[i] = p;
+            long loc = locate(i);
+            int pBytes = (int)(loc >>> 32);
+            int len = (int)loc;
+            p = pBytes + len;
+            int slot = finish(hash(pBytes, len)) & mask;
+            // If a string occurs more than once, the last occurrence
+            // determines its code
+            for(;;)
+            {
+                int code = slots[slot];
+                if(code == 0 || equals(code - 1, pBytes, len))
+                {
+                    slots[slot] = i + 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        end = p;
+    }
+
+    /**
+     * Returns the position of the UTF-8 bytes of a string (upper 32 bits)
+     * and their length (lower 32 bits).
+     */
+    private long locate(int code)
+    {
+        int p = offsets[code];
+        int b = buf.get(p++);
+        int len = b & 0x7f;
+        for(int shift = 7; b < 0; shift += 7)
+        {
+            b = buf.get(p++);
+            len |= (b & 0x7f) << shift;
+        }
+        return ((long)p << 32) | len;
+    }
+
+    private int hash(int p, int len)
+    {
+        int h = FNV_OFFSET_BASIS;
+        for(int i=0; i<len; i++)
+        {
+            h ^= buf.get(p + i) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int finish(int h)
+    {
+        return h ^ (h >>> 16);
+    }
+
+    private boolean equals(int code, int pOther, int len)
+    {
+        long loc = locate(code);
+        if((int)loc != len) return false;
+        int p = (int)(loc >>> 32);
+        for(int i=0; i<len; i++)
+        {
+            if(buf.get(p + i) != buf.get(pOther + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the code point at the given index of a string, as it is
+     * encoded by `String.getBytes(UTF_8)` (an unpaired surrogate
+     * becomes '?').
+     */
+    private static int codePointAt(String s, int i)
+    {
+        char ch = s.charAt(i);
+        if(!Character.isSurrogate(ch)) return ch;
+        if(Character.isHighSurrogate(ch) && i + 1 < s.length())
+        {
+            char low = s.charAt(i + 1);
+            if(Character.isLowSurrogate(low)) return Character.toCodePoint(ch, low);
+        }
+        return '?';
+    }
+
+    /**
+     * Returns the bytes of the UTF-8 encoding of a code point, packed
+     * into an int (first byte in the lowest 8 bits).
+     */
+    private static int utf8(int cp)
+    {
+        if(cp < 0x80) return cp;
+        if(cp < 0x800)
+        {
+            return (0xc0 | (cp >> 6)) | ((0x80 | (cp & 0x3f)) << 8);
+        }
+        if(cp < 0x10000)
+        {
+            return (0xe0 | (cp >> 12)) | ((0x80 | ((cp >> 6) & 0x3f)) << 8) |
+                ((0x80 | (cp & 0x3f)) << 16);
+        }
+        return (0xf0 | (cp >> 18)) | ((0x80 | ((cp >> 12) & 0x3f)) << 8) |
+            ((0x80 | ((cp >> 6) & 0x3f)) << 16) | ((0x80 | (cp & 0x3f)) << 24);
+    }
+
+    private static int utf8Length(int cp)
+    {
+        return cp < 0x80 ? 1 : (cp < 0x800 ? 2 : (cp < 0x10000 ? 3 : 4));
+    }
+
+    private static int hash(String s)
+    {
+        int h = FNV_OFFSET_BASIS;
+        for(int i=0; i<s.length(); i++)
+        {
+            int cp = codePointAt(s, i);
+            if(cp > 0xffff) i++;
+            int bytes = utf8(cp);
+            for(int n = utf8Length(cp); n > 0; n--)
+            {
+                h ^= bytes & 0xff;
+                h *= FNV_PRIME;
+                bytes >>>= 8;
+            }
+        }
+        return h;
+    }
+
+    private boolean equals(int code, String s)
+    {
+        long loc = locate(code);
+        int p = (int)(loc >>> 32);
+        int end = p + (int)loc;
+        for(int i=0; i<s.length(); i++)
+        {
+            int cp = codePointAt(s, i);
+            if(cp > 0xffff) i++;
+            int bytes = utf8(cp);
+            for(int n = utf8Length(cp); n > 0; n--)
+            {
+                if(p == end || buf.get(p++) != (byte)bytes) return false;
+                bytes >>>= 8;
+            }
+        }
+        return p == end;
+    }
+
+    /**
+     * Returns the number of strings in this table.
+     */
+    public int size()
+    {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the string with the given code.
+     *
+     * @param code  the string code
+     * @return the string
+     * @throws ArrayIndexOutOfBoundsException if the code is invalid
+     */
+    public String get(int code)
+    {
+        String s = strings[code];
+        if(s == null)
+        {
+            long loc = locate(code);
+            byte[] bytes = new byte[(int)loc];
+            buf.get((int)(loc >>> 32), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[code] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the code of the given string.
+     *
+     * @param s     the string to look up
+     * @return the string code, or -1 if the string is not in the table
+     */
+    public int code(String s)
+    {
+        int mask = slots.length - 1;
+        int slot = finish(hash(s)) & mask;
+        for(;;)
+        {
+            int code = slots[slot];
+            if(code == 0) return -1;
+            if(equals(code - 1, s)) return code - 1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Decodes all strings of this table.
+     *
+     * @return an array of the strings, indexed by code
+     */
+    public String[] toArray()
+    {
+        String[] array = new String[offsets.length];
+        for(int i=0; i<array.length; i++) array[i] = get(i);
+        return array;
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException(ex);     // every JVM must support SHA-256
+        }
+    }
+
+    private static long toLong(byte[] digest)
+    {
+        long v = 0;
+        for(int i=0; i<8; i++) v = (v << 8) | (digest[i] & 0xff);
+        return v;
+    }
+
+    /**
+     * Returns a hash of the contents of this table, computed over its
+     * raw bytes (without decoding any strings).
+     *
+     * @return the fingerprint (the same value that
+     *   {@link #fingerprint(String[])} returns for the decoded strings)
+     */
+    public long fingerprint()
+    {
+        MessageDigest digest = sha256();
+        digest.update(buf.duplicate()
+            .position(offsets.length == 0 ? end : offsets[0]).limit(end));
+        return toLong(digest.digest());
+    }
+
+    /**
+     * Returns a hash of the given strings, which is the same as the
+     * fingerprint of a table that contains these strings.
+     *
+     * @param strings   the strings
+     * @return the fingerprint
+     */
+    public static long fingerprint(String[] strings)
+    {
+        MessageDigest digest = sha256();
+        for(String s: strings)
+        {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int len = bytes.length;
+            while(len >= 0x80)
+            {
+                digest.update((byte)(len | 0x80));
+                len >>>= 7;
+            }
+            digest.update((byte)len);
+            digest.update(bytes);
+        }
+        return toLong(digest.digest());
+    }
+}
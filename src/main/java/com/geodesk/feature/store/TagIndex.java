@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.clarisma.common.store.FreeStore;
+import com.clarisma.common.store.StoreException;
+import com.geodesk.feature.Tags;
+import com.geodesk.feature.match.TagTerms;
+import com.geodesk.feature.match.TypeBits;
+import com.geodesk.feature.query.TileScanner;
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A sidecar index that summarizes the tags of the features in each tile
+ * using a Bloom filter, which contains the keys and the key/value pairs
+ * ("terms", see {@link TagTerms}) of all features stored in the tile
+ * (including features that span multiple tiles). A query that requires
+ * specific tags consults the index before it searches a tile, which
+ * lets it skip most tiles if it looks for rare keys or values.
+ *
+ * Like the {@link IdIndex}, the file is built once for a GOL and is only
+ * used if its fingerprint matches the tile index of the GOL.
+ *
+ * File layout (little-endian):
+ *
+ * <pre>
+ *   0   int     magic
+ *   4   int     version
+ *   8   long    fingerprint of the GOL's tile index
+ *   16  int     number of TIPs in the table
+ *   20          (reserved)
+ *   32  long[]  for each TIP, the file offset of its filter
+ *               (0 if the tile has no filter)
+ *       ...     filters (8-byte aligned; a filter never straddles
+ *               a 1-GB boundary)
+ * </pre>
+ *
+ * Each filter starts with an int that holds the base-2 logarithm of
+ * the number of bits, followed by 4 reserved bytes and the bits.
+ */
+public class TagIndex
+{
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private int tipCount;
+
+    public static final int MAGIC = 0x7A6B100F;
+    public static final int VERSION = 1;
+
+    private static final int FINGERPRINT_OFS = 8;
+    private static final int TIP_COUNT_OFS = 16;
+    private static final int HEADER_SIZE = 32;
+    private static final int FILTER_HEADER_SIZE = 8;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * The number of bits set for each term.
+     */
+    private static final int HASH_COUNT = 5;
+    /**
+     * The number of filter bits per term (before rounding up to the next
+     * power of 2), which results in a false-positive rate of about 1%.
+     */
+    private static final int BITS_PER_TERM = 10;
+    private static final int MIN_LOG2_BITS = 9;
+    private static final int MAX_LOG2_BITS = 30;
+
+    private TagIndex(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens an existing tag index.
+     *
+     * @param path          the path of the index file
+     * @param fingerprint   the fingerprint of the GOL's tile index
+     * @return the index, or `null` if the file does not exist or
+     *         belongs to a different version of the GOL
+     */
+    public static TagIndex open(Path path, long fingerprint)
+    {
+        if(!Files.exists(path)) return null;
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(path, READ);
+            long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE) return close(channel);
+            TagIndex index = new TagIndex(channel);
+            int segmentCount = (int)((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            index.segments = new MappedByteBuffer[segmentCount];
+            for(int i=0; i<segmentCount; i++)
+            {
+                long ofs = (long)i * SEGMENT_SIZE;
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    ofs, Math.min(fileSize - ofs, SEGMENT_SIZE));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                index.segments[i] = buf;
+            }
+            ByteBuffer header = index.segments[0];
+            index.tipCount = header.getInt(TIP_COUNT_OFS);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+                header.getLong(FINGERPRINT_OFS) != fingerprint ||
+                HEADER_SIZE + (long)index.tipCount * 8 > fileSize)
+            {
+                index.close();
+                return null;
+            }
+            return index;
+        }
+        catch(IOException ex)
+        {
+            if(channel != null) close(channel);
+            throw new StoreException("Failed to open tag index", path, ex);
+        }
+    }
+
+    private static TagIndex close(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException ex)
+        {
+            // ignore
+        }
+        return null;
+    }
+
+    public void close()
+    {
+        if(segments == null) return;
+        FreeStore.unmapSegments(segments);
+        segments = null;
+        close(channel);
+    }
+
+    /**
+     * Checks whether the given tile may contain features that have
+     * the required terms.
+     *
+     * @param tip       the TIP of the tile
+     * @param terms     the terms required by a query (as returned
+     *                  by {@link com.geodesk.feature.match.Matcher#tagTerms()})
+     * @return `false` if the tile definitely contains no features with
+     *         the required terms, otherwise `true`
+     */
+    public boolean mayContain(int tip, long[][][] terms)
+    {
+        if(tip >= tipCount) return true;
+        long pEntry = HEADER_SIZE + (long)tip * 8;
+        long pFilter = segments[(int)(pEntry >>> 30)].getLong((int)pEntry & (SEGMENT_SIZE-1));
+        if(pFilter == 0) return true;
+        ByteBuffer buf = segments[(int)(pFilter >>> 30)];
+        int p = (int)pFilter & (SEGMENT_SIZE-1);
+        long mask = (1L << buf.getInt(p)) - 1;
+        p += FILTER_HEADER_SIZE;
+        for(long[][] selector: terms)
+        {
+            if(containsAll(buf, p, mask, selector)) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsAll(ByteBuffer buf, int p, long mask, long[][] clauses)
+    {
+        for(long[] alternatives: clauses)
+        {
+            if(!containsAny(buf, p, mask, alternatives)) return false;
+        }
+        return true;
+    }
+
+    private static boolean containsAny(ByteBuffer buf, int p, long mask, long[] terms)
+    {
+    outer:
+        for(long term: terms)
+        {
+            long h1 = term & 0xffff_ffffL;
+            long h2 = (term >>> 32) | 1;
+            for(int i=0; i<HASH_COUNT; i++)
+            {
+                long bit = (h1 + i * h2) & mask;
+                if((buf.get(p + (int)(bit >>> 3)) & (1 << (bit & 7))) == 0) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the terms of a tag (its key, and the combination of key and
+     * value) to a set of terms.
+     */
+    static void addTerms(LongHashSet terms, String key, String value)
+    {
+        terms.add(TagTerms.keyTerm(key));
+        terms.add(TagTerms.tagTerm(key, value));
+    }
+
+    /**
+     * Builds a tag index for all tiles in a FeatureStore and writes
+     * it to the given file.
+     *
+     * @param store     the FeatureStore
+     * @param path      the path of the index file
+     */
+    public static void build(FeatureStore store, Path path)
+    {
+        // The tile count of the snapshot is the highest TIP
+        try(Builder builder = new Builder(path, store.tileIndexFingerprint(),
+            store.tileCount() + 1))
+        {
+            LongHashSet terms = new LongHashSet();
+            TileScanner.forEachTile(store, (tip, tilePage) ->
+            {
+                terms.clear();
+                // Include the copies of features that span multiple tiles
+                TileScanner.scanTile(store, tilePage, TypeBits.ALL, true, (buf, pFeature) ->
+                {
+                    Tags tags = store.getFeature(buf, pFeature).tags();
+                    while(tags.next()) addTerms(terms, tags.key(), tags.stringValue());
+                });
+                builder.addTile(tip, terms);
+            });
+            builder.finish();
+        }
+    }
+
+    /**
+     * Writes a tag index, one tile at a time.
+     */
+    static class Builder implements AutoCloseable
+    {
+        private final Path path;
+        private final Path tempPath;
+        private final long fingerprint;
+        private final long[] offsets;
+        private final long dataStart;
+        private final FileChannel out;
+        private long pos;
+
+        /**
+         * Creates a Builder.
+         *
+         * @param path          the path of the index file
+         * @param fingerprint   the fingerprint of the GOL's tile index
+         * @param tipCount      the number of TIPs (highest TIP plus one)
+         */
+        Builder(Path path, long fingerprint, int tipCount)
+        {
+            this.path = path;
+            this.fingerprint = fingerprint;
+            offsets = new long[tipCount];
+            dataStart = (HEADER_SIZE + (long)tipCount * 8 + 7) & ~7L;
+            pos = dataStart;
+            tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            try
+            {
+                out = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write tag index", path, ex);
+            }
+        }
+
+        /**
+         * Writes the filter of a tile.
+         *
+         * @param tip       the TIP of the tile
+         * @param terms     the terms of all features stored in the tile
+         *                  (tiles without terms don't get a filter)
+         */
+        void addTile(int tip, LongHashSet terms)
+        {
+            if(terms.isEmpty()) return;
+            ByteBuffer filter = createFilter(terms);
+            long start = pos;
+            long ofs = start & (SEGMENT_SIZE-1);
+            if(ofs + filter.capacity() > SEGMENT_SIZE) start += SEGMENT_SIZE - ofs;
+            try
+            {
+                write(out, filter, start);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write tag index", path, ex);
+            }
+            offsets[tip] = start;
+            pos = start + filter.capacity();
+        }
+
+        /**
+         * Writes the header and the table of filter offsets, and moves
+         * the index into place.
+         */
+        void finish()
+        {
+            try
+            {
+                ByteBuffer buf = ByteBuffer.allocate((int)dataStart).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(MAGIC);
+                buf.putInt(VERSION);
+                buf.putLong(fingerprint);
+                buf.putInt(offsets.length);
+                buf.position(HEADER_SIZE);
+                for(long ofs: offsets) buf.putLong(ofs);
+                buf.clear();
+                write(out, buf, 0);
+                out.close();
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write tag index", path, ex);
+            }
+        }
+
+        @Override public void close()
+        {
+            try
+            {
+                out.close();
+                Files.deleteIfExists(tempPath);
+            }
+            catch(IOException ex)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private static ByteBuffer createFilter(LongHashSet terms)
+    {
+        long minBits = (long)terms.size() * BITS_PER_TERM;
+        int log2Bits = Math.max(64 - Long.numberOfLeadingZeros(minBits - 1), MIN_LOG2_BITS);
+        log2Bits = Math.min(log2Bits, MAX_LOG2_BITS);
+        long mask = (1L << log2Bits) - 1;
+        ByteBuffer buf = ByteBuffer.allocate(FILTER_HEADER_SIZE + (1 << (log2Bits - 3)))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, log2Bits);
+        LongIterator iter = terms.longIterator();
+        while(iter.hasNext())
+        {
+            long term = iter.next();
+            long h1 = term & 0xffff_ffffL;
+            long h2 = (term >>> 32) | 1;
+            for(int i=0; i<HASH_COUNT; i++)
+            {
+                long bit = (h1 + i * h2) & mask;
+                int p = FILTER_HEADER_SIZE + (int)(bit >>> 3);
+                buf.put(p, (byte)(buf.get(p) | (1 << (bit & 7))));
+            }
+        }
+        return buf;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buf, long pos) throws IOException
+    {
+        while(buf.hasRemaining()) pos += out.write(buf, pos);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.geodesk.feature.Feature;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Extracts the values of a fixed list of keys from features, using a
+ * single scan of each feature's tag-table.
+ *
+ * Keys are resolved once, when the projection is created: Keys that
+ * are common (i.e. global strings) are mapped to their position in the
+ * list via a table indexed by key code; for uncommon keys, we keep their
+ * UTF-8 encoding, so they can be compared against the tag-table's local
+ * keys without decoding any strings.
+ *
+ * A TagProjection is immutable and can be shared among threads.
+ */
+public class TagProjection
+{
+    private final FeatureStore store;
+    private final String[] keys;
+    /**
+     * For each common key code (up to {@link #maxCommonKey}), the
+     * position of the key in the list plus one, or 0 if the key
+     * is not projected.
+     */
+    private final int[] commonSlots;
+    private final int maxCommonKey;
+    private final int commonCount;
+    private final byte[][] uncommonKeys;
+    private final int[] uncommonSlots;
+
+    public TagProjection(FeatureStore store, String... keys)
+    {
+        this(store, keys, commonKeyCodes(store, keys));
+    }
+
+    private static int[] commonKeyCodes(FeatureStore store, String[] keys)
+    {
+        int[] codes = new int[keys.length];
+        for(int i=0; i<keys.length; i++)
+        {
+            codes[i] = StoredFeature.commonKeyCode(store, keys[i]);
+        }
+        return codes;
+    }
+
+    /**
+     * Creates a projection whose keys have already been resolved.
+     *
+     * @param store     the FeatureStore
+     * @param keys      the keys
+     * @param codes     for each key, its code if it is common, otherwise -1
+     */
+    TagProjection(FeatureStore store, String[] keys, int[] codes)
+    {
+        this.store = store;
+        this.keys = keys.clone();
+        int maxCode = 0;
+        int uncommon = 0;
+        for(int i=0; i<keys.length; i++)
+        {
+            for(int i2=0; i2<i; i2++)
+            {
+                if(keys[i2].equals(keys[i]))
+                {
+                    throw new IllegalArgumentException("Duplicate key: " + keys[i]);
+                }
+            }
+            if(codes[i] > 0)
+            {
+                maxCode = Math.max(maxCode, codes[i]);
+            }
+            else
+            {
+                uncommon++;
+            }
+        }
+        maxCommonKey = maxCode;
+        commonCount = keys.length - uncommon;
+        commonSlots = new int[maxCode + 1];
+        uncommonKeys = new byte[uncommon][];
+        uncommonSlots = new int[uncommon];
+        uncommon = 0;
+        for(int i=0; i<keys.length; i++)
+        {
+            if(codes[i] > 0)
+            {
+                commonSlots[codes[i]] = i + 1;
+            }
+            else
+            {
+                uncommonKeys[uncommon] = keys[i].getBytes(StandardCharsets.UTF_8);
+                uncommonSlots[uncommon] = i;
+                uncommon++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys in this projection.
+     */
+    public int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * Returns the key at the given position.
+     */
+    public String key(int n)
+    {
+        return keys[n];
+    }
+
+    /**
+     * Retrieves the values of the projected keys. For each key that the
+     * feature does not have, `values` receives an empty string.
+     *
+     * @param feature   the feature
+     * @param values    an array with at least {@link #size()} elements,
+     *                  which receives the value of each key
+     * @return the number of keys that were found
+     */
+    public int project(Feature feature, String[] values)
+    {
+        Arrays.fill(values, 0, keys.length, "");
+        if(feature instanceof StoredFeature sf && sf.store() == store)
+        {
+            return project(sf.buffer(), sf.pointer(), values);
+        }
+        int found = 0;
+        for(int i=0; i<keys.length; i++)
+        {
+            values[i] = feature.stringValue(keys[i]);
+            if(!values[i].isEmpty()) found++;
+        }
+        return found;
+    }
+
+    int project(ByteBuffer buf, int ptr, String[] values)
+    {
+        int ppTags = ptr + 8;
+        int pTags = buf.getInt(ppTags);
+        int uncommonKeysFlag = pTags & 1;
+        pTags = ppTags + (pTags ^ uncommonKeysFlag);
+        int found = 0;
+
+        if(commonCount > 0)
+        {
+            // Common keys are sorted by code; the empty-table marker
+            // has code 0 and the last-key flag set
+            int p = pTags;
+            for(;;)
+            {
+                int tag = buf.getInt(p);
+                int code = (tag >> 2) & 0x1fff;
+                if(code > maxCommonKey) break;
+                int slot = commonSlots[code];
+                if(slot != 0)
+                {
+                    values[slot-1] = StoredFeature.valueAsString(store, buf,
+                        ((long)(p + 2) << 32) | ((long)tag & 0xffff_ffffL));
+                    if(++found == commonCount) break;
+                }
+                if((tag & 0x8000) != 0) break;
+                p += 4 + (tag & 2);
+            }
+        }
+
+        if(uncommonKeysFlag == 0 || uncommonKeys.length == 0) return found;
+        int remaining = uncommonKeys.length;
+        int p = StoredFeature.firstUncommonTag(pTags);
+        do
+        {
+            long match = StoredFeature.findUncommonKey(buf, pTags, p, uncommonKeys);
+            if(match < 0) break;
+            p = (int)match;
+            values[uncommonSlots[(int)(match >>> 32)]] = StoredFeature.valueAsString(
+                store, buf, StoredFeature.uncommonTagValue(buf, p));
+            found++;
+            p = StoredFeature.nextUncommonTag(buf, p);
+        }
+        while(--remaining > 0 && p != 0);
+        return found;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Limits the number of tasks of a FeatureStore that run at the same time
+ * in the pool of its QueryExecutor. If the executor is shared by multiple
+ * FeatureStores, this enforces the parallelism set for each store, no
+ * matter how many queries are running against it.
+ *
+ * Tasks beyond the limit are held in a queue, rather than blocking the
+ * submitting thread or a worker; each task that completes submits the
+ * next waiting task. Every task that has been started via
+ * {@link #execute} must call {@link #taskCompleted()} once it has
+ * finished.
+ */
+public class TaskLimiter
+{
+    private final ForkJoinPool pool;
+    private final Queue<Pending> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile int limit;
+
+    private static class Pending
+    {
+        final ForkJoinTask<?> task;
+        final Consumer<RejectedExecutionException> onRejected;
+
+        Pending(ForkJoinTask<?> task, Consumer<RejectedExecutionException> onRejected)
+        {
+            this.task = task;
+            this.onRejected = onRejected;
+        }
+    }
+
+    /**
+     * Creates a TaskLimiter.
+     *
+     * @param pool      the pool in which tasks run
+     * @param limit     the maximum number of tasks running at the same time
+     */
+    public TaskLimiter(ForkJoinPool pool, int limit)
+    {
+        this.pool = pool;
+        setLimit(limit);
+    }
+
+    public int limit()
+    {
+        return limit;
+    }
+
+    /**
+     * Changes the limit. Tasks that are already running are not
+     * affected; if the limit is raised, waiting tasks are started.
+     *
+     * @param limit     the maximum number of tasks (at least 1)
+     */
+    public void setLimit(int limit)
+    {
+        if(limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+        this.limit = limit;
+        drain();
+    }
+
+    /**
+     * Returns the number of tasks that are currently running (or have
+     * been handed to the pool).
+     */
+    public int running()
+    {
+        return running.get();
+    }
+
+    /**
+     * Runs a task in the pool, as soon as fewer tasks than the limit are
+     * running.
+     *
+     * @param task          the task
+     * @param onRejected    called (possibly on another thread) if the pool
+     *                      refuses the task because it has been shut down;
+     *                      in this case, the task must not call
+     *                      {@link #taskCompleted()}
+     */
+    public void execute(ForkJoinTask<?> task, Consumer<RejectedExecutionException> onRejected)
+    {
+        waiting.add(new Pending(task, onRejected));
+        drain();
+    }
+
+    /**
+     * Must be called by each task once it has finished.
+     */
+    public void taskCompleted()
+    {
+        running.decrementAndGet();
+        drain();
+    }
+
+    private void drain()
+    {
+        for(;;)
+        {
+            int n = running.get();
+            if(n >= limit || waiting.isEmpty()) return;
+            if(!running.compareAndSet(n, n + 1)) continue;
+            Pending next = waiting.poll();
+            if(next == null)
+            {
+                // Another thread took the task; give back the slot
+                running.decrementAndGet();
+                continue;
+            }
+            try
+            {
+                pool.execute(next.task);
+            }
+            catch(RejectedExecutionException ex)
+            {
+                running.decrementAndGet();
+                next.onRejected.accept(ex);
+            }
+        }
+    }
+}
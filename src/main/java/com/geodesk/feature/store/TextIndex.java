@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.clarisma.common.store.FreeStore;
+import com.clarisma.common.store.StoreException;
+import com.geodesk.feature.Tags;
+import com.geodesk.feature.match.TypeBits;
+import com.geodesk.feature.query.TileScanner;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A sidecar index that maps the words ("tokens") that occur in the
+ * names, refs and addresses of features to the features' locations
+ * (TIP and offset of the feature's anchor within its tile). Tokens are
+ * sorted by their UTF-8 encoding, so all tokens that start with a given
+ * prefix form a contiguous range.
+ *
+ * Only the values of {@linkplain #isIndexedKey(String) indexed keys} are
+ * tokenized. Tokens are normalized by removing diacritics and
+ * converting them to lowercase (see {@link #tokenize}).
+ *
+ * Like the {@link IdIndex}, the file is built once for a GOL and is only
+ * used if its fingerprint matches the tile index of the GOL.
+ *
+ * File layout (little-endian):
+ *
+ * <pre>
+ *   0   int     magic
+ *   4   int     version
+ *   8   long    fingerprint of the GOL's tile index
+ *   16  long    number of tokens
+ *   24  long    number of refs
+ *   32          (reserved)
+ *   64          token entries (one more than the number of tokens)
+ *       ...     refs
+ *       ...     token strings
+ * </pre>
+ *
+ * Each token entry takes up 16 bytes: the offset of the token's string
+ * (relative to the start of the strings section) and the number of the
+ * token's first ref; the refs of a token end where those of the next
+ * token start (the last entry is a sentinel). Each ref is a long that
+ * holds the TIP (upper 32 bits) and the anchor offset (lower 32 bits).
+ * The refs of each token are sorted. A token string consists of its
+ * length in bytes (unsigned short) followed by its UTF-8 encoding.
+ */
+public class TextIndex
+{
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private long tokenCount;
+    private long refCount;
+    private long pRefs;
+    private long pStrings;
+
+    public static final int MAGIC = 0x7E47101D;
+    public static final int VERSION = 1;
+
+    private static final int FINGERPRINT_OFS = 8;
+    private static final int COUNTS_OFS = 16;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private TextIndex(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Checks whether the values of the given key are indexed:
+     * `name`, `ref` and all keys that start with `name:` or `addr:`.
+     */
+    public static boolean isIndexedKey(String key)
+    {
+        return key.equals("name") || key.equals("ref") ||
+            key.startsWith("name:") || key.startsWith("addr:");
+    }
+
+    /**
+     * Splits a string into normalized tokens: Diacritics are removed,
+     * letters are converted to lowercase, and any character that is
+     * neither a letter nor a digit acts as a separator.
+     *
+     * @param s         the string
+     * @param consumer  receives each token
+     */
+    public static void tokenize(String s, Consumer<String> consumer)
+    {
+        String norm = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder buf = new StringBuilder();
+        for(int i=0; i<norm.length(); )
+        {
+            int ch = norm.codePointAt(i);
+            i += Character.charCount(ch);
+            int type = Character.getType(ch);
+            if(Character.isLetterOrDigit(ch) || type == Character.COMBINING_SPACING_MARK)
+            {
+                buf.appendCodePoint(Character.toLowerCase(ch));
+            }
+            else if(type != Character.NON_SPACING_MARK && type != Character.ENCLOSING_MARK)
+            {
+                if(!buf.isEmpty()) consumer.accept(buf.toString());
+                buf.setLength(0);
+            }
+        }
+        if(!buf.isEmpty()) consumer.accept(buf.toString());
+    }
+
+    /**
+     * Opens an existing text index.
+     *
+     * @param path          the path of the index file
+     * @param fingerprint   the fingerprint of the GOL's tile index
+     * @return the index, or `null` if the file does not exist or
+     *         belongs to a different version of the GOL
+     */
+    public static TextIndex open(Path path, long fingerprint)
+    {
+        if(!Files.exists(path)) return null;
+        FileChannel channel = null;
+        try
+        {
+            channel = FileChannel.open(path, READ);
+            long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE) return close(channel);
+            TextIndex index = new TextIndex(channel);
+            int segmentCount = (int)((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            index.segments = new MappedByteBuffer[segmentCount];
+            for(int i=0; i<segmentCount; i++)
+            {
+                long ofs = (long)i * SEGMENT_SIZE;
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    ofs, Math.min(fileSize - ofs, SEGMENT_SIZE));
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                index.segments[i] = buf;
+            }
+            ByteBuffer header = index.segments[0];
+            index.tokenCount = header.getLong(COUNTS_OFS);
+            index.refCount = header.getLong(COUNTS_OFS + 8);
+            index.pRefs = HEADER_SIZE + (index.tokenCount + 1) * ENTRY_SIZE;
+            index.pStrings = index.pRefs + index.refCount * 8;
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+                header.getLong(FINGERPRINT_OFS) != fingerprint ||
+                index.pStrings > fileSize)
+            {
+                index.close();
+                return null;
+            }
+            return index;
+        }
+        catch(IOException ex)
+        {
+            if(channel != null) close(channel);
+            throw new StoreException("Failed to open text index", path, ex);
+        }
+    }
+
+    private static TextIndex close(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException ex)
+        {
+            // ignore
+        }
+        return null;
+    }
+
+    public void close()
+    {
+        if(segments == null) return;
+        FreeStore.unmapSegments(segments);
+        segments = null;
+        close(channel);
+    }
+
+    private long getLong(long pos)
+    {
+        return segments[(int)(pos >>> 30)].getLong((int)pos & (SEGMENT_SIZE-1));
+    }
+
+    private int getByte(long pos)
+    {
+        return segments[(int)(pos >>> 30)].get((int)pos & (SEGMENT_SIZE-1)) & 0xff;
+    }
+
+    /**
+     * Compares the token at the given position with a prefix.
+     *
+     * @return a negative number if the token sorts before the prefix,
+     *   0 if the token starts with the prefix, or a positive number
+     *   if the token sorts after the prefix
+     */
+    private int comparePrefix(long token, byte[] prefix)
+    {
+        long p = pStrings + getLong(HEADER_SIZE + token * ENTRY_SIZE);
+        int len = getByte(p) | (getByte(p + 1) << 8);
+        p += 2;
+        int n = Math.min(len, prefix.length);
+        for(int i=0; i<n; i++)
+        {
+            int diff = getByte(p + i) - (prefix[i] & 0xff);
+            if(diff != 0) return diff;
+        }
+        return len < prefix.length ? -1 : 0;
+    }
+
+    /**
+     * Finds the first token that starts with the given prefix (or would
+     * sort after it); if `after` is `true`, finds the first token that
+     * sorts after all tokens that start with the prefix.
+     */
+    private long search(byte[] prefix, boolean after)
+    {
+        long lo = 0;
+        long hi = tokenCount;
+        while(lo < hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            int comp = comparePrefix(mid, prefix);
+            if(comp < 0 || (after && comp == 0))
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the range of refs of all tokens that start with the
+     * given prefix. If more than one token matches, the refs in this
+     * range are not sorted, and a feature may be referenced more than
+     * once.
+     *
+     * @param prefix    a normalized token or token prefix
+     * @return a two-element array with the number of the first ref
+     *   (see {@link #ref(long)}) and the number of refs
+     */
+    public long[] findPrefix(String prefix)
+    {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        long first = search(bytes, false);
+        long end = search(bytes, true);
+        long firstRef = getLong(HEADER_SIZE + first * ENTRY_SIZE + 8);
+        long endRef = getLong(HEADER_SIZE + end * ENTRY_SIZE + 8);
+        return new long[] { firstRef, endRef - firstRef };
+    }
+
+    /**
+     * Returns the TIP (upper 32 bits) and the anchor offset of a feature
+     * (lower 32 bits) for the ref with the given number.
+     */
+    public long ref(long n)
+    {
+        return getLong(pRefs + n * 8);
+    }
+
+    /**
+     * Builds a text index for all features in a FeatureStore and writes
+     * it to the given file.
+     *
+     * @param store     the FeatureStore
+     * @param path      the path of the index file
+     */
+    public static void build(FeatureStore store, Path path)
+    {
+        Builder builder = new Builder(path, store.tileIndexFingerprint(),
+            Builder.DEFAULT_RUN_SIZE);
+        Set<String> featureTokens = new HashSet<>();
+        try
+        {
+            TileScanner.forEachTile(store, (tip, tilePage) ->
+            {
+                int pTile = store.offsetOfPage(tilePage);
+                long tipBits = (long)tip << 32;
+                TileScanner.scanTile(store, tilePage, TypeBits.ALL, (buf, pFeature) ->
+                {
+                    Tags tags = store.getFeature(buf, pFeature).tags();
+                    while(tags.next())
+                    {
+                        if(isIndexedKey(tags.key())) tokenize(tags.stringValue(), featureTokens::add);
+                    }
+                    if(featureTokens.isEmpty()) return;
+                    long ref = tipBits | (pFeature - pTile);
+                    for(String token: featureTokens) builder.add(token, ref);
+                    featureTokens.clear();
+                });
+            });
+            builder.finish();
+        }
+        finally
+        {
+            builder.deleteRuns();
+        }
+    }
+
+    /**
+     * Writes a text index without holding all tokens in memory: Tokens and
+     * their refs are collected in memory until a run reaches a given number
+     * of refs; the run is then sorted and written to a temporary file. Once
+     * all tokens have been added, the runs are merged into the index file.
+     */
+    static class Builder
+    {
+        private final Path path;
+        private final long fingerprint;
+        private final int maxRunSize;
+        private Map<String,LongArrayList> run = new HashMap<>();
+        private int runSize;
+        private final List<Path> runPaths = new ArrayList<>();
+
+        /**
+         * The default number of refs per run (each ref takes up 8 bytes,
+         * plus the overhead of the tokens).
+         */
+        static final int DEFAULT_RUN_SIZE = 1 << 22;
+
+        /**
+         * Creates a Builder.
+         *
+         * @param path          the path of the index file
+         * @param fingerprint   the fingerprint of the GOL's tile index
+         * @param maxRunSize    the maximum number of refs held in memory
+         */
+        Builder(Path path, long fingerprint, int maxRunSize)
+        {
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.maxRunSize = maxRunSize;
+        }
+
+        /**
+         * Adds a ref to a token. A token must not be added more than once
+         * for the same ref.
+         *
+         * @param token     the (normalized) token
+         * @param ref       the TIP (upper 32 bits) and anchor offset
+         *                  (lower 32 bits) of the feature
+         */
+        void add(String token, long ref)
+        {
+            run.computeIfAbsent(token, k -> new LongArrayList()).add(ref);
+            if(++runSize >= maxRunSize) spill();
+        }
+
+        private static byte[][] sortedTokens(Collection<String> tokens)
+        {
+            byte[][] sorted = new byte[tokens.size()][];
+            int n = 0;
+            for(String token: tokens) sorted[n++] = token.getBytes(StandardCharsets.UTF_8);
+            Arrays.sort(sorted, Arrays::compareUnsigned);
+            return sorted;
+        }
+
+        /**
+         * Writes the current run to a temporary file: for each token
+         * (in sort order), its length, its UTF-8 bytes, the number of
+         * its refs and the (sorted) refs.
+         */
+        private void spill()
+        {
+            if(runSize == 0) return;
+            Path runPath = path.resolveSibling(path.getFileName() + ".run" + runPaths.size());
+            runPaths.add(runPath);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(runPath, CREATE, WRITE, TRUNCATE_EXISTING), 1 << 16)))
+            {
+                for(byte[] token: sortedTokens(run.keySet()))
+                {
+                    long[] refs = run.get(new String(token, StandardCharsets.UTF_8)).toSortedArray();
+                    out.writeShort(token.length);
+                    out.write(token);
+                    out.writeInt(refs.length);
+                    for(long ref: refs) out.writeLong(ref);
+                }
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write text index", runPath, ex);
+            }
+            run = new HashMap<>();
+            runSize = 0;
+        }
+
+        /**
+         * Merges all runs and writes the index file.
+         */
+        void finish()
+        {
+            spill();
+            run = null;
+            Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            Path refsPath = path.resolveSibling(path.getFileName() + ".refs");
+            Path stringsPath = path.resolveSibling(path.getFileName() + ".strings");
+            List<Path> runs = new ArrayList<>(runPaths);
+            runPaths.add(refsPath);         // so deleteRuns() removes them
+            runPaths.add(stringsPath);
+            List<RunReader> readers = new ArrayList<>(runs.size());
+            PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                Math.max(runs.size(), 1), (a, b) -> Arrays.compareUnsigned(a.token, b.token));
+            try(FileChannel out = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING, READ);
+                FileChannel refsOut = FileChannel.open(refsPath, CREATE, WRITE, TRUNCATE_EXISTING, READ);
+                FileChannel stringsOut = FileChannel.open(stringsPath, CREATE, WRITE, TRUNCATE_EXISTING, READ))
+            {
+                for(Path runPath: runs)
+                {
+                    RunReader reader = new RunReader(runPath);
+                    readers.add(reader);
+                    if(reader.next()) queue.add(reader);
+                }
+
+                // The token entries are written directly to the index file;
+                // the refs and strings are appended once all tokens are known
+
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer refsBuf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer stringsBuf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                out.position(HEADER_SIZE);
+                long tokenCount = 0;
+                long stringPos = 0;
+                long refPos = 0;
+                LongArrayList refs = new LongArrayList();
+                while(!queue.isEmpty())
+                {
+                    RunReader reader = queue.poll();
+                    byte[] token = reader.token;
+                    refs.clear();
+                    for(;;)
+                    {
+                        refs.addAll(reader.refs);
+                        if(reader.next()) queue.add(reader);
+                        reader = queue.peek();
+                        if(reader == null || !Arrays.equals(reader.token, token)) break;
+                        queue.poll();
+                    }
+                    refs.sortThis();
+
+                    if(buf.remaining() < ENTRY_SIZE) flush(out, buf);
+                    buf.putLong(stringPos);
+                    buf.putLong(refPos);
+                    for(int i=0; i<refs.size(); i++)
+                    {
+                        if(refsBuf.remaining() < 8) flush(refsOut, refsBuf);
+                        refsBuf.putLong(refs.get(i));
+                    }
+                    if(stringsBuf.remaining() < 2 + token.length) flush(stringsOut, stringsBuf);
+                    stringsBuf.putShort((short)token.length);
+                    stringsBuf.put(token);
+                    stringPos += 2 + token.length;
+                    refPos += refs.size();
+                    tokenCount++;
+                }
+                if(buf.remaining() < ENTRY_SIZE) flush(out, buf);
+                buf.putLong(stringPos);
+                buf.putLong(refPos);
+                flush(out, buf);
+                flush(refsOut, refsBuf);
+                flush(stringsOut, stringsBuf);
+                append(out, refsOut);
+                append(out, stringsOut);
+
+                buf.putInt(MAGIC);
+                buf.putInt(VERSION);
+                buf.putLong(fingerprint);
+                buf.putLong(tokenCount);
+                buf.putLong(refPos);
+                buf.flip();
+                out.position(0);
+                while(buf.hasRemaining()) out.write(buf);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write text index", path, ex);
+            }
+            finally
+            {
+                for(RunReader reader: readers) reader.close();
+            }
+            try
+            {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(IOException ex)
+            {
+                throw new StoreException("Failed to write text index", path, ex);
+            }
+        }
+
+        private static void append(FileChannel out, FileChannel in) throws IOException
+        {
+            long size = in.size();
+            long pos = 0;
+            while(pos < size) pos += in.transferTo(pos, size - pos, out);
+        }
+
+        /**
+         * Deletes the temporary files.
+         */
+        void deleteRuns()
+        {
+            for(Path runPath: runPaths)
+            {
+                try
+                {
+                    Files.deleteIfExists(runPath);
+                }
+                catch(IOException ex)
+                {
+                    // ignore
+                }
+            }
+            runPaths.clear();
+        }
+    }
+
+    /**
+     * Reads the tokens of a run, in sort order.
+     */
+    private static class RunReader
+    {
+        private final DataInputStream in;
+        byte[] token;
+        long[] refs;
+
+        RunReader(Path path) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        /**
+         * Reads the next token and its refs.
+         *
+         * @return `false` if there are no more tokens (in which case the
+         *   reader is closed)
+         */
+        boolean next() throws IOException
+        {
+            int len;
+            try
+            {
+                len = in.readUnsignedShort();
+            }
+            catch(EOFException ex)
+            {
+                close();
+                return false;
+            }
+            token = new byte[len];
+            in.readFully(token);
+            refs = new long[in.readInt()];
+            for(int i=0; i<refs.length; i++) refs[i] = in.readLong();
+            return true;
+        }
+
+        void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException ex)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.text;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+public class ByteRegexTest
+{
+    private static final String[] SUPPORTED =
+    {
+        "", "abc", ".*strasse", "^Rue .*$", "[A-Z][a-z]+",
+        "[^0-9]*", "\\d{2,4}", "\\w+\\s\\w+", "a(b|c)*d?", "(ab){2}", "x{3,}",
+        ".", "..", "[äöü]+", "[^ä]", "\\.", "\\u00e9t\\u00e9", "[a-]+",
+        "(?:foo|bar)baz", "\\S*", "é.*", ".+?", "[\\d.,]+", "a|", "\\x41+",
+        "[α-ω]+", ".*\\$", "$", "[😀-😎]+", "\\W"
+    };
+
+    private static final String[] UNSUPPORTED =
+    {
+        "(?i)abc", "a**", "a*+", "\\bword", "(a)\\1", "[a[b]]", "[a&&b]",
+        "\\p{L}+", "a{100}", "(?=a)", "[]a]", "a^", "$a"
+    };
+
+    private static final String[] INPUTS =
+    {
+        "", "a", "abc", "abd", "Hauptstrasse", "Hauptstraße", "Rue de la Paix",
+        "Rue ", "Main", "MAIN", "123", "12345", "12", "hello world", "hello  world",
+        "abcbcd", "ad", "abab", "ababab", "xxx", "xx", "xxxxx", "ä", "äöü", "ö",
+        "é", "été", "ete", "a-a", "foobaz", "barbaz", "bazbaz", "\n", "a\nb",
+        "\u0085", " ", "1.234,5", "AAA", "αβγ", "ωα", "x$", "$", "😀😎",
+        "😏", " ", "_", "中文", "x.y", ".", "a\r"
+    };
+
+    private static ByteBuffer encode(String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length + 2).order(ByteOrder.LITTLE_ENDIAN);
+        if(bytes.length < 128)
+        {
+            buf.put((byte)bytes.length);
+        }
+        else
+        {
+            buf.put((byte)((bytes.length & 0x7f) | 0x80));
+            buf.put((byte)(bytes.length >> 7));
+        }
+        buf.put(bytes);
+        return buf;
+    }
+
+    @Test public void testMatches()
+    {
+        for(String regex: SUPPORTED)
+        {
+            ByteRegex br = ByteRegex.compile(regex);
+            Assert.assertNotNull(regex, br);
+            Pattern pattern = Pattern.compile(regex);
+            for(String s: INPUTS)
+            {
+                boolean expected = pattern.matcher(s).matches();
+                Assert.assertEquals(regex + " / " + s, expected, br.matches(s));
+                Assert.assertEquals(regex + " / " + s, expected, br.matches(encode(s), 0));
+            }
+        }
+    }
+
+    @Test public void testLongString()
+    {
+        String s = "x".repeat(200) + "strasse";
+        ByteRegex br = ByteRegex.compile(".*strasse");
+        Assert.assertTrue(br.matches(encode(s), 0));
+        Assert.assertFalse(br.matches(encode(s + "n"), 0));
+    }
+
+    @Test public void testUnsupported()
+    {
+        for(String regex: UNSUPPORTED)
+        {
+            Assert.assertNull(regex, ByteRegex.compile(regex));
+        }
+    }
+}
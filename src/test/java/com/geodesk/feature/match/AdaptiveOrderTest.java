@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveOrderTest
+{
+    @Test public void testOrderFlipsForSkewedInput()
+    {
+        AdaptiveOrder order = new AdaptiveOrder();
+        assertFalse(order.swapped());
+
+        // The first operand is expensive and always passes, the second
+        // is cheap and always fails: the second should run first
+        for(int i=0; i<64; i++) order.record(true, 1000, false, 10);
+        assertTrue(order.swapped());
+
+        // Costs that differ by less than 10% don't flip the order back
+        for(int i=0; i<64; i++) order.record(false, 100, false, 95);
+        assertTrue(order.swapped());
+
+        // Once the roles are reversed, the original order is restored
+        for(int i=0; i<256; i++) order.record(false, 10, true, 1000);
+        assertFalse(order.swapped());
+    }
+
+    @Test public void testSamplingRate()
+    {
+        AdaptiveOrder order = new AdaptiveOrder();
+        int n = 1 << 20;
+        int samples = 0;
+        for(int i=0; i<n; i++) if(order.sample()) samples++;
+        assertEquals(n / AdaptiveOrder.SAMPLE_INTERVAL, samples);
+    }
+}
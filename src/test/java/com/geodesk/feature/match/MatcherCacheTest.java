@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.match;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MatcherCacheTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<File> entries(Path dir, String suffix)
+    {
+        List<File> list = new ArrayList<>();
+        for(File f: dir.toFile().listFiles())
+        {
+            if(f.getName().endsWith(suffix)) list.add(f);
+        }
+        return list;
+    }
+
+    @Test public void testLongQuery()
+    {
+        Path dir = folder.getRoot().toPath();
+        MatcherCache cache = MatcherCache.open(dir, 1234, null, 7);
+        assertNotNull(cache);
+
+        // A query whose UTF-8 encoding exceeds the 64 KB limit of writeUTF()
+        StringBuilder buf = new StringBuilder("na[name=");
+        for(int i=0; i<20_000; i++)
+        {
+            if(i > 0) buf.append(',');
+            buf.append("café").append(i);
+        }
+        buf.append(']');
+        String query = buf.toString();
+        byte[] code = { 1, 2, 3, 4, 5 };
+        cache.store(query, code);
+        assertArrayEquals(code, cache.load(query));
+        assertNull(cache.load("na[name=café]"));
+
+        List<String> queries = new ArrayList<>();
+        cache.forEach((q, c) -> queries.add(q), 10);
+        assertEquals(List.of(query), queries);
+    }
+
+    @Test public void testFailedStoreRemovesTempFile() throws Exception
+    {
+        Path dir = folder.getRoot().toPath();
+        MatcherCache cache = MatcherCache.open(dir, 1234, null, 7);
+        cache.store("n[amenity]", new byte[] { 1 });
+        List<File> entries = entries(dir, ".matcher");
+        assertEquals(1, entries.size());
+
+        // Occupy the entry's path with a non-empty directory, so the
+        // temporary file can't be moved into place
+        Path path = entries.get(0).toPath();
+        Files.delete(path);
+        Files.createDirectory(path);
+        Files.createFile(path.resolve("blocker"));
+        cache.store("n[amenity]", new byte[] { 2 });
+        assertTrue(entries(dir, ".tmp").isEmpty());
+        assertNull(cache.load("n[amenity]"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.FeatureFlags;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.geom.Mercator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AggregatorTest
+{
+    /**
+     * Creates a chain of results (spread over several buckets) for the
+     * given number of pointers.
+     */
+    private static QueryResults results(int count, int firstPointer)
+    {
+        QueryResults res = new QueryResults(null, 16);
+        for(int i=0; i<count; i++) res.add(firstPointer + i * 4);
+        return res;
+    }
+
+    /**
+     * An Aggregator that only implements add(), so it visits the
+     * pointers one by one (unlike COUNT, which only looks at the
+     * size of each bucket).
+     */
+    private static class PointerCollector extends Aggregator<Set<Integer>>
+    {
+        @Override Set<Integer> newPartial()
+        {
+            return new HashSet<>();
+        }
+
+        @Override void add(Set<Integer> partial, FeatureStore store, ByteBuffer buf, int pFeature)
+        {
+            assertTrue(partial.add(pFeature));
+        }
+
+        @Override Set<Integer> combine(Set<Integer> a, Set<Integer> b)
+        {
+            a.addAll(b);
+            return a;
+        }
+    }
+
+    @Test public void testCountMatchesResults()
+    {
+        Random random = new Random(3);
+        long[] total = Aggregator.COUNT.newPartial();
+        Set<Integer> pointers = new HashSet<>();
+        PointerCollector collector = new PointerCollector();
+        int expected = 0;
+        for(int tile=0; tile<20; tile++)
+        {
+            int count = random.nextInt(100);
+            expected += count;
+            QueryResults res = results(count, tile << 16);
+
+            // Each tile is reduced to a partial result, as in a worker thread
+            long[] partial = Aggregator.COUNT.newPartial();
+            Aggregator.COUNT.addAll(partial, null, res);
+            total = Aggregator.COUNT.combine(total, partial);
+
+            Set<Integer> visited = collector.newPartial();
+            collector.addAll(visited, null, res);
+            assertEquals(count, visited.size());
+            assertEquals(count, partial[0]);
+            pointers = collector.combine(pointers, visited);
+        }
+        assertEquals(expected, total[0]);
+        assertEquals(expected, pointers.size());
+
+        long[] empty = Aggregator.COUNT.newPartial();
+        Aggregator.COUNT.addAll(empty, null, QueryResults.EMPTY);
+        assertEquals(0, empty[0]);
+    }
+
+    private static void putVarint(ByteBuffer buf, long v)
+    {
+        while(v >= 0x80)
+        {
+            buf.put((byte)(v | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    /**
+     * Writes a way with the given coordinates (relative to the origin)
+     * and returns its anchor.
+     */
+    private static int putWay(ByteBuffer buf, int ptr, int pBody, boolean area, int... xy)
+    {
+        buf.putInt(ptr - 16, 0);
+        buf.putInt(ptr - 12, 0);
+        buf.putInt(ptr - 8, 1000);
+        buf.putInt(ptr - 4, 1000);
+        buf.putInt(ptr, (1 << 3) | (area ? FeatureFlags.AREA_FLAG : 0));
+        buf.putInt(ptr + 12, pBody - (ptr + 12));
+        buf.position(pBody);
+        putVarint(buf, xy.length / 2);
+        int prevX = 0;
+        int prevY = 0;
+        for(int i=0; i<xy.length; i+=2)
+        {
+            int dx = xy[i] - prevX;
+            int dy = xy[i+1] - prevY;
+            putVarint(buf, (dx << 1) ^ (dx >> 31));
+            putVarint(buf, (dy << 1) ^ (dy >> 31));
+            prevX = xy[i];
+            prevY = xy[i+1];
+        }
+        return ptr;
+    }
+
+    @Test public void testLengthAndArea()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        int line = putWay(buf, 32, 64, false, 0, 0, 300, 400, 300, 1000);
+        int square = putWay(buf, 128, 160, true, 0, 0, 1000, 0, 1000, 1000, 0, 1000);
+
+        QueryResults res = new QueryResults(buf);
+        res.add(line | 1);
+        res.add(square | 1);
+        res.add(8);             // a node, which has neither length nor area
+
+        double[] length = Aggregator.LENGTH.newPartial();
+        Aggregator.LENGTH.addAll(length, null, res);
+        double expectedLength = Mercator.distance(0, 0, 300, 400) +
+            Mercator.distance(300, 400, 300, 1000);
+        assertEquals(expectedLength, length[0], expectedLength * 1e-9);
+
+        double[] area = Aggregator.AREA.newPartial();
+        Aggregator.AREA.addAll(area, null, res);
+        double scale = Mercator.metersAtY(500);
+        assertEquals(1000.0 * 1000 * scale * scale, area[0], 1e-6);
+
+        // Partial sums of separate tiles add up
+        double[] other = Aggregator.LENGTH.newPartial();
+        Aggregator.LENGTH.addAll(other, null, res);
+        assertEquals(expectedLength * 2,
+            Aggregator.LENGTH.combine(length, other)[0], expectedLength * 1e-9);
+    }
+
+    @Test public void testGroupCountCombine()
+    {
+        Aggregator<Map<String,Long>> group = Aggregator.groupCount("amenity");
+        Map<String,Long> a = group.newPartial();
+        a.put("pub", 3L);
+        a.put("", 10L);
+        Map<String,Long> b = group.newPartial();
+        b.put("pub", 1L);
+        b.put("cafe", 2L);
+        b.put("bar", 5L);
+        Map<String,Long> expected = new HashMap<>();
+        expected.put("pub", 4L);
+        expected.put("", 10L);
+        expected.put("cafe", 2L);
+        expected.put("bar", 5L);
+        assertEquals(expected, group.combine(a, b));
+    }
+}
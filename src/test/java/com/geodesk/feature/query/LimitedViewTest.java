@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.store.AnonymousWayNode;
+import com.geodesk.geom.Bounds;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class LimitedViewTest
+{
+    /**
+     * An iterator that can be closed (like a Query), and which records
+     * how many features have been retrieved from it.
+     */
+    private static class CountingIterator implements Iterator<Feature>, AutoCloseable
+    {
+        int retrieved;
+        boolean closed;
+        final int size;
+
+        CountingIterator(int size)
+        {
+            this.size = size;
+        }
+
+        @Override public boolean hasNext()
+        {
+            return !closed && retrieved < size;
+        }
+
+        @Override public Feature next()
+        {
+            if(!hasNext()) throw new NoSuchElementException();
+            retrieved++;
+            return new AnonymousWayNode(null, retrieved, retrieved);
+        }
+
+        @Override public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private static class CountingFeatures implements Features
+    {
+        final int size;
+        CountingIterator last;
+
+        CountingFeatures(int size)
+        {
+            this.size = size;
+        }
+
+        @Override public Iterator<Feature> iterator()
+        {
+            last = new CountingIterator(size);
+            return last;
+        }
+
+        @Override public Features select(String query) { return this; }
+        @Override public Features nodes() { return this; }
+        @Override public Features nodes(String query) { return this; }
+        @Override public Features ways() { return this; }
+        @Override public Features ways(String query) { return this; }
+        @Override public Features relations() { return this; }
+        @Override public Features relations(String query) { return this; }
+        @Override public Features in(Bounds bbox) { return this; }
+        @Override public Features select(Filter filter) { return this; }
+        @Override public Features select(Features other) { return this; }
+    }
+
+    @Test public void testLimitClosesIterator()
+    {
+        CountingFeatures base = new CountingFeatures(10);
+        Iterator<Feature> iter = base.limit(3).iterator();
+        int count = 0;
+        while(iter.hasNext())
+        {
+            iter.next();
+            count++;
+            // The underlying iterator is closed as soon as the last
+            // feature has been retrieved, not when the consumer asks
+            // for more
+            assertEquals(count == 3, base.last.closed);
+        }
+        assertEquals(3, count);
+        assertEquals(3, base.last.retrieved);
+        try
+        {
+            iter.next();
+            fail("Expected NoSuchElementException");
+        }
+        catch(NoSuchElementException ex)
+        {
+            // expected
+        }
+
+        assertEquals(3, base.limit(3).count());
+        assertEquals(3, base.last.retrieved);
+
+        // A limit larger than the collection returns all features
+        assertEquals(10, base.limit(50).count());
+    }
+
+    @Test public void testZeroLimit()
+    {
+        CountingFeatures base = new CountingFeatures(10);
+        Features none = base.limit(0);
+        assertFalse(none.iterator().hasNext());
+        assertNull(none.first());
+        assertTrue(none.isEmpty());
+        assertEquals(0, none.count());
+        // The underlying collection is never iterated
+        assertNull(base.last);
+    }
+
+    @Test public void testNestedLimits()
+    {
+        CountingFeatures base = new CountingFeatures(10);
+        assertEquals(2, base.limit(5).limit(2).count());
+        assertEquals(2, base.limit(2).limit(5).count());
+        assertEquals(2, base.limit(2).nodes().ways("*").count());
+        assertEquals(2, base.last.retrieved);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit()
+    {
+        new CountingFeatures(10).limit(-1);
+    }
+}
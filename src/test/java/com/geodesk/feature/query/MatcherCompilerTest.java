@@ -22,9 +22,13 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
 
 /**
  * Tests the code generated by the Query Compiler.
@@ -111,9 +115,9 @@ public class MatcherCompilerTest
 			try
 			{
 				Constructor<?> constructor = matcherClass.getDeclaredConstructor(
-					String.class.arrayType());
-				// Can't pass globalStrings directly, since it is an array
-				return (Matcher)constructor.newInstance(new Object[]{ globalStrings });
+					IntFunction.class);
+				IntFunction<String> strings = n -> globalStrings[n];
+				return (Matcher)constructor.newInstance(strings);
 			}
 			catch (NoSuchMethodException | SecurityException | InstantiationException |
 				IllegalAccessException | IllegalArgumentException | InvocationTargetException ex)
@@ -202,4 +206,262 @@ public class MatcherCompilerTest
 		}
 	}
 
+	/**
+	 * Checks that Matchers compiled into hidden classes by the
+	 * MatcherCompiler behave the same as those loaded by a ClassLoader,
+	 * and that the cache returns (and evicts) compiled Matchers.
+	 */
+	@Test public void testCompilerCache() throws Exception
+	{
+		TagTableTester tagTableTester = new TagTableTester();
+		loadStrings();
+		List<QueryTestCase> cases = loadQueries();
+		cases.removeIf(qtc -> qtc.error != null);
+		MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null, 8);
+		for(QueryTestCase qtc: cases)
+		{
+			Matcher matcher = compiler.getMatcher(qtc.query);
+			Assert.assertTrue(matcher.getClass().isHidden());
+			Assert.assertSame(matcher, compiler.getMatcher(qtc.query));
+			Assert.assertTrue(compiler.cacheSize() <= 8);
+			assertAccepts(tagTableTester, qtc, matcher);
+		}
+
+		// Compiling more queries than the cache holds evicts the
+		// least-recently used Matcher; asking for it again recompiles it
+		List<String> queries = new ArrayList<>();
+		for(QueryTestCase qtc: cases)
+		{
+			if(!queries.contains(qtc.query)) queries.add(qtc.query);
+		}
+		Assert.assertTrue(queries.size() > 8);
+		compiler = new MatcherCompiler(stringsToCodes, globalStrings, null, 8);
+		QueryTestCase first = cases.get(0);
+		Matcher evicted = compiler.getMatcher(first.query);
+		for(int i=1; i<=8; i++) compiler.getMatcher(queries.get(i));
+		Assert.assertTrue(compiler.cacheSize() <= 8);
+		Matcher recompiled = compiler.getMatcher(first.query);
+		Assert.assertNotSame(evicted, recompiled);
+		Assert.assertNotSame(evicted.getClass(), recompiled.getClass());
+		assertAccepts(tagTableTester, first, recompiled);
+	}
+
+	private static void assertAccepts(TagTableTester tagTableTester,
+		QueryTestCase qtc, Matcher matcher) throws Exception
+	{
+		for(Map.Entry<String,Boolean> e: qtc.expected.entrySet())
+		{
+			ByteBuffer tags = tagTableTester.makeCase(e.getKey(), 0, null);
+			Assert.assertEquals(qtc.query + " / " + e.getKey(),
+				e.getValue(), matcher.accept(tags, 0));
+		}
+	}
+
+	/**
+	 * Checks that a fused Matcher accepts exactly those features that
+	 * both of its source Matchers accept.
+	 */
+	@Test public void testFusedMatchers() throws Exception
+	{
+		TagTableTester tagTableTester = new TagTableTester();
+		loadStrings();
+		List<QueryTestCase> cases = loadQueries();
+		cases.removeIf(qtc -> qtc.error != null);
+		MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+		for(int i=0; i<cases.size(); i++)
+		{
+			QueryTestCase qa = cases.get(i);
+			QueryTestCase qb = cases.get((i * 7 + 3) % cases.size());
+			Matcher a = compiler.getMatcher(qa.query);
+			Matcher b = compiler.getMatcher(qb.query);
+			Matcher fused = compiler.and(a, b);
+			for(String tagCase: qa.expected.keySet())
+			{
+				ByteBuffer tags = tagTableTester.makeCase(tagCase, 0, null);
+				Assert.assertEquals(qa.query + " AND " + qb.query + " / " + tagCase,
+					a.accept(tags, 0) && b.accept(tags, 0), fused.accept(tags, 0));
+			}
+		}
+	}
+
+	/**
+	 * Checks that a MatcherSet reports the same matches as the
+	 * individual Matchers of its queries.
+	 */
+	@Test public void testMatcherSet() throws Exception
+	{
+		TagTableTester tagTableTester = new TagTableTester();
+		loadStrings();
+		List<QueryTestCase> cases = loadQueries();
+		cases.removeIf(qtc -> qtc.error != null);
+		MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+		String[] queries = new String[cases.size()];
+		Matcher[] matchers = new Matcher[cases.size()];
+		for(int i=0; i<queries.length; i++)
+		{
+			queries[i] = cases.get(i).query;
+			matchers[i] = compiler.getMatcher(queries[i]);
+		}
+		MatcherSet set = compiler.getMatcherSet(queries);
+		Assert.assertEquals(queries.length, set.size());
+		Assert.assertSame(set, compiler.getMatcherSet(queries));
+		long[] bits = new long[(queries.length + 63) / 64];
+		for(QueryTestCase qtc: cases)
+		{
+			for(String tagCase: qtc.expected.keySet())
+			{
+				ByteBuffer tags = tagTableTester.makeCase(tagCase, 0, null);
+				// Bits of queries that don't match must be cleared
+				Arrays.fill(bits, -1L);
+				int count = set.match(tags, 0, bits);
+				int expectedCount = 0;
+				for(int i=0; i<queries.length; i++)
+				{
+					boolean expected = matchers[i].acceptTyped(TypeBits.ALL, tags, 0);
+					if(expected) expectedCount++;
+					Assert.assertEquals(queries[i] + " / " + tagCase,
+						expected, (bits[i >> 6] & (1L << i)) != 0);
+				}
+				Assert.assertEquals(expectedCount, count);
+				Assert.assertEquals(tagCase, expectedCount > 0,
+					set.acceptTyped(TypeBits.ALL, tags, 0));
+			}
+		}
+	}
+
+	/**
+	 * Checks that the tag terms required by a Matcher are present for
+	 * every feature that it accepts (otherwise, a query would wrongly
+	 * skip tiles that contain matching features).
+	 */
+	@Test public void testTagTerms() throws Exception
+	{
+		TagTableTester tagTableTester = new TagTableTester();
+		loadStrings();
+		List<QueryTestCase> cases = loadQueries();
+		cases.removeIf(qtc -> qtc.error != null);
+		MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+		int withTerms = 0;
+		for(QueryTestCase qtc: cases)
+		{
+			Matcher matcher = compiler.getMatcher(qtc.query);
+			long[][][] required = matcher.tagTerms();
+			if(required == null) continue;
+			withTerms++;
+			for(String tagCase: qtc.expected.keySet())
+			{
+				ByteBuffer tags = tagTableTester.makeCase(tagCase, 0, null);
+				if(!matcher.accept(tags, 0)) continue;
+				Set<Long> present = new HashSet<>();
+				for(Map.Entry<String,Object> e: tagTableTester.getTags(tagCase).entrySet())
+				{
+					present.add(TagTerms.keyTerm(e.getKey()));
+					present.add(TagTerms.tagTerm(e.getKey(), e.getValue().toString()));
+				}
+				boolean satisfied = Arrays.stream(required).anyMatch(selector ->
+					Arrays.stream(selector).allMatch(clause ->
+						Arrays.stream(clause).anyMatch(present::contains)));
+				Assert.assertTrue(qtc.query + " / " + tagCase, satisfied);
+			}
+		}
+		Assert.assertTrue(withTerms > 0);
+	}
+
+	/**
+	 * Checks that cache entries that have been tampered with (or are
+	 * corrupt) are ignored, and that their queries are compiled instead.
+	 */
+	@Test public void testPersistentCacheIntegrity() throws Exception
+	{
+		loadStrings();
+		String[] queries = { "na[amenity=pub]", "w[highway=primary]", "n[shop]" };
+		Path dir = Files.createTempDirectory("matchers");
+		try
+		{
+			MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+			compiler.setCacheDirectory(dir);
+			for(String q: queries) compiler.getMatcher(q);
+
+			List<Path> entries = new ArrayList<>();
+			try (var files = Files.list(dir))
+			{
+				for (Path f : (Iterable<Path>) files::iterator)
+				{
+					if(f.toString().endsWith(".matcher")) entries.add(f);
+				}
+			}
+			Assert.assertEquals(queries.length, entries.size());
+
+			// Modify the class bytes of the first entry (keeping its length)
+			byte[] bytes = Files.readAllBytes(entries.get(0));
+			bytes[bytes.length - 40] ^= 1;
+			Files.write(entries.get(0), bytes);
+
+			// Give the second entry a negative length
+			bytes = Files.readAllBytes(entries.get(1));
+			int pLen = 4 + 4 + ByteBuffer.wrap(bytes).getInt(4);
+			bytes[pLen] = (byte)0x80;
+			Files.write(entries.get(1), bytes);
+
+			compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+			compiler.setCacheDirectory(dir);
+			Assert.assertEquals(1, compiler.preload());
+			for(String q: queries) Assert.assertNotNull(compiler.getMatcher(q));
+		}
+		finally
+		{
+			try (var files = Files.list(dir))
+			{
+				for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+			}
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Checks that Matchers loaded from the persistent cache behave the
+	 * same as freshly compiled ones.
+	 */
+	@Test public void testPersistentCache() throws Exception
+	{
+		TagTableTester tagTableTester = new TagTableTester();
+		loadStrings();
+		List<QueryTestCase> cases = loadQueries();
+		Path dir = Files.createTempDirectory("matchers");
+		try
+		{
+			MatcherCompiler compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+			compiler.setCacheDirectory(dir);
+			Set<String> queries = new HashSet<>();
+			for (QueryTestCase qtc : cases)
+			{
+				if (qtc.error != null) continue;
+				compiler.getMatcher(qtc.query);
+				queries.add(qtc.query);
+			}
+
+			compiler = new MatcherCompiler(stringsToCodes, globalStrings, null);
+			compiler.setCacheDirectory(dir);
+			Assert.assertEquals(queries.size(), compiler.preload());
+			for (QueryTestCase qtc : cases)
+			{
+				if (qtc.error != null) continue;
+				Matcher matcher = compiler.getMatcher(qtc.query);
+				for (Map.Entry<String, Boolean> e : qtc.expected.entrySet())
+				{
+					ByteBuffer tags = tagTableTester.makeCase(e.getKey(), 0, null);
+					Assert.assertEquals(qtc.query + " / " + e.getKey(),
+						e.getValue(), matcher.accept(tags, 0));
+				}
+			}
+		}
+		finally
+		{
+			try (var files = Files.list(dir))
+			{
+				for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+			}
+			Files.delete(dir);
+		}
+	}
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.FeatureLibrary;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.Way;
+import com.geodesk.feature.store.AnonymousWayNode;
+import com.geodesk.feature.store.FeatureFlags;
+import com.geodesk.feature.store.TestGol;
+import com.geodesk.geom.Bounds;
+import com.geodesk.geom.Tile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class NearestQueryTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Feature> randomNodes(int count)
+    {
+        Random random = new Random(7);
+        List<Feature> nodes = new ArrayList<>();
+        for(int i=0; i<count; i++)
+        {
+            nodes.add(new AnonymousWayNode(null,
+                random.nextInt(2_000_000) - 1_000_000,
+                random.nextInt(2_000_000) - 1_000_000));
+        }
+        return nodes;
+    }
+
+    private static double distance(Feature f, int x, int y)
+    {
+        return Math.hypot((double)f.x() - x, (double)f.y() - y);
+    }
+
+    @Test public void testDistanceOrder()
+    {
+        List<Feature> nodes = randomNodes(500);
+        List<Feature> results = NearestQuery.nearest(nodes, 1000, -2000, 20);
+        assertEquals(20, results.size());
+        for(int i=1; i<results.size(); i++)
+        {
+            assertTrue(distance(results.get(i-1), 1000, -2000) <=
+                distance(results.get(i), 1000, -2000));
+        }
+        // No feature that was left out is closer than the last result
+        double last = distance(results.get(results.size()-1), 1000, -2000);
+        for(Feature f: nodes)
+        {
+            if(!results.contains(f)) assertTrue(distance(f, 1000, -2000) >= last);
+        }
+
+        assertEquals(nodes.size(), NearestQuery.nearest(nodes, 0, 0, 1000).size());
+        assertTrue(NearestQuery.nearest(nodes, 0, 0, 0).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCount()
+    {
+        NearestQuery.nearest(randomNodes(10), 0, 0, -1);
+    }
+
+    /**
+     * A collection that records the `k` of the nearest-neighbour
+     * search that is delegated to it.
+     */
+    private static class RecordingFeatures implements Features
+    {
+        int requested = -1;
+
+        @Override public List<Feature> nearestTo(int x, int y, int k)
+        {
+            requested = k;
+            return List.of();
+        }
+
+        @Override public Iterator<Feature> iterator() { return List.<Feature>of().iterator(); }
+        @Override public Features select(String query) { return this; }
+        @Override public Features nodes() { return this; }
+        @Override public Features nodes(String query) { return this; }
+        @Override public Features ways() { return this; }
+        @Override public Features ways(String query) { return this; }
+        @Override public Features relations() { return this; }
+        @Override public Features relations(String query) { return this; }
+        @Override public Features in(Bounds bbox) { return this; }
+        @Override public Features select(Filter filter) { return this; }
+        @Override public Features select(Features other) { return this; }
+    }
+
+    @Test public void testLimitedViewDelegates()
+    {
+        RecordingFeatures base = new RecordingFeatures();
+        new LimitedView(base, 5).nearestTo(0, 0, 100);
+        assertEquals(5, base.requested);
+        new LimitedView(base, 50).nearestTo(0, 0, 3);
+        assertEquals(3, base.requested);
+        try
+        {
+            new LimitedView(base, 5).nearestTo(0, 0, -1);
+            fail("Expected IllegalArgumentException");
+        }
+        catch(IllegalArgumentException ex)
+        {
+            // expected
+        }
+    }
+
+    private FeatureLibrary open(TestGol gol) throws Exception
+    {
+        return new FeatureLibrary(gol.write(folder.getRoot().toPath().resolve("test.gol")));
+    }
+
+    private static int randomX(Random random, int tile)
+    {
+        return Tile.leftX(tile) + 1 + random.nextInt(Tile.rightX(tile) - Tile.leftX(tile) - 1);
+    }
+
+    private static int randomY(Random random, int tile)
+    {
+        return Tile.bottomY(tile) + 1 + random.nextInt(Tile.topY(tile) - Tile.bottomY(tile) - 1);
+    }
+
+    /**
+     * Checks that the results of a search are the first `k` of the given
+     * features, ordered by their distance.
+     */
+    private static void checkResults(List<Feature> results, Map<Long,Double> distances, int k)
+    {
+        List<Long> expected = new ArrayList<>(distances.keySet());
+        expected.sort(Comparator.comparing(distances::get));
+        expected = expected.subList(0, Math.min(k, expected.size()));
+        List<Long> actual = new ArrayList<>();
+        for(Feature f: results) actual.add(f.id());
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * The best-first search of a GOL with nodes in all 16 tiles returns
+     * the same features, in the same order, as a brute-force search.
+     */
+    @Test public void testIndexedSearch() throws Exception
+    {
+        Random random = new Random(3);
+        TestGol gol = new TestGol();
+        List<long[]> nodes = new ArrayList<>();
+        for(int row=0; row<4; row++)
+        {
+            for(int col=0; col<4; col++)
+            {
+                int tile = TestGol.tile(col, row);
+                for(int i=0; i<8; i++)
+                {
+                    long id = nodes.size() + 1;
+                    int x = randomX(random, tile);
+                    int y = randomY(random, tile);
+                    gol.node(col, row, id, x, y);
+                    nodes.add(new long[] { id, x, y });
+                }
+            }
+        }
+        FeatureLibrary library = open(gol);
+        try
+        {
+            for(int run=0; run<20; run++)
+            {
+                int x = random.nextInt();
+                int y = random.nextInt();
+                Map<Long,Double> distances = new HashMap<>();
+                for(long[] node: nodes)
+                {
+                    distances.put(node[0], Math.hypot((double)node[1] - x, (double)node[2] - y));
+                }
+                for(int k: new int[] { 0, 1, 7, 40, 1000 })
+                {
+                    checkResults(library.nearestTo(x, y, k), distances, k);
+                }
+                checkResults(library.nodes().nearestTo(x, y, 5), distances, 5);
+                assertTrue(library.ways().nearestTo(x, y, 5).isEmpty());
+            }
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+
+    private static double wayDistance(int[] xy, int x, int y)
+    {
+        double min = Double.MAX_VALUE;
+        for(int i=2; i<xy.length; i+=2)
+        {
+            min = Math.min(min, Line2D.ptSegDist(xy[i-2], xy[i-1], xy[i], xy[i+1], x, y));
+        }
+        return min;
+    }
+
+    /**
+     * A way that spans two tiles is stored in both of them; the search
+     * returns it only once, ordered by its actual distance (which is
+     * determined by the copy in whichever tile is closer).
+     */
+    @Test public void testMultiTileFeatures() throws Exception
+    {
+        int west = TestGol.tile(1, 1);
+        int east = TestGol.tile(2, 1);
+        int border = Tile.rightX(west);
+        int y = Tile.bottomY(west) + 5_000_000;
+        int[] longWay = { border - 40_000_000, y, border + 40_000_000, y };
+        int[] shortWay = { border - 2_000_000, y + 20_000_000, border - 1_000_000, y + 20_000_000 };
+
+        Random random = new Random(5);
+        TestGol gol = new TestGol()
+            .way(1, 1, 10, 0, longWay)
+            .way(2, 1, 10, FeatureFlags.MULTITILE_WEST, longWay)
+            .way(1, 1, 20, 0, shortWay);
+        Map<Long,int[]> ways = Map.of(10L, longWay, 20L, shortWay);
+        List<long[]> nodes = new ArrayList<>();
+        for(int i=0; i<20; i++)
+        {
+            int tile = i % 2 == 0 ? west : east;
+            long id = 100 + i;
+            int x = randomX(random, tile);
+            int ny = randomY(random, tile);
+            gol.node(i % 2 == 0 ? 1 : 2, 1, id, x, ny);
+            nodes.add(new long[] { id, x, ny });
+        }
+
+        FeatureLibrary library = open(gol);
+        try
+        {
+            // Targets on either side of the border, closest to either copy
+            int[][] targets = {
+                { border + 30_000_000, y + 1_000 },
+                { border - 30_000_000, y - 1_000 },
+                { border - 1_500_000, y + 19_000_000 },
+                { Tile.rightX(east) - 1, Tile.topY(east) - 1 } };
+            for(int[] target: targets)
+            {
+                Map<Long,Double> distances = new HashMap<>();
+                for(long[] node: nodes)
+                {
+                    distances.put(node[0], Math.hypot(
+                        (double)node[1] - target[0], (double)node[2] - target[1]));
+                }
+                for(Map.Entry<Long,int[]> e: ways.entrySet())
+                {
+                    distances.put(e.getKey(), wayDistance(e.getValue(), target[0], target[1]));
+                }
+                List<Feature> all = library.nearestTo(target[0], target[1], 1000);
+                checkResults(all, distances, 1000);
+                Set<Long> ids = new HashSet<>();
+                for(Feature f: all) assertTrue(ids.add(f.id()));
+
+                List<Feature> nearestWays = library.ways().nearestTo(target[0], target[1], 5);
+                assertEquals(2, nearestWays.size());
+                for(Feature f: nearestWays) assertTrue(f instanceof Way);
+                Map<Long,Double> wayDistances = new HashMap<>();
+                for(long id: ways.keySet()) wayDistances.put(id, distances.get(id));
+                checkResults(nearestWays, wayDistances, 5);
+            }
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.QueryExecutor;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PooledStreamTest
+{
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    private <T> Stream<T> wrap(ForkJoinPool pool, Stream<T> stream)
+    {
+        return new PooledStream<>(stream, pool, activeTasks::incrementAndGet,
+            activeTasks::decrementAndGet);
+    }
+
+    @Test public void testTerminalOperationRunsInPool()
+    {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try
+        {
+            Stream<Integer> stream = wrap(pool,
+                IntStream.range(0, 10_000).boxed().parallel());
+            Set<Thread> threads = stream
+                .map(i -> Thread.currentThread())
+                .collect(Collectors.toSet());
+            for(Thread t: threads)
+            {
+                assertTrue(t.getName(), t instanceof ForkJoinWorkerThread);
+                assertSame(pool, ((ForkJoinWorkerThread)t).getPool());
+            }
+            assertTrue(threads.size() <= 2);
+
+            // Intermediate operations keep the pipeline in the pool
+            Stream<Integer> ints = wrap(pool,
+                IntStream.range(0, 10_000).boxed().parallel());
+            long outside = ints
+                .map(i -> ForkJoinTask.getPool() == pool ? 0 : 1)
+                .filter(n -> n > 0)
+                .count();
+            assertEquals(0, outside);
+            assertEquals(0, activeTasks.get());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test public void testResultsAndExceptions()
+    {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try
+        {
+            Stream<Integer> stream = wrap(pool,
+                IntStream.range(0, 1000).boxed().parallel());
+            List<Integer> list = stream.filter(i -> i % 2 == 0).toList();
+            assertEquals(500, list.size());
+            assertEquals(Integer.valueOf(998), list.get(499));
+
+            Stream<Integer> failing = wrap(pool,
+                IntStream.range(0, 1000).boxed().parallel());
+            try
+            {
+                failing.forEach(i ->
+                {
+                    if(i == 500) throw new IllegalStateException("boom");
+                });
+                fail("Expected exception");
+            }
+            catch(IllegalStateException ex)
+            {
+                // expected
+            }
+
+            // Sequential pipelines run on the calling thread
+            Thread caller = Thread.currentThread();
+            Stream<Integer> sequential = wrap(pool,
+                IntStream.range(0, 10).boxed());
+            assertTrue(sequential.allMatch(i -> Thread.currentThread() == caller));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Simulates a query that is run by the lambda of a parallel stream:
+     * it submits its tile tasks to the same pool and waits for their
+     * results. Once every worker waits like this, the pool would
+     * deadlock unless it activates spare threads.
+     */
+    private static int nestedQuery(ForkJoinPool pool, int tiles) throws InterruptedException
+    {
+        BlockingQueue<Integer> queue = new ArrayBlockingQueue<>(tiles);
+        for(int i=0; i<tiles; i++)
+        {
+            int tile = i;
+            pool.execute(() -> queue.add(tile));
+        }
+        int sum = 0;
+        for(int i=0; i<tiles; i++) sum += QueryExecutor.take(queue);
+        return sum;
+    }
+
+    @Test(timeout = 30_000)
+    public void testNestedQueries()
+    {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try
+        {
+            AtomicInteger total = new AtomicInteger();
+            wrap(pool, IntStream.range(0, 64).boxed().parallel()).forEach(i ->
+            {
+                try
+                {
+                    total.addAndGet(nestedQuery(pool, 8));
+                }
+                catch(InterruptedException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            });
+            assertEquals(64 * 28, total.get());
+            assertEquals(0, activeTasks.get());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.store.AnonymousWayNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QueryResultsTest
+{
+    /**
+     * Collects the pointers of a chain of results, checking that each
+     * materialized feature is still paired with its pointer.
+     */
+    private static List<Integer> pointers(QueryResults res)
+    {
+        List<Integer> list = new ArrayList<>();
+        for(; res != null; res = res.next)
+        {
+            for(int i=0; i<res.size; i++)
+            {
+                list.add(res.pointers[i]);
+                if(res.features != null && res.features[i] != null)
+                {
+                    assertEquals(res.pointers[i], res.features[i].x());
+                }
+            }
+        }
+        return list;
+    }
+
+    private static QueryResults tile(Random random, int tip)
+    {
+        QueryResults res = new QueryResults(null, 8);
+        int count = random.nextInt(40);
+        for(int i=0; i<count; i++)
+        {
+            int ptr = (tip << 16) | (i << 2);
+            if(random.nextBoolean())
+            {
+                // Filtered queries hand the feature along with its pointer
+                Feature feature = new AnonymousWayNode(null, ptr, 0);
+                res.add(ptr, feature);
+            }
+            else
+            {
+                res.add(ptr);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Merging the results of several tiles into a single chain (as an
+     * inline query does) keeps every feature of every tile, and keeps
+     * each feature paired with its pointer. (How inline and async
+     * queries compare end-to-end is tested by QueryTest.)
+     */
+    @Test public void testMerge()
+    {
+        Random random = new Random(11);
+        for(int run=0; run<50; run++)
+        {
+            int tiles = 1 + random.nextInt(TileWindow.MAX_INLINE_TILES);
+            List<Integer> separate = new ArrayList<>();
+            QueryResults merged = QueryResults.EMPTY;
+            for(int tip=0; tip<tiles; tip++)
+            {
+                long seed = random.nextLong();
+                separate.addAll(pointers(tile(new Random(seed), tip)));
+                merged = QueryResults.merge(merged, tile(new Random(seed), tip));
+            }
+            List<Integer> inline = pointers(merged);
+            Collections.sort(separate);
+            Collections.sort(inline);
+            assertEquals(separate, inline);
+        }
+        assertTrue(pointers(QueryResults.merge(QueryResults.EMPTY, QueryResults.EMPTY)).isEmpty());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.FeatureLibrary;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.store.TestGol;
+import com.geodesk.geom.Box;
+import com.geodesk.geom.Tile;
+import org.locationtech.jts.geom.Geometry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class QueryTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The ID of the node that makes the filter of {@link #failingQuery} fail.
+     */
+    private static final long FAILING_ID = 1_001;
+
+    /**
+     * Creates a GOL with 5 nodes in each of the 16 tiles; the IDs of
+     * the nodes in a tile are `100 * (row * 4 + col) + 1` to `+5`.
+     * If `broken` is `true`, the tile in col 2 / row 2 (tile 10)
+     * cannot be read. Queries that touch up to 4 tiles run inline.
+     */
+    private FeatureLibrary open(boolean broken) throws Exception
+    {
+        TestGol gol = new TestGol();
+        for(int row=0; row<4; row++)
+        {
+            for(int col=0; col<4; col++)
+            {
+                if(broken && col == 2 && row == 2)
+                {
+                    gol.brokenTile(col, row);
+                    continue;
+                }
+                int tile = TestGol.tile(col, row);
+                int x = Tile.leftX(tile) + 1000;
+                int y = Tile.bottomY(tile) + 1000;
+                for(int i=1; i<=5; i++)
+                {
+                    gol.node(col, row, 100 * (row * 4 + col) + i, x + i * 100, y + i * 100);
+                }
+            }
+        }
+        FeatureLibrary library = new FeatureLibrary(
+            gol.write(folder.getRoot().toPath().resolve("test.gol")));
+        // Fix the window (2 * parallelism), so that queries touching up
+        // to 4 tiles are searched inline, regardless of the machine
+        library.setParallelism(4);
+        return library;
+    }
+
+    /**
+     * Returns the bounding box of the given range of tiles.
+     */
+    private static Box tiles(int firstCol, int lastCol, int row)
+    {
+        int first = TestGol.tile(firstCol, row);
+        int last = TestGol.tile(lastCol, row);
+        return Box.ofXYXY(Tile.leftX(first) + 1, Tile.bottomY(first) + 1,
+            Tile.rightX(last) - 1, Tile.topY(last) - 1);
+    }
+
+    private static Set<Long> ids(Features features)
+    {
+        Set<Long> ids = new HashSet<>();
+        for(Feature f: features) assertTrue(ids.add(f.id()));
+        return ids;
+    }
+
+    /**
+     * A filter that throws for the node with {@link #FAILING_ID}; the
+     * node is in tile 10 (col 2, row 2).
+     */
+    private static final Filter FAILING_FILTER = new Filter()
+    {
+        @Override public boolean accept(Feature feature)
+        {
+            if(feature.id() == FAILING_ID) throw new IllegalStateException("Broken filter");
+            return true;
+        }
+    };
+
+    /**
+     * Iterates over the features of the given view, one of whose tiles
+     * fails, and returns the IDs of the features retrieved before the
+     * query throws.
+     */
+    private static Set<Long> failingQuery(Features features)
+    {
+        Set<Long> ids = new HashSet<>();
+        Iterator<Feature> iter = features.iterator();
+        try
+        {
+            while(iter.hasNext()) ids.add(iter.next().id());
+            fail("Expected the error of the failed tile to be thrown");
+        }
+        catch(RuntimeException ex)
+        {
+            // expected
+        }
+        return ids;
+    }
+
+    @Test public void testInlineAndAsyncQueries() throws Exception
+    {
+        FeatureLibrary library = open(false);
+        try
+        {
+            // All 16 tiles are searched by the executor
+            Set<Long> all = ids(library);
+            assertEquals(80, all.size());
+            assertEquals(80, library.count());
+
+            // Prefetching the tiles doesn't change the results
+            library.setPrefetching(true);
+            assertEquals(all, ids(library));
+            library.setPrefetching(false);
+
+            // The 3 tiles of the second row are searched inline
+            Set<Long> row = ids(library.in(tiles(0, 2, 1)));
+            assertEquals(15, row.size());
+            for(int col=0; col<3; col++)
+            {
+                for(int i=1; i<=5; i++) assertTrue(row.contains(100L * (4 + col) + i));
+            }
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+
+    /**
+     * Checks that the results of all tiles but tile 10 are returned
+     * before the error is thrown, no matter whether the query searches
+     * its tiles on the calling thread (the 4 tiles of the third row)
+     * or in the executor (all 16 tiles).
+     */
+    private static void checkTileErrors(Features features)
+    {
+        Set<Long> inline = failingQuery(features.in(tiles(0, 3, 2)));
+        assertEquals(15, inline.size());
+        for(long id: inline) assertNotEquals(10, id / 100);
+
+        Set<Long> async = failingQuery(features);
+        assertEquals(75, async.size());
+        for(long id: async) assertNotEquals(10, id / 100);
+    }
+
+    /**
+     * A query that searches its tiles on the calling thread must treat
+     * errors the same way as a query whose tiles are searched by the
+     * executor: the results of the other tiles are returned, and the
+     * error is thrown once they have been consumed.
+     */
+    @Test public void testTileErrors() throws Exception
+    {
+        // A tile that can't be read
+        FeatureLibrary library = open(true);
+        try
+        {
+            checkTileErrors(library);
+        }
+        finally
+        {
+            library.close();
+        }
+
+        // A filter that fails for a feature in the tile
+        library = open(false);
+        try
+        {
+            checkTileErrors(library.select(FAILING_FILTER));
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+
+    /**
+     * A feature whose geometry has been built by a filter returns the
+     * same geometry (rather than building a new one, or a copy of it)
+     * once the query hands it to the caller.
+     */
+    @Test public void testRetainedGeometry() throws Exception
+    {
+        int tile = TestGol.tile(1, 1);
+        int x = Tile.leftX(tile) + 1000;
+        int y = Tile.bottomY(tile) + 1000;
+        TestGol gol = new TestGol();
+        for(int i=1; i<=5; i++)
+        {
+            gol.way(1, 1, i, 0, x, y + i * 100, x + 500, y + i * 100);
+        }
+        FeatureLibrary library = new FeatureLibrary(
+            gol.write(folder.getRoot().toPath().resolve("test.gol")));
+        try
+        {
+            Map<Long,Geometry> built = new HashMap<>();
+            Filter filter = new Filter()
+            {
+                @Override public boolean accept(Feature feature)
+                {
+                    synchronized (built)
+                    {
+                        built.put(feature.id(), feature.toGeometry());
+                    }
+                    return feature.id() != 3;
+                }
+            };
+            int count = 0;
+            for(Feature f: library.select(filter))
+            {
+                assertSame(built.get(f.id()), f.toGeometry());
+                count++;
+            }
+            assertEquals(4, count);
+            assertEquals(5, built.size());
+
+            // Without a filter, each call builds a new geometry
+            Feature way = library.ways().first();
+            assertNotSame(way.toGeometry(), way.toGeometry());
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+}
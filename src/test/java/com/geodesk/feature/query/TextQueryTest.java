@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.geom.Box;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextQueryTest
+{
+    @Test public void testFallbackToTileScan()
+    {
+        Box world = Box.ofWorld();
+        Box city = new Box(0, 0, 1 << 20, 1 << 20);
+
+        // Small ranges always use the index
+        assertTrue(TextQuery.usesIndex(TextQuery.MAX_UNCONDITIONAL_REFS, city));
+        assertTrue(TextQuery.usesIndex(100, world));
+
+        // A common prefix is only worth using in a large view
+        assertTrue(TextQuery.usesIndex(1_000_000, world));
+        assertFalse(TextQuery.usesIndex(1_000_000, city));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.FeatureLibrary;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.store.TestGol;
+import com.geodesk.geom.Tile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TileListTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class TileFilter implements Filter
+    {
+        final int page;
+
+        TileFilter(int page)
+        {
+            this.page = page;
+        }
+
+        @Override public boolean accept(Feature feature)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Adds a tile whose TIP, flags and filter are derived from its page,
+     * so we can check that they stay with the page.
+     */
+    private static void add(TileList list, int page)
+    {
+        list.add(page * 3 + 1, page, page & 0xc0, new TileFilter(page));
+    }
+
+    private static void checkAligned(TileList list)
+    {
+        for(int i=0; i<list.size; i++)
+        {
+            int page = list.pages[i];
+            assertEquals(page * 3 + 1, list.tips[i]);
+            assertEquals(page & 0xc0, list.northwestFlags[i]);
+            assertEquals(page, ((TileFilter)list.filters[i]).page);
+        }
+    }
+
+    @Test public void testSortByPage()
+    {
+        Random random = new Random(9);
+        for(int run=0; run<20; run++)
+        {
+            List<Integer> pages = new ArrayList<>();
+            for(int i=0; i<100; i++) pages.add(i * 7 + random.nextInt(7));
+            Collections.shuffle(pages, random);
+            TileList list = new TileList();
+            for(int page: pages) add(list, page);
+
+            int start = run == 0 ? 0 : random.nextInt(pages.size());
+            list.sortByPage(start);
+            assertEquals(pages.size(), list.size);
+            checkAligned(list);
+            // The tiles before the start are untouched
+            for(int i=0; i<start; i++) assertEquals((int)pages.get(i), list.pages[i]);
+            // The others are sorted, and none went missing
+            for(int i=start+1; i<list.size; i++) assertTrue(list.pages[i-1] < list.pages[i]);
+            List<Integer> rest = new ArrayList<>(pages.subList(start, pages.size()));
+            Collections.sort(rest);
+            for(int i=start; i<list.size; i++) assertEquals((int)rest.get(i - start), list.pages[i]);
+
+            // Sorting again doesn't change anything
+            int[] sorted = list.pages.clone();
+            list.sortByPage(start);
+            assertArrayEquals(sorted, list.pages);
+            checkAligned(list);
+        }
+
+        TileList empty = new TileList();
+        empty.sortByPage(0);
+        assertEquals(0, empty.size);
+    }
+
+    @Test public void testRemoveFirst()
+    {
+        TileList list = new TileList();
+        for(int page=1; page<=40; page++) add(list, page);
+        list.removeFirst(15);
+        assertEquals(25, list.size);
+        for(int i=0; i<list.size; i++) assertEquals(16 + i, list.pages[i]);
+        checkAligned(list);
+        // No stale filters are kept alive past the end of the list
+        for(int i=list.size; i<40; i++) assertNull(list.filters[i]);
+    }
+
+    /**
+     * The number of tiles in the GOL created by {@link #open()}.
+     */
+    private static final int TILE_COUNT = 256 + 16;
+
+    /**
+     * Creates a GOL with one node in each of the 256 tiles at zoom 4.
+     */
+    private FeatureLibrary open() throws Exception
+    {
+        TestGol gol = new TestGol(4);
+        for(int row=0; row<16; row++)
+        {
+            for(int col=0; col<16; col++)
+            {
+                int tile = gol.tileAt(col, row);
+                gol.node(col, row, row * 16 + col + 1,
+                    Tile.leftX(tile) + 1000, Tile.bottomY(tile) + 1000);
+            }
+        }
+        return new FeatureLibrary(gol.write(folder.getRoot().toPath().resolve("test.gol")));
+    }
+
+    /**
+     * Runs a query and checks its look-ahead list after each feature.
+     * Returns the largest position of the next tile to be submitted.
+     */
+    private static int runQuery(WorldView view, boolean diskOrder)
+    {
+        Set<Long> ids = new HashSet<>();
+        int maxPos = 0;
+        int prevPos = 0;
+        Query query = new Query(view);
+        while(query.hasNext())
+        {
+            assertTrue(ids.add(query.next().id()));
+            TileList lookAhead = query.lookAhead;
+            int pos = query.lookAheadPos;
+            if(lookAhead.size == 0) continue;       // all tiles submitted
+            if(diskOrder)
+            {
+                // The entire tile index (the 256 tiles and their 16
+                // parents) is walked at once; tiles are consumed by
+                // advancing the position, not by removing them
+                assertEquals(TILE_COUNT, lookAhead.size);
+                assertTrue(pos >= prevPos);
+                for(int i=1; i<lookAhead.size; i++)
+                {
+                    assertTrue(lookAhead.pages[i-1] < lookAhead.pages[i]);
+                }
+            }
+            else
+            {
+                assertTrue(lookAhead.size < TILE_COUNT);
+            }
+            prevPos = pos;
+            maxPos = Math.max(maxPos, pos);
+        }
+        assertEquals(256, ids.size());
+        return maxPos;
+    }
+
+    @Test public void testDiskOrderLookAhead() throws Exception
+    {
+        FeatureLibrary library = open();
+        try
+        {
+            library.setParallelism(2);
+            int maxPos = runQuery((WorldView)library.withDiskOrder(), true);
+            assertTrue(maxPos > 32);
+            maxPos = runQuery((WorldView)library.select("*"), false);
+            assertTrue(maxPos <= 32);
+        }
+        finally
+        {
+            library.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.query;
+
+import com.geodesk.feature.store.QueryExecutor;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileWindowTest
+{
+    @Test public void testGrowAndShrink()
+    {
+        TileWindow window = new TileWindow(32);
+        assertEquals(32, window.max());
+        assertEquals(16, window.size());
+
+        // A consumer that waits lets the window grow, up to its maximum
+        window.consumerWaited();
+        assertEquals(32, window.size());
+        window.consumerWaited();
+        assertEquals(32, window.size());
+
+        // Tiles that pile up shrink it, down to the minimum
+        for(int i=0; i<100; i++) window.tilesPiledUp();
+        assertEquals(TileWindow.MIN, window.size());
+
+        // The window is never smaller than the minimum, even if the
+        // maximum requested is smaller
+        TileWindow tiny = new TileWindow(0);
+        assertEquals(TileWindow.MIN, tiny.max());
+        assertEquals(TileWindow.MIN, tiny.size());
+    }
+
+    @Test public void testBufferedResultsAreBounded()
+    {
+        TileWindow window = new TileWindow(64);
+        window.consumerWaited();
+        assertEquals(64, window.size());
+
+        // Few results per tile don't restrict the window
+        for(int i=0; i<20; i++) window.tileCompleted(100);
+        assertEquals(64, window.size());
+
+        // Once tiles produce many results, the pending tiles must not
+        // buffer much more than MAX_BUFFERED_RESULTS
+        int perTile = TileWindow.MAX_BUFFERED_RESULTS / 8;
+        for(int i=0; i<20; i++) window.tileCompleted(perTile);
+        assertTrue(String.valueOf(window.size()), window.size() <= 9);
+        assertTrue((long)window.size() * perTile <= TileWindow.MAX_BUFFERED_RESULTS * 9L / 8);
+
+        // The window can't grow past the cap while results stay large
+        window.consumerWaited();
+        window.tileCompleted(perTile);
+        assertTrue(window.size() <= 9);
+
+        // Huge tiles still leave the minimum window
+        for(int i=0; i<20; i++) window.tileCompleted(TileWindow.MAX_BUFFERED_RESULTS * 4);
+        assertEquals(TileWindow.MIN, window.size());
+    }
+
+    @Test public void testBatchQueriesYield()
+    {
+        QueryExecutor executor = new QueryExecutor(2);
+        TileWindow window = new TileWindow(16);
+        assertEquals(8, window.limit(true, executor));
+        assertEquals(8, window.limit(false, executor));
+
+        // While interactive tiles are being searched, batch queries
+        // keep only a single tile in flight
+        executor.interactiveTileStarted();
+        assertEquals(8, window.limit(true, executor));
+        assertEquals(1, window.limit(false, executor));
+        executor.interactiveTileCompleted();
+        assertEquals(8, window.limit(false, executor));
+        executor.shutdown();
+    }
+
+    @Test public void testInlineLimit()
+    {
+        assertEquals(TileWindow.MAX_INLINE_TILES, new TileWindow(64).inlineLimit());
+
+        // The inline limit stays below the maximum window, so a store
+        // configured for a single pending tile never searches inline
+        // more tiles than it would keep in flight
+        assertEquals(1, new TileWindow(1).inlineLimit());
+        assertEquals(2, new TileWindow(3).inlineLimit());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AccessProfileTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testSaveAndLoad() throws Exception
+    {
+        AccessProfile profile = new AccessProfile();
+        assertEquals(0, profile.pages().length);
+
+        // Page 700 is searched most often, then 12, then 3
+        for(int i=0; i<5; i++) profile.record(700);
+        for(int i=0; i<3; i++) profile.record(12);
+        profile.record(3);
+        assertArrayEquals(new int[] { 700, 12, 3 }, profile.pages());
+
+        Path path = folder.getRoot().toPath().resolve("test.hot");
+        assertNull(AccessProfile.load(path, 42));
+        profile.save(path, 42);
+        assertArrayEquals(new int[] { 700, 12, 3 }, AccessProfile.load(path, 42));
+        assertEquals("temporary file must be removed", 1,
+            folder.getRoot().listFiles().length);
+
+        // A profile recorded for a different version of the GOL is ignored
+        assertNull(AccessProfile.load(path, 43));
+
+        // Saving again replaces the profile
+        for(int i=0; i<10; i++) profile.record(3);
+        profile.save(path, 42);
+        assertArrayEquals(new int[] { 3, 700, 12 }, AccessProfile.load(path, 42));
+    }
+
+    @Test public void testCorruptProfile() throws Exception
+    {
+        AccessProfile profile = new AccessProfile();
+        for(int page=1; page<=100; page++)
+        {
+            for(int i=0; i<page; i++) profile.record(page);
+        }
+        Path path = folder.getRoot().toPath().resolve("test.hot");
+        profile.save(path, 7);
+        int[] pages = AccessProfile.load(path, 7);
+        assertEquals(100, pages.length);
+        assertEquals(100, pages[0]);
+        assertEquals(1, pages[99]);
+
+        // Truncated files and files of other types are rejected
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+        assertNull(AccessProfile.load(path, 7));
+        Files.write(path, Arrays.copyOf(bytes, 10));
+        assertNull(AccessProfile.load(path, 7));
+        bytes[0] ^= 1;
+        Files.write(path, bytes);
+        assertNull(AccessProfile.load(path, 7));
+    }
+}
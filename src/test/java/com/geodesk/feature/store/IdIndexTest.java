@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IdIndexTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testBuildAndFind() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("test.idx");
+        List<Map<Long,Long>> expected = new ArrayList<>();
+        for(int i=0; i<3; i++) expected.add(new HashMap<>());
+        Random random = new Random(7);
+
+        // A small run size forces the builder to spill and merge several runs
+        IdIndex.Builder builder = new IdIndex.Builder(path, 1234, 13);
+        for(int i=0; i<500; i++)
+        {
+            int type = random.nextInt(3);
+            long id = 1 + random.nextInt(300);
+            long ref = ((long)random.nextInt(50) << 32) | (random.nextInt(1 << 20) * 4);
+            // Features that span tiles are added more than once;
+            // any of their locations is acceptable
+            Long prev = expected.get(type).putIfAbsent(id, ref);
+            builder.add(type, id, prev == null ? ref : prev);
+        }
+        builder.finish();
+        builder.deleteRuns();
+        File[] files = folder.getRoot().listFiles();
+        assertEquals("temporary files must be removed", 1, files.length);
+        assertEquals(64 + 16 * expected.stream().mapToInt(Map::size).sum(),
+            files[0].length());
+
+        assertNull(IdIndex.open(path, 5678));
+        IdIndex index = IdIndex.open(path, 1234);
+        assertNotNull(index);
+        try
+        {
+            for(int type=0; type<3; type++)
+            {
+                for(long id=0; id<=301; id++)
+                {
+                    Long ref = expected.get(type).get(id);
+                    assertEquals(type + "/" + id, ref == null ? -1 : ref,
+                        index.find(type, id));
+                }
+            }
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+    @Test public void testEmptyIndex() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("empty.idx");
+        IdIndex.Builder builder = new IdIndex.Builder(path, 1, 100);
+        builder.finish();
+        builder.deleteRuns();
+        IdIndex index = IdIndex.open(path, 1);
+        assertNotNull(index);
+        assertEquals(-1, index.find(0, 1));
+        assertEquals(-1, index.find(2, 1));
+        index.close();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class QueryExecutorTest
+{
+    /**
+     * Submits `count` tasks through the given limiter from each of
+     * `queries` threads (each standing in for a query), recording the
+     * highest number of tasks that ran at the same time.
+     *
+     * @return the submitting threads
+     */
+    private static Thread[] runQueries(TaskLimiter limiter, int queries, int count,
+        AtomicInteger maxRunning, CountDownLatch done)
+    {
+        AtomicInteger running = new AtomicInteger();
+        Thread[] threads = new Thread[queries];
+        for(int i=0; i<queries; i++)
+        {
+            threads[i] = new Thread(() ->
+            {
+                for(int j=0; j<count; j++)
+                {
+                    limiter.execute(ForkJoinTask.adapt(() ->
+                    {
+                        int n = running.incrementAndGet();
+                        maxRunning.accumulateAndGet(n, Math::max);
+                        try
+                        {
+                            Thread.sleep(1);
+                        }
+                        catch(InterruptedException ex)
+                        {
+                            // do nothing
+                        }
+                        running.decrementAndGet();
+                        limiter.taskCompleted();
+                        done.countDown();
+                    }), ex -> fail("Task rejected"));
+                }
+            });
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    @Test public void testPerStoreParallelismCap() throws Exception
+    {
+        // Two stores with different parallelism share an executor
+        // that has more workers than either of them may use
+        QueryExecutor executor = new QueryExecutor(8);
+        TaskLimiter a = new TaskLimiter(executor.pool(), 2);
+        TaskLimiter b = new TaskLimiter(executor.pool(), 3);
+        AtomicInteger maxA = new AtomicInteger();
+        AtomicInteger maxB = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(2 * 4 * 50);
+        Thread[] queriesA = runQueries(a, 4, 50, maxA, done);
+        Thread[] queriesB = runQueries(b, 4, 50, maxB, done);
+        for(Thread t: queriesA) t.join();
+        for(Thread t: queriesB) t.join();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(maxA.get()), maxA.get() <= 2);
+        assertTrue(String.valueOf(maxB.get()), maxB.get() <= 3);
+        assertEquals(0, a.running());
+        assertEquals(0, b.running());
+
+        // Raising the limit takes effect for subsequent tasks
+        a.setLimit(4);
+        maxA.set(0);
+        CountDownLatch moreDone = new CountDownLatch(4 * 50);
+        for(Thread t: runQueries(a, 4, 50, maxA, moreDone)) t.join();
+        assertTrue(moreDone.await(30, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(maxA.get()), maxA.get() <= 4);
+        executor.shutdown();
+    }
+
+    @Test public void testRejectedTasks() throws Exception
+    {
+        QueryExecutor executor = new QueryExecutor(1);
+        TaskLimiter limiter = new TaskLimiter(executor.pool(), 1);
+        CountDownLatch started = new CountDownLatch(1);
+        // The first task occupies the only slot until the test
+        // reports its completion
+        limiter.execute(ForkJoinTask.adapt(started::countDown),
+            ex -> fail("Task rejected"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // This task has to wait, and the pool is shut down in the meantime
+        AtomicInteger rejected = new AtomicInteger();
+        limiter.execute(ForkJoinTask.adapt(() -> fail("Task ran")),
+            ex -> rejected.incrementAndGet());
+        executor.pool().shutdown();
+        assertEquals(0, rejected.get());
+        limiter.taskCompleted();
+        assertEquals(1, rejected.get());
+        assertEquals(0, limiter.running());
+
+        // Once the pool is shut down, tasks are rejected right away
+        limiter.execute(ForkJoinTask.adapt(() -> fail("Task ran")),
+            ex -> rejected.incrementAndGet());
+        assertEquals(2, rejected.get());
+        assertEquals(0, limiter.running());
+    }
+
+    @Test public void testInteractiveTracking() throws Exception
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        QueryExecutor executor = new QueryExecutor(pool);
+        assertSame(pool, executor.pool());
+        assertFalse(executor.isInteractiveBusy());
+
+        executor.interactiveTileStarted();
+        executor.interactiveTileStarted();
+        assertTrue(executor.isInteractiveBusy());
+        executor.interactiveTileCompleted();
+        assertTrue(executor.isInteractiveBusy());
+        executor.interactiveTileCompleted();
+        assertFalse(executor.isInteractiveBusy());
+
+        // Tiles that start and complete in worker threads balance out
+        CountDownLatch done = new CountDownLatch(1000);
+        for(int i=0; i<1000; i++)
+        {
+            executor.interactiveTileStarted();
+            pool.execute(() ->
+            {
+                executor.interactiveTileCompleted();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(executor.isInteractiveBusy());
+        executor.shutdown();
+    }
+
+    @Test public void testShutdownWaitsForPrefetches() throws Exception
+    {
+        QueryExecutor executor = new QueryExecutor(1);
+        AtomicInteger completed = new AtomicInteger();
+        Set<String> threadNames = ConcurrentHashMap.newKeySet();
+        for(int i=0; i<20; i++)
+        {
+            executor.prefetch(() ->
+            {
+                // Prefetch threads must not keep the JVM alive
+                if(!Thread.currentThread().isDaemon()) return;
+                threadNames.add(Thread.currentThread().getName());
+                completed.incrementAndGet();
+            });
+        }
+        executor.shutdown();
+        assertEquals(20, completed.get());
+        assertEquals(Set.of("geodesk-prefetch"), threadNames);
+    }
+}
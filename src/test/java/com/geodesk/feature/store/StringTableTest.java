@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StringTableTest
+{
+    private static final String[] STRINGS =
+    {
+        "", "no", "highway", "name", "Zürich", "東京", "🚀 rocket",
+        "x".repeat(300), "bad \uD800 surrogate", "no"
+    };
+
+    private static StringTable encode(String[] strings, int p)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(p);
+        buf.putShort((short)strings.length);
+        for(String s: strings)
+        {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            int len = bytes.length;
+            while(len >= 0x80)
+            {
+                buf.put((byte)(len | 0x80));
+                len >>>= 7;
+            }
+            buf.put((byte)len);
+            buf.put(bytes);
+        }
+        return new StringTable(buf, p);
+    }
+
+    @Test public void testLookup()
+    {
+        StringTable table = encode(STRINGS, 10);
+        assertEquals(STRINGS.length, table.size());
+        for(int i=0; i<STRINGS.length; i++)
+        {
+            // Unpaired surrogates are encoded as '?'
+            String expected = new String(STRINGS[i].getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8);
+            assertEquals(expected, table.get(i));
+        }
+        for(int i=0; i<STRINGS.length-1; i++)
+        {
+            // "no" occurs twice; its last occurrence determines its code
+            int expected = STRINGS[i].equals("no") ? STRINGS.length-1 : i;
+            assertEquals(STRINGS[i], expected, table.code(STRINGS[i]));
+        }
+        assertEquals(-1, table.code("missing"));
+        assertEquals(-1, table.code("Zurich"));
+        assertEquals(-1, table.code("x".repeat(299)));
+    }
+
+    @Test public void testFingerprint()
+    {
+        StringTable table = encode(STRINGS, 0);
+        assertEquals(StringTable.fingerprint(STRINGS), table.fingerprint());
+        assertEquals(table.fingerprint(), encode(STRINGS, 100).fingerprint());
+        assertNotEquals(table.fingerprint(), encode(new String[] { "no" }, 0).fingerprint());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.geodesk.feature.match.MatcherCompiler;
+import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
+import org.eclipse.collections.impl.factory.primitive.ObjectIntMaps;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TagIndexTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] STRINGS = { "", "no", "amenity", "highway", "name", "pub", "primary" };
+    private static final String[] KEYS = { "amenity", "highway", "name", "shop", "building" };
+    private static final String[] VALUES = { "pub", "primary", "yes", "bakery", "Main Street" };
+    private static final int TIP_COUNT = 300;
+
+    private static MatcherCompiler compiler()
+    {
+        MutableObjectIntMap<String> codes = ObjectIntMaps.mutable.empty();
+        for(int i=0; i<STRINGS.length; i++) codes.put(STRINGS[i], i);
+        return new MatcherCompiler(codes, STRINGS, new IntIntHashMap());
+    }
+
+    private static class TestFeature
+    {
+        final Map<String,String> tags = new TreeMap<>();
+        final int[] tiles;
+
+        TestFeature(Random random)
+        {
+            for(int n=random.nextInt(3); n>=0; n--)
+            {
+                tags.put(KEYS[random.nextInt(KEYS.length)], VALUES[random.nextInt(VALUES.length)]);
+            }
+            // Some features span multiple tiles, and are stored in each
+            tiles = new int[1 + (random.nextInt(4) == 0 ? random.nextInt(3) : 0)];
+            for(int i=0; i<tiles.length; i++) tiles[i] = random.nextInt(TIP_COUNT);
+        }
+
+        String query()
+        {
+            StringBuilder buf = new StringBuilder("*");
+            for(Map.Entry<String,String> tag: tags.entrySet())
+            {
+                buf.append('[').append(tag.getKey()).append("=\"")
+                    .append(tag.getValue()).append("\"]");
+            }
+            return buf.toString();
+        }
+    }
+
+    @Test public void testNoFalseNegatives() throws Exception
+    {
+        Random random = new Random(19);
+        List<TestFeature> features = new ArrayList<>();
+        for(int i=0; i<1000; i++) features.add(new TestFeature(random));
+
+        LongHashSet[] tileTerms = new LongHashSet[TIP_COUNT];
+        for(TestFeature f: features)
+        {
+            for(int tip: f.tiles)
+            {
+                if(tileTerms[tip] == null) tileTerms[tip] = new LongHashSet();
+                f.tags.forEach((k, v) -> TagIndex.addTerms(tileTerms[tip], k, v));
+            }
+        }
+
+        Path path = folder.getRoot().toPath().resolve("test.tsi");
+        try(TagIndex.Builder builder = new TagIndex.Builder(path, 99, TIP_COUNT))
+        {
+            for(int tip=0; tip<TIP_COUNT; tip++)
+            {
+                if(tileTerms[tip] != null) builder.addTile(tip, tileTerms[tip]);
+            }
+            builder.finish();
+        }
+        assertNull(TagIndex.open(path, 100));
+        TagIndex index = TagIndex.open(path, 99);
+        assertNotNull(index);
+        MatcherCompiler compiler = compiler();
+        try
+        {
+            for(TestFeature f: features)
+            {
+                long[][][] terms = compiler.getMatcher(f.query()).tagTerms();
+                assertNotNull(f.query(), terms);
+                for(int tip: f.tiles)
+                {
+                    assertTrue(f.query() + " in tile " + tip, index.mayContain(tip, terms));
+                }
+            }
+
+            // Either of two selectors may match
+            long[][][] terms = compiler.getMatcher("*[amenity=nothing], *[shop]").tagTerms();
+            for(TestFeature f: features)
+            {
+                if(!f.tags.containsKey("shop")) continue;
+                for(int tip: f.tiles) assertTrue(index.mayContain(tip, terms));
+            }
+
+            // A value that no feature has is rejected by most tiles
+            terms = compiler.getMatcher("*[amenity=nothing]").tagTerms();
+            int rejected = 0;
+            for(int tip=0; tip<TIP_COUNT; tip++)
+            {
+                if(!index.mayContain(tip, terms)) rejected++;
+            }
+            assertTrue(String.valueOf(rejected), rejected > TIP_COUNT * 9 / 10);
+
+            // TIPs beyond the table are never rejected
+            assertTrue(index.mayContain(TIP_COUNT, terms));
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TagLookupTest
+{
+    private static final int TAGGED = 80;       // has uncommon keys
+    private static final int COMMON_ONLY = 100; // shares the common tags
+
+    /**
+     * Builds a tag-table with two common keys (code 3 = "paved",
+     * code 5 = 42) and three uncommon keys (colour = "red",
+     * zzz = 5, surface:note = 7), and two feature anchors that
+     * point to it.
+     */
+    private static ByteBuffer tagTable()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        putString(buf, 0, "colour");
+        putString(buf, 8, "surface:note");
+        putString(buf, 24, "zzz");
+        putString(buf, 28, "red");
+        putString(buf, 32, "paved");
+
+        // Uncommon-key tags, in descending order from pTags-6;
+        // key pointers are relative to pTags (64), shifted left by one
+        buf.putChar(58, (char)(5 - TagValues.MIN_NUMBER));
+        buf.putInt(60, ((24 - 64) << 1));                   // zzz, narrow number
+        buf.putInt(50, 28 - 50);                            // "red"
+        buf.putInt(54, ((0 - 64) << 1) | 3);                // colour, wide string
+        buf.putChar(44, (char)(7 - TagValues.MIN_NUMBER));
+        buf.putInt(46, ((8 - 64) << 1) | 4);                // surface:note, last
+
+        // Common-key tags
+        buf.putChar(64, (char)((3 << 2) | 3));              // wide string
+        buf.putInt(66, 32 - 66);                            // "paved"
+        buf.putChar(70, (char)((5 << 2) | 0x8000));         // narrow number, last
+        buf.putChar(72, (char)(42 - TagValues.MIN_NUMBER));
+
+        buf.putInt(TAGGED + 8, (64 - (TAGGED + 8)) | 1);
+        buf.putInt(COMMON_ONLY + 8, 64 - (COMMON_ONLY + 8));
+        return buf;
+    }
+
+    private static void putString(ByteBuffer buf, int p, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.put(p, (byte)bytes.length);
+        buf.put(p + 1, bytes);
+    }
+
+    private static byte[][] keys(String... keys)
+    {
+        byte[][] bytes = new byte[keys.length][];
+        for(int i=0; i<keys.length; i++) bytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    private static String value(ByteBuffer buf, int ptr, int code, String key)
+    {
+        long value = StoredFeature.getKeyValue(buf, ptr, code,
+            key == null ? null : keys(key));
+        return StoredFeature.valueAsString(null, buf, value);
+    }
+
+    @Test public void testKeyValue()
+    {
+        ByteBuffer buf = tagTable();
+        assertEquals("paved", value(buf, TAGGED, 3, null));
+        assertEquals("42", value(buf, TAGGED, 5, null));
+        assertEquals("", value(buf, TAGGED, 4, null));
+        assertEquals("", value(buf, TAGGED, 6, null));
+        assertEquals("red", value(buf, TAGGED, -1, "colour"));
+        assertEquals("5", value(buf, TAGGED, -1, "zzz"));
+        assertEquals("7", value(buf, TAGGED, -1, "surface:note"));
+        assertEquals("", value(buf, TAGGED, -1, "surface"));
+        assertEquals("42", value(buf, COMMON_ONLY, 5, null));
+        assertEquals("", value(buf, COMMON_ONLY, -1, "colour"));
+    }
+
+    @Test public void testUncommonKeyScan()
+    {
+        ByteBuffer buf = tagTable();
+        byte[][] keys = keys("surface:note", "zzz");
+        int p = StoredFeature.firstUncommonTag(64);
+        long match = StoredFeature.findUncommonKey(buf, 64, p, keys);
+        assertEquals(1, match >>> 32);
+        assertEquals(58, (int)match);
+
+        p = StoredFeature.nextUncommonTag(buf, (int)match);
+        assertEquals(52, p);
+        match = StoredFeature.findUncommonKey(buf, 64, p, keys);
+        assertEquals(0, match >>> 32);
+        assertEquals(44, (int)match);
+        assertEquals("7", StoredFeature.valueAsString(null, buf,
+            StoredFeature.uncommonTagValue(buf, (int)match)));
+        assertEquals(0, StoredFeature.nextUncommonTag(buf, (int)match));
+
+        assertEquals(-1, StoredFeature.findUncommonKey(buf, 64, 52, keys("zzz")));
+    }
+
+    @Test public void testProjection()
+    {
+        ByteBuffer buf = tagTable();
+        TagProjection projection = new TagProjection(null,
+            new String[] { "surface:note", "maxspeed", "colour", "missing", "surface" },
+            new int[] { -1, 5, -1, -1, 3 });
+        String[] values = new String[projection.size()];
+
+        Arrays.fill(values, "");
+        assertEquals(4, projection.project(buf, TAGGED, values));
+        assertArrayEquals(new String[] { "7", "42", "red", "", "paved" }, values);
+
+        Arrays.fill(values, "");
+        assertEquals(2, projection.project(buf, COMMON_ONLY, values));
+        assertArrayEquals(new String[] { "", "42", "", "", "paved" }, values);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateKey()
+    {
+        new TagProjection(null, new String[] { "colour", "colour" }, new int[] { -1, -1 });
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import com.geodesk.geom.Tile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a minimal GOL for tests: a tile index with zoom levels 0 and 2
+ * (the 16 tiles at zoom 2 are the only tiles that hold features) or
+ * 0, 2 and 4 (the 256 tiles at zoom 4 hold the features), a string
+ * table that only contains "" and "no", and no indexed keys.
+ * Each tile has a single R-tree for nodes and one for (non-area) ways,
+ * each with a single leaf. Features have no tags.
+ */
+public class TestGol
+{
+    public static final int ZOOM = 2;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final int zoom;
+    private final int extent;
+    private final List<long[]>[] nodes;
+    private final List<int[]>[] ways;
+    private final List<long[]>[] wayIds;
+    private final boolean[] broken;
+
+    /**
+     * Creates a GOL whose features reside in the 16 tiles at zoom 2.
+     */
+    public TestGol()
+    {
+        this(ZOOM);
+    }
+
+    /**
+     * Creates a GOL whose features reside in the tiles at the given
+     * zoom level.
+     *
+     * @param zoom  the zoom level of the tiles (2 or 4)
+     */
+    public TestGol(int zoom)
+    {
+        if(zoom != 2 && zoom != 4) throw new IllegalArgumentException("Zoom must be 2 or 4");
+        this.zoom = zoom;
+        extent = 1 << zoom;
+        nodes = newLists(extent * extent);
+        ways = newLists(extent * extent);
+        wayIds = newLists(extent * extent);
+        broken = new boolean[extent * extent];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] newLists(int count)
+    {
+        List<T>[] lists = new List[count];
+        for(int i=0; i<count; i++) lists[i] = new ArrayList<>();
+        return lists;
+    }
+
+    /**
+     * Returns the tile at zoom level 2 with the given column and row.
+     */
+    public static int tile(int col, int row)
+    {
+        return Tile.fromColumnRowZoom(col, row, ZOOM);
+    }
+
+    /**
+     * Returns the tile of this GOL with the given column and row.
+     */
+    public int tileAt(int col, int row)
+    {
+        return Tile.fromColumnRowZoom(col, row, zoom);
+    }
+
+    /**
+     * Adds a node to a tile.
+     *
+     * @param col   the column of the tile
+     * @param row   the row of the tile
+     * @param id    the ID of the node
+     * @param x     the x-coordinate of the node
+     * @param y     the y-coordinate of the node
+     * @return this TestGol
+     */
+    public TestGol node(int col, int row, long id, int x, int y)
+    {
+        nodes[row * extent + col].add(new long[] { id, x, y });
+        return this;
+    }
+
+    /**
+     * Adds a way to a tile. A way that spans multiple tiles must be
+     * added to each of them; all copies but the one in the tile that
+     * is furthest north and west must be flagged as
+     * {@link FeatureFlags#MULTITILE_WEST} or
+     * {@link FeatureFlags#MULTITILE_NORTH}.
+     *
+     * @param col       the column of the tile
+     * @param row       the row of the tile
+     * @param id        the ID of the way
+     * @param flags     the multi-tile flags of this copy
+     * @param xy        the coordinates of the way's nodes
+     * @return this TestGol
+     */
+    public TestGol way(int col, int row, long id, int flags, int... xy)
+    {
+        ways[row * extent + col].add(xy);
+        wayIds[row * extent + col].add(new long[] { id, flags });
+        return this;
+    }
+
+    /**
+     * Marks a tile as present, but lets its entry in the tile index point
+     * past the end of the file (as in a truncated GOL), so that any
+     * attempt to search it fails.
+     *
+     * @param col   the column of the tile
+     * @param row   the row of the tile
+     * @return this TestGol
+     */
+    public TestGol brokenTile(int col, int row)
+    {
+        broken[row * extent + col] = true;
+        return this;
+    }
+
+    private static void putVarint(ByteBuffer buf, long v)
+    {
+        while(v >= 0x80)
+        {
+            buf.put((byte)(v | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    /**
+     * Writes an index with a single root, a single trunk entry and a
+     * single leaf, and returns the position of the leaf.
+     */
+    private static int putIndex(ByteBuffer buf, int pIndex, int[] bbox)
+    {
+        int pTrunk = pIndex + 8;
+        int pLeaf = pTrunk + 20;
+        buf.putInt(pIndex, (pTrunk - pIndex) | 1);
+        buf.putInt(pIndex + 4, 0);
+        buf.putInt(pTrunk, (pLeaf - pTrunk) | 2 | 1);
+        for(int i=0; i<4; i++) buf.putInt(pTrunk + 4 + i * 4, bbox[i]);
+        return pLeaf;
+    }
+
+    private static int[] emptyBox()
+    {
+        return new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Integer.MIN_VALUE };
+    }
+
+    private static void expand(int[] bbox, int x, int y)
+    {
+        bbox[0] = Math.min(bbox[0], x);
+        bbox[1] = Math.min(bbox[1], y);
+        bbox[2] = Math.max(bbox[2], x);
+        bbox[3] = Math.max(bbox[3], y);
+    }
+
+    private ByteBuffer writeTile(int n)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        int pTags = 24;
+        buf.putShort(pTags, (short)0x8000);     // empty tag table
+        int p = 32;
+
+        List<long[]> tileNodes = nodes[n];
+        if(!tileNodes.isEmpty())
+        {
+            int[] bbox = emptyBox();
+            for(long[] node: tileNodes) expand(bbox, (int)node[1], (int)node[2]);
+            buf.putInt(8, p - 8);
+            p = putIndex(buf, p, bbox);
+            for(int i=0; i<tileNodes.size(); i++)
+            {
+                long[] node = tileNodes.get(i);
+                int last = i == tileNodes.size() - 1 ? 1 : 0;
+                int ptr = p + 8;
+                buf.putInt(p, (int)node[1]);
+                buf.putInt(p + 4, (int)node[2]);
+                buf.putLong(ptr, (node[0] << 12) | last);
+                buf.putInt(ptr + 8, pTags - (ptr + 8));
+                p += 20;
+            }
+        }
+
+        List<int[]> tileWays = ways[n];
+        if(!tileWays.isEmpty())
+        {
+            int[][] boxes = new int[tileWays.size()][];
+            int[] bbox = emptyBox();
+            for(int i=0; i<tileWays.size(); i++)
+            {
+                int[] xy = tileWays.get(i);
+                boxes[i] = emptyBox();
+                for(int j=0; j<xy.length; j+=2) expand(boxes[i], xy[j], xy[j+1]);
+                expand(bbox, boxes[i][0], boxes[i][1]);
+                expand(bbox, boxes[i][2], boxes[i][3]);
+            }
+            buf.putInt(12, p - 12);
+            p = putIndex(buf, p, bbox);
+            int pBody = p + 32 * tileWays.size();
+            for(int i=0; i<tileWays.size(); i++)
+            {
+                int[] xy = tileWays.get(i);
+                long[] idAndFlags = wayIds[n].get(i);
+                int last = i == tileWays.size() - 1 ? 1 : 0;
+                int ptr = p + 16;
+                for(int j=0; j<4; j++) buf.putInt(p + j * 4, boxes[i][j]);
+                buf.putLong(ptr, (idAndFlags[0] << 12) | (1 << 3) | idAndFlags[1] | last);
+                buf.putInt(ptr + 8, pTags - (ptr + 8));
+                buf.putInt(ptr + 12, pBody - (ptr + 12));
+                buf.position(pBody);
+                putVarint(buf, xy.length / 2);
+                int prevX = boxes[i][0];
+                int prevY = boxes[i][1];
+                for(int j=0; j<xy.length; j+=2)
+                {
+                    int dx = xy[j] - prevX;
+                    int dy = xy[j+1] - prevY;
+                    putVarint(buf, (dx << 1) ^ (dx >> 31));
+                    putVarint(buf, (dy << 1) ^ (dy >> 31));
+                    prevX = xy[j];
+                    prevY = xy[j+1];
+                }
+                pBody = (buf.position() + 3) & ~3;
+                p += 32;
+            }
+            p = pBody;
+        }
+        buf.putInt(0, p - 4);
+        buf.limit(p);
+        buf.position(0);
+        return buf;
+    }
+
+    /**
+     * Returns the tile-index entry of a tile, and copies the tile into
+     * the GOL (if it is present).
+     *
+     * @param n     the number of the tile (`row * extent + col`)
+     * @return the entry, or 0 if the tile is not present
+     */
+    private int putTile(ByteBuffer buf, ByteBuffer[] tiles, int[] page, int n)
+    {
+        if(broken[n]) return (1 << 24) | 2;
+        if(tiles[n] == null) return 0;
+        int entry = (page[0] << 2) | 2;
+        buf.put(page[0] * PAGE_SIZE, tiles[n], 0, tiles[n].limit());
+        page[0] += (tiles[n].limit() + PAGE_SIZE - 1) / PAGE_SIZE;
+        return entry;
+    }
+
+    /**
+     * Writes the GOL.
+     *
+     * @param path  the path of the GOL file
+     * @return the path
+     * @throws IOException if the file cannot be written
+     */
+    public Path write(Path path) throws IOException
+    {
+        int count = extent * extent;
+        ByteBuffer[] tiles = new ByteBuffer[count];
+        // At zoom 4, each of the 16 tiles at zoom 2 is an empty tile
+        // (a tile whose parent is missing is never visited)
+        ByteBuffer emptyTile = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        emptyTile.putInt(0, 28);
+        int pageCount = zoom == 2 ? 2 : 2 + 16;
+        int tileCount = zoom == 2 ? 0 : 16;
+        for(int i=0; i<count; i++)
+        {
+            if(broken[i]) tileCount++;
+            if(nodes[i].isEmpty() && ways[i].isEmpty()) continue;
+            tiles[i] = writeTile(i);
+            pageCount += (tiles[i].limit() + PAGE_SIZE - 1) / PAGE_SIZE;
+            tileCount++;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(pageCount * PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0, FeatureStore.MAGIC);
+        buf.putInt(4, FeatureStore.VERSION);
+        buf.put(16, (byte)0);                           // active snapshot
+        buf.putInt(84, 1024);                           // string table
+        buf.putInt(88, 2048);                           // index schema
+        buf.putInt(96, zoom == 2 ? 0b101 : 0b10101);    // zoom levels
+        buf.putInt(128 + FeatureStore.SNAPSHOT_TILE_INDEX_OFS, 1);
+        buf.putInt(128 + FeatureStore.SNAPSHOT_TILE_COUNT_OFS, tileCount);
+
+        buf.putShort(1024, (short)2);
+        buf.put(1026, (byte)0);                         // ""
+        buf.put(1027, (byte)2);                         // "no"
+        buf.put(1028, (byte)'n');
+        buf.put(1029, (byte)'o');
+        buf.putInt(2048, 0);                            // no indexed keys
+
+        // The tile index: the root tile (TIP 1) holds no features; its
+        // entry is followed by the mask of its children at zoom 2 and
+        // their entries. At zoom 4, each tile at zoom 2 (which holds no
+        // features itself) is represented by a pointer to a block with
+        // the same layout: its own entry, followed by the mask and the
+        // entries of its children.
+        int pTileIndex = PAGE_SIZE;
+        buf.putInt(pTileIndex, tileCount);
+        int[] page = { 2 };
+        int pRoot = pTileIndex + 4;
+        int pBlock = pRoot + 8 + 16 * 4;
+        int mask = 0;
+        int pEntry = pRoot + 8;
+        for(int i=0; i<16; i++)
+        {
+            int entry;
+            if(zoom == 2)
+            {
+                entry = putTile(buf, tiles, page, i);
+            }
+            else
+            {
+                int childMask = 0;
+                int pChild = pBlock + 8;
+                for(int i2=0; i2<16; i2++)
+                {
+                    int n = ((i / 4) * 4 + i2 / 4) * extent + (i % 4) * 4 + i2 % 4;
+                    int childEntry = putTile(buf, tiles, page, n);
+                    if(childEntry == 0) continue;
+                    childMask |= 1 << i2;
+                    buf.putInt(pChild, childEntry);
+                    pChild += 4;
+                }
+                buf.putInt(pBlock, (page[0] << 2) | 2);
+                buf.put(page[0] * PAGE_SIZE, emptyTile, 0, emptyTile.limit());
+                page[0]++;
+                buf.putInt(pBlock + 4, childMask);
+                entry = (pBlock - pEntry) | 1;
+                pBlock = pChild;
+            }
+            if(entry == 0) continue;
+            mask |= 1 << i;
+            buf.putInt(pEntry, entry);
+            pEntry += 4;
+        }
+        buf.putInt(pRoot, 0);
+        buf.putInt(pRoot + 4, mask);
+
+        Files.write(path, Arrays.copyOf(buf.array(), buf.capacity()));
+        return path;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the Apache 2.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.feature.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TextIndexTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> tokens(String s)
+    {
+        List<String> list = new ArrayList<>();
+        TextIndex.tokenize(s, list::add);
+        return list;
+    }
+
+    @Test public void testTokenize()
+    {
+        assertEquals(List.of("zurich", "hauptbahnhof"), tokens("Zürich Hauptbahnhof"));
+        assertEquals(List.of("rue", "de", "l", "eglise"), tokens("Rue de l'Église"));
+        assertEquals(List.of("a", "7", "e45"), tokens("  A-7;E45  "));
+        assertEquals(List.of("東京駅"), tokens("東京駅"));
+        assertEquals(List.of(), tokens(" - / "));
+    }
+
+    private static long ref(int tip, int ofs)
+    {
+        return ((long)tip << 32) | ofs;
+    }
+
+    @Test public void testBuildAndFindPrefix() throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("test.txi");
+        Map<String,Set<Long>> expected = new TreeMap<>();
+        Random random = new Random(42);
+        String[] words = { "main", "mainz", "maine", "market", "mill", "zurich", "école", "a" };
+
+        // A small run size forces the builder to spill and merge several runs
+        TextIndex.Builder builder = new TextIndex.Builder(path, 1234, 7);
+        for(int i=0; i<200; i++)
+        {
+            long ref = ref(random.nextInt(50), random.nextInt(1 << 20) * 4);
+            Set<String> featureTokens = new HashSet<>();
+            for(int n=random.nextInt(3); n>=0; n--) featureTokens.add(words[random.nextInt(words.length)]);
+            for(String token: featureTokens)
+            {
+                if(expected.computeIfAbsent(token, k -> new HashSet<>()).add(ref))
+                {
+                    builder.add(token, ref);
+                }
+            }
+        }
+        builder.finish();
+        builder.deleteRuns();
+        File[] files = folder.getRoot().listFiles();
+        assertEquals("temporary files must be removed", 1, files.length);
+
+        assertNull(TextIndex.open(path, 5678));
+        TextIndex index = TextIndex.open(path, 1234);
+        assertNotNull(index);
+        try
+        {
+            for(String word: words)
+            {
+                long[] range = index.findPrefix(word);
+                Set<Long> refs = expected.get(word);
+                int count = refs == null ? 0 : refs.size();
+                // Longer tokens that start with the word match as well
+                for(Map.Entry<String,Set<Long>> e: expected.entrySet())
+                {
+                    if(!e.getKey().equals(word) && e.getKey().startsWith(word))
+                    {
+                        count += e.getValue().size();
+                    }
+                }
+                assertEquals(word, count, range[1]);
+            }
+
+            // The refs of an exact token are sorted and complete
+            long[] range = index.findPrefix("mainz");
+            List<Long> actual = new ArrayList<>();
+            for(long n=range[0]; n<range[0]+range[1]; n++) actual.add(index.ref(n));
+            List<Long> sorted = new ArrayList<>(expected.get("mainz"));
+            Collections.sort(sorted);
+            assertEquals(sorted, actual);
+
+            assertEquals(0, index.findPrefix("nothing")[1]);
+            assertEquals(0, index.findPrefix("zz")[1]);
+            assertEquals(expected.values().stream().mapToInt(Set::size).sum(),
+                index.findPrefix("")[1]);
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+}